@@ -13,14 +13,24 @@
  */
 package com.mobiperf;
 
+import com.google.myjson.JsonArray;
+import com.google.myjson.JsonElement;
+import com.google.myjson.JsonObject;
+import com.google.myjson.JsonParseException;
+import com.google.myjson.JsonParser;
+import com.google.myjson.stream.JsonWriter;
 import com.mobiperf.measurements.RRCTask;
+import com.mobiperf.util.MeasurementBinaryConvertor;
 import com.mobiperf.util.MeasurementJsonConvertor;
 import com.mobiperf.util.PhoneUtils;
 
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
@@ -32,6 +42,7 @@ import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicResponseHandler;
@@ -43,12 +54,18 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -59,10 +76,13 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -107,20 +127,39 @@ public class Checkin {
     return this.lastCheckin;
   }
 
-  public List<MeasurementTask> checkin(ResourceCapManager resourceCapManager) throws IOException {
+  /**
+   * Checks in with the server and fetches the changes to the schedule.
+   * 
+   * The device sends the version of the schedule it last received. If the server still knows
+   * that version, it replies with only the tasks added or changed since, and the keys of the
+   * removed tasks. Otherwise, or if the server predates versioned schedules, the reply is the
+   * whole schedule.
+   * 
+   * @param resourceCapManager used to update data consumption based on traffic from the checkin
+   * @param scheduleVersion version of the schedule the device runs, or null to ask for all of it
+   * @return the changes to apply to the schedule
+   * @throws IOException
+   */
+  public ScheduleUpdate checkin(ResourceCapManager resourceCapManager, String scheduleVersion)
+      throws IOException {
     Logger.i("Checkin.checkin() called");
     boolean checkinSuccess = false;
     try {
-      JSONObject status = new JSONObject();
+      StringWriter status = new StringWriter();
+      JsonWriter statusWriter = new JsonWriter(status);
       DeviceInfo info = phoneUtils.getDeviceInfo();
       // TODO(Wenjie): There is duplicated info here, such as device ID.
-      status.put("id", info.deviceId);
-      status.put("manufacturer", info.manufacturer);
-      status.put("model", info.model);
-      status.put("os", info.os);
-      status
-          .put("properties", MeasurementJsonConvertor.encodeToJson(phoneUtils
-              .getDeviceProperty()));
+      statusWriter.beginObject();
+      statusWriter.name("id").value(info.deviceId);
+      statusWriter.name("manufacturer").value(info.manufacturer);
+      statusWriter.name("model").value(info.model);
+      statusWriter.name("os").value(info.os);
+      statusWriter.name("properties");
+      MeasurementJsonConvertor.writeJson(phoneUtils.getDeviceProperty(), statusWriter);
+      // Present even when null, which tells the server that we understand schedule deltas
+      statusWriter.name("schedule_version").value(scheduleVersion);
+      statusWriter.endObject();
+      statusWriter.flush();
       resourceCapManager.updateDataUsage(ResourceCapManager.PHONEUTILCOST);
 
       Logger.d(status.toString());
@@ -130,25 +169,44 @@ public class Checkin {
       Logger.d("Checkin result: " + result);
       resourceCapManager.updateDataUsage(result.length());
 
-      // Parse the result
-      Vector<MeasurementTask> schedule = new Vector<MeasurementTask>();
-      JSONArray jsonArray = new JSONArray(result);
-      sendStringMsg("Checkin got " + jsonArray.length() + " tasks.");
+      // Parse the result once; each task description is built from the parsed tree
+      JsonElement response = new JsonParser().parse(result);
+      ScheduleUpdate update;
+      JsonArray jsonArray;
+      if (response.isJsonArray()) {
+        // Servers without versioned schedules send the whole schedule as a list
+        update = new ScheduleUpdate(null, true);
+        jsonArray = response.getAsJsonArray();
+      } else {
+        JsonObject responseJson = response.getAsJsonObject();
+        if (!responseJson.has("version") || !responseJson.has("full")
+            || !responseJson.has("tasks") || !responseJson.has("removed")) {
+          throw new JsonParseException("Incomplete schedule update");
+        }
+        update = new ScheduleUpdate(responseJson.get("version").getAsString(),
+            responseJson.get("full").getAsBoolean());
+        jsonArray = responseJson.getAsJsonArray("tasks");
+        for (JsonElement removedKey : responseJson.getAsJsonArray("removed")) {
+          update.removedKeys.add(removedKey.getAsString());
+        }
+      }
+      sendStringMsg("Checkin got " + jsonArray.size() + " tasks.");
 
-      for (int i = 0; i < jsonArray.length(); i++) {
+      for (int i = 0; i < jsonArray.size(); i++) {
         Logger.d("Parsing index " + i);
-        JSONObject json = jsonArray.optJSONObject(i);
+        JsonElement json = jsonArray.get(i);
         Logger.d("Value is " + json);
         // checkin task must support
-        if (json != null
-            && MeasurementTask.getMeasurementTypes().contains(json.get("type"))) {
+        if (json.isJsonObject() && json.getAsJsonObject().has("type")
+            && MeasurementTask.getMeasurementTypes().contains(
+                json.getAsJsonObject().get("type").getAsString())) {
           try {
             MeasurementTask task =
                 MeasurementJsonConvertor.makeMeasurementTaskFromJson(json,
                     this.context);
             Logger.i(MeasurementJsonConvertor
                 .toJsonString(task.measurementDesc));
-            schedule.add(task);
+            update.tasks.add(task);
           } catch (IllegalArgumentException e) {
             Logger.w("Could not create task from JSON: " + e);
             // Just skip it, and try the next one
@@ -157,10 +215,15 @@ public class Checkin {
       }
 
       this.lastCheckin = new Date();
-      Logger.i("Checkin complete, got " + schedule.size() + " new tasks");
+      Logger.i("Checkin complete, got " + update.tasks.size() + " new tasks and "
+          + update.removedKeys.size() + " removals");
       checkinSuccess = true;
-      return schedule;
-    } catch (JSONException e) {
+      return update;
+    } catch (JsonParseException e) {
+      Logger.e("Got exception during checkin", e);
+      throw new IOException("There is exception during checkin()");
+    } catch (IllegalStateException e) {
+      // The response is valid JSON, but not a schedule
       Logger.e("Got exception during checkin", e);
       throw new IOException("There is exception during checkin()");
     } catch (IOException e) {
@@ -176,30 +239,260 @@ public class Checkin {
   }
 
   /**
-   * Upload results from non-RRC measurements to the server
+   * Changes to the schedule received on checkin. A full update replaces the whole schedule;
+   * otherwise |tasks| are added or replace the tasks with the same key, and the tasks in
+   * |removedKeys| are dropped.
+   */
+  public static class ScheduleUpdate {
+    /** Version to send on the next checkin, null if the server does not version schedules */
+    public final String version;
+    public final boolean full;
+    public final List<MeasurementTask> tasks = new Vector<MeasurementTask>();
+    public final Set<String> removedKeys = new HashSet<String>();
+
+    ScheduleUpdate(String version, boolean full) {
+      this.version = version;
+      this.full = full;
+    }
+  }
+
+  /**
+   * Upload results from non-RRC measurements to the server.
+   * 
+   * Results are streamed from the spool file, converted to JSON, and posted in chunks of at most
+   * Config.RESULT_UPLOAD_CHUNK_BYTES of JSON. The spool offset acknowledged by the server is
+   * persisted after every chunk, so an interrupted upload resumes from the last acknowledged
+   * chunk instead of starting over. The spool file is deleted once it is fully uploaded.
    * 
-   * @param resultArray a JSON array of results to date
+   * @param spoolFileName name of the private file holding the results to date
    * @param resourceCapManager used to update data consumption based on traffic from the checkin
+   * @return the number of results uploaded
    * @throws IOException
    */
-  public void uploadMeasurementResult(JSONArray resultArray, ResourceCapManager resourceCapManager)
+  public int uploadMeasurementResult(String spoolFileName, ResourceCapManager resourceCapManager)
       throws IOException {
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    File spoolFile = context.getFileStreamPath(spoolFileName);
+    long offset = prefs.getLong(Config.PREF_KEY_RESULT_UPLOAD_OFFSET, 0);
+    long spoolLength = spoolFile.length();
+    if (offset > spoolLength) {
+      // The spool was replaced since the offset was saved
+      Logger.w("Result upload offset " + offset + " is beyond the spool, starting over");
+      offset = 0;
+    }
 
-    sendStringMsg("Uploading " + resultArray.length() + " measurement results.");
-    Logger.i("TaskSchedule.uploadMeasurementResult() uploading: "
-        + resultArray.toString());
-    resourceCapManager.updateDataUsage(resultArray.toString().length());
-    String response = serviceRequest("postmeasurement", resultArray.toString());
+    int uploadedCnt = 0;
+    // One pass over the spool for all chunks, so that the schema tables are read only once
+    SpoolReader reader = new SpoolReader(spoolFile, offset);
     try {
-      JSONObject responseJson = new JSONObject(response);
-      if (!responseJson.getBoolean("success")) {
-        throw new IOException("Failure posting measurement result");
+      while (offset < spoolLength) {
+        ResultChunk chunk = ResultChunk.read(reader, offset, Config.RESULT_UPLOAD_CHUNK_BYTES);
+        if (chunk.end <= offset) {
+          break;
+        }
+        if (chunk.resultCnt > 0) {
+          sendStringMsg("Uploading " + chunk.resultCnt + " measurement results.");
+          Logger.i("TaskSchedule.uploadMeasurementResult() uploading bytes " + chunk.start
+              + " to " + chunk.end + " of " + spoolLength);
+          HttpEntity entity = chunk.toEntity(Config.COMPRESS_RESULT_UPLOAD);
+          resourceCapManager.updateDataUsage(entity.getContentLength());
+          String response = serviceRequest("postmeasurement", entity);
+          try {
+            JSONObject responseJson = new JSONObject(response);
+            if (!responseJson.getBoolean("success")) {
+              throw new IOException("Failure posting measurement result");
+            }
+          } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+          }
+          uploadedCnt += chunk.resultCnt;
+        }
+        offset = chunk.end;
+        prefs.edit().putLong(Config.PREF_KEY_RESULT_UPLOAD_OFFSET, offset).commit();
       }
-    } catch (JSONException e) {
-      throw new IOException(e.getMessage());
+    } finally {
+      reader.close();
     }
+
+    // Clear the offset before the spool, so that a crash in between re-sends results rather
+    // than skipping the head of the next spool
+    prefs.edit().remove(Config.PREF_KEY_RESULT_UPLOAD_OFFSET).commit();
+    context.deleteFile(spoolFileName);
     Logger.i("TaskSchedule.uploadMeasurementResult() complete");
-    sendStringMsg("Result upload complete.");
+    if (uploadedCnt > 0) {
+      sendStringMsg("Result upload complete.");
+    }
+    return uploadedCnt;
+  }
+
+  /**
+   * A run of spooled results between byte offsets [start, end) of the spool file that is posted
+   * to the server as one JSON array. The JSON of the results is kept from reading the spool, so
+   * each result is decoded once.
+   */
+  static class ResultChunk {
+    final long start;
+    long end;
+    int resultCnt = 0;
+    final ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+
+    private ResultChunk(long start) {
+      this.start = start;
+      this.end = start;
+    }
+
+    /**
+     * Takes results from |reader|, which is at |start| in the spool, until about |maxBytes| bytes
+     * of JSON are covered. A single result larger than |maxBytes| still makes up a chunk on its
+     * own. The reader is left at the end of the chunk.
+     */
+    static ResultChunk read(SpoolReader reader, long start, int maxBytes) throws IOException {
+      ResultChunk chunk = new ResultChunk(start);
+      chunk.json.write('[');
+      int consumed;
+      while (chunk.json.size() < maxBytes && (consumed = reader.readRecord()) > 0) {
+        if (!reader.isComplete()) {
+          // A torn write can only be at the very end of the spool
+          Logger.w("Dropping incomplete result at the end of the spool");
+        } else if (reader.isResult()) {
+          if (chunk.resultCnt > 0 && chunk.json.size() + reader.json.size() + 1 > maxBytes) {
+            // Left for the next chunk
+            reader.unread();
+            break;
+          }
+          if (chunk.resultCnt > 0) {
+            chunk.json.write(',');
+          }
+          reader.json.writeTo(chunk.json);
+          chunk.resultCnt++;
+        }
+        chunk.end += consumed;
+      }
+      chunk.json.write(']');
+      return chunk;
+    }
+
+    /** Length of the chunk written as a JSON array */
+    long jsonLength() {
+      return json.size();
+    }
+
+    /**
+     * Returns the HTTP entity for this chunk, deflated if |compress| is set. Compressed chunks
+     * need their content length up front, which the deflated bytes give.
+     */
+    HttpEntity toEntity(boolean compress) throws IOException {
+      if (!compress) {
+        return new ByteArrayEntity(json.toByteArray());
+      }
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) (jsonLength() / 4));
+      GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+      json.writeTo(gzipStream);
+      gzipStream.close();
+      ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray());
+      entity.setContentEncoding("gzip");
+      return entity;
+    }
+  }
+
+  /**
+   * Reads the spool file one result at a time, reusing a single buffer for the JSON text.
+   * Binary records are converted to JSON as they are read; spools from older versions hold one
+   * JSON result per line. A reader stays open for a whole upload, so that the schema tables
+   * read at the head of the spool are known for every chunk.
+   */
+  private static class SpoolReader {
+    final ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+    private final Writer jsonWriter;
+    private final MeasurementBinaryConvertor.BlockReader blocks;
+    private final MeasurementBinaryConvertor.Decoder decoder =
+        new MeasurementBinaryConvertor.Decoder();
+    private boolean result;
+    // The last record is returned again by the next readRecord()
+    private boolean unread = false;
+    private int lastConsumed = 0;
+
+    SpoolReader(File spoolFile, long start) throws IOException {
+      blocks = new MeasurementBinaryConvertor.BlockReader(
+          new BufferedInputStream(new FileInputStream(spoolFile), 8192));
+      jsonWriter = new OutputStreamWriter(json, "UTF-8");
+      // Walk up to |start| rather than skipping, so that the schema tables written before it
+      // are known when decoding the records after it
+      long pos = 0;
+      int consumed;
+      while (pos < start && (consumed = readRecord(false)) > 0) {
+        pos += consumed;
+      }
+    }
+
+    /**
+     * Reads the next record and, if it is a result, puts its JSON text into |json|.
+     * 
+     * @return number of bytes consumed from the spool, or 0 at the end of the file
+     */
+    int readRecord() throws IOException {
+      if (unread) {
+        unread = false;
+        return lastConsumed;
+      }
+      lastConsumed = readRecord(true);
+      return lastConsumed;
+    }
+
+    /** Puts back the record just read, which must have been complete */
+    void unread() {
+      unread = true;
+    }
+
+    private int readRecord(boolean decode) throws IOException {
+      json.reset();
+      result = false;
+      int consumed = blocks.next();
+      if (!blocks.isComplete()) {
+        return consumed;
+      }
+      byte[] buf = blocks.buffer();
+      int length = blocks.length();
+      try {
+        switch (blocks.marker()) {
+          case MeasurementBinaryConvertor.SCHEMA_MARKER:
+            decoder.readSchema(buf, length);
+            break;
+          case MeasurementBinaryConvertor.RECORD_MARKER:
+            if (decode) {
+              decoder.writeJson(buf, length, jsonWriter);
+              jsonWriter.flush();
+              result = true;
+            }
+            break;
+          default:
+            // Every line that looks like a JSON object is sent, anything else is skipped
+            result = length > 1 && buf[0] == '{' && buf[length - 1] == '}';
+            if (result) {
+              json.write(buf, 0, length);
+            }
+        }
+      } catch (IOException e) {
+        Logger.e("Skipping unreadable spool record", e);
+        json.reset();
+        result = false;
+      }
+      return consumed;
+    }
+
+    /** Whether the last record was read in full rather than cut off by the end of the file */
+    boolean isComplete() {
+      return blocks.isComplete();
+    }
+
+    /** Whether the last record was a result, in which case |json| holds it */
+    boolean isResult() {
+      return result;
+    }
+
+    void close() throws IOException {
+      blocks.close();
+    }
   }
 
   /**
@@ -345,6 +638,18 @@ public class Checkin {
 
   private String serviceRequest(String url, String jsonString)
       throws IOException {
+    StringEntity se;
+    try {
+      se = new StringEntity(jsonString);
+    } catch (UnsupportedEncodingException e) {
+      throw new IOException(e.getMessage());
+    }
+    return serviceRequest(url, se);
+  }
+
+  /** Posts |entity| to |url| on the server and returns the response. Overridden by tests. */
+  protected String serviceRequest(String url, HttpEntity entity)
+      throws IOException {
 
     if (this.accountSelector == null) {
       accountSelector = new AccountSelector(context);
@@ -367,14 +672,7 @@ public class Checkin {
             : phoneUtils.getServerUrl()) + "/" + url;
     Logger.i("Checking in to " + fullurl);
     HttpPost postMethod = new HttpPost(fullurl);
-
-    StringEntity se;
-    try {
-      se = new StringEntity(jsonString);
-    } catch (UnsupportedEncodingException e) {
-      throw new IOException(e.getMessage());
-    }
-    postMethod.setEntity(se);
+    postMethod.setEntity(entity);
     postMethod.setHeader("Accept", "application/json");
     postMethod.setHeader("Content-type", "application/json");
     if (!accountSelector.isAnonymous()) {
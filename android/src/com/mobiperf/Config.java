@@ -31,6 +31,13 @@ public interface Config {
   public static final double DEFAULT_USER_MEASUREMENT_INTERVAL_SEC = 5;
   // Default value for the '-i' option in the ping command
   public static final double DEFAULT_INTERVAL_BETWEEN_ICMP_PACKET_SEC = 0.5;
+  // Hosts rate limit the ICMP errors that answer UDP probes, Linux to one per
+  // second per destination after a short burst, so the probes are no closer
+  public static final double UDP_PROBE_INTERVAL_SEC = 1.0;
+  // UDP probes give up, for the ping command to take over, once this many
+  // probes are unanswered within UDP_PROBE_FIRST_TIMEOUT_MSEC before any answer
+  public static final int UDP_PROBE_GIVEUP_COUNT = 2;
+  public static final int UDP_PROBE_FIRST_TIMEOUT_MSEC = 1500;
   
   public static final float PING_FILTER_THRES = (float) 1.4;
   public static final int MAX_CONCURRENT_PING = 3;
@@ -55,6 +62,17 @@ public interface Config {
   public static final boolean DEFAULT_MEASURE_WHEN_CHARGE = true;
   public static final long MIN_TIME_BETWEEN_MEASUREMENT_ALARM_MSEC = 3 * 1000L;
   
+  /** Constants used in Checkin.java */
+  // Results are uploaded in chunks of at most this many bytes of JSON
+  public static final int RESULT_UPLOAD_CHUNK_BYTES = 32 * 1024;
+  // Gzip result chunks before upload. Requires a server that accepts Content-Encoding: gzip
+  public static final boolean COMPRESS_RESULT_UPLOAD = false;
+  
+  /** Constants used in MLabNS.java */
+  // How long an answer from m-lab-ns is reused. It names the nearest server,
+  // which rarely changes while the phone stays on the same network.
+  public static final long MLABNS_CACHE_LIFETIME_MSEC = 15 * 60 * 1000L;
+  
   /** Constants used in BatteryCapPowerManager.java */
   /** The default battery level if we cannot read it from the system */
   public static final int DEFAULT_BATTERY_LEVEL = 0;
@@ -89,6 +107,9 @@ public interface Config {
   public static final String PREF_KEY_SELECTED_ACCOUNT = "PREF_KEY_SELECTED_ACCOUNT";
   public static final String PREF_KEY_SELECTED_DATA_LIMIT = "PREF_KEY_SELECTED_DATA_LIMIT";
   public static final String PREF_KEY_DATA_LIMIT = "PREF_KEY_DATA_LIMIT";
+  public static final String PREF_KEY_RESULT_UPLOAD_OFFSET = "PREF_KEY_RESULT_UPLOAD_OFFSET";
+  public static final String PREF_KEY_SCHEDULE_VERSION = "PREF_KEY_SCHEDULE_VERSION";
+  public static final String PREF_KEY_SCHEDULE_PROFILE = "PREF_KEY_SCHEDULE_PROFILE";
   
   
   public static final int DEFAULT_DATA_MONITOR_PERIOD_DAY= 1;
@@ -102,12 +102,14 @@ public class MeasurementCreationActivity extends Activity {
     
     final RadioButton radioUDPUp = (RadioButton) findViewById(R.id.UDPBurstUpButton);
     final RadioButton radioUDPDown = (RadioButton) findViewById(R.id.UDPBurstDownButton);
+    final RadioButton radioUDPBoth = (RadioButton) findViewById(R.id.UDPBurstBothButton);
     final RadioButton radioTCPUp = (RadioButton) findViewById(R.id.TCPThroughputUpButton);
     final RadioButton radioTCPDown = (RadioButton) findViewById(R.id.TCPThroughputDownButton);
     
     radioUDPUp.setChecked(true);
     radioUDPUp.setOnClickListener(new UDPRadioOnClickListener());
     radioUDPDown.setOnClickListener(new UDPRadioOnClickListener());
+    radioUDPBoth.setOnClickListener(new UDPRadioOnClickListener());
     
     Button udpSettings = (Button)findViewById(R.id.UDPSettingsButton);
     udpSettings.setOnClickListener(new UDPSettingsOnClickListener());
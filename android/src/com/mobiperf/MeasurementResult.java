@@ -20,6 +20,10 @@ import com.mobiperf.measurements.DnsLookupTask;
 import com.mobiperf.measurements.DnsLookupTask.DnsLookupDesc;
 import com.mobiperf.measurements.HttpTask;
 import com.mobiperf.measurements.HttpTask.HttpDesc;
+import com.mobiperf.measurements.LoadedLatencyTask;
+import com.mobiperf.measurements.LoadedLatencyTask.LoadedLatencyDesc;
+import com.mobiperf.measurements.PageLoadTask;
+import com.mobiperf.measurements.PageLoadTask.PageLoadDesc;
 import com.mobiperf.measurements.PingTask;
 import com.mobiperf.measurements.PingTask.PingDesc;
 import com.mobiperf.measurements.TracerouteTask;
@@ -100,6 +104,10 @@ public class MeasurementResult {
         getUDPBurstResult(printer, values);
       } else if (type == TCPThroughputTask.TYPE) {
         getTCPThroughputResult(printer, values);
+      } else if (type == LoadedLatencyTask.TYPE) {
+        getLoadedLatencyResult(printer, values);
+      } else if (type == PageLoadTask.TYPE) {
+        getPageLoadResult(printer, values);
       } else {
         Logger.e("Failed to get results for unknown measurement type " + type);
       }
@@ -144,6 +152,13 @@ public class MeasurementResult {
     
       value = Float.parseFloat(values.get("stddev_rtt_ms"));
       printer.println("Std dev:  " + String.format("%.1f", value) + " ms");
+
+      if (values.containsKey("http_connect_ms")) {
+        value = Float.parseFloat(values.get("http_connect_ms"));
+        printer.println("TCP connect:   " + String.format("%.1f", value) + " ms");
+        value = Float.parseFloat(values.get("http_first_request_ms"));
+        printer.println("First request: " + String.format("%.1f", value) + " ms");
+      }
     } else {
       printer.println("Failed");
     }
@@ -163,11 +178,24 @@ public class MeasurementResult {
       printer.println("");
       printer.println("Downloaded " + (headerLen + bodyLen) + " bytes in " + time + " ms");
       printer.println("Bandwidth: " + (headerLen + bodyLen) * 8 / time + " Kbps");
+      if (values.containsKey("first_byte_ms")) {
+        printer.println("DNS lookup:    " + formatHttpTiming(values.get("dns_ms")));
+        printer.println("TCP connect:   " + formatHttpTiming(values.get("tcp_connect_ms")));
+        printer.println("TLS handshake: " + formatHttpTiming(values.get("tls_handshake_ms")));
+        printer.println("First byte:    " + formatHttpTiming(values.get("first_byte_ms")));
+        printer.println("Transfer:      " + formatHttpTiming(values.get("transfer_ms")));
+      }
     } else {
       printer.println("Download failed, status code " + values.get("code"));
     }
   }
   
+  /** Formats a timing of the HTTP result, which is negative if that step was skipped */
+  private String formatHttpTiming(String value) {
+    float time = Float.parseFloat(value);
+    return time < 0 ? "-" : String.format("%.1f", time) + " ms";
+  }
+  
   private void getDnsResult(StringBuilderPrinter printer, HashMap<String, String> values) {
     DnsLookupDesc desc = (DnsLookupDesc) parameters;
     printer.println("[DNS Lookup]");
@@ -181,8 +209,12 @@ public class MeasurementResult {
         ipAddress = "Unknown";
       }
       printer.println("\nAddress: " + ipAddress);
-      int time = Integer.parseInt(values.get("time_ms"));
-      printer.println("Lookup time: " + time + " ms");
+      double time = Double.parseDouble(values.get("time_ms"));
+      printer.println("Lookup time: " + String.format("%.1f", time) + " ms");
+      if (values.containsKey("num_queries")) {
+        printer.println("Lost queries: " + values.get("lost_queries") + " of "
+            + values.get("num_queries"));
+      }
     } else {
       printer.println("Failed");
     }
@@ -228,6 +260,11 @@ public class MeasurementResult {
         float time = Float.parseFloat(timeStr);
         printer.println(hopInfo + String.format("%6.2f", time) + " ms");
       }
+      String targetRtt = removeQuotes(values.get("target_udp_rtt_ms"));
+      if (targetRtt != null) {
+        printer.println("Target RTT over UDP: "
+            + String.format("%.2f", Float.parseFloat(targetRtt)) + " ms");
+      }
     } else {
       printer.println("Failed");
     }
@@ -235,7 +272,11 @@ public class MeasurementResult {
   
   private void getUDPBurstResult(StringBuilderPrinter printer, HashMap<String, String> values) {
     UDPBurstDesc desc = (UDPBurstDesc) parameters;
-    if (desc.dirUp) {
+    if (desc.estimateCapacity) {
+      printer.println("[UDPCapacity]");
+    } else if (desc.bidirectional) {
+      printer.println("[UDPBurstBidirectional]");
+    } else if (desc.dirUp) {
       printer.println("[UDPBurstUp]");
     } else {
       printer.println("[UDPBurstDown]");
@@ -246,22 +287,54 @@ public class MeasurementResult {
       printer.println("Timestamp: " + 
         Util.getTimeStringFromMicrosecond(properties.timestamp));
       printIPTestResult(printer);
+      if (desc.estimateCapacity) {
+        printer.println("\nUplink capacity: "
+            + (Boolean.parseBoolean(values.get("capacity_lower_bound")) ? "at least " : "")
+            + String.format("%.2f", Double.parseDouble(values.get("capacity_mbps"))) + " Mbps");
+        printer.println("Packet pairs: " + values.get("capacity_pairs") + ", trains: "
+            + values.get("capacity_trains"));
+        printer.println("Data used: " + values.get("capacity_probe_bytes") + "B");
+        return;
+      }
       printer.println("Packet size: " + desc.packetSizeByte + "B");
       printer.println("Number of packets to be sent: " + desc.udpBurstCount);
       printer.println("Interval between packets: " + desc.udpInterval + "ms");
 
-      String lossRatio = String.format("%.2f"
-        , Double.parseDouble(values.get("loss_ratio")) * 100);
-      String outOfOrderRatio = String.format("%.2f"
-        , Double.parseDouble(values.get("out_of_order_ratio")) * 100);
-      printer.println("\nLoss ratio: " + lossRatio + "%");
-      printer.println("Out of order ratio: " + outOfOrderRatio + "%");
-      printer.println("Jitter: " + values.get("jitter") + "ms");
+      if (desc.bidirectional) {
+        printer.println("\nUplink:");
+        printUDPBurstMetrics(printer, values, "up_");
+        printer.println("\nDownlink:");
+        printUDPBurstMetrics(printer, values, "down_");
+      } else {
+        printer.println("");
+        printUDPBurstMetrics(printer, values, "");
+      }
     } else {
       printer.println("Failed");
     }
   }
 
+  private void printUDPBurstMetrics(StringBuilderPrinter printer, HashMap<String, String> values,
+                                    String prefix) {
+    String lossRatio = String.format("%.2f"
+      , Double.parseDouble(values.get(prefix + "loss_ratio")) * 100);
+    String outOfOrderRatio = String.format("%.2f"
+      , Double.parseDouble(values.get(prefix + "out_of_order_ratio")) * 100);
+    printer.println("Loss ratio: " + lossRatio + "%");
+    printer.println("Out of order ratio: " + outOfOrderRatio + "%");
+    printer.println("Jitter: " + values.get(prefix + "jitter") + "ms");
+    if (values.containsKey(prefix + "delay_variation_ms")) {
+      printer.println("Delay variation: " + String.format("%.3f",
+          Double.parseDouble(values.get(prefix + "delay_variation_ms"))) + "ms");
+      printer.println("Relative delay (median/95th/max): " + String.format(
+          "%.3f/%.3f/%.3f", Double.parseDouble(values.get(prefix + "relative_delay_p50_ms")),
+          Double.parseDouble(values.get(prefix + "relative_delay_p95_ms")),
+          Double.parseDouble(values.get(prefix + "relative_delay_max_ms"))) + "ms");
+      printer.println("Loss bursts: " + values.get(prefix + "loss_burst_count") + " (longest "
+          + values.get(prefix + "max_loss_burst") + " packets)");
+    }
+  }
+
   private void getTCPThroughputResult(StringBuilderPrinter printer, 
                                       HashMap<String, String> values) {
     TCPThroughputDesc desc = (TCPThroughputDesc) parameters;
@@ -278,11 +351,16 @@ public class MeasurementResult {
     if (success) {
       printer.println("");
       // Display result with precision up to 2 digit
-      String speedInJSON = values.get("tcp_speed_results");
       String dataLimitExceedInJSON = values.get("data_limit_exceeded");
       String displayResult = "";
 
-      double tp = desc.calMedianSpeedFromTCPThroughputOutput(speedInJSON);
+      double tp;
+      if (values.containsKey("tcp_speed_median_kbps")) {
+        tp = Double.parseDouble(values.get("tcp_speed_median_kbps"));
+      } else {
+        // Stored by a version that sent all the samples
+        tp = desc.calMedianSpeedFromTCPThroughputOutput(values.get("tcp_speed_results"));
+      }
       double KB = Math.pow(2, 10);
       if (tp < 0) {
         displayResult = "No results available.";
@@ -294,6 +372,11 @@ public class MeasurementResult {
         displayResult = "Speed: " + String.format("%.2f", tp) + " Kbps";
       }
 
+      if ("true".equals(values.get("converged"))) {
+        displayResult += "\nStopped after " + String.format("%.1f",
+                         Double.parseDouble(values.get("duration"))) +
+                         " seconds as the speed converged";
+      }
       // Append notice for exceeding data limit
       if (dataLimitExceedInJSON.equals("true")) {
         displayResult += "\n* Task finishes earlier due to exceeding " +
@@ -305,6 +388,68 @@ public class MeasurementResult {
       printer.println("Failed");
     }
   }
+
+  private void getLoadedLatencyResult(StringBuilderPrinter printer,
+                                      HashMap<String, String> values) {
+    LoadedLatencyDesc desc = (LoadedLatencyDesc) parameters;
+    if (desc.dirUp) {
+      printer.println("[Latency Under Uplink Load]");
+    } else {
+      printer.println("[Latency Under Downlink Load]");
+    }
+    printer.println("Target: " + desc.target);
+    printer.println("IP addr: " + values.get("target_ip"));
+    printer.println("Timestamp: " +
+        Util.getTimeStringFromMicrosecond(properties.timestamp));
+    printIPTestResult(printer);
+
+    if (success) {
+      printer.println("");
+      printer.println("Idle RTT: " + String.format("%.1f",
+          Double.parseDouble(values.get("idle_rtt_ms"))) + " ms");
+      printer.println("Loaded RTT (median/90th/max): " + String.format("%.1f/%.1f/%.1f",
+          Double.parseDouble(values.get("loaded_rtt_p50_ms")),
+          Double.parseDouble(values.get("loaded_rtt_p90_ms")),
+          Double.parseDouble(values.get("loaded_rtt_max_ms"))) + " ms");
+      printer.println("Added latency: " + String.format("%.1f",
+          Double.parseDouble(values.get("latency_increase_ms"))) + " ms");
+      double tp = Double.parseDouble(values.get("tcp_speed_median_kbps"));
+      if (tp < 0) {
+        printer.println("Speed: no results available.");
+      } else {
+        printer.println("Speed: " + String.format("%.2f", tp / 1024) + " Mbps");
+      }
+    } else {
+      printer.println("Failed");
+    }
+  }
+  
+  private void getPageLoadResult(StringBuilderPrinter printer,
+                                 HashMap<String, String> values) {
+    PageLoadDesc desc = (PageLoadDesc) parameters;
+    printer.println("[Page Load]");
+    printer.println("URL: " + desc.getUrls().get(0));
+    printer.println("Timestamp: " +
+        Util.getTimeStringFromMicrosecond(properties.timestamp));
+    printIPTestResult(printer);
+
+    if (success) {
+      printer.println("");
+      printer.println("Loaded " + values.get("num_objects") + " objects ("
+          + values.get("total_bytes") + " bytes) in " + String.format("%.0f",
+          Double.parseDouble(values.get("load_time_ms"))) + " ms");
+      printer.println("Main document: " + String.format("%.0f",
+          Double.parseDouble(values.get("main_document_ms"))) + " ms");
+      printer.println("Critical path: " + String.format("%.0f",
+          Double.parseDouble(values.get("critical_path_ms"))) + " ms");
+      int failedObjects = Integer.parseInt(values.get("failed_objects"));
+      if (failedObjects > 0) {
+        printer.println("Failed objects: " + failedObjects);
+      }
+    } else {
+      printer.println("Page load failed, status code " + values.get("code"));
+    }
+  }
   
   /**
    * Removes the quotes surrounding the string. If |str| is null, returns null.
@@ -28,13 +28,16 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Type;
@@ -60,13 +63,13 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import com.google.myjson.JsonElement;
+import com.google.myjson.JsonParseException;
+import com.google.myjson.JsonParser;
 import com.google.myjson.reflect.TypeToken;
 import com.mobiperf.ResourceCapManager.DataUsageProfile;
 import com.mobiperf.ResourceCapManager.PowerAwareTask;
+import com.mobiperf.util.MeasurementBinaryConvertor;
 import com.mobiperf.util.MeasurementJsonConvertor;
 import com.mobiperf.util.PhoneUtils;
 import com.mobiperf.R;
@@ -81,6 +84,8 @@ public class MeasurementScheduler extends Service {
 
   // This arbitrary id is private to Speedometer
   private static final int NOTIFICATION_ID = 1234;
+  // Results waiting to be uploaded, appended to on each checkin
+  private static final String RESULTS_SPOOL_FILE = "results_upload";
 
   private ExecutorService measurementExecutor;
   private BroadcastReceiver broadcastReceiver;
@@ -223,10 +228,10 @@ public class MeasurementScheduler extends Service {
               // Process result
               completedMeasurementCnt++;
             }
-            if (intent.getStringExtra(UpdateIntent.RESULT_PAYLOAD) != null) {
+            if (intent.getByteArrayExtra(UpdateIntent.RESULT_PAYLOAD) != null) {
               Logger.d("Measurement result intent received");
               saveResultToFile(intent
-                  .getStringExtra(UpdateIntent.RESULT_PAYLOAD));
+                  .getByteArrayExtra(UpdateIntent.RESULT_PAYLOAD));
 
             }
             updateResultsConsole(intent);
@@ -713,10 +718,44 @@ public class MeasurementScheduler extends Service {
       return;
     }
     checkin.getCookie();
-    List<MeasurementTask> tasksFromServer = checkin.checkin(resourceCapManager);
+    Checkin.ScheduleUpdate update = checkin.checkin(resourceCapManager, getScheduleVersion());
 
-    updateSchedule(tasksFromServer, false);
+    if (update.full) {
+      updateSchedule(update.tasks, false);
+    } else {
+      applyScheduleDelta(update);
+    }
+    saveScheduleVersion(update.version);
+  }
 
+  /**
+   * Returns the version of the schedule from the server that the device runs, or null if the
+   * whole schedule should be fetched again. Task intervals depend on the data usage profile
+   * they were adjusted for, so a profile change also calls for the whole schedule.
+   */
+  private String getScheduleVersion() {
+    SharedPreferences prefs =
+        PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+    String profile = resourceCapManager.getDataUsageProfile().name();
+    if (!profile.equals(prefs.getString(Config.PREF_KEY_SCHEDULE_PROFILE, null))) {
+      return null;
+    }
+    return prefs.getString(Config.PREF_KEY_SCHEDULE_VERSION, null);
+  }
+
+  /** Records the schedule version the device runs, or forgets it if |version| is null */
+  private void saveScheduleVersion(String version) {
+    SharedPreferences.Editor editor =
+        PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit();
+    if (version == null) {
+      editor.remove(Config.PREF_KEY_SCHEDULE_VERSION);
+      editor.remove(Config.PREF_KEY_SCHEDULE_PROFILE);
+    } else {
+      editor.putString(Config.PREF_KEY_SCHEDULE_VERSION, version);
+      editor.putString(Config.PREF_KEY_SCHEDULE_PROFILE,
+          resourceCapManager.getDataUsageProfile().name());
+    }
+    editor.commit();
   }
 
   /**
@@ -826,6 +865,45 @@ public class MeasurementScheduler extends Service {
     // scheduleKeys now contain all keys that do not exist
     keysToRemove.addAll(missingKeys);
 
+    replaceTasks(keysToRemove, tasksToAdd, !reLoad);
+  }
+
+  /**
+   * Update the schedule with the changes since the schedule version the device sent on checkin.
+   * <p>
+   * Unlike updateSchedule(), this does not compare the tasks already scheduled: the server only
+   * sends the tasks that were added or changed, and the keys of those removed.
+   * 
+   * @param update Changes from the server
+   */
+  private void applyScheduleDelta(Checkin.ScheduleUpdate update) {
+    Vector<MeasurementTask> tasksToAdd = new Vector<MeasurementTask>();
+    Set<String> keysToRemove = new HashSet<String>(update.removedKeys);
+
+    for (MeasurementTask newTask : update.tasks) {
+      String newKey = newTask.getDescription().key;
+      if (currentSchedule.containsKey(newKey)) {
+        // A changed task replaces the old one
+        keysToRemove.add(newKey);
+      }
+      if (adjustInterval(newTask)) {
+        tasksToAdd.add(newTask);
+      }
+    }
+
+    replaceTasks(keysToRemove, tasksToAdd, true);
+  }
+
+  /**
+   * Remove the tasks with the given keys from the task queue and the schedule, then submit the
+   * new tasks.
+   * 
+   * @param keysToRemove Keys of the tasks to remove
+   * @param tasksToAdd Tasks to add
+   * @param save whether to save the schedule to disk if it changed
+   */
+  private void replaceTasks(Set<String> keysToRemove, List<MeasurementTask> tasksToAdd,
+      boolean save) {
     // Add all new tasks, and copy all unmodified tasks, to a new queue.
     // Also update currentSchedule accordingly.
     PriorityBlockingQueue<MeasurementTask> newQueue =
@@ -844,6 +922,8 @@ public class MeasurementScheduler extends Service {
           currentSchedule.remove(taskKey);
         }
       }
+      // Tasks that are running or have used up their count are not in the queue
+      currentSchedule.keySet().removeAll(keysToRemove);
       this.taskQueue = newQueue;
       // add all new tasks
       Logger.i("New tasks added:" + tasksToAdd.size());
@@ -853,7 +933,7 @@ public class MeasurementScheduler extends Service {
       }
     }
 
-    if (!reLoad && (!tasksToAdd.isEmpty() || !keysToRemove.isEmpty())) {
+    if (save && (!tasksToAdd.isEmpty() || !keysToRemove.isEmpty())) {
       saveSchedulerState();
     }
   }
@@ -863,16 +943,20 @@ public class MeasurementScheduler extends Service {
    * This way, if the application crashes, is halted, etc. between the
    * task and checkin, no results are lost.
    * 
-   * @param result The JSON representation of a result, as a string
+   * @param result The binary representation of a result, from MeasurementBinaryConvertor
    */
-  private synchronized void saveResultToFile(String result) {
+  private synchronized void saveResultToFile(byte[] result) {
     try {
       Logger.i("Saving result to file...");
+      boolean newFile = getFileStreamPath("results").length() == 0;
       BufferedOutputStream writer =
           new BufferedOutputStream(openFileOutput("results",
               Context.MODE_PRIVATE | Context.MODE_APPEND));
-      result += "\n";
-      writer.write(result.getBytes());
+      if (newFile) {
+        // Results are decoded with the schema of the version that saved them
+        MeasurementBinaryConvertor.writeSchema(writer);
+      }
+      MeasurementBinaryConvertor.writeRecord(writer, result);
       writer.close();
     } catch (FileNotFoundException e) {
       e.printStackTrace();
@@ -882,44 +966,50 @@ public class MeasurementScheduler extends Service {
   }
 
   /**
-   * Read in the results of tasks completed to date from a file, then clear the file.
-   * 
-   * @return The results as a JSONArray, ready for sending to the server.
+   * Move the results of tasks completed to date to the upload spool, then clear the results
+   * file. New results keep being saved while the spool is uploaded, and results left over from
+   * an interrupted upload stay at the head of the spool.
    */
-  private synchronized JSONArray readResultsFromFile() {
-
-    JSONArray results = new JSONArray();
+  private synchronized void moveResultsToSpool() {
     try {
-      Logger.i("Loading results from disk");
-      FileInputStream inputstream = openFileInput("results");
-      InputStreamReader streamreader = new InputStreamReader(inputstream);
-      BufferedReader bufferedreader = new BufferedReader(streamreader);
-
-      String line;
-      while ((line = bufferedreader.readLine()) != null) {
-        JSONObject jsonTask;
-        try {
-          jsonTask = new JSONObject(line);
-          results.put(jsonTask);
-        } catch (JSONException e) {
-          e.printStackTrace();
+      MeasurementBinaryConvertor.BlockReader results = new MeasurementBinaryConvertor.BlockReader(
+          new BufferedInputStream(openFileInput("results")));
+      // A torn write could leave an incomplete record at the end of the spool, which would
+      // swallow the records appended after it
+      File spool = getFileStreamPath(RESULTS_SPOOL_FILE);
+      if (spool.length() > 0) {
+        MeasurementBinaryConvertor.BlockReader spoolBlocks =
+            new MeasurementBinaryConvertor.BlockReader(
+                new BufferedInputStream(new FileInputStream(spool)));
+        long completeLength = 0;
+        int consumed;
+        while ((consumed = spoolBlocks.next()) > 0 && spoolBlocks.isComplete()) {
+          completeLength += consumed;
+        }
+        spoolBlocks.close();
+        if (completeLength < spool.length()) {
+          Logger.w("Dropping incomplete record at the end of the upload spool");
+          RandomAccessFile spoolTail = new RandomAccessFile(spool, "rw");
+          spoolTail.setLength(completeLength);
+          spoolTail.close();
         }
       }
-
-      bufferedreader.close();
-      streamreader.close();
-      inputstream.close();
+      BufferedOutputStream writer =
+          new BufferedOutputStream(openFileOutput(RESULTS_SPOOL_FILE,
+              Context.MODE_PRIVATE | Context.MODE_APPEND));
+      while (results.next() > 0 && results.isComplete()) {
+        results.writeTo(writer);
+      }
+      writer.close();
+      results.close();
 
       // delete file once done, to avoid uploading results twice
       deleteFile("results");
-
-
     } catch (FileNotFoundException e) {
-      e.printStackTrace();
+      Logger.i("No new results to move to the upload spool");
     } catch (IOException e) {
       e.printStackTrace();
     }
-    return results;
   }
 
   /**
@@ -939,12 +1029,10 @@ public class MeasurementScheduler extends Service {
         for (Map.Entry<String, MeasurementTask> entry : currentSchedule
             .entrySet()) {
           try {
-            JSONObject task =
-                MeasurementJsonConvertor.encodeToJson(entry.getValue()
-                    .getDescription());
-            String taskstring = task.toString() + "\n";
+            String taskstring = MeasurementJsonConvertor.toJsonString(entry.getValue()
+                .getDescription()) + "\n";
             writer.write(taskstring.getBytes());
-          } catch (JSONException e) {
+          } catch (IllegalArgumentException e) {
             e.printStackTrace();
           }
         }
@@ -974,9 +1062,9 @@ public class MeasurementScheduler extends Service {
 
         String line;
         while ((line = bufferedreader.readLine()) != null) {
-          JSONObject jsonTask;
+          JsonElement jsonTask;
           try {
-            jsonTask = new JSONObject(line);
+            jsonTask = new JsonParser().parse(line);
             MeasurementTask newTask =
                 MeasurementJsonConvertor.makeMeasurementTaskFromJson(jsonTask,
                     getApplicationContext());
@@ -998,7 +1086,7 @@ public class MeasurementScheduler extends Service {
             }
             
             tasksToAdd.add(newTask);
-          } catch (JSONException e) {
+          } catch (JsonParseException e) {
             e.printStackTrace();
           }
         }
@@ -1007,6 +1095,8 @@ public class MeasurementScheduler extends Service {
         inputstream.close();
 
       } catch (FileNotFoundException e) {
+        // Without the saved schedule, the version of it from the server is meaningless
+        saveScheduleVersion(null);
         e.printStackTrace();
       } catch (IOException e) {
         e.printStackTrace();
@@ -1020,7 +1110,7 @@ public class MeasurementScheduler extends Service {
   private void uploadResults() {
     MeasurementResult result;
     Future<MeasurementResult> future;
-    JSONArray results = readResultsFromFile();
+    ArrayList<byte[]> cancelledResults = new ArrayList<byte[]>();
 
     synchronized (this.pendingTasks) {
       try {
@@ -1036,11 +1126,8 @@ public class MeasurementScheduler extends Service {
                   result = future.get();
                 } else {
                   Logger.e("Task execution was canceled");
-                  JSONObject cancelledResult =
-                      MeasurementJsonConvertor.encodeToJson(this
-                          .getFailureResult(task, new CancellationException(
-                              "Task cancelled")));
-                  results.put(cancelledResult);
+                  cancelledResults.add(MeasurementBinaryConvertor.encode(this
+                      .getFailureResult(task, new CancellationException("Task cancelled"))));
                 }
 
               } catch (InterruptedException e) {
@@ -1069,11 +1156,8 @@ public class MeasurementScheduler extends Service {
                */
               this.pendingTasks.remove(task);
               future.cancel(true);
-              JSONObject cancelledResult =
-                  MeasurementJsonConvertor.encodeToJson(this.getFailureResult(
-                      task, new RuntimeException(
-                          "Deadline passed before execution")));
-              results.put(cancelledResult);
+              cancelledResults.add(MeasurementBinaryConvertor.encode(this.getFailureResult(
+                  task, new RuntimeException("Deadline passed before execution"))));
             }
           }
 
@@ -1082,11 +1166,8 @@ public class MeasurementScheduler extends Service {
              * Tasks that are scheduled after deadline are put into pendingTasks with a null future.
              */
             this.pendingTasks.remove(task);
-            JSONObject cancelledResult =
-                MeasurementJsonConvertor.encodeToJson(this
-                    .getFailureResult(task, new RuntimeException(
-                        "Task scheduled after deadline")));
-            results.put(cancelledResult);
+            cancelledResults.add(MeasurementBinaryConvertor.encode(this
+                .getFailureResult(task, new RuntimeException("Task scheduled after deadline"))));
           }
         }
       } catch (ConcurrentModificationException e) {
@@ -1096,21 +1177,24 @@ public class MeasurementScheduler extends Service {
          * this should not happen.
          */
         Logger.e("Pending tasks is changed during measurement upload");
-      } catch (JSONException e) {
-        e.printStackTrace();
+      } catch (IllegalArgumentException e) {
+        Logger.e("Cannot encode failure result", e);
       }
     }
 
-    if (results.length() > 0) {
-      try {
-        this.checkin.uploadMeasurementResult(results, resourceCapManager);
-      } catch (IOException e) {
-        Logger.e("Error when uploading message");
-      }
+    for (byte[] cancelledResult : cancelledResults) {
+      saveResultToFile(cancelledResult);
+    }
+    moveResultsToSpool();
+    int uploadedCnt = 0;
+    try {
+      uploadedCnt = this.checkin.uploadMeasurementResult(RESULTS_SPOOL_FILE, resourceCapManager);
+    } catch (IOException e) {
+      // The spool and the acknowledged offset are kept, the rest is retried on the next checkin
+      Logger.e("Error when uploading message");
     }
 
-    Logger.i("A total of " + results.length() + " uploaded");
-    Logger.i("A total of " + results.length() + " is in the results list");
+    Logger.i("A total of " + uploadedCnt + " uploaded");
   }
 
   private class CheckinTask implements Runnable {
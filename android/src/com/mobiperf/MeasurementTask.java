@@ -19,6 +19,8 @@ import android.content.Intent;
 
 import com.mobiperf.measurements.DnsLookupTask;
 import com.mobiperf.measurements.HttpTask;
+import com.mobiperf.measurements.LoadedLatencyTask;
+import com.mobiperf.measurements.PageLoadTask;
 import com.mobiperf.measurements.PingTask;
 import com.mobiperf.measurements.TracerouteTask;
 import com.mobiperf.measurements.UDPBurstTask;
@@ -83,6 +85,14 @@ public abstract class MeasurementTask implements Callable<MeasurementResult>, Co
     measurementTypes.put(UDPBurstTask.TYPE, UDPBurstTask.class);
     measurementDescToType.put(UDPBurstTask.DESCRIPTOR, UDPBurstTask.TYPE);
     measurementUIVisibility.put(UDPBurstTask.DESCRIPTOR, true);
+    measurementTypes.put(LoadedLatencyTask.TYPE, LoadedLatencyTask.class);
+    measurementDescToType.put(LoadedLatencyTask.DESCRIPTOR, LoadedLatencyTask.TYPE);
+    // Scheduled by the server only, since it runs for the length of a throughput test
+    measurementUIVisibility.put(LoadedLatencyTask.DESCRIPTOR, false);
+    measurementTypes.put(PageLoadTask.TYPE, PageLoadTask.class);
+    measurementDescToType.put(PageLoadTask.DESCRIPTOR, PageLoadTask.TYPE);
+    // Scheduled by the server only, since it needs a manifest of the page's objects
+    measurementUIVisibility.put(PageLoadTask.DESCRIPTOR, false);
   }
   
   /** Gets the currently available measurement descriptions*/
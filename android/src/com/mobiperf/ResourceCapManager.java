@@ -22,7 +22,7 @@ import com.mobiperf.measurements.RRCTask;
 import com.mobiperf.measurements.TCPThroughputTask;
 import com.mobiperf.measurements.TracerouteTask;
 import com.mobiperf.measurements.UDPBurstTask;
-import com.mobiperf.util.MeasurementJsonConvertor;
+import com.mobiperf.util.MeasurementBinaryConvertor;
 import com.mobiperf.util.PhoneUtils;
 
 import android.content.Context;
@@ -38,7 +38,6 @@ import java.io.IOException;
 import java.util.Calendar;
 import java.util.concurrent.Callable;
 
-import org.json.JSONException;
 
 /**
  * A basic power manager implementation that decides whether a measurement can be scheduled
@@ -400,12 +399,12 @@ public class ResourceCapManager {
           intent.putExtra(UpdateIntent.ERROR_STRING_PAYLOAD, errorString);
         }
 
-        // We now store results as strings to disk immediately to avoid data
-        // losses on a crash, so convert to a JSON and sent back
+        // We now store results to disk immediately to avoid data losses on a
+        // crash, so convert to the compact binary form and send back
         try {
           intent.putExtra(UpdateIntent.RESULT_PAYLOAD, 
-            MeasurementJsonConvertor.encodeToJson(result).toString());
-        } catch (JSONException e) {
+            MeasurementBinaryConvertor.encode(result));
+        } catch (IllegalArgumentException e) {
           e.printStackTrace();
         }
 
@@ -0,0 +1,353 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiperf.measurements;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * A minimal DNS stub resolver that sends A queries over UDP straight to a
+ * given resolver, bypassing the caches of the JVM and the OS.
+ *
+ * Every query uses its own socket and a random ID, so queries to the same
+ * resolver can run concurrently from several threads and a late answer to one
+ * query is never taken for the answer to another.
+ */
+public class DnsClient {
+  public static final int DNS_PORT = 53;
+  // Response codes of RFC 1035. LOST is ours, for a query that got no answer.
+  public static final int RCODE_NOERROR = 0;
+  public static final int RCODE_NXDOMAIN = 3;
+  public static final int RCODE_LOST = -1;
+
+  private static final int TYPE_A = 1;
+  private static final int TYPE_CNAME = 5;
+  private static final int CLASS_IN = 1;
+  private static final int HEADER_SIZE = 12;
+  // The largest response allowed over UDP without EDNS
+  private static final int MAX_RESPONSE_SIZE = 512;
+  private static final int UDP_IP_HEADER_SIZE = 28;
+  private static final int MAX_COMPRESSION_POINTERS = 16;
+  // How long the system resolver is remembered. It changes with the network.
+  private static final long RESOLVER_CACHE_MSEC = 60 * 1000;
+
+  // The system resolver, and when it was read. Guarded by the class.
+  private static InetAddress systemResolver = null;
+  private static long systemResolverTime = 0;
+
+  private final InetAddress resolver;
+  private final int port;
+  private final int timeoutMs;
+  private final Random random = new Random();
+
+  private final HashSet<DatagramSocket> sockets = new HashSet<DatagramSocket>();
+  private boolean stopped = false;
+  private long bytesSent = 0;
+  private long bytesReceived = 0;
+
+  /** The outcome of a single query */
+  public static class Response {
+    public final String name;
+    // RCODE_LOST if no answer arrived within the timeout
+    public int rcode = RCODE_LOST;
+    // Time from sending the query to receiving its answer, or -1 if lost
+    public double rttMs = -1;
+    public ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+    // The target of the last CNAME in the answer, or the queried name
+    public String canonicalName;
+    // The smallest TTL of the address and CNAME records, or -1 if there are none
+    public long ttlSec = -1;
+
+    Response(String name) {
+      this.name = name;
+      this.canonicalName = name;
+    }
+
+    public boolean isLost() {
+      return rcode == RCODE_LOST;
+    }
+  }
+
+  /**
+   * @param resolver the DNS server to query
+   * @param port the port of the DNS server, usually DNS_PORT
+   * @param timeoutMs how long to wait for the answer to a query
+   */
+  public DnsClient(InetAddress resolver, int port, int timeoutMs) {
+    this.resolver = resolver;
+    this.port = port;
+    this.timeoutMs = timeoutMs;
+  }
+
+  public InetAddress getResolver() {
+    return resolver;
+  }
+
+  /**
+   * Looks up the A records of |name|. A query that is not answered in time
+   * comes back as a Response with RCODE_LOST rather than as an exception.
+   *
+   * @throws IOException if the query cannot be sent, or the answer is malformed
+   */
+  public Response query(String name) throws IOException {
+    Response response = new Response(name);
+    int id;
+    synchronized (this) {
+      id = random.nextInt(0x10000);
+    }
+    byte[] query = buildQuery(id, name);
+
+    DatagramSocket socket = new DatagramSocket();
+    synchronized (this) {
+      if (stopped) {
+        socket.close();
+        return response;
+      }
+      sockets.add(socket);
+    }
+    try {
+      socket.connect(resolver, port);
+      socket.setSoTimeout(timeoutMs);
+      DatagramPacket reply = new DatagramPacket(new byte[MAX_RESPONSE_SIZE],
+          MAX_RESPONSE_SIZE);
+
+      long sendNanos = System.nanoTime();
+      socket.send(new DatagramPacket(query, query.length));
+      addBytes(query.length, 0);
+      while (true) {
+        long remainingMs = timeoutMs - (System.nanoTime() - sendNanos) / 1000000;
+        if (remainingMs <= 0) {
+          return response;
+        }
+        socket.setSoTimeout((int) remainingMs);
+        reply.setLength(MAX_RESPONSE_SIZE);
+        try {
+          socket.receive(reply);
+        } catch (SocketTimeoutException e) {
+          return response;
+        }
+        long rttNanos = System.nanoTime() - sendNanos;
+        addBytes(0, reply.getLength());
+        // Skips stray datagrams, e.g. the late answer to an earlier query
+        if (reply.getLength() >= HEADER_SIZE && readShort(reply.getData(), 0) == id) {
+          parseResponse(reply.getData(), reply.getLength(), response);
+          response.rttMs = rttNanos / 1000000.0;
+          return response;
+        }
+      }
+    } catch (IOException e) {
+      if (isStopped()) {
+        return response;
+      }
+      throw e;
+    } finally {
+      socket.close();
+      synchronized (this) {
+        sockets.remove(socket);
+      }
+    }
+  }
+
+  /** Returns |name| under a random label, which no resolver can have cached */
+  public String randomSubdomain(String name) {
+    long label;
+    synchronized (this) {
+      label = random.nextLong() & Long.MAX_VALUE;
+    }
+    return "r" + Long.toString(label, 36) + "." + name;
+  }
+
+  /** Abandons the queries in flight and any further ones */
+  public synchronized void stop() {
+    stopped = true;
+    for (DatagramSocket socket : sockets) {
+      socket.close();
+    }
+  }
+
+  private synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  private synchronized void addBytes(int sent, int received) {
+    if (sent > 0) {
+      bytesSent += sent + UDP_IP_HEADER_SIZE;
+    }
+    if (received > 0) {
+      bytesReceived += received + UDP_IP_HEADER_SIZE;
+    }
+  }
+
+  /** Bytes sent and received, including the IP and UDP headers */
+  public synchronized long getDataConsumed() {
+    return bytesSent + bytesReceived;
+  }
+
+  /**
+   * Returns the resolver the system is configured with, or null if it is not
+   * known, e.g. outside Android. The answer is kept for RESOLVER_CACHE_MSEC, so
+   * that the property is not read on every lookup.
+   */
+  public static synchronized InetAddress getSystemResolver() {
+    long now = System.currentTimeMillis();
+    if (systemResolverTime == 0 || now - systemResolverTime >= RESOLVER_CACHE_MSEC) {
+      systemResolver = readSystemResolver();
+      systemResolverTime = now;
+    }
+    return systemResolver;
+  }
+
+  private static InetAddress readSystemResolver() {
+    Process process = null;
+    try {
+      process = Runtime.getRuntime().exec("getprop net.dns1");
+      BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String line = br.readLine();
+      if (line == null || line.trim().length() == 0) {
+        return null;
+      }
+      // The property always holds a literal address, so this does no lookup
+      return InetAddress.getByName(line.trim());
+    } catch (UnknownHostException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (process != null) {
+        process.destroy();
+      }
+    }
+  }
+
+  static byte[] buildQuery(int id, String name) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + name.length() + 6);
+    writeShort(out, id);
+    // Standard query with recursion desired
+    writeShort(out, 0x0100);
+    // One question, no answer, authority or additional records
+    writeShort(out, 1);
+    writeShort(out, 0);
+    writeShort(out, 0);
+    writeShort(out, 0);
+    for (String label : name.split("\\.")) {
+      if (label.length() == 0) {
+        continue;
+      }
+      byte[] bytes = label.getBytes("US-ASCII");
+      if (bytes.length > 63) {
+        throw new IOException("DNS label too long: " + label);
+      }
+      out.write(bytes.length);
+      out.write(bytes);
+    }
+    out.write(0);
+    writeShort(out, TYPE_A);
+    writeShort(out, CLASS_IN);
+    return out.toByteArray();
+  }
+
+  static void parseResponse(byte[] data, int length, Response response) throws IOException {
+    response.rcode = data[3] & 0x0f;
+    int questions = readShort(data, 4);
+    int answers = readShort(data, 6);
+    int offset = HEADER_SIZE;
+    try {
+      for (int i = 0; i < questions; i++) {
+        offset = skipName(data, length, offset) + 4;
+      }
+      for (int i = 0; i < answers && offset < length; i++) {
+        offset = skipName(data, length, offset);
+        int type = readShort(data, offset);
+        long ttlSec = ((long) readShort(data, offset + 4) << 16) | readShort(data, offset + 6);
+        int rdLength = readShort(data, offset + 8);
+        int rdOffset = offset + 10;
+        if (rdOffset + rdLength > length) {
+          break;
+        }
+        if (type == TYPE_A && rdLength == 4) {
+          byte[] address = new byte[4];
+          System.arraycopy(data, rdOffset, address, 0, 4);
+          response.addresses.add(InetAddress.getByAddress(address));
+        } else if (type == TYPE_CNAME) {
+          response.canonicalName = readName(data, length, rdOffset);
+        }
+        if ((type == TYPE_A || type == TYPE_CNAME)
+            && (response.ttlSec < 0 || ttlSec < response.ttlSec)) {
+          response.ttlSec = ttlSec;
+        }
+        offset = rdOffset + rdLength;
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Malformed DNS response");
+    }
+  }
+
+  /** Returns the offset just past the possibly compressed name at |offset| */
+  private static int skipName(byte[] data, int length, int offset) throws IOException {
+    while (offset < length) {
+      int labelLength = data[offset] & 0xff;
+      if (labelLength == 0) {
+        return offset + 1;
+      } else if ((labelLength & 0xc0) == 0xc0) {
+        return offset + 2;
+      }
+      offset += labelLength + 1;
+    }
+    throw new IOException("Malformed DNS response");
+  }
+
+  private static String readName(byte[] data, int length, int offset) throws IOException {
+    StringBuilder name = new StringBuilder();
+    int pointers = 0;
+    while (offset < length) {
+      int labelLength = data[offset] & 0xff;
+      if (labelLength == 0) {
+        return name.toString();
+      } else if ((labelLength & 0xc0) == 0xc0) {
+        if (++pointers > MAX_COMPRESSION_POINTERS) {
+          break;
+        }
+        offset = ((labelLength & 0x3f) << 8) | (data[offset + 1] & 0xff);
+      } else {
+        if (name.length() > 0) {
+          name.append('.');
+        }
+        name.append(new String(data, offset + 1, labelLength, "US-ASCII"));
+        offset += labelLength + 1;
+      }
+    }
+    throw new IOException("Malformed DNS response");
+  }
+
+  private static int readShort(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write((value >> 8) & 0xff);
+    out.write(value & 0xff);
+  }
+}
@@ -25,15 +25,26 @@ import com.mobiperf.util.PhoneUtils;
 
 import android.content.Context;
 
+import java.io.IOException;
 import java.io.InvalidClassException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * Measures the DNS lookup time
+ * Measures the DNS lookup time. Queries go straight to the resolvers over UDP,
+ * several at a time, so neither the JVM nor the OS cache answers them.
  */
 public class DnsLookupTask extends MeasurementTask {
   // Type name for internal use
@@ -44,6 +55,14 @@ public class DnsLookupTask extends MeasurementTask {
   // Since it's very hard to calculate the data consumed by this task
   // directly, we use a fixed value.  This is on the high side.
   public static final int AVG_DATA_USAGE_BYTE=2000;
+  public static final int DEFAULT_PARALLELISM = 4;
+  public static final int MAX_PARALLELISM = 16;
+  public static final int DEFAULT_TIMEOUT_MSEC = 2000;
+  // Caps targets x resolvers x query_count, which the server might set too high
+  public static final int MAX_QUERIES = 64;
+
+  private volatile DnsClient[] clients = null;
+  private volatile ExecutorService executor = null;
 
   /**
    * The description of DNS lookup measurement 
@@ -51,13 +70,17 @@ public class DnsLookupTask extends MeasurementTask {
   public static class DnsLookupDesc extends MeasurementDesc {
     public String target;
     private String server;
+    public boolean randomPrefix = false;
+    public int queryCount = Config.DEFAULT_DNS_COUNT_PER_MEASUREMENT;
+    public int parallelism = DnsLookupTask.DEFAULT_PARALLELISM;
+    public int timeoutMs = DnsLookupTask.DEFAULT_TIMEOUT_MSEC;
     
     public DnsLookupDesc(String key, Date startTime, Date endTime,
         double intervalSec, long count, long priority, Map<String, String> params) {
       super(DnsLookupTask.TYPE, key, startTime, endTime, intervalSec, count,
           priority, params);
       initializeParams(params);
-      if (this.target == null || this.target.length() == 0) {
+      if (this.target == null || getTargets().isEmpty()) {
         throw new InvalidParameterException("LookupDnsTask cannot be created due " +
             " to null target string");
       }
@@ -71,6 +94,17 @@ public class DnsLookupTask extends MeasurementTask {
       return DnsLookupTask.TYPE;
     }
 
+    /**
+     * Besides "target", the names to look up, there are these parameters:
+     * 1. "server": the resolvers to query, each an IP address with an optional
+     *    ":port". The system resolver is used if there is none.
+     * 2. "random_prefix": whether to look up a random subdomain of each target
+     *    instead, which the resolver cannot answer from its cache
+     * 3. "query_count": the number of queries per target and resolver
+     * 4. "parallelism": the number of queries in flight at once
+     * 5. "timeout_ms": how long to wait for an answer before counting it lost
+     * Targets and resolvers are separated by white space or commas.
+     */
     @Override
     protected void initializeParams(Map<String, String> params) {
       if (params == null) {
@@ -79,8 +113,49 @@ public class DnsLookupTask extends MeasurementTask {
       
       this.target = params.get("target");      
       this.server = params.get("server");
+      try {
+        String val = null;
+        if ((val = params.get("random_prefix")) != null && val.length() > 0) {
+          this.randomPrefix = Boolean.parseBoolean(val);
+        }
+        if ((val = params.get("query_count")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.queryCount = Integer.parseInt(val);
+        }
+        if ((val = params.get("parallelism")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.parallelism = Math.min(Integer.parseInt(val), DnsLookupTask.MAX_PARALLELISM);
+        }
+        if ((val = params.get("timeout_ms")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.timeoutMs = Integer.parseInt(val);
+        }
+      } catch (NumberFormatException e) {
+        throw new InvalidParameterException("DnsLookupTask invalid parameters.");
+      }
+    }
+
+    /** Returns the names to look up */
+    public List<String> getTargets() {
+      return split(target);
+    }
+
+    /** Returns the resolvers to query, which is empty for the system resolver */
+    public List<String> getServers() {
+      return split(server);
+    }
+
+    private static List<String> split(String list) {
+      ArrayList<String> items = new ArrayList<String>();
+      if (list != null) {
+        for (String item : list.trim().split("[\\s,]+")) {
+          if (item.length() > 0) {
+            items.add(item);
+          }
+        }
+      }
+      return items;
     }
-    
   }
   
   public DnsLookupTask(MeasurementDesc desc, Context parent) {
@@ -100,25 +175,156 @@ public class DnsLookupTask extends MeasurementTask {
   }
 
   @Override
-  public MeasurementResult call() throws MeasurementError {   
+  public MeasurementResult call() throws MeasurementError {
+    DnsLookupDesc taskDesc = (DnsLookupDesc) this.measurementDesc;
+    ArrayList<DnsClient> resolvers = new ArrayList<DnsClient>();
+    for (String server : taskDesc.getServers()) {
+      resolvers.add(newClient(server, taskDesc.timeoutMs));
+    }
+    if (resolvers.isEmpty()) {
+      InetAddress systemResolver = DnsClient.getSystemResolver();
+      if (systemResolver == null) {
+        // Without a known resolver, all we can time is the system's own lookup
+        return callSystemResolver(taskDesc);
+      }
+      resolvers.add(new DnsClient(systemResolver, DnsClient.DNS_PORT, taskDesc.timeoutMs));
+    }
+    this.clients = resolvers.toArray(new DnsClient[resolvers.size()]);
+
+    // One query per target, resolver and repetition, in that order
+    ArrayList<DnsClient> queryClients = new ArrayList<DnsClient>();
+    ArrayList<String> queryNames = new ArrayList<String>();
+    for (String name : taskDesc.getTargets()) {
+      for (DnsClient client : resolvers) {
+        for (int i = 0; i < taskDesc.queryCount && queryNames.size() < MAX_QUERIES; i++) {
+          queryClients.add(client);
+          queryNames.add(taskDesc.randomPrefix ? client.randomSubdomain(name) : name);
+        }
+      }
+    }
+    Logger.i("Running " + queryNames.size() + " DNS queries for target " + taskDesc.target);
+
+    DnsClient.Response[] responses = new DnsClient.Response[queryNames.size()];
+    String[] errors = new String[queryNames.size()];
+    this.executor = Executors.newFixedThreadPool(
+        Math.min(taskDesc.parallelism, queryNames.size()));
+    try {
+      ArrayList<Future<DnsClient.Response>> pending =
+          new ArrayList<Future<DnsClient.Response>>();
+      for (int i = 0; i < queryNames.size(); i++) {
+        final DnsClient client = queryClients.get(i);
+        final String name = queryNames.get(i);
+        pending.add(executor.submit(new Callable<DnsClient.Response>() {
+          @Override
+          public DnsClient.Response call() throws IOException {
+            return client.query(name);
+          }
+        }));
+      }
+      for (int i = 0; i < pending.size(); i++) {
+        try {
+          responses[i] = pending.get(i).get();
+        } catch (ExecutionException e) {
+          errors[i] = e.getCause().getMessage();
+        }
+        this.progress = Config.MAX_PROGRESS_BAR_VALUE * (i + 1) / pending.size();
+      }
+    } catch (InterruptedException e) {
+      throw new MeasurementError("DNS lookup interrupted");
+    } catch (RejectedExecutionException e) {
+      throw new MeasurementError("DNS lookup stopped");
+    } catch (CancellationException e) {
+      throw new MeasurementError("DNS lookup stopped");
+    } finally {
+      executor.shutdownNow();
+    }
+
+    PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
+    MeasurementResult result = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId,
+        phoneUtils.getDeviceProperty(), DnsLookupTask.TYPE, System.currentTimeMillis() * 1000,
+        true, this.measurementDesc);
+    double totalTime = 0;
+    int answered = 0;
+    DnsClient.Response resolved = null;
+    for (int i = 0; i < responses.length; i++) {
+      DnsClient.Response response = responses[i];
+      String prefix = "query_" + i + "_";
+      result.addResult(prefix + "name", queryNames.get(i));
+      result.addResult(prefix + "resolver",
+          queryClients.get(i).getResolver().getHostAddress());
+      if (response == null || response.isLost()) {
+        result.addResult(prefix + "rcode", DnsClient.RCODE_LOST);
+        result.addResult(prefix + "time_ms", -1);
+        if (errors[i] != null) {
+          result.addResult(prefix + "error", errors[i]);
+        }
+        continue;
+      }
+      result.addResult(prefix + "rcode", response.rcode);
+      result.addResult(prefix + "time_ms", response.rttMs);
+      totalTime += response.rttMs;
+      answered++;
+      if (resolved == null && !response.addresses.isEmpty()) {
+        resolved = response;
+      }
+    }
+    if (answered == 0) {
+      throw new MeasurementError("No answer from the DNS resolver");
+    }
+
+    result.addResult("method", "udp");
+    result.addResult("num_queries", responses.length);
+    result.addResult("lost_queries", responses.length - answered);
+    if (resolved != null) {
+      result.addResult("address", resolved.addresses.get(0).getHostAddress());
+      result.addResult("real_hostname", resolved.canonicalName);
+    }
+    result.addResult("time_ms", totalTime / answered);
+    Logger.i(MeasurementJsonConvertor.toJsonString(result));
+    return result;
+  }
+
+  /** Parses "address" or "address:port" of a resolver */
+  private static DnsClient newClient(String server, int timeoutMs) throws MeasurementError {
+    int port = DnsClient.DNS_PORT;
+    String host = server;
+    int colon = server.lastIndexOf(':');
+    // A single colon separates the port, more than one makes an IPv6 address
+    if (colon > 0 && server.indexOf(':') == colon) {
+      host = server.substring(0, colon);
+      try {
+        port = Integer.parseInt(server.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        throw new MeasurementError("Invalid DNS server " + server);
+      }
+    }
+    try {
+      return new DnsClient(InetAddress.getByName(host), port, timeoutMs);
+    } catch (UnknownHostException e) {
+      throw new MeasurementError("Cannot resolve DNS server " + server);
+    }
+  }
+
+  /** Times lookups through the system resolver, caches included */
+  private MeasurementResult callSystemResolver(DnsLookupDesc taskDesc)
+      throws MeasurementError {
     long t1, t2;
     long totalTime = 0;
     InetAddress resultInet = null;
     int successCnt = 0;
-    for (int i = 0; i < Config.DEFAULT_DNS_COUNT_PER_MEASUREMENT; i++) {
+    String target = taskDesc.getTargets().get(0);
+    for (int i = 0; i < taskDesc.queryCount; i++) {
       try {
-        DnsLookupDesc taskDesc = (DnsLookupDesc) this.measurementDesc;
-        Logger.i("Running DNS Lookup for target " + taskDesc.target);
-        Date startTime = new Date();
+        Logger.i("Running DNS Lookup for target " + target);
         t1 = System.currentTimeMillis();
-        InetAddress inet = InetAddress.getByName(taskDesc.target);
+        InetAddress inet = InetAddress.getByName(target);
         t2 = System.currentTimeMillis();
         if (inet != null) {
           totalTime += (t2 - t1);
           resultInet = inet;
           successCnt++;
         }
-        this.progress = 100 * i / Config.DEFAULT_DNS_COUNT_PER_MEASUREMENT;
+        this.progress = 100 * i / taskDesc.queryCount;
       } catch (UnknownHostException e) {
         throw new MeasurementError("Cannot resovle domain name");
       }
@@ -130,6 +336,7 @@ public class DnsLookupTask extends MeasurementTask {
       MeasurementResult result = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId,
           phoneUtils.getDeviceProperty(), DnsLookupTask.TYPE, System.currentTimeMillis() * 1000,
           true, this.measurementDesc);
+      result.addResult("method", "system");
       result.addResult("address", resultInet.getHostAddress());
       result.addResult("real_hostname", resultInet.getCanonicalHostName());
       result.addResult("time_ms", totalTime / successCnt);
@@ -164,18 +371,33 @@ public class DnsLookupTask extends MeasurementTask {
   
   @Override
   public void stop() {
-    //There is nothing we need to do to stop the DNS measurement
+    DnsClient[] clients = this.clients;
+    if (clients != null) {
+      for (DnsClient client : clients) {
+        client.stop();
+      }
+    }
+    ExecutorService executor = this.executor;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
   }
 
   /**
-   * Since it is hard to get the amount of data sent directly,
-   * use a fixed value.  The data consumed is usually small, and the fixed
-   * value is a conservative estimate.
-   * 
-   * TODO find a better way to get this value
+   * Counts the queries and answers when they were sent by this task. Lookups
+   * through the system resolver are hard to count, so they use a fixed value,
+   * a conservative estimate since the data consumed is usually small.
    */
   @Override
   public long getDataConsumed() {
-    return AVG_DATA_USAGE_BYTE;
+    DnsClient[] clients = this.clients;
+    if (clients == null) {
+      return AVG_DATA_USAGE_BYTE;
+    }
+    long dataConsumed = 0;
+    for (DnsClient client : clients) {
+      dataConsumed += client.getDataConsumed();
+    }
+    return dataConsumed;
   }
 }
@@ -26,7 +26,6 @@ import com.mobiperf.util.PhoneUtils;
 import com.mobiperf.util.Util;
 
 import android.content.Context;
-import android.net.http.AndroidHttpClient;
 import android.util.Base64;
 
 import org.apache.http.Header;
@@ -37,15 +36,36 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SingleClientConnManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -65,12 +85,44 @@ public class HttpTask extends MeasurementTask {
   // If the response is larger than MAX_BODY_SIZE_TO_UPLOAD bytes, we will 
   // only report the first MAX_BODY_SIZE_TO_UPLOAD bytes of the body.
   public static final int MAX_BODY_SIZE_TO_UPLOAD = 1024;
+  // The digest reported in place of the body unless the content is captured
+  public static final String BODY_DIGEST_ALGORITHM = "SHA-1";
   // The buffer size we use to read from the HTTP response stream
-  public static final int READ_BUFFER_SIZE = 1024;
+  public static final int READ_BUFFER_SIZE = 8192;
+  // Connect and read timeout of the HTTP client
+  public static final int SOCKET_TIMEOUT_MSEC = 20 * 1000;
+  // The number of targets whose connections are kept between runs
+  public static final int MAX_POOLED_TARGETS = 8;
   // Not used by the HTTP protocol. Just in case we do not receive a status line from the response
   public static final int DEFAULT_STATUS_CODE = 0;
+  // Timeout of the timed DNS lookup of the target
+  public static final int DNS_TIMEOUT_MSEC = 5000;
+  // Request parameter holding the ConnectionTimings of the request
+  private static final String TIMINGS_PARAM = "com.mobiperf.http.connection_timings";
+  // How dns_ms was timed: by a query to the system resolver, through the system
+  // resolver's caches, or not at all for a literal address
+  private static final String DNS_METHOD_UDP = "udp";
+  private static final String DNS_METHOD_SYSTEM = "system";
+  private static final String DNS_METHOD_NONE = "none";
   
-  private AndroidHttpClient httpClient = null;
+  /* Clients of the tasks that reuse connections, keyed by scheme, host and port. They
+   * outlive the tasks so that the next scheduled run finds a warm connection. The least
+   * recently used target is shut down when there are too many. Guarded by itself.
+   */
+  private static final LinkedHashMap<String, DefaultHttpClient> pooledClients =
+      new LinkedHashMap<String, DefaultHttpClient>(MAX_POOLED_TARGETS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DefaultHttpClient> eldest) {
+          if (size() > MAX_POOLED_TARGETS) {
+            eldest.getValue().getConnectionManager().shutdown();
+            return true;
+          }
+          return false;
+        }
+      };
+
+  private DefaultHttpClient httpClient = null;
+  private volatile HttpRequestBase request = null;
   
   // Track data consumption for this task to avoid exceeding user's limit  
   private long dataConsumed;
@@ -89,6 +141,11 @@ public class HttpTask extends MeasurementTask {
     private String method;
     private String headers;
     private String body;
+    // Whether connections are kept for the next run against the same target
+    private boolean reuseConnection = false;
+    // Whether the response headers and the start of the body are reported, rather
+    // than only their sizes and a digest of the body
+    private boolean captureContent = false;
 
     public HttpDesc(String key, Date startTime, Date endTime,
                       double intervalSec, long count, long priority, Map<String, String> params) 
@@ -118,6 +175,14 @@ public class HttpTask extends MeasurementTask {
       }
       this.headers = params.get("headers");      
       this.body = params.get("body");
+      String val = params.get("reuse_connection");
+      if (val != null && val.length() > 0) {
+        this.reuseConnection = Boolean.parseBoolean(val);
+      }
+      val = params.get("capture_content");
+      if (val != null && val.length() > 0) {
+        this.captureContent = Boolean.parseBoolean(val);
+      }
     }
     
     @Override
@@ -144,10 +209,18 @@ public class HttpTask extends MeasurementTask {
     
     int statusCode = HttpTask.DEFAULT_STATUS_CODE;
     long duration = 0;
+    long dnsNanos = 0;
+    String dnsMethod = DNS_METHOD_NONE;
+    long firstByteNanos = 0;
+    long transferNanos = 0;
+    long connectNanos = -1;
+    long tlsNanos = -1;
     long originalHeadersLen = 0;
     long originalBodyLen;
+    int headersCount = 0;
     String headers = null;
-    ByteBuffer body = ByteBuffer.allocate(HttpTask.MAX_BODY_SIZE_TO_UPLOAD);
+    ByteBuffer body = null;
+    MessageDigest bodyDigest = null;
     boolean success = false;
     String errorMsg = "";
     InputStream inputStream = null;
@@ -165,9 +238,13 @@ public class HttpTask extends MeasurementTask {
       // this is the file to be downloaded
       HttpDesc task = (HttpDesc) this.measurementDesc;
       String urlStr = task.url;
+      if (task.captureContent) {
+        body = ByteBuffer.allocate(HttpTask.MAX_BODY_SIZE_TO_UPLOAD);
+      }
+      bodyDigest = MessageDigest.getInstance(BODY_DIGEST_ALGORITHM);
           
-      // TODO(Wenjie): Need to set timeout for the HTTP methods
-      httpClient = AndroidHttpClient.newInstance(Util.prepareUserAgent(this.parent));
+      URI uri = URI.create(urlStr);
+      httpClient = getHttpClient(uri, task.reuseConnection, Util.prepareUserAgent(this.parent));
       HttpRequestBase request = null;
       if (task.method.compareToIgnoreCase("head") == 0) {
         request = new HttpHead(urlStr);
@@ -182,23 +259,48 @@ public class HttpTask extends MeasurementTask {
         request = new HttpGet(urlStr);
       }      
       
-      if (task.headers != null && task.headers.trim().length() > 0) {
-        for (String headerLine : task.headers.split("\r\n")) {
-          String tokens[] = headerLine.split(":");
-          if (tokens.length == 2) {
-            request.addHeader(tokens[0], tokens[1]);
-          } else {
-            throw new MeasurementError("Incorrect header line: " + headerLine);
-          }
-        }
-      } 
+      addRequestHeaders(request, task.headers);
+      // Kept with the request, as runs on the same target share the socket factory
+      ConnectionTimings timings = new ConnectionTimings();
+      request.getParams().setParameter(TIMINGS_PARAM, timings);
+      this.request = request;
       
       byte[] readBuffer = new byte[HttpTask.READ_BUFFER_SIZE];
       int readLen;      
       int totalBodyLen = 0;
       
       long startTime = System.currentTimeMillis();
+      String host = uri.getHost();
+      if (!TargetResolver.isLiteral(host)) {
+        // Queries the resolver directly, as the caches would answer most scheduled runs
+        DnsClient.Response lookup = null;
+        InetAddress resolver = DnsClient.getSystemResolver();
+        if (resolver != null) {
+          lookup = new DnsClient(resolver, DnsClient.DNS_PORT, DNS_TIMEOUT_MSEC).query(host);
+        }
+        if (lookup != null && lookup.rcode == DnsClient.RCODE_NOERROR) {
+          dnsNanos = (long) (lookup.rttMs * 1000000);
+          dnsMethod = DNS_METHOD_UDP;
+          // The direct query leaves the system's cache cold, and the client's own lookup
+          // would otherwise be timed as part of first_byte_ms
+          InetAddress.getAllByName(host);
+        } else {
+          // Resolve the name here to time the lookup. The client then finds it in the cache.
+          long dnsStart = System.nanoTime();
+          InetAddress.getAllByName(host);
+          dnsNanos = System.nanoTime() - dnsStart;
+          dnsMethod = DNS_METHOD_SYSTEM;
+        }
+      }
+
+      long requestStart = System.nanoTime();
       HttpResponse response = httpClient.execute(request);
+      long headersReceived = System.nanoTime();
+      connectNanos = timings.getConnectNanos();
+      tlsNanos = timings.getTlsNanos();
+      // The time between sending the request and receiving the response headers
+      firstByteNanos = headersReceived - requestStart - Math.max(0, connectNanos)
+          - Math.max(0, tlsNanos);
       
       /* TODO(Wenjie): HttpClient does not automatically handle the following codes
        * 301 Moved Permanently. HttpStatus.SC_MOVED_PERMANENTLY
@@ -230,8 +332,9 @@ public class HttpTask extends MeasurementTask {
         while ((readLen = inputStream.read(readBuffer)) > 0 
             && totalBodyLen <= HttpTask.MAX_HTTP_RESPONSE_SIZE) {
           totalBodyLen += readLen;
+          bodyDigest.update(readBuffer, 0, readLen);
           // Fill in the body to report up to MAX_BODY_SIZE
-          if (body.remaining() > 0) {
+          if (body != null && body.remaining() > 0) {
             int putLen = body.remaining() < readLen ? body.remaining() : readLen; 
             body.put(readBuffer, 0, putLen);
           }
@@ -240,11 +343,12 @@ public class HttpTask extends MeasurementTask {
           broadcastProgressForUser(this.progress);
         }
         duration = System.currentTimeMillis() - startTime;
+        transferNanos = System.nanoTime() - headersReceived;
       }
                  
       Header[] responseHeaders = response.getAllHeaders();
       if (responseHeaders != null) {
-        headers = "";
+        StringBuilder headerBuilder = new StringBuilder();
         for (Header hdr : responseHeaders) {
           /*
            * TODO(Wenjie): There can be preceding and trailing white spaces in
@@ -252,8 +356,14 @@ public class HttpTask extends MeasurementTask {
            * number of bytes in a header. The solution here assumes the encoding
            * is one byte per character.
            */
-          originalHeadersLen += hdr.toString().length();
-          headers += hdr.toString() + "\r\n";
+          int lineStart = headerBuilder.length();
+          headerBuilder.append(hdr.toString());
+          originalHeadersLen += headerBuilder.length() - lineStart;
+          headerBuilder.append("\r\n");
+        }
+        headersCount = responseHeaders.length;
+        if (task.captureContent) {
+          headers = headerBuilder.toString();
         }
       }
       
@@ -269,10 +379,23 @@ public class HttpTask extends MeasurementTask {
       
       if (success) {
         result.addResult("time_ms", duration);
+        result.addResult("dns_ms", dnsNanos / 1000000.0);
+        result.addResult("dns_method", dnsMethod);
+        // -1 when the request reused a connection of an earlier run
+        result.addResult("tcp_connect_ms", connectNanos < 0 ? -1 : connectNanos / 1000000.0);
+        result.addResult("tls_handshake_ms", tlsNanos < 0 ? -1 : tlsNanos / 1000000.0);
+        result.addResult("first_byte_ms", firstByteNanos / 1000000.0);
+        result.addResult("transfer_ms", transferNanos / 1000000.0);
+        result.addResult("connection_reused", connectNanos < 0);
         result.addResult("headers_len", originalHeadersLen);
+        result.addResult("headers_count", headersCount);
         result.addResult("body_len", totalBodyLen);
-        result.addResult("headers", headers);
-        result.addResult("body", Base64.encodeToString(body.array(), Base64.DEFAULT));
+        result.addResult("body_sha1", toHex(bodyDigest.digest()));
+        if (task.captureContent) {
+          result.addResult("headers", headers);
+          result.addResult("body", Base64.encodeToString(body.array(), 0, body.position(),
+              Base64.DEFAULT));
+        }
       }
       
       Logger.i(MeasurementJsonConvertor.toJsonString(result));
@@ -283,6 +406,9 @@ public class HttpTask extends MeasurementTask {
     } catch (IOException e) {
       errorMsg += e.getMessage() + "\n";
       Logger.e(e.getMessage());
+    } catch (NoSuchAlgorithmException e) {
+      errorMsg += e.getMessage() + "\n";
+      Logger.e(e.getMessage());
     } finally {
       if (inputStream != null) {
         try {
@@ -291,15 +417,166 @@ public class HttpTask extends MeasurementTask {
           Logger.e("Fails to close the input stream from the HTTP response");
         }
       }
-      if (httpClient != null) {
-        httpClient.close();
+      if (httpClient != null && !task().reuseConnection) {
+        httpClient.getConnectionManager().shutdown();
       }
-
+      this.request = null;
     }
     throw new MeasurementError("Cannot get result from HTTP measurement because " + 
       errorMsg);
   }  
 
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private HttpDesc task() {
+    return (HttpDesc) this.measurementDesc;
+  }
+
+  /**
+   * Returns the pooled client of the target if |reuseConnection| is set, creating it
+   * on first use, and otherwise a new client for a single request.
+   */
+  private static DefaultHttpClient getHttpClient(URI uri, boolean reuseConnection,
+      String userAgent) {
+    if (!reuseConnection) {
+      return newHttpClient(uri, false, userAgent);
+    }
+    String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    synchronized (pooledClients) {
+      DefaultHttpClient client = pooledClients.get(key);
+      if (client == null) {
+        client = newHttpClient(uri, true, userAgent);
+        pooledClients.put(key, client);
+      }
+      return client;
+    }
+  }
+
+  /**
+   * Adds the request headers given as "name:value" lines separated by CRLF, the
+   * format of the "headers" parameter.
+   */
+  static void addRequestHeaders(HttpRequestBase request, String headers)
+      throws MeasurementError {
+    if (headers != null && headers.trim().length() > 0) {
+      for (String headerLine : headers.split("\r\n")) {
+        String tokens[] = headerLine.split(":");
+        if (tokens.length == 2) {
+          request.addHeader(tokens[0], tokens[1]);
+        } else {
+          throw new MeasurementError("Incorrect header line: " + headerLine);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns client parameters with the settings of AndroidHttpClient. Stale
+   * checking is needed by connections that may sit idle for a long time.
+   */
+  static HttpParams newHttpParams(boolean staleChecking, String userAgent) {
+    HttpParams params = new BasicHttpParams();
+    HttpConnectionParams.setStaleCheckingEnabled(params, staleChecking);
+    HttpConnectionParams.setConnectionTimeout(params, SOCKET_TIMEOUT_MSEC);
+    HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MSEC);
+    HttpConnectionParams.setSocketBufferSize(params, READ_BUFFER_SIZE);
+    HttpClientParams.setRedirecting(params, false);
+    HttpProtocolParams.setUserAgent(params, userAgent);
+    return params;
+  }
+
+  /**
+   * Creates a client whose socket factory times the TCP connect and TLS handshake
+   * of new connections.
+   */
+  private static DefaultHttpClient newHttpClient(URI uri, boolean pooled, String userAgent) {
+    // Pooled connections may sit idle for a long time between runs
+    HttpParams params = newHttpParams(pooled, userAgent);
+    boolean https = "https".equalsIgnoreCase(uri.getScheme());
+    TimingSocketFactory socketFactory = new TimingSocketFactory(uri.getHost(),
+        https ? SSLSocketFactory.getSocketFactory() : null);
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme(uri.getScheme(), socketFactory, https ? 443 : 80));
+    ClientConnectionManager manager = pooled
+        ? new ThreadSafeClientConnManager(params, registry)
+        : new SingleClientConnManager(params, registry);
+    return new DefaultHttpClient(manager, params);
+  }
+
+  /**
+   * The TCP connect and TLS handshake times of the connection a request opened,
+   * -1 until it opens one
+   */
+  private static class ConnectionTimings {
+    private long connectNanos = -1;
+    private long tlsNanos = -1;
+
+    synchronized void set(long connectNanos, long tlsNanos) {
+      this.connectNanos = connectNanos;
+      this.tlsNanos = tlsNanos;
+    }
+
+    synchronized long getConnectNanos() {
+      return connectNanos;
+    }
+
+    synchronized long getTlsNanos() {
+      return tlsNanos;
+    }
+  }
+
+  /**
+   * Opens plain sockets, and layers TLS on them if given a TLS factory, timing the
+   * TCP connect and the handshake. The times go to the ConnectionTimings that the
+   * request opening the connection carries in its parameters, which the client
+   * passes on to the factory.
+   */
+  private static class TimingSocketFactory implements SocketFactory {
+    private final String host;
+    private final LayeredSocketFactory tlsFactory;
+
+    TimingSocketFactory(String host, LayeredSocketFactory tlsFactory) {
+      this.host = host;
+      this.tlsFactory = tlsFactory;
+    }
+
+    @Override
+    public Socket createSocket() {
+      return new Socket();
+    }
+
+    @Override
+    public Socket connectSocket(Socket sock, String address, int port, InetAddress localAddress,
+        int localPort, HttpParams params) throws IOException {
+      long start = System.nanoTime();
+      Socket socket = PlainSocketFactory.getSocketFactory().connectSocket(sock, address, port,
+          localAddress, localPort, params);
+      long connected = System.nanoTime();
+      if (tlsFactory != null) {
+        // Verifying the host name completes the handshake
+        socket = tlsFactory.createSocket(socket, host, port, true);
+      }
+      Object timings = params.getParameter(TIMINGS_PARAM);
+      if (timings instanceof ConnectionTimings) {
+        ((ConnectionTimings) timings).set(connected - start,
+            tlsFactory == null ? -1 : System.nanoTime() - connected);
+      }
+      return socket;
+    }
+
+    @Override
+    public boolean isSecure(Socket sock) {
+      return tlsFactory != null;
+    }
+
+  }
+
   @SuppressWarnings("rawtypes")
   public static Class getDescClass() throws InvalidClassException {
     return HttpDesc.class;
@@ -324,8 +601,9 @@ public class HttpTask extends MeasurementTask {
   
   @Override
   public void stop() {
-    if (httpClient != null) {
-      httpClient.close();
+    HttpRequestBase currentRequest = request;
+    if (currentRequest != null) {
+      currentRequest.abort();
     }
   }
 
@@ -0,0 +1,499 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiperf.measurements;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InvalidClassException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.mobiperf.Config;
+import com.mobiperf.Logger;
+import com.mobiperf.MeasurementDesc;
+import com.mobiperf.MeasurementError;
+import com.mobiperf.MeasurementResult;
+import com.mobiperf.MeasurementTask;
+import com.mobiperf.measurements.TCPThroughputTask.TCPThroughputDesc;
+import com.mobiperf.util.MLabNS;
+import com.mobiperf.util.MeasurementJsonConvertor;
+import com.mobiperf.util.PhoneUtils;
+import com.mobiperf.util.Util;
+
+import android.content.Context;
+
+/**
+ * Measures the latency under load (bufferbloat) of the path to an M-Lab server.
+ *
+ * The task first pings the server on an idle link. It then runs the TCP
+ * throughput test to the same server on a separate thread and keeps pinging
+ * until the test ends. Only the replies to pings sent after data started
+ * flowing and received before it stopped count as loaded, which is decided by
+ * comparing System.nanoTime() stamps taken by both engines.
+ */
+public class LoadedLatencyTask extends MeasurementTask {
+  // Type name for internal use
+  public static final String TYPE = "loaded_latency";
+  // Human readable name for the task
+  public static final String DESCRIPTOR = "Latency Under Load";
+  public static final int DEFAULT_IDLE_PING_COUNT = 10;
+  public static final int MAX_IDLE_PING_COUNT = 50;
+  // The shortest interval the ping command allows to users other than root
+  private static final double PING_INTERVAL_SEC = 0.2;
+  // The load test connects and fetches the server version before data flows
+  private static final int LOAD_SETUP_SEC = 10;
+
+  private static final String PING_METHOD_CMD = "ping_cmd";
+  private static final String PING_METHOD_JAVA = "java_ping";
+
+  private Context context = null;
+  private String targetIp = null;
+  private String pingMethod = null;
+  private volatile TCPThroughputTask loadTask = null;
+
+  // The running ping command, and whether pinging should stop. Both are guarded
+  // by this object since the load thread stops the pings when it finishes.
+  private Process pingProc = null;
+  private boolean pingStopped = false;
+  // Whether stop() was called, and the running load test it cancels. Guarded
+  // by this object.
+  private boolean stopped = false;
+  private FutureTask<Void> loadFuture = null;
+
+  // Track data consumption of the pings to avoid exceeding user's limit
+  private long pingDataConsumed = 0;
+
+  /**
+   * Parameters of the loaded latency task. The throughput test reads its own
+   * parameters, such as dir_up and duration_period_sec, from the same map.
+   */
+  public static class LoadedLatencyDesc extends MeasurementDesc {
+    public String target = null;
+    public boolean dirUp = false;
+    public int idlePingCount = LoadedLatencyTask.DEFAULT_IDLE_PING_COUNT;
+    public int packetSizeByte = PingTask.DEFAULT_PING_PACKET_SIZE;
+
+    public LoadedLatencyDesc(String key, Date startTime, Date endTime,
+        double intervalSec, long count, long priority, Map<String, String> params)
+        throws InvalidParameterException {
+      super(LoadedLatencyTask.TYPE, key, startTime, endTime, intervalSec, count,
+          priority, params);
+      initializeParams(params);
+      if (this.target == null || this.target.length() == 0) {
+        throw new InvalidParameterException("LoadedLatencyTask null target");
+      }
+    }
+
+    /**
+     * There are three parameters specific to this task:
+     * 1. "dir_up": "Up" or "true" to load the uplink, otherwise the downlink
+     * 2. "idle_ping_count": the number of pings before the link is loaded
+     * 3. "packet_size_byte": the ICMP payload size of each ping
+     */
+    @Override
+    protected void initializeParams(Map<String, String> params) {
+      if (params == null) {
+        return;
+      }
+
+      this.target = params.get("target");
+
+      try {
+        String val = null;
+        if ((val = params.get("idle_ping_count")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.idlePingCount = Math.min(Integer.parseInt(val),
+              LoadedLatencyTask.MAX_IDLE_PING_COUNT);
+        }
+        if ((val = params.get("packet_size_byte")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.packetSizeByte = Integer.parseInt(val);
+        }
+      } catch (NumberFormatException e) {
+        throw new InvalidParameterException("LoadedLatencyTask invalid parameters.");
+      }
+
+      String dir = null;
+      if ((dir = params.get("dir_up")) != null && dir.length() > 0) {
+        if (dir.compareTo("Up") == 0 || dir.compareTo("true") == 0) {
+          this.dirUp = true;
+        }
+      }
+    }
+
+    @Override
+    public String getType() {
+      return LoadedLatencyTask.TYPE;
+    }
+  }
+
+  /** A ping reply and the System.nanoTime() at which it was read */
+  private static class RttSample {
+    final long receivedNanos;
+    final double rttMs;
+
+    RttSample(long receivedNanos, double rttMs) {
+      this.receivedNanos = receivedNanos;
+      this.rttMs = rttMs;
+    }
+
+    long sentNanos() {
+      return receivedNanos - (long) (rttMs * 1000000);
+    }
+  }
+
+  public LoadedLatencyTask(MeasurementDesc desc, Context context) {
+    super(new LoadedLatencyDesc(desc.key, desc.startTime, desc.endTime, desc.intervalSec,
+        desc.count, desc.priority, desc.parameters), context);
+    this.context = context;
+  }
+
+  @SuppressWarnings("rawtypes")
+  public static Class getDescClass() throws InvalidClassException {
+    return LoadedLatencyDesc.class;
+  }
+
+  /**
+   * Returns a copy of the LoadedLatencyTask
+   */
+  @Override
+  public MeasurementTask clone() {
+    MeasurementDesc desc = this.measurementDesc;
+    LoadedLatencyDesc newDesc = new LoadedLatencyDesc(desc.key, desc.startTime,
+        desc.endTime, desc.intervalSec, desc.count, desc.priority, desc.parameters);
+    return new LoadedLatencyTask(newDesc, parent);
+  }
+
+  @Override
+  public MeasurementResult call() throws MeasurementError {
+    LoadedLatencyDesc desc = (LoadedLatencyDesc) measurementDesc;
+    if (!desc.target.equals(MLabNS.TARGET)) {
+      throw new InvalidParameterException("Unknown target " + desc.target
+          + " for LoadedLatencyTask");
+    }
+
+    String server;
+    try {
+      ArrayList<String> mlabResult = MLabNS.Lookup(context, "mobiperf");
+      if (mlabResult.size() != 1) {
+        throw new MeasurementError("Invalid MLabNS result");
+      }
+      server = mlabResult.get(0);
+    } catch (InvalidParameterException e) {
+      throw new MeasurementError(e.getMessage());
+    }
+
+    String pingExe;
+    try {
+      InetAddress addr = TargetResolver.resolve(server);
+      targetIp = addr.getHostAddress();
+      pingExe = Util.pingExecutableBasedOnIPType(addr.getAddress().length, parent);
+    } catch (UnknownHostException e) {
+      throw new MeasurementError("Unknown host " + server);
+    }
+    pingMethod = (pingExe != null) ? PING_METHOD_CMD : PING_METHOD_JAVA;
+    Logger.i("Measuring latency under load to " + server + " (" + targetIp + ") with "
+        + pingMethod);
+
+    // Idle phase
+    ArrayList<RttSample> idleSamples = new ArrayList<RttSample>();
+    ping(pingExe, desc.idlePingCount, idleSamples);
+    if (idleSamples.isEmpty()) {
+      throw new MeasurementError("No ping reply from " + targetIp);
+    }
+    broadcastProgressForUser(Config.MAX_PROGRESS_BAR_VALUE / 10);
+
+    // Loaded phase: the load thread stops the pings as soon as the test ends
+    loadTask = createLoadTask(server);
+    TCPThroughputDesc loadDesc = (TCPThroughputDesc) loadTask.getDescription();
+    FutureTask<Void> load = new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws MeasurementError {
+        try {
+          loadTask.measureResolvedTarget();
+          return null;
+        } finally {
+          stopPing();
+        }
+      }
+    });
+    synchronized (this) {
+      if (stopped) {
+        throw new MeasurementError("Loaded latency test stopped");
+      }
+      pingStopped = false;
+      loadFuture = load;
+    }
+    new Thread(load, "LoadedLatencyTask load").start();
+    int loadDurationSec = (int) Math.ceil(loadDesc.slow_start_period_sec
+        + loadDesc.duration_period_sec + loadDesc.tcp_timeout_sec) + LOAD_SETUP_SEC;
+    ArrayList<RttSample> loadSamples = new ArrayList<RttSample>();
+    try {
+      ping(pingExe, (int) (loadDurationSec / PING_INTERVAL_SEC), loadSamples);
+    } finally {
+      try {
+        load.get();
+      } catch (InterruptedException e) {
+        throw new MeasurementError("Task gets interrupted");
+      } catch (CancellationException e) {
+        throw new MeasurementError("Loaded latency test stopped");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof MeasurementError) {
+          throw (MeasurementError) e.getCause();
+        }
+        throw new MeasurementError("Load test failed", e.getCause());
+      }
+    }
+
+    long transferStart = loadTask.getTransferStartNanos();
+    long transferEnd = loadTask.getTransferEndNanos();
+    ArrayList<RttSample> loadedSamples = new ArrayList<RttSample>();
+    for (RttSample sample : loadSamples) {
+      if (sample.sentNanos() >= transferStart && sample.receivedNanos <= transferEnd) {
+        loadedSamples.add(sample);
+      }
+    }
+    if (loadedSamples.isEmpty()) {
+      throw new MeasurementError("No ping reply while the link was loaded");
+    }
+
+    double[] idleRtts = sortedRtts(idleSamples);
+    double[] loadedRtts = sortedRtts(loadedSamples);
+    double idleRtt = percentile(idleRtts, 50);
+    double loadedRtt = percentile(loadedRtts, 50);
+
+    PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
+    MeasurementResult result = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId,
+        phoneUtils.getDeviceProperty(), LoadedLatencyTask.TYPE,
+        System.currentTimeMillis() * 1000, true, this.measurementDesc);
+    result.addResult("target_ip", targetIp);
+    result.addResult("ping_method", pingMethod);
+    result.addResult("idle_rtt_ms", idleRtt);
+    result.addResult("idle_min_rtt_ms", idleRtts[0]);
+    result.addResult("idle_pings", idleRtts.length);
+    result.addResult("loaded_rtt_p50_ms", loadedRtt);
+    result.addResult("loaded_rtt_p90_ms", percentile(loadedRtts, 90));
+    result.addResult("loaded_rtt_max_ms", loadedRtts[loadedRtts.length - 1]);
+    result.addResult("loaded_pings", loadedRtts.length);
+    result.addResult("latency_increase_ms", loadedRtt - idleRtt);
+    loadTask.addSpeedResults(result);
+    result.addResult("data_limit_exceeded", loadTask.isDataLimitExceeded());
+    result.addResult("duration", loadTask.getTaskDuration());
+    result.addResult("total_data_sent_received", loadTask.getDataConsumed());
+    Logger.i(MeasurementJsonConvertor.toJsonString(result));
+    return result;
+  }
+
+  /**
+   * Creates the throughput test to |server|. It never broadcasts progress, since
+   * this task reports its own.
+   */
+  private TCPThroughputTask createLoadTask(String server) {
+    MeasurementDesc desc = this.measurementDesc;
+    Map<String, String> params = new HashMap<String, String>(desc.parameters);
+    params.put("target", MLabNS.TARGET);
+    TCPThroughputDesc loadDesc = new TCPThroughputDesc(desc.key, desc.startTime, desc.endTime,
+        desc.intervalSec, desc.count, MeasurementTask.INVALID_PRIORITY, params);
+    TCPThroughputTask task = new TCPThroughputTask(loadDesc, context);
+    ((TCPThroughputDesc) task.getDescription()).target = server;
+    return task;
+  }
+
+  /**
+   * Pings targetIp every PING_INTERVAL_SEC until |count| pings are sent or
+   * stopPing() is called, and adds the replies to |samples|. Uses the ping
+   * command if |pingExe| is not null, and InetAddress.isReachable() otherwise.
+   */
+  private void ping(String pingExe, int count, ArrayList<RttSample> samples)
+      throws MeasurementError {
+    if (pingExe == null) {
+      javaPing(count, samples);
+      return;
+    }
+    LoadedLatencyDesc desc = (LoadedLatencyDesc) measurementDesc;
+    String command = Util.constructCommand(pingExe, "-i", PING_INTERVAL_SEC,
+        "-s", desc.packetSizeByte, "-w", (int) Math.ceil(count * PING_INTERVAL_SEC) + 1,
+        "-c", count, targetIp);
+    Logger.i("Running: " + command);
+
+    Process proc;
+    synchronized (this) {
+      if (pingStopped) {
+        return;
+      }
+      try {
+        pingProc = Runtime.getRuntime().exec(command);
+      } catch (IOException e) {
+        throw new MeasurementError("Failed to run " + command, e);
+      }
+      proc = pingProc;
+    }
+
+    int packetsSent = 0;
+    try {
+      BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+      HashSet<Integer> receivedIcmpSeq = new HashSet<Integer>();
+      String line;
+      while ((line = br.readLine()) != null) {
+        long now = System.nanoTime();
+        String[] extractedValues = Util.extractInfoFromPingOutput(line);
+        if (extractedValues == null) {
+          continue;
+        }
+        int icmpSeq = Integer.parseInt(extractedValues[0]);
+        packetsSent = Math.max(packetsSent, icmpSeq);
+        // ICMP responses from the system ping command could be duplicate
+        if (receivedIcmpSeq.add(icmpSeq)) {
+          samples.add(new RttSample(now, Double.parseDouble(extractedValues[1])));
+        }
+      }
+    } catch (IOException e) {
+      // Destroying the process on stopPing() closes its output
+      if (!isPingStopped()) {
+        throw new MeasurementError("Error reading ping output", e);
+      }
+    } catch (NumberFormatException e) {
+      throw new MeasurementError("Invalid ping output", e);
+    } finally {
+      cleanUp(proc);
+      synchronized (this) {
+        pingProc = null;
+        pingDataConsumed += 2 * desc.packetSizeByte * packetsSent;
+      }
+    }
+  }
+
+  /** Pings with InetAddress.isReachable() when the ping command is not available */
+  private void javaPing(int count, ArrayList<RttSample> samples) throws MeasurementError {
+    LoadedLatencyDesc desc = (LoadedLatencyDesc) measurementDesc;
+    long intervalNanos = (long) (PING_INTERVAL_SEC * 1000000000);
+    int timeoutMs = PingTask.DEFAULT_PING_TIMEOUT * 1000 / Config.PING_COUNT_PER_MEASUREMENT;
+    try {
+      InetAddress addr = InetAddress.getByName(targetIp);
+      for (int i = 0; i < count && !isPingStopped(); i++) {
+        long start = System.nanoTime();
+        boolean reachable = addr.isReachable(timeoutMs);
+        long end = System.nanoTime();
+        if (reachable) {
+          samples.add(new RttSample(end, (end - start) / 1000000.0));
+        }
+        synchronized (this) {
+          pingDataConsumed += 2 * desc.packetSizeByte;
+        }
+        long sleepMs = (start + intervalNanos - System.nanoTime()) / 1000000;
+        if (sleepMs > 0) {
+          Thread.sleep(sleepMs);
+        }
+      }
+    } catch (IOException e) {
+      throw new MeasurementError("Java ping to " + targetIp + " failed", e);
+    } catch (InterruptedException e) {
+      throw new MeasurementError("Task gets interrupted");
+    }
+  }
+
+  private synchronized boolean isPingStopped() {
+    return pingStopped;
+  }
+
+  /** Stops the current and any further pings of this run */
+  private synchronized void stopPing() {
+    pingStopped = true;
+    cleanUp(pingProc);
+  }
+
+  private void cleanUp(Process proc) {
+    try {
+      if (proc != null) {
+        proc.destroy();
+      }
+    } catch (Exception e) {
+      Logger.w("Unable to kill ping process" + e.getMessage());
+    }
+  }
+
+  private static double[] sortedRtts(ArrayList<RttSample> samples) {
+    double[] rtts = new double[samples.size()];
+    for (int i = 0; i < rtts.length; i++) {
+      rtts[i] = samples.get(i).rttMs;
+    }
+    Arrays.sort(rtts);
+    return rtts;
+  }
+
+  /** Nearest-rank percentile of a non-empty sorted array */
+  private static double percentile(double[] sorted, int percent) {
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  @Override
+  public String getType() {
+    return LoadedLatencyTask.TYPE;
+  }
+
+  @Override
+  public String getDescriptor() {
+    return LoadedLatencyTask.DESCRIPTOR;
+  }
+
+  @Override
+  public String toString() {
+    LoadedLatencyDesc desc = (LoadedLatencyDesc) measurementDesc;
+    return "[Latency Under Load " + (desc.dirUp ? "Uplink" : "Downlink") + "]\n  Target: "
+        + desc.target + "\n  Interval (sec): " + desc.intervalSec + "\n  Next run: "
+        + desc.startTime;
+  }
+
+  /**
+   * Stops the pings and the load test. Closing the load test's channel ends
+   * the transfer at once, and cancelling its future returns call() without
+   * waiting for the load thread to clean up.
+   */
+  @Override
+  public void stop() {
+    FutureTask<Void> load;
+    synchronized (this) {
+      stopped = true;
+      load = loadFuture;
+    }
+    stopPing();
+    TCPThroughputTask task = loadTask;
+    if (task != null) {
+      task.stop();
+    }
+    if (load != null) {
+      load.cancel(true);
+    }
+  }
+
+  @Override
+  public synchronized long getDataConsumed() {
+    return pingDataConsumed + (loadTask != null ? loadTask.getDataConsumed() : 0);
+  }
+}
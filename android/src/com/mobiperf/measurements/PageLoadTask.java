@@ -0,0 +1,432 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiperf.measurements;
+
+import com.mobiperf.Logger;
+import com.mobiperf.MeasurementDesc;
+import com.mobiperf.MeasurementError;
+import com.mobiperf.MeasurementResult;
+import com.mobiperf.MeasurementTask;
+import com.mobiperf.util.MeasurementJsonConvertor;
+import com.mobiperf.util.PhoneUtils;
+import com.mobiperf.util.Util;
+
+import android.content.Context;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Measures the load time of a page made of several objects.
+ *
+ * The first URL of the manifest is the main document. Once it has arrived, the
+ * other objects are fetched with up to |parallelism| requests at once over
+ * keep-alive connections, as a browser fetches the resources the document
+ * refers to. The critical path is the main document followed by the object that
+ * finished last. The time the last object spent waiting for a free connection
+ * is the share of the load time caused by the parallelism limit.
+ */
+public class PageLoadTask extends MeasurementTask {
+  // Type name for internal use
+  public static final String TYPE = "page_load";
+  // Human readable name for the task
+  public static final String DESCRIPTOR = "Page Load";
+  // Browsers open about six connections per host
+  public static final int DEFAULT_PARALLELISM = 6;
+  public static final int MAX_PARALLELISM = 16;
+  public static final int MAX_OBJECTS = 64;
+
+  private DefaultHttpClient httpClient = null;
+  private ExecutorService executor = null;
+  // The requests in flight, guarded by themselves
+  private final HashSet<HttpGet> requests = new HashSet<HttpGet>();
+  private volatile boolean stopRequested = false;
+
+  // Track data consumption for this task to avoid exceeding user's limit
+  private long dataConsumed;
+
+  /**
+   * The description of a page load measurement
+   */
+  public static class PageLoadDesc extends MeasurementDesc {
+    // The manifest, with the URLs separated by single spaces
+    public String urls;
+    public int parallelism = PageLoadTask.DEFAULT_PARALLELISM;
+    private String headers;
+
+    public PageLoadDesc(String key, Date startTime, Date endTime,
+        double intervalSec, long count, long priority, Map<String, String> params)
+        throws InvalidParameterException {
+      super(PageLoadTask.TYPE, key, startTime, endTime, intervalSec, count, priority, params);
+      initializeParams(params);
+      if (this.urls == null || this.urls.length() == 0) {
+        throw new InvalidParameterException("No URL for page load task");
+      }
+    }
+
+    /**
+     * There are three parameters specific to this task:
+     * 1. "urls": the manifest, URLs separated by white space or commas. The first
+     *    one is the main document.
+     * 2. "parallelism": the number of objects fetched at once
+     * 3. "headers": request headers, in the format of the HTTP task
+     */
+    @Override
+    protected void initializeParams(Map<String, String> params) {
+      if (params == null) {
+        return;
+      }
+
+      String manifest = params.get("urls");
+      if (manifest != null) {
+        StringBuilder urlList = new StringBuilder();
+        int objectCount = 0;
+        for (String url : manifest.trim().split("[\\s,]+")) {
+          if (url.length() == 0) {
+            continue;
+          }
+          if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            url = "http://" + url;
+          }
+          if (++objectCount > PageLoadTask.MAX_OBJECTS) {
+            throw new InvalidParameterException("Page load task has more than "
+                + PageLoadTask.MAX_OBJECTS + " objects");
+          }
+          urlList.append(urlList.length() > 0 ? " " : "").append(url);
+        }
+        this.urls = urlList.toString();
+      }
+
+      try {
+        String val = null;
+        if ((val = params.get("parallelism")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.parallelism = Math.min(Integer.parseInt(val), PageLoadTask.MAX_PARALLELISM);
+        }
+      } catch (NumberFormatException e) {
+        throw new InvalidParameterException("PageLoadTask invalid parameters.");
+      }
+      this.headers = params.get("headers");
+    }
+
+    /** Returns the URLs of the objects, starting with the main document */
+    public List<String> getUrls() {
+      return Arrays.asList(urls.split(" "));
+    }
+
+    @Override
+    public String getType() {
+      return PageLoadTask.TYPE;
+    }
+  }
+
+  /** The timings of one object, in nanoseconds since the page load started */
+  private static class ObjectTiming {
+    final String url;
+    int code = HttpTask.DEFAULT_STATUS_CODE;
+    long startNanos = -1;
+    long firstByteNanos = -1;
+    long endNanos = -1;
+    long bytes = 0;
+    String error = null;
+
+    ObjectTiming(String url) {
+      this.url = url;
+    }
+
+    boolean succeeded() {
+      return error == null && code >= 200 && code < 300;
+    }
+
+    long durationNanos() {
+      return endNanos - startNanos;
+    }
+  }
+
+  public PageLoadTask(MeasurementDesc desc, Context parent) {
+    super(new PageLoadDesc(desc.key, desc.startTime, desc.endTime, desc.intervalSec,
+        desc.count, desc.priority, desc.parameters), parent);
+    dataConsumed = 0;
+  }
+
+  @SuppressWarnings("rawtypes")
+  public static Class getDescClass() throws InvalidClassException {
+    return PageLoadDesc.class;
+  }
+
+  /**
+   * Returns a copy of the PageLoadTask
+   */
+  @Override
+  public MeasurementTask clone() {
+    MeasurementDesc desc = this.measurementDesc;
+    PageLoadDesc newDesc = new PageLoadDesc(desc.key, desc.startTime, desc.endTime,
+        desc.intervalSec, desc.count, desc.priority, desc.parameters);
+    return new PageLoadTask(newDesc, parent);
+  }
+
+  @Override
+  public MeasurementResult call() throws MeasurementError {
+    final PageLoadDesc desc = (PageLoadDesc) this.measurementDesc;
+    List<String> urls = desc.getUrls();
+    ArrayList<ObjectTiming> objects = new ArrayList<ObjectTiming>();
+
+    // As in the HTTP task, count all packets sent while the task runs
+    RRCTask.PacketMonitor packetmonitor = new RRCTask.PacketMonitor();
+    packetmonitor.setBySize();
+    packetmonitor.readCurrentPacketValues();
+
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    HttpParams params = HttpTask.newHttpParams(false, Util.prepareUserAgent(this.parent));
+    ConnManagerParams.setMaxTotalConnections(params, desc.parallelism);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(desc.parallelism));
+    synchronized (this) {
+      if (stopRequested) {
+        throw new MeasurementError("Page load stopped");
+      }
+      httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry),
+          params);
+      executor = Executors.newFixedThreadPool(desc.parallelism);
+    }
+
+    final long pageStart = System.nanoTime();
+    try {
+      ObjectTiming main = fetch(urls.get(0), pageStart);
+      objects.add(main);
+      if (main.succeeded()) {
+        ArrayList<Future<ObjectTiming>> pending = new ArrayList<Future<ObjectTiming>>();
+        for (final String url : urls.subList(1, urls.size())) {
+          pending.add(executor.submit(new Callable<ObjectTiming>() {
+            @Override
+            public ObjectTiming call() throws MeasurementError {
+              return fetch(url, pageStart);
+            }
+          }));
+        }
+        for (Future<ObjectTiming> object : pending) {
+          objects.add(object.get());
+          this.progress = 100 * objects.size() / urls.size();
+          broadcastProgressForUser(this.progress);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new MeasurementError("Page load interrupted");
+    } catch (RejectedExecutionException e) {
+      throw new MeasurementError("Page load stopped");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof MeasurementError) {
+        throw (MeasurementError) e.getCause();
+      }
+      throw new MeasurementError("Page load failed: " + e.getCause());
+    } finally {
+      executor.shutdownNow();
+      httpClient.getConnectionManager().shutdown();
+      dataConsumed = packetmonitor.getPacketsSentDiff();
+    }
+    return constructResult(objects);
+  }
+
+  /**
+   * Fetches one object, reading at most MAX_HTTP_RESPONSE_SIZE bytes of its body.
+   * Network errors are recorded in the timing rather than thrown.
+   */
+  private ObjectTiming fetch(String url, long pageStart) throws MeasurementError {
+    PageLoadDesc desc = (PageLoadDesc) this.measurementDesc;
+    ObjectTiming timing = new ObjectTiming(url);
+    HttpGet request;
+    try {
+      request = new HttpGet(url);
+    } catch (IllegalArgumentException e) {
+      timing.error = "Invalid URL";
+      return timing;
+    }
+    HttpTask.addRequestHeaders(request, desc.headers);
+    synchronized (requests) {
+      if (stopRequested) {
+        throw new MeasurementError("Page load stopped");
+      }
+      requests.add(request);
+    }
+
+    InputStream inputStream = null;
+    try {
+      timing.startNanos = System.nanoTime() - pageStart;
+      HttpResponse response = httpClient.execute(request);
+      timing.firstByteNanos = System.nanoTime() - pageStart;
+      if (response.getStatusLine() != null) {
+        timing.code = response.getStatusLine().getStatusCode();
+      }
+      HttpEntity entity = response.getEntity();
+      if (entity != null) {
+        byte[] readBuffer = new byte[HttpTask.READ_BUFFER_SIZE];
+        int readLen;
+        inputStream = entity.getContent();
+        while ((readLen = inputStream.read(readBuffer)) > 0) {
+          timing.bytes += readLen;
+          if (timing.bytes > HttpTask.MAX_HTTP_RESPONSE_SIZE) {
+            // Drops the connection rather than downloading the rest of the body
+            request.abort();
+            break;
+          }
+        }
+      }
+      timing.endNanos = System.nanoTime() - pageStart;
+    } catch (IOException e) {
+      timing.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+      timing.endNanos = System.nanoTime() - pageStart;
+      Logger.e("Fails to fetch " + url + ": " + timing.error);
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          Logger.e("Fails to close the input stream from the HTTP response");
+        }
+      }
+      synchronized (requests) {
+        requests.remove(request);
+      }
+    }
+    return timing;
+  }
+
+  private MeasurementResult constructResult(ArrayList<ObjectTiming> objects) {
+    PageLoadDesc desc = (PageLoadDesc) this.measurementDesc;
+    ObjectTiming main = objects.get(0);
+    ObjectTiming last = main;
+    int failedObjects = 0;
+    long totalBytes = 0;
+    for (ObjectTiming object : objects) {
+      if (!object.succeeded()) {
+        failedObjects++;
+      }
+      totalBytes += object.bytes;
+      if (object.endNanos > last.endNanos) {
+        last = object;
+      }
+    }
+
+    PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
+    MeasurementResult result = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId,
+        phoneUtils.getDeviceProperty(), PageLoadTask.TYPE, System.currentTimeMillis() * 1000,
+        main.succeeded(), this.measurementDesc);
+    result.addResult("code", main.code);
+    result.addResult("num_objects", objects.size());
+    result.addResult("failed_objects", failedObjects);
+    result.addResult("total_bytes", totalBytes);
+    result.addResult("parallelism", desc.parallelism);
+    result.addResult("load_time_ms", last.endNanos / 1000000.0);
+    result.addResult("main_document_ms", main.durationNanos() / 1000000.0);
+    long criticalPathNanos = main.durationNanos();
+    if (last != main) {
+      criticalPathNanos += last.durationNanos();
+      result.addResult("critical_path_object", objects.indexOf(last));
+      result.addResult("connection_wait_ms",
+          (last.startNanos - main.endNanos) / 1000000.0);
+    }
+    result.addResult("critical_path_ms", criticalPathNanos / 1000000.0);
+
+    for (int i = 0; i < objects.size(); i++) {
+      ObjectTiming object = objects.get(i);
+      String prefix = "object_" + i + "_";
+      result.addResult(prefix + "url", object.url);
+      result.addResult(prefix + "code", object.code);
+      result.addResult(prefix + "bytes", object.bytes);
+      result.addResult(prefix + "start_ms", object.startNanos / 1000000.0);
+      if (object.firstByteNanos >= 0) {
+        result.addResult(prefix + "first_byte_ms",
+            (object.firstByteNanos - object.startNanos) / 1000000.0);
+      }
+      result.addResult(prefix + "duration_ms", object.durationNanos() / 1000000.0);
+      if (object.error != null) {
+        result.addResult(prefix + "error", object.error);
+      }
+    }
+    Logger.i(MeasurementJsonConvertor.toJsonString(result));
+    return result;
+  }
+
+  @Override
+  public String getType() {
+    return PageLoadTask.TYPE;
+  }
+
+  @Override
+  public String getDescriptor() {
+    return DESCRIPTOR;
+  }
+
+  @Override
+  public String toString() {
+    PageLoadDesc desc = (PageLoadDesc) measurementDesc;
+    List<String> urls = desc.getUrls();
+    return "[Page Load]\n  Target: " + urls.get(0) + " and " + (urls.size() - 1)
+        + " objects\n  Interval (sec): " + desc.intervalSec + "\n  Next run: "
+        + desc.startTime;
+  }
+
+  @Override
+  public void stop() {
+    synchronized (this) {
+      stopRequested = true;
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    synchronized (requests) {
+      for (HttpGet request : requests) {
+        request.abort();
+      }
+    }
+  }
+
+  /**
+   * Data used so far by the task, measured like the HTTP task does.
+   */
+  @Override
+  public long getDataConsumed() {
+    return dataConsumed;
+  }
+}
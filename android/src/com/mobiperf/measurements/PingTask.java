@@ -26,20 +26,30 @@ import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpConnectionParams;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.InvalidClassException;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.mobiperf.util.MeasurementJsonConvertor;
 import com.mobiperf.util.PhoneUtils;
@@ -65,8 +75,12 @@ public class PingTask extends MeasurementTask {
    * 64-byte ICMP packet */
   public static final int DEFAULT_PING_PACKET_SIZE = 56;
   public static final int DEFAULT_PING_TIMEOUT = 10;
+  private static final int HTTP_PORT = 80;
   
   private Process pingProc = null;
+  private volatile UdpProbeEngine probeEngine = null;
+  private volatile ExecutorService javaPingExecutor = null;
+  private String PING_METHOD_UDP  = "udp_probe";
   private String PING_METHOD_CMD  = "ping_cmd";
   private String PING_METHOD_JAVA = "java_ping";
   private String PING_METHOD_HTTP = "http";
@@ -152,14 +166,16 @@ public class PingTask extends MeasurementTask {
     return new PingTask(newDesc, parent);
   }
   
-  /* We will use three methods to ping the requested resource in the order of PING_COMMAND, 
-   * JAVA_ICMP_PING, and HTTP_PING. If all fails, then we declare the resource unreachable */
+  /* We will use four methods to ping the requested resource in the order of UDP_PROBE,
+   * PING_COMMAND, JAVA_ICMP_PING, and HTTP_PING. If all fails, then we declare the resource
+   * unreachable */
   @Override
   public MeasurementResult call() throws MeasurementError {
     PingDesc desc = (PingDesc) measurementDesc;
     int ipByteLength;
+    InetAddress addr;
     try {
-      InetAddress addr = InetAddress.getByName(desc.target);
+      addr = TargetResolver.resolve(desc.target);
       // Get the address length
       ipByteLength = addr.getAddress().length;
       Logger.i("IP address length is " + ipByteLength);
@@ -171,16 +187,21 @@ public class PingTask extends MeasurementTask {
     }
     
     try {
-      Logger.i("running ping command");
-      // Prevents the phone from going to low-power mode where WiFi turns off
-      return executePingCmdTask(ipByteLength);
-    } catch (MeasurementError e) {
+      Logger.i("running udp probes");
+      return executeUdpProbeTask(addr);
+    } catch (MeasurementError udpError) {
       try {
-        Logger.i("running java ping");
-        return executeJavaPingTask();
-      } catch (MeasurementError ee) {
-        Logger.i("running http ping");
-        return executeHttpPingTask();
+        Logger.i("running ping command");
+        // Prevents the phone from going to low-power mode where WiFi turns off
+        return executePingCmdTask(ipByteLength);
+      } catch (MeasurementError e) {
+        try {
+          Logger.i("running java ping");
+          return executeJavaPingTask(addr);
+        } catch (MeasurementError ee) {
+          Logger.i("running http ping");
+          return executeHttpPingTask();
+        }
       }
     }
   }
@@ -278,6 +299,43 @@ public class PingTask extends MeasurementTask {
     return rrtAvg;
   }
   
+  /**
+   * Pings in-process with UdpProbeEngine, which avoids the cost and timing noise of
+   * starting the ping binary. Fails if no probe is answered, as the target or a
+   * firewall on the way may drop the probes, so that the ping command gets its turn.
+   * That takes UDP_PROBE_GIVEUP_COUNT short timeouts rather than the whole run.
+   * The probes are spaced by UDP_PROBE_INTERVAL_SEC, so that the target's rate
+   * limit on ICMP errors does not show up as packet loss.
+   */
+  private MeasurementResult executeUdpProbeTask(InetAddress addr) throws MeasurementError {
+    PingDesc pingTask = (PingDesc) this.measurementDesc;
+    int timeOut = (int) (3000 * (double) pingTask.pingTimeoutSec /
+        Config.PING_COUNT_PER_MEASUREMENT);
+    UdpProbeEngine engine = new UdpProbeEngine(addr, pingTask.packetSizeByte, timeOut);
+    probeEngine = engine;
+    ArrayList<Double> rrts;
+    try {
+      rrts = engine.probe(Config.PING_COUNT_PER_MEASUREMENT,
+          (long) (Config.UDP_PROBE_INTERVAL_SEC * 1000), Config.UDP_PROBE_GIVEUP_COUNT,
+          Config.UDP_PROBE_FIRST_TIMEOUT_MSEC);
+    } catch (IOException e) {
+      Logger.e("udp probes fail: " + e.getMessage());
+      throw new MeasurementError("udp probes fail: " + e.getMessage());
+    } catch (InterruptedException e) {
+      throw new MeasurementError("udp probes interrupted");
+    } finally {
+      dataConsumed += engine.getDataConsumed();
+      probeEngine = null;
+    }
+    Logger.i("udp probe RTTs are " + rrts);
+    if (rrts.isEmpty()) {
+      throw new MeasurementError("No udp probe was answered");
+    }
+    int packetsSent = engine.getProbesSent();
+    double packetLoss = 1 - ((double) rrts.size() / (double) packetsSent);
+    return constructResult(rrts, packetLoss, packetsSent, PING_METHOD_UDP);
+  }
+
   // Runs when SystemState is IDLE
   private MeasurementResult executePingCmdTask(int ipByteLen) throws MeasurementError {
     Logger.i("Starting executePingCmdTask");
@@ -370,30 +428,48 @@ public class PingTask extends MeasurementTask {
     return measurementResult;
   }
 
-  // Runs when the ping command fails
-  private MeasurementResult executeJavaPingTask() throws MeasurementError {
+  /**
+   * Runs when the ping command fails. Probes start on a fixed schedule, without
+   * waiting for earlier ones to be answered. There is a thread for every probe
+   * that can be in flight at once, i.e. one per interval of the timeout, so even
+   * when all probes time out none starts late. Each probe is timed on its own, and
+   * its result is kept by its sequence number, so a slow reply never delays or
+   * shifts the others. A probe that is not answered within the timeout counts as
+   * lost.
+   */
+  private MeasurementResult executeJavaPingTask(final InetAddress addr) throws MeasurementError {
     PingDesc pingTask = (PingDesc) this.measurementDesc;
-    long pingStartTime = 0;
-    long pingEndTime = 0;
     ArrayList<Double> rrts = new ArrayList<Double>();
     String errorMsg = "";
     MeasurementResult result = null;
 
-    try {       
-      int timeOut = (int) (3000 * (double) pingTask.pingTimeoutSec /
-            Config.PING_COUNT_PER_MEASUREMENT);
-      int successfulPingCnt = 0;
-      long totalPingDelay = 0;
-      for (int i = 0; i < Config.PING_COUNT_PER_MEASUREMENT; i++) {
-        pingStartTime = System.currentTimeMillis();
-        boolean status = InetAddress.getByName(targetIp).isReachable(timeOut);
-        pingEndTime = System.currentTimeMillis();
-        long rrtVal = pingEndTime - pingStartTime;
-        if (status) {
-          totalPingDelay += rrtVal;
-          rrts.add((double) rrtVal);
+    final int timeOut = (int) (3000 * (double) pingTask.pingTimeoutSec /
+        Config.PING_COUNT_PER_MEASUREMENT);
+    long intervalMs = (long) (Config.DEFAULT_INTERVAL_BETWEEN_ICMP_PACKET_SEC * 1000);
+    int inFlight = (int) Math.min(Config.PING_COUNT_PER_MEASUREMENT,
+        (timeOut + intervalMs - 1) / intervalMs + 1);
+    ScheduledExecutorService executor = Executors.newScheduledThreadPool(inFlight);
+    javaPingExecutor = executor;
+    ArrayList<Future<Long>> probes = new ArrayList<Future<Long>>();
+    try {
+      for (int seq = 0; seq < Config.PING_COUNT_PER_MEASUREMENT; seq++) {
+        probes.add(executor.schedule(new Callable<Long>() {
+          @Override
+          public Long call() throws IOException {
+            long start = System.nanoTime();
+            boolean status = addr.isReachable(timeOut);
+            return status ? System.nanoTime() - start : -1L;
+          }
+        }, seq * intervalMs, TimeUnit.MILLISECONDS));
+      }
+      for (int seq = 0; seq < probes.size(); seq++) {
+        long rttNanos = probes.get(seq).get();
+        if (rttNanos >= 0) {
+          rrts.add(rttNanos / 1000000.0);
+        } else {
+          Logger.i("java ping " + seq + " lost");
         }
-        this.progress = 100 * i / Config.PING_COUNT_PER_MEASUREMENT;
+        this.progress = 100 * (seq + 1) / Config.PING_COUNT_PER_MEASUREMENT;
         broadcastProgressForUser(progress);
       }
       Logger.i("java ping succeeds");
@@ -402,13 +478,22 @@ public class PingTask extends MeasurementTask {
       dataConsumed += pingTask.packetSizeByte * Config.PING_COUNT_PER_MEASUREMENT * 2;
       
       result = constructResult(rrts, packetLoss, Config.PING_COUNT_PER_MEASUREMENT, PING_METHOD_JAVA);
-    } catch (IllegalArgumentException e) {
-      Logger.e(e.getMessage());
-      errorMsg += e.getMessage() + "\n";
-    } catch (IOException e) {
-      Logger.e(e.getMessage());
-      errorMsg += e.getMessage() + "\n";
-    } 
+    } catch (InterruptedException e) {
+      Logger.e("java ping interrupted");
+      errorMsg += "java ping interrupted\n";
+    } catch (ExecutionException e) {
+      Logger.e(e.getCause().getMessage());
+      errorMsg += e.getCause().getMessage() + "\n";
+    } catch (RejectedExecutionException e) {
+      Logger.e("java ping stopped");
+      errorMsg += "java ping stopped\n";
+    } catch (CancellationException e) {
+      Logger.e("java ping stopped");
+      errorMsg += "java ping stopped\n";
+    } finally {
+      executor.shutdownNow();
+      javaPingExecutor = null;
+    }
 
     if (result != null) {
       return result;
@@ -418,39 +503,75 @@ public class PingTask extends MeasurementTask {
     }
   }
   
-  /** 
-   * Use the HTTP Head method to emulate ping. The measurement from this method can be 
-   * substantially (2x) greater than the first two methods and inaccurate. This is because, 
-   * depending on the implementing of the destination web server, either a quick HTTP
-   * response is replied or some actual heavy lifting will be done in preparing the response
-   * */
+  /**
+   * Uses the HTTP HEAD method to emulate ping. All requests share one keep-alive
+   * connection, and the TCP connect, the first request and the following requests
+   * are timed separately, so that the RTTs are not inflated by connection set-up.
+   * They still include the time the web server takes to prepare its response.
+   */
   private MeasurementResult executeHttpPingTask() throws MeasurementError {
-    long pingStartTime = 0;
-    long pingEndTime = 0;
-    ArrayList<Double> rrts = new ArrayList<Double>();
     PingDesc pingTask = (PingDesc) this.measurementDesc;
+    ArrayList<Double> rrts = new ArrayList<Double>();
+    double connectMs = -1;
+    double firstRequestMs = -1;
+    int connections = 0;
     String errorMsg = "";
     MeasurementResult result = null;
-    
+
+    int timeOut = (int) (3000 * (double) pingTask.pingTimeoutSec /
+        Config.PING_COUNT_PER_MEASUREMENT);
+    byte[] request = ("HEAD / HTTP/1.1\r\nHost: " + pingTask.target
+        + "\r\nConnection: keep-alive\r\n\r\n").getBytes();
+    Socket socket = null;
     try {
-      long totalPingDelay = 0;
-      
-      URL url = new URL("http://"+ pingTask.target);
-      
-      int timeOut = (int) (3000 * (double) pingTask.pingTimeoutSec /
-          Config.PING_COUNT_PER_MEASUREMENT);
-                      
-      for (int i = 0; i < Config.PING_COUNT_PER_MEASUREMENT; i++) {
-        pingStartTime = System.currentTimeMillis();
-        HttpURLConnection httpClient = (HttpURLConnection) url.openConnection();
-        httpClient.setRequestProperty("Connection", "close");
-        httpClient.setRequestMethod("HEAD");
-        httpClient.setReadTimeout(timeOut);
-        httpClient.setConnectTimeout(timeOut);
-        httpClient.connect();
-        pingEndTime = System.currentTimeMillis();
-        httpClient.disconnect();
-        rrts.add((double) (pingEndTime - pingStartTime));
+      InputStream in = null;
+      OutputStream out = null;
+      // The first request sets up the connection, the others are the pings
+      for (int i = 0; i <= Config.PING_COUNT_PER_MEASUREMENT; i++) {
+        boolean reused = socket != null;
+        if (!reused) {
+          long connectStart = System.nanoTime();
+          socket = new Socket();
+          socket.setTcpNoDelay(true);
+          socket.setSoTimeout(timeOut);
+          socket.connect(new InetSocketAddress(targetIp, HTTP_PORT), timeOut);
+          if (connectMs < 0) {
+            connectMs = (System.nanoTime() - connectStart) / 1000000.0;
+          }
+          connections++;
+          in = new BufferedInputStream(socket.getInputStream());
+          out = socket.getOutputStream();
+        }
+
+        long requestStart = System.nanoTime();
+        int responseSize;
+        try {
+          out.write(request);
+          out.flush();
+          responseSize = readHeadResponse(in);
+        } catch (IOException e) {
+          if (!reused) {
+            throw e;
+          }
+          // The server may have dropped the idle connection, so retry on a new one
+          Logger.i("HTTP ping connection lost, reconnecting");
+          socket.close();
+          socket = null;
+          i--;
+          continue;
+        }
+        double latencyMs = (System.nanoTime() - requestStart) / 1000000.0;
+        dataConsumed += request.length + Math.abs(responseSize);
+        if (i == 0) {
+          firstRequestMs = latencyMs;
+        } else {
+          rrts.add(latencyMs);
+        }
+        // A negative size means the server closes the connection after the response
+        if (responseSize < 0) {
+          socket.close();
+          socket = null;
+        }
         this.progress = 100 * i / Config.PING_COUNT_PER_MEASUREMENT;
         broadcastProgressForUser(progress);
       }
@@ -458,14 +579,22 @@ public class PingTask extends MeasurementTask {
       Logger.i("RTT is " + rrts.toString());
       double packetLoss = 1 - ((double) rrts.size() / (double) Config.PING_COUNT_PER_MEASUREMENT);
       result = constructResult(rrts, packetLoss, Config.PING_COUNT_PER_MEASUREMENT, PING_METHOD_HTTP);
-      dataConsumed += pingTask.packetSizeByte * Config.PING_COUNT_PER_MEASUREMENT * 2;
-      
-    } catch (MalformedURLException e) {
-      Logger.e(e.getMessage());
-      errorMsg += e.getMessage() + "\n";
+      if (result != null) {
+        result.addResult("http_connect_ms", connectMs);
+        result.addResult("http_first_request_ms", firstRequestMs);
+        result.addResult("http_connections", connections);
+      }
     } catch (IOException e) {
       Logger.e(e.getMessage());
       errorMsg += e.getMessage() + "\n";
+    } finally {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          Logger.w("Unable to close HTTP ping connection");
+        }
+      }
     }
     if (result != null) {
       return result;
@@ -474,6 +603,49 @@ public class PingTask extends MeasurementTask {
       throw new MeasurementError(errorMsg);
     }
   }
+
+  /**
+   * Reads the status line and headers of a response to a HEAD request, which has no
+   * body. Returns the number of bytes read, negated if the server closes the
+   * connection afterwards.
+   */
+  private int readHeadResponse(InputStream in) throws IOException {
+    int size = 0;
+    boolean keepAlive = true;
+    boolean statusLine = true;
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      int c = in.read();
+      if (c < 0) {
+        throw new IOException("Connection closed before the end of the response");
+      }
+      size++;
+      if (c != '\n') {
+        if (c != '\r') {
+          line.append((char) c);
+        }
+        continue;
+      }
+      if (line.length() == 0) {
+        return keepAlive ? size : -size;
+      }
+      String header = line.toString().toLowerCase();
+      if (statusLine) {
+        if (!header.startsWith("http/")) {
+          throw new IOException("Invalid HTTP response " + line);
+        }
+        keepAlive = !header.startsWith("http/1.0");
+        statusLine = false;
+      } else if (header.startsWith("connection:")) {
+        if (header.contains("close")) {
+          keepAlive = false;
+        } else if (header.contains("keep-alive")) {
+          keepAlive = true;
+        }
+      }
+      line.setLength(0);
+    }
+  }
   
   @Override
   public String toString() {
@@ -484,6 +656,14 @@ public class PingTask extends MeasurementTask {
   
   @Override
   public void stop() {
+    UdpProbeEngine engine = probeEngine;
+    if (engine != null) {
+      engine.stop();
+    }
+    ExecutorService executor = javaPingExecutor;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
     cleanUp(pingProc);
   }
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.mobiperf.measurements;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Sends the probes of the RRC inference tests to the echo server over a single
+ * non-blocking UDP socket, driven by one event loop on the calling thread.
+ *
+ * A test is a timeline of probes, each a burst of packets sent at once, and of
+ * pauses that start when the previous probe has completed. Pauses and echoes
+ * are both handled by the same select loop and timed with System.nanoTime, so
+ * the timeline is immune to wall clock changes. The echo server does not label
+ * its replies, so echoes that arrive outside a probe, i.e. late replies to an
+ * earlier probe that timed out, are drained and never counted.
+ *
+ * The channel is not connected, since a connected channel does not send empty
+ * packets, which are the default small probe. Packets from anyone but the echo
+ * server are ignored instead.
+ */
+public class RRCProbeEngine {
+  // A probe that has not been fully echoed by then has lost the missing packets
+  public static final int TIMEOUT_MSEC = 7000;
+  // Large enough for any echo; replies are counted, not read
+  private static final int RECEIVE_BUFFER_SIZE = 2048;
+  private static final long NANOS_PER_MSEC = 1000000L;
+
+  private final InetSocketAddress server;
+  private final DatagramChannel channel;
+  private final Selector selector;
+  // Reused for all sends and receives, so the loop does not allocate
+  private final ByteBuffer sendBuffer;
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+  // When the last probe completed, or 0 before the first one
+  private long lastProbeDoneNanos = 0;
+  private volatile boolean stopped = false;
+
+  /**
+   * @param server the echo server
+   * @param port the port of the echo server
+   * @param maxPacketSize the largest packet the probes will send
+   */
+  public RRCProbeEngine(InetAddress server, int port, int maxPacketSize) throws IOException {
+    this.server = new InetSocketAddress(server, port);
+    sendBuffer = ByteBuffer.allocateDirect(maxPacketSize);
+    channel = DatagramChannel.open();
+    try {
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Pauses until |delayMs| after the last probe completed, so that the radio
+   * can demote. Echoes arriving meanwhile are discarded.
+   */
+  public void await(long delayMs) throws IOException, InterruptedException {
+    long start = lastProbeDoneNanos != 0 ? lastProbeDoneNanos : System.nanoTime();
+    long deadline = start + delayMs * NANOS_PER_MSEC;
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0 && !stopped) {
+      select(remaining);
+      drain();
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  /**
+   * Sends |count| packets of |size| bytes at once and waits until all of them
+   * are echoed or TIMEOUT_MSEC has passed.
+   *
+   * @return first value: the time in milliseconds from sending the packets to
+   *         receiving the first echo, or -1 if none arrived. Second value: the
+   *         number of packets that were not echoed.
+   */
+  public long[] probe(int size, int count) throws IOException {
+    long[] retval = {-1, count};
+    // Anything still queued belongs to an earlier probe
+    drain();
+    if (stopped) {
+      return retval;
+    }
+
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      sendBuffer.clear();
+      sendBuffer.limit(size);
+      channel.send(sendBuffer, server);
+    }
+    long deadline = startNanos + TIMEOUT_MSEC * NANOS_PER_MSEC;
+    int received = 0;
+    long remaining;
+    while (received < count && (remaining = deadline - System.nanoTime()) > 0 && !stopped) {
+      select(remaining);
+      while (received < count && receive()) {
+        if (received++ == 0) {
+          retval[0] = (System.nanoTime() - startNanos) / NANOS_PER_MSEC;
+        }
+      }
+    }
+    retval[1] = count - received;
+    lastProbeDoneNanos = System.nanoTime();
+    return retval;
+  }
+
+  /** Interrupts the timeline in progress, making every later call return at once */
+  public void stop() {
+    stopped = true;
+    selector.wakeup();
+  }
+
+  public void close() {
+    try {
+      selector.close();
+    } catch (IOException e) {
+      // Nothing else to release
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing else to release
+    }
+  }
+
+  private void select(long timeoutNanos) throws IOException {
+    // select(0) would block forever
+    selector.select(Math.max(1, timeoutNanos / NANOS_PER_MSEC));
+    selector.selectedKeys().clear();
+  }
+
+  /** Reads one pending packet, and returns whether it was an echo */
+  private boolean receive() throws IOException {
+    SocketAddress sender;
+    do {
+      receiveBuffer.clear();
+      sender = channel.receive(receiveBuffer);
+    } while (sender != null && !server.equals(sender));
+    return sender != null;
+  }
+
+  private void drain() throws IOException {
+    while (receive()) {
+      // Discards a late echo
+    }
+  }
+}
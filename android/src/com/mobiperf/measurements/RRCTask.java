@@ -18,12 +18,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.InvalidClassException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
@@ -80,11 +77,15 @@ public class RRCTask extends MeasurementTask {
   // Human readable name for the task
   public static final String DESCRIPTOR = "rrc";
   public static String TAG = "MobiPerf_RRC_INFERENCE";
-  private boolean stop = false;
+  private volatile boolean stop = false;
   private Context context;
+  // Carries all probes to the echo server while the inference tests run
+  private volatile RRCProbeEngine probeEngine = null;
   
   // Track data consumption for this task to avoid exceeding user's limit
   public static long data_consumed = 0;
+  // The largest packet of the packet size dependence test
+  private static final int MAX_SIZE_TEST_PACKET = 1024;
 
   /**
    * Stores parameters for the RRC inference task
@@ -120,6 +121,12 @@ public class RRCTask extends MeasurementTask {
     boolean HTTP = true;
     boolean RRC = true;
     boolean SIZES = true;
+    // Whether to locate the RRC timers by bisection rather than testing every interval
+    boolean ADAPTIVE = false;
+    // For the adaptive inference, the smallest difference in RTT between two RRC states, and the
+    // number of samples to take on either side of a transition
+    int adaptiveThreshold = RRCTimerSearch.DEFAULT_THRESHOLD_MSEC;
+    int adaptiveRepeats = RRCTimerSearch.DEFAULT_REPEATS;
 
     // Whether RRC result is visible to users
     public boolean RESULT_VISIBILITY = false;
@@ -307,6 +314,21 @@ public class RRCTask extends MeasurementTask {
           this.SIZES = Boolean.parseBoolean(val);
         }
         Logger.d("param: SIZES " + this.SIZES);
+        // Whether to run the adaptive RRC inference instead of the full sweep
+        if ((val = params.get("adaptive")) != null && val.length() > 0) {
+          this.ADAPTIVE = Boolean.parseBoolean(val);
+        }
+        Logger.d("param: ADAPTIVE " + this.ADAPTIVE);
+        if ((val = params.get("adaptive_threshold")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.adaptiveThreshold = Integer.parseInt(val);
+        }
+        Logger.d("param: adaptive_threshold " + this.adaptiveThreshold);
+        if ((val = params.get("adaptive_repeats")) != null && val.length() > 0
+            && Integer.parseInt(val) > 0) {
+          this.adaptiveRepeats = Integer.parseInt(val);
+        }
+        Logger.d("param: adaptive_repeats " + this.adaptiveRepeats);
         // Whether the RRC result is visible to users
         if ((val = params.get("result_visibility")) != null && val.length() > 0) {
           this.RESULT_VISIBILITY = Boolean.parseBoolean(val);
@@ -477,6 +499,10 @@ public class RRCTask extends MeasurementTask {
 
     ArrayList<RrcSizeTestData> packetSizes;
 
+    // Which intervals were tested, and whether to upload only those
+    boolean[] tested;
+    boolean uploadTestedOnly = false;
+
     // Unique incrementing value that identifies this set of tests.
     long testId;
 
@@ -497,6 +523,7 @@ public class RRCTask extends MeasurementTask {
       signalStrengthLarge = new int[size];
       errorCountLarge = new int[size];
       errorCountSmall = new int[size];
+      tested = new boolean[size];
       
       this.testId = testId;
 
@@ -521,10 +548,21 @@ public class RRCTask extends MeasurementTask {
       return testId;
     }
 
+    /**
+     * Only the intervals tested are uploaded from now on, rather than all of them. Set by the
+     * adaptive inference, which skips most intervals.
+     */
+    public void setUploadTestedOnly(boolean uploadTestedOnly) {
+      this.uploadTestedOnly = uploadTestedOnly;
+    }
+
     public String[] toJSON(String networktype, String phoneId) {
-      String[] returnval = new String[rttsSmall.length];
+      ArrayList<String> returnval = new ArrayList<String>();
       try {
         for (int i = 0; i < rttsSmall.length; i++) {
+          if (uploadTestedOnly && !tested[i]) {
+            continue;
+          }
           JSONObject subtest = new JSONObject();
           subtest.put("rtt_low", rttsSmall[i]);
           subtest.put("rtt_high", rttsLarge[i]);
@@ -538,13 +576,13 @@ public class RRCTask extends MeasurementTask {
           subtest.put("time_delay", i);
           subtest.put("test_id", testId);
           subtest.put("phone_id", phoneId);
-          returnval[i] = subtest.toString();
+          returnval.add(subtest.toString());
           Logger.w("Test ID for rrc inference test was " + this.testId);
         }
       } catch (JSONException e) {
         Logger.e("Error converting RRC data to JSON");
       }
-      return returnval;
+      return returnval.toArray(new String[returnval.size()]);
     }
 
     /**
@@ -586,6 +624,16 @@ public class RRCTask extends MeasurementTask {
       this.errorCountSmall[index] = errorLow;
       this.signalStrengthLarge[index] = signalHigh;
       this.signalStrengthSmall[index] = signalLow;
+      this.tested[index] = true;
+    }
+
+    /**
+     * Returns the results stored for interval |index|, in the order of the arguments of updateAll.
+     */
+    public int[] getAll(int index) {
+      return new int[] {rttsLarge[index], rttsSmall[index], packetsLostLarge[index],
+          packetsLostSmall[index], errorCountLarge[index], errorCountSmall[index],
+          signalStrengthLarge[index], signalStrengthSmall[index]};
     }
 
     public void setRrcSizeTestData(int index, int size, long result, long testId)
@@ -734,6 +782,10 @@ public class RRCTask extends MeasurementTask {
   @Override
   public void stop() {
     stop = true;
+    RRCProbeEngine engine = probeEngine;
+    if (engine != null) {
+      engine.stop();
+    }
   }
 
   /**
@@ -805,16 +857,19 @@ public class RRCTask extends MeasurementTask {
 
       RRCTestData data = new RRCTestData(desc.size, desc.testId);
 
+      // Set up the connection to the echo server, shared by all tests
+      Logger.d(desc.echoHost + ":" + desc.port);
+      InetAddress serverAddr = TargetResolver.resolve(desc.echoHost);
+      probeEngine = new RRCProbeEngine(serverAddr, desc.port,
+          Math.max(desc.MAX, MAX_SIZE_TEST_PACKET));
+
       // If the RRC task is enabled
       if (desc.RRC) {
-        // Set up the connection to the echo server
         Logger.d("Active inference: about to begin");
-        Logger.d(desc.echoHost + ":" + desc.port);
-        InetAddress serverAddr = InetAddress.getByName(desc.echoHost);
 
         // Perform the RRC timer and latency inference task
         Logger.d("Demotion inference: about to begin");
-        desc = inferDemotion(serverAddr, desc, data, utils);
+        desc = inferDemotion(desc, data, utils);
 
         Logger.d("About to save data");
         this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, 40);
@@ -866,6 +921,10 @@ public class RRCTask extends MeasurementTask {
     } catch (InterruptedException e) {
       e.printStackTrace();
     } finally {
+      if (probeEngine != null) {
+        probeEngine.close();
+        probeEngine = null;
+      }
       RRCTrafficControl.UnPauseTraffic();
     }
 
@@ -886,19 +945,11 @@ public class RRCTask extends MeasurementTask {
   private void runSizeThresholdTest(final Integer[] times, RRCDesc desc,
       RRCTestData data, long testId) {
 
-    InetAddress serverAddr;
-    try {
-      serverAddr = InetAddress.getByName(desc.echoHost);
-    } catch (UnknownHostException e) {
-      Logger.e("Invalid or unreachable echo host. Test aborted.");
-      e.printStackTrace();
-      return;
-    }
     for (int i = 0; i < times.length; i++) {
-      for (int j = desc.sizeGranularity; j <= 1024; j += desc.sizeGranularity) {
+      for (int j = desc.sizeGranularity; j <= MAX_SIZE_TEST_PACKET; j += desc.sizeGranularity) {
         try {
           long result =
-              inferDemotionPacketSize(serverAddr, times[i], desc, j);
+              inferDemotionPacketSize(probeEngine, times[i], desc, j);
           data.setRrcSizeTestData(times[i], j, result, testId);
         } catch (IOException e) {
           e.printStackTrace();
@@ -972,24 +1023,19 @@ public class RRCTask extends MeasurementTask {
           try {              
             // Wait for 1 second. Give time for any extraneous data sending to complete
             waitTime(1, false); 
-            InetAddress serverAddr;
-            serverAddr = InetAddress.getByName(desc.echoHost);
-            sendPacket(serverAddr, desc.MAX, desc);
+            sendPacket(probeEngine, desc.MAX, desc);
             packetMonitor = new PacketMonitor();
 
-            waitTime(times[i] * desc.GRANULARITY, true);
+            probeEngine.await(times[i] * desc.GRANULARITY);
 
           } catch (InterruptedException e1) {
             e1.printStackTrace();
             continue;
-          } catch (UnknownHostException e) {
-            e.printStackTrace();
-            continue;
           } catch (IOException e) {
             e.printStackTrace();
             continue;
           }
-          startTime = System.currentTimeMillis();
+          startTime = System.nanoTime();
           
           // Somewhat approximte: we can pick up packets sent by our request.
           // Our request seems to never send more than 24 packets when there is no interference.
@@ -1000,7 +1046,7 @@ public class RRCTask extends MeasurementTask {
           request.setURI(new URI("http://" + desc.target+"?dummy="+i + "" +j));
 
           HttpResponse response = client.execute(request);
-          endTime = System.currentTimeMillis();
+          endTime = System.nanoTime();
 
           BufferedReader in = null;
           in =
@@ -1026,7 +1072,7 @@ public class RRCTask extends MeasurementTask {
 
         }
 
-        long rtt = endTime - startTime;
+        long rtt = (endTime - startTime) / 1000000;
         try {
           desc.setHttp(i, (int) rtt);
         } catch (MeasurementError e) {
@@ -1099,16 +1145,11 @@ public class RRCTask extends MeasurementTask {
         // Initiate the desired RRC state by sending a large enough packet
         // to go to DCH and waiting for the specified amount of time
         try {
-          InetAddress serverAddr;
-          serverAddr = InetAddress.getByName(desc.echoHost);
-          sendPacket(serverAddr, desc.MAX, desc);
-          waitTime(times[i] * desc.GRANULARITY, true);
+          sendPacket(probeEngine, desc.MAX, desc);
+          probeEngine.await(times[i] * desc.GRANULARITY);
         } catch (InterruptedException e1) {
           e1.printStackTrace();
           continue;
-        } catch (UnknownHostException e) {
-          e.printStackTrace();
-          continue;
         } catch (IOException e) {
           e.printStackTrace();
           continue;
@@ -1118,7 +1159,7 @@ public class RRCTask extends MeasurementTask {
         UUID uuid = UUID.randomUUID();
         String host = uuid.toString() + ".com";
         // Start measuring the time to complete the task
-        startTime = System.currentTimeMillis();
+        startTime = System.nanoTime();
         try {
           @SuppressWarnings("unused")
           InetAddress serverAddr = InetAddress.getByName(host);
@@ -1127,7 +1168,7 @@ public class RRCTask extends MeasurementTask {
         }
         dataConsumedThisTask += DnsLookupTask.AVG_DATA_USAGE_BYTE;
         // When we fail to find the URL, we stop timing
-        endTime = System.currentTimeMillis();
+        endTime = System.nanoTime();
 
         // Check how many packets were sent again. If the expected number
         // of packets were sent, we can finish and go to the next task.
@@ -1142,7 +1183,7 @@ public class RRCTask extends MeasurementTask {
 
       // If we broke out of the try-again loop, the last set of results are
       // valid and we can save them.
-      long rtt = endTime - startTime;
+      long rtt = (endTime - startTime) / 1000000;
       try {
         desc.setDns(i, (int) rtt);
       } catch (MeasurementError e) {
@@ -1179,6 +1220,8 @@ public class RRCTask extends MeasurementTask {
     long dataConsumedThisTask = 0;
 
     try {
+      // Resolved once up front, so that no lookup falls into the timed handshakes
+      InetAddress serverAddr = TargetResolver.resolve(desc.target);
       // For each inter-packet interval...
       for (int i = 0; i < times.length; i++) {
         // On a failure, try again until a threshhold is reached.
@@ -1191,18 +1234,15 @@ public class RRCTask extends MeasurementTask {
           PacketMonitor packetMonitor = new PacketMonitor();
 
           // Induce DCH then wait for specified time
-          InetAddress serverAddr;
-          serverAddr = InetAddress.getByName(desc.echoHost);
-          sendPacket(serverAddr, desc.MAX, desc);
-          waitTime(times[i] * 500, true);
+          sendPacket(probeEngine, desc.MAX, desc);
+          probeEngine.await(times[i] * 500);
 
           // begin test. We test the time to do a 3-way handshake only.
-          startTime = System.currentTimeMillis();
+          startTime = System.nanoTime();
 
-          serverAddr = InetAddress.getByName(desc.target);
           // three-way handshake done when socket created
           Socket socket = new Socket(serverAddr, 80);
-          endTime = System.currentTimeMillis();
+          endTime = System.nanoTime();
           
           // Not exact, but also a smallish task...
           dataConsumedThisTask += DnsLookupTask.AVG_DATA_USAGE_BYTE;
@@ -1218,7 +1258,7 @@ public class RRCTask extends MeasurementTask {
           endTime = 0;
           socket.close();
         }
-        long rtt = endTime - startTime;
+        long rtt = (endTime - startTime) / 1000000;
         try {
           desc.setTcp(i, (int) rtt);
         } catch (MeasurementError e) {
@@ -1262,7 +1302,6 @@ public class RRCTask extends MeasurementTask {
    * 
    * FACH is characterized by different state promotion times for large and small packets.
    * 
-   * @param serverAddr Address of the echo server
    * @param desc Stores the parameters for the RRC tests
    * @param data Stores the results of the RRC tests
    * @param utils For fetching the signal strength when the test is performed
@@ -1270,9 +1309,12 @@ public class RRCTask extends MeasurementTask {
    * @throws InterruptedException
    * @throws IOException
    */
-  private RRCDesc inferDemotion(InetAddress serverAddr, RRCDesc desc,
+  private RRCDesc inferDemotion(RRCDesc desc,
       RRCTestData data, PhoneUtils utils) throws InterruptedException,
       IOException {
+    if (desc.ADAPTIVE) {
+      return inferDemotionAdaptive(desc, data, utils);
+    }
     Logger.d("Demotion basic test");
 
     for (int i = 0; i <= desc.size; i++) {
@@ -1283,7 +1325,7 @@ public class RRCTask extends MeasurementTask {
       if (stop) {
         return desc;
       }
-      inferDemotionHelper(serverAddr, i, data, desc, utils);
+      inferDemotionHelper(probeEngine, i, data, desc, utils);
       Logger.d("Finished demotion test with length" + i);
 
       // Note that we scale from 0-90 to save some stuff for upper layer tests.
@@ -1295,6 +1337,65 @@ public class RRCTask extends MeasurementTask {
     return desc;
   }
 
+  /**
+   * Locates the RRC timers with the same tests as inferDemotion, but only at the intervals that
+   * RRCTimerSearch picks: intervals inside an RRC state are skipped, and those on either side of a
+   * transition are tested several times. Only the intervals tested are uploaded. For intervals
+   * tested more than once, the large and small packets are each uploaded from the test that gave
+   * the median the search decided on, along with the losses and signal strength of that test.
+   * 
+   * @param desc Stores the parameters for the RRC tests
+   * @param data Stores the results of the RRC tests
+   * @param utils For fetching the signal strength when the test is performed
+   * @return The parameters for the RRC tests
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  private RRCDesc inferDemotionAdaptive(final RRCDesc desc,
+      final RRCTestData data, final PhoneUtils utils) throws InterruptedException,
+      IOException {
+    Logger.d("Demotion adaptive test");
+    data.setUploadTestedOnly(true);
+
+    final int maxProbes = desc.size + 1;
+    // Every test of each interval, as data only keeps the last one
+    final List<List<int[]>> tests = new ArrayList<List<int[]>>();
+    for (int i = 0; i <= desc.size; i++) {
+      tests.add(new ArrayList<int[]>());
+    }
+    RRCTimerSearch search = new RRCTimerSearch(desc.size, desc.adaptiveThreshold,
+        desc.adaptiveRepeats, new RRCTimerSearch.Probe() {
+          private int probes = 0;
+
+          @Override
+          public long[] run(int index) throws IOException, InterruptedException {
+            checkIfWifi();
+            if (stop) {
+              return null;
+            }
+            long[] rtts = inferDemotionHelper(probeEngine, index, data, desc, utils);
+            tests.get(index).add(data.getAll(index));
+            Logger.d("Finished demotion test with length" + index);
+            probes++;
+            // Scaled to 0-90 like the sweep, against its worst case
+            progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, 90 * probes / maxProbes);
+            return rtts;
+          }
+        });
+    search.run();
+    for (int i = 0; i <= desc.size; i++) {
+      if (tests.get(i).size() > 1) {
+        int[] large = tests.get(i).get(search.getMedianSample(i, 0));
+        int[] small = tests.get(i).get(search.getMedianSample(i, 1));
+        data.updateAll(i, large[0], small[1], large[2], small[3], large[4], small[5], large[6],
+            small[7]);
+      }
+    }
+    Logger.d("Adaptive inference: " + search.getProbeCount() + " tests of " + search.getMaxProbes()
+        + ", transitions at " + search.getTransitions());
+    return desc;
+  }
+
   @Override
   public String toString() {
     RRCDesc desc = (RRCDesc) measurementDesc;
@@ -1329,126 +1430,63 @@ public class RRCTask extends MeasurementTask {
   /**
    * Sends a bunch of UDP packets of the size indicated and wait for the response.
    * 
-   * Counts how long it takes for all the packets to return. PAckets are currently not labelled: the
-   * total time is the time for the first packet to leave until the last packet arrives. AFter 7000
-   * ms it is assumed packets are lost and the socket times out. In that case, the number of packets
+   * Counts how long it takes for the first packet to be echoed. Packets are currently not 
+   * labelled: the total time is the time for the packets to leave until the first packet arrives.
+   * After RRCProbeEngine.TIMEOUT_MSEC it is assumed packets are lost, and the number of packets
    * lost is recorded.
    * 
-   * @param serverAddr server to which to send the packets
+   * @param engine sends the packets to the echo server
    * @param size size of the packets
    * @param num number of packets to send
-   * @param packetSize size of the packets sent
-   * @param port port to send the packets to
+   * @param packetSize size of the packets sent back by the echo server
    * @return first value: the amount of time to send all packets and get a response. second value:
    *         number of packets lost, on a timeout.
    * @throws IOException
    */
-  public static long[] sendMultiPackets(InetAddress serverAddr, int size,
-      int num, int packetSize, int port) throws IOException {
-
-    long startTime = 0;
-    long endTime = 0;
-    byte[] buf = new byte[size];
-    byte[] rcvBuf = new byte[packetSize];
-    long[] retval = {-1, -1};
-    long numLost = 0;
-    int i = 0;
-    long dataConsumedThisTask = 0;
-            
-    DatagramSocket socket = new DatagramSocket();
-    DatagramPacket packetRcv = new DatagramPacket(rcvBuf, rcvBuf.length);
-    DatagramPacket packet =
-        new DatagramPacket(buf, buf.length, serverAddr, port);
+  public static long[] sendMultiPackets(RRCProbeEngine engine, int size,
+      int num, int packetSize) throws IOException {
+    Logger.d("Sending packet, waiting for response ");
+    long[] retval = engine.probe(size, num);
+    Logger.d("Sending complete, lost " + retval[1]);
 
     // number * (packet sent + packet received)
-    dataConsumedThisTask += num * (size + packetSize);
-    
-    try {
-      socket.setSoTimeout(7000);
-      startTime = System.currentTimeMillis();
-      Logger.d("Sending packet, waiting for response ");
-      for (i = 0; i < num; i++) {
-        socket.send(packet);
-      }
-      for (i = 0; i < num; i++) {
-        socket.receive(packetRcv);
-        if (i == 0) {
-
-          endTime = System.currentTimeMillis();
-        }
-      }
-    } catch (SocketTimeoutException e) {
-      Logger.d("Timed out");
-      numLost += (num - i);
-      socket.close();
-    }
-    Logger.d("Sending complete: " + endTime);
-
-    retval[0] = endTime - startTime;
-    retval[1] = numLost;
-    
-    incrementData(dataConsumedThisTask);
+    incrementData(num * (size + packetSize));
     return retval;
   }
   
   /**
    * Helper function that sends a single packet and receives an empty packet back. 
-   * @param serverAddr Echo server to calculate round trip
+   * @param engine sends the packet to the echo server
    * @param size size of packet to send in bytes
    * @param desc Holds parameters for the RRC inference task
    * @return The round trip time for the packet
    * @throws IOException
    */
-  private static long sendPacket(InetAddress serverAddr, int size, RRCDesc desc)
+  private static long sendPacket(RRCProbeEngine engine, int size, RRCDesc desc)
       throws IOException {
-    return sendPacket(serverAddr, size, desc.MIN, desc.port);
+    return sendPacket(engine, size, desc.MIN);
   }
 
   /** 
    * Send a single packet of the size indicated and wait for a response.
    * 
-   * After 7000 ms, time out and return a value of -1 (meaning no response). Otherwise, return the
-   * time from when the packet was sent to when a response was returned by the echo server.
+   * After RRCProbeEngine.TIMEOUT_MSEC, time out and return a value of -1 (meaning no response). 
+   * Otherwise, return the time from when the packet was sent to when a response was returned by 
+   * the echo server.
    * 
-   * @param serverAddr Echo server to calculate round trip
+   * @param engine sends the packet to the echo server
    * @param size size of packet to send in bytes
    * @param rcvSize size of packets sent from the echo server
-   * @param port where the echo server is listening
    * @return The round trip time for the packet
    * @throws IOException
    */
-  public static long sendPacket(InetAddress serverAddr, int size, int rcvSize,
-      int port) throws IOException {
-    long startTime = 0;
-    byte[] buf = new byte[size];
-    byte[] rcvBuf = new byte[rcvSize];
-    long dataConsumedThisTask = 0;
-
-    DatagramSocket socket = new DatagramSocket();
-    DatagramPacket packetRcv = new DatagramPacket(rcvBuf, rcvBuf.length);
-    
-    dataConsumedThisTask += (size + rcvSize);
-
-
-    DatagramPacket packet =
-        new DatagramPacket(buf, buf.length, serverAddr, port);
-
-    try {
-      socket.setSoTimeout(7000);
-      startTime = System.currentTimeMillis();
-      Logger.d("Sending packet, waiting for response ");
-
-      socket.send(packet);
-      socket.receive(packetRcv);
-    } catch (SocketTimeoutException e) {
+  public static long sendPacket(RRCProbeEngine engine, int size, int rcvSize)
+      throws IOException {
+    long rtt = sendMultiPackets(engine, size, 1, rcvSize)[0];
+    if (rtt < 0) {
       Logger.d("Timed out, trying again");
-      socket.close();
-      return -1;
     }
-    long endTime = System.currentTimeMillis();
-    Logger.d("Sending complete: " + endTime);
-    incrementData(dataConsumedThisTask);
-    return endTime - startTime;
+    return rtt;
   }
 
   /**
@@ -1457,15 +1495,15 @@ public class RRCTask extends MeasurementTask {
    * Sends a packet, waits for the specified length of time, then sends a cluster of packets of 
    * the specified size.
    * 
-   * @param serverAddr  Echo server to calculate round trip
-   * @param wait Time to wait between packets, in milliseconds.
+   * @param engine Sends the packets to the echo server
+   * @param wait Time to wait between packets, in units of GRANULARITY.
    * @param desc  Holds parameters for the RRC inference task
    * @param size Size, in bytes, of the packet to send.
    * @return The amount of time to send all packets and get a response.
    * @throws IOException
    * @throws InterruptedException
    */
-  public static long inferDemotionPacketSize(InetAddress serverAddr, int wait,
+  public static long inferDemotionPacketSize(RRCProbeEngine engine, int wait,
       RRCDesc desc, int size) throws IOException,
       InterruptedException {
     long retval = -1;
@@ -1474,13 +1512,13 @@ public class RRCTask extends MeasurementTask {
           + " interval " + wait);
 
       // Induce the highest power state
-      sendPacket(serverAddr, desc.MAX, desc.MIN, desc.port);
+      sendPacket(engine, desc.MAX, desc.MIN);
 
       // WAit for the specified amount of time
-      waitTime(wait * desc.GRANULARITY, true);
+      engine.await(wait * desc.GRANULARITY);
 
       // Send the specified packet size
-      long[] rtts = sendMultiPackets(serverAddr, size, 1, desc.MIN, desc.port);
+      long[] rtts = sendMultiPackets(engine, size, 1, desc.MIN);
       long rttPacket = rtts[0];
 
       PacketMonitor packetMonitor = new PacketMonitor();
@@ -1492,10 +1530,10 @@ public class RRCTask extends MeasurementTask {
     return retval;
   }
 
-  private long[] inferDemotionHelper(InetAddress serverAddr, int wait,
+  private long[] inferDemotionHelper(RRCProbeEngine engine, int wait,
       RRCTestData data, RRCDesc desc, PhoneUtils utils) throws IOException,
       InterruptedException {
-    return inferDemotionHelper(serverAddr, wait, data, desc, wait, utils);
+    return inferDemotionHelper(engine, wait, data, desc, wait, utils);
   }
   
   /**
@@ -1511,8 +1549,8 @@ public class RRCTask extends MeasurementTask {
    *  packets were sent, abort. </li>
    * </ol>
    * 
-   * @param serverAddr Echo server to calculate round trip
-   * @param wait Time in milliseconds to pause between packets sent
+   * @param engine Sends the packets to the echo server
+   * @param wait Time in units of GRANULARITY to pause between packets sent
    * @param data Stores the results of the RRC inference tests 
    * @param desc Stores parameters for the RRC inference tests
    * @param index Index of the current test, corresponds to the inter-packet time in intervals of 
@@ -1523,7 +1561,7 @@ public class RRCTask extends MeasurementTask {
    * @throws IOException
    * @throws InterruptedException
    */
-  public static long[] inferDemotionHelper(InetAddress serverAddr, int wait,
+  public static long[] inferDemotionHelper(RRCProbeEngine engine, int wait,
       RRCTestData data, RRCDesc desc, int index, PhoneUtils utils)
       throws IOException, InterruptedException {
     /**
@@ -1551,24 +1589,24 @@ public class RRCTask extends MeasurementTask {
       PacketMonitor packetMonitor = new PacketMonitor();
 
       // Induce the highest power state
-      sendPacket(serverAddr, desc.MAX, desc.MIN, desc.port);
+      sendPacket(engine, desc.MAX, desc.MIN);
 
       // WAit for the specified amount of time
-      waitTime(wait * desc.GRANULARITY, true);
+      engine.await(wait * desc.GRANULARITY);
 
       // Send a bunch of large packets, all at once, and take measurements on the result
       signalStrengthLarge = utils.getCurrentRssi();
       long[] retval =
-          sendMultiPackets(serverAddr, desc.MAX, 10, desc.MIN, desc.port);
+          sendMultiPackets(engine, desc.MAX, 10, desc.MIN);
       packetsLostSmall = (int) retval[1];
       rttLargePacket = retval[0];
 
       // wait for the specified amount of time
-      waitTime(wait * desc.GRANULARITY, true);
+      engine.await(wait * desc.GRANULARITY);
 
       // Send a bunch of small packets, all at once, and take measurements on the result
       signalStrengthSmall = utils.getCurrentRssi();
-      retval = sendMultiPackets(serverAddr, desc.MIN, 10, desc.MIN, desc.port);
+      retval = sendMultiPackets(engine, desc.MIN, 10, desc.MIN);
       packetsLostLarge = (int) retval[1];
       rttSmallPacket = retval[0];
 
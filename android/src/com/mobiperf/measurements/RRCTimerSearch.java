@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.mobiperf.measurements;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Locates the RRC demotion timers by bisecting the inter-packet intervals, instead of testing
+ * every interval in turn.
+ *
+ * After a promotion the radio only ever demotes as the wait grows, e.g. DCH, then FACH, then
+ * IDLE, so the round-trip times of a test are a step function of the interval. If two intervals
+ * give the same round-trip times, the radio was in the same state for both and every interval in
+ * between, which need not be tested. Otherwise the interval between them is split until the
+ * transition lies between two consecutive intervals. The intervals on either side of a transition
+ * are then tested again until each has several samples, and their medians decide whether the
+ * transition was real or caused by a slow packet.
+ *
+ * With the default 31 intervals and the usual two timers, this takes about half the tests of the
+ * full sweep, and the tests skipped are mostly the long ones inside a state.
+ */
+public class RRCTimerSearch {
+  // Round-trip times further apart than this are taken to be of different RRC states
+  public static final int DEFAULT_THRESHOLD_MSEC = 200;
+  // Samples taken on either side of a transition
+  public static final int DEFAULT_REPEATS = 3;
+
+  /**
+   * Runs one test of the RRC inference.
+   */
+  public interface Probe {
+    /**
+     * @param index the inter-packet interval, in units of GRANULARITY
+     * @return first value: round-trip time of the large packets. Second value: round-trip time of
+     *         the small packets. -1 for a timeout. Null if the search should end.
+     */
+    long[] run(int index) throws IOException, InterruptedException;
+  }
+
+  private final int size;
+  private final int thresholdMs;
+  private final int repeats;
+  private final int maxProbes;
+  private final Probe probe;
+  // The results of the tests of each interval, null for intervals not tested
+  private final List<List<long[]>> samples;
+  private int probeCount = 0;
+
+  /**
+   * @param size the largest interval, in units of GRANULARITY
+   * @param thresholdMs the smallest difference in round-trip time between two RRC states
+   * @param repeats the number of samples to take on either side of a transition
+   * @param probe runs the tests
+   */
+  public RRCTimerSearch(int size, int thresholdMs, int repeats, Probe probe) {
+    this.size = size;
+    this.thresholdMs = thresholdMs;
+    this.repeats = Math.max(1, repeats);
+    // Never slower than testing every interval once
+    this.maxProbes = size + 1;
+    this.probe = probe;
+    samples = new ArrayList<List<long[]>>(size + 1);
+    for (int i = 0; i <= size; i++) {
+      samples.add(null);
+    }
+  }
+
+  /**
+   * Runs tests until the transitions are located, the probe asks to stop, or as many tests have
+   * been run as the full sweep would.
+   */
+  public void run() throws IOException, InterruptedException {
+    int next = 0;
+    while (next >= 0 && probeCount < maxProbes) {
+      long[] result = probe.run(next);
+      if (result == null) {
+        return;
+      }
+      probeCount++;
+      if (samples.get(next) == null) {
+        samples.set(next, new ArrayList<long[]>());
+      }
+      samples.get(next).add(result);
+      next = samples.get(size) == null ? size : nextIndex();
+    }
+  }
+
+  /**
+   * Returns the next interval to test, or -1 if the transitions are located.
+   */
+  private int nextIndex() {
+    int confirm = -1;
+    int previous = -1;
+    for (int i = 0; i <= size; i++) {
+      if (samples.get(i) == null) {
+        continue;
+      }
+      if (previous >= 0 && !isSameState(previous, i)) {
+        if (i - previous > 1) {
+          // Bisecting comes first, as it may move the transition
+          return (previous + i) / 2;
+        }
+        if (confirm < 0 && samples.get(previous).size() < repeats) {
+          confirm = previous;
+        } else if (confirm < 0 && samples.get(i).size() < repeats) {
+          confirm = i;
+        }
+      }
+      previous = i;
+    }
+    return confirm;
+  }
+
+  private boolean isSameState(int first, int second) {
+    long[] a = getMedian(first);
+    long[] b = getMedian(second);
+    return Math.abs(a[0] - b[0]) <= thresholdMs && Math.abs(a[1] - b[1]) <= thresholdMs;
+  }
+
+  /**
+   * Returns the median round-trip times of the large and small packets at interval |index|, with
+   * timeouts counted as RRCProbeEngine.TIMEOUT_MSEC, or null if the interval was not tested.
+   */
+  public long[] getMedian(int index) {
+    List<long[]> results = samples.get(index);
+    if (results == null) {
+      return null;
+    }
+    long[] median = new long[2];
+    for (int j = 0; j < median.length; j++) {
+      median[j] = toMsec(results.get(getMedianSample(index, j))[j]);
+    }
+    return median;
+  }
+
+  /**
+   * Returns which test of interval |index|, in the order they were run, gave the median of
+   * getMedian, for the large packets if |value| is 0 and the small ones if it is 1.
+   */
+  public int getMedianSample(int index, final int value) {
+    final List<long[]> results = samples.get(index);
+    Integer[] order = new Integer[results.size()];
+    for (int k = 0; k < order.length; k++) {
+      order[k] = k;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        long first = toMsec(results.get(a)[value]);
+        long second = toMsec(results.get(b)[value]);
+        return first < second ? -1 : (first == second ? 0 : 1);
+      }
+    });
+    return order[order.length / 2];
+  }
+
+  private static long toMsec(long rtt) {
+    return rtt < 0 ? RRCProbeEngine.TIMEOUT_MSEC : rtt;
+  }
+
+  public boolean isTested(int index) {
+    return samples.get(index) != null;
+  }
+
+  public int getProbeCount() {
+    return probeCount;
+  }
+
+  public int getMaxProbes() {
+    return maxProbes;
+  }
+
+  /**
+   * Returns the first interval of each RRC state after the first one, in units of GRANULARITY.
+   * The timer of the state before lies between this interval and the one before it.
+   */
+  public List<Integer> getTransitions() {
+    List<Integer> transitions = new ArrayList<Integer>();
+    int previous = -1;
+    for (int i = 0; i <= size; i++) {
+      if (samples.get(i) == null) {
+        continue;
+      }
+      if (previous >= 0 && !isSameState(previous, i)) {
+        transitions.add(i);
+      }
+      previous = i;
+    }
+    return transitions;
+  }
+}
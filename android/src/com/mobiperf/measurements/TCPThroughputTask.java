@@ -5,15 +5,20 @@ package com.mobiperf.measurements;
 import java.io.IOException;
 import java.io.InvalidClassException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.mobiperf.Config;
 import com.mobiperf.Logger;
@@ -24,6 +29,7 @@ import com.mobiperf.MeasurementTask;
 import com.mobiperf.util.MLabNS;
 import com.mobiperf.util.MeasurementJsonConvertor;
 import com.mobiperf.util.PhoneUtils;
+import com.mobiperf.util.QuantileSketch;
 
 import android.content.Context;
 
@@ -49,6 +55,10 @@ public class TCPThroughputTask extends MeasurementTask {
 
   // Timing related
   public final int BUFFER_SIZE = 5000;
+  // Bytes moved per read or write on the test connection
+  private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+  // Requested SO_RCVBUF and SO_SNDBUF; the kernel may cap them
+  private static final int SOCKET_BUFFER_SIZE = 512 * 1024;
   public static final long DURATION_IN_SEC = 15;
   public final int KSEC = 1000;
   public static final long SAMPLE_PERIOD_IN_SEC = 1; 
@@ -57,6 +67,25 @@ public class TCPThroughputTask extends MeasurementTask {
   // largest non-fragment packet size in LTE (uplink)
   public static final int THROUGHPUT_UP_PKT_SIZE_MAX = 1357;
   public static final int THROUGHPUT_UP_PKT_SIZE_MIN = 700;
+  // Throughput samples are summarized within 1% from 1 Kbps to 100 Gbps
+  private static final double SPEED_SKETCH_MIN_KBPS = 1;
+  private static final double SPEED_SKETCH_MAX_KBPS = 1e8;
+  private static final double SPEED_SKETCH_ERROR = 0.01;
+  // Adaptive mode samples more often, so that it can stop sooner
+  private static final long ADAPTIVE_SAMPLE_PERIOD_MS = 500;
+  // Slow start has ended once a sample grows less than this over the best one
+  private static final double SLOW_START_MIN_GROWTH = 0.1;
+  // Adaptive mode stops once the 95% confidence interval of the mean throughput
+  // is within this fraction of the mean, over at least ADAPTIVE_MIN_SAMPLES
+  private static final double ADAPTIVE_TOLERANCE = 0.05;
+  private static final int ADAPTIVE_MIN_SAMPLES = 6;
+  // Two-sided 95% quantiles of Student's t distribution, by degrees of freedom
+  private static final double[] T_95 = {
+    12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+    2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+    2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+  };
+  private static final double Z_95 = 1.960;
 
   // Data related
   private final int KBYTE = 1024;
@@ -69,19 +98,29 @@ public class TCPThroughputTask extends MeasurementTask {
   private Context context = null;
 
   // helper variables 
-  private int accumulativeSize = 0;
   private int MAXPROGRESS = Config.MAX_PROGRESS_BAR_VALUE;
   private Random randStr = new Random();
-  private ArrayList<Double> samplingResults = new ArrayList<Double>();
-  //start time of each sampling period
-  private long startSampleTime = 0;
+  private QuantileSketch speedSketch = new QuantileSketch(SPEED_SKETCH_MIN_KBPS,
+                                                         SPEED_SKETCH_MAX_KBPS,
+                                                         SPEED_SKETCH_ERROR);
   private String serverVersion = "";
-  private long taskStartTime = 0;
   private double taskDuration = 0;
-  //uplink accumulative data
-  private int totalSendSize = 0;
+  // System.nanoTime() when data started and stopped flowing on the test connection
+  private long transferStartNanos = 0;
+  private long transferEndNanos = 0;
+  // Outcome of adaptive mode, set by the TransferMonitor
+  private double slowStartExitSec = -1;
+  private boolean converged = false;
+  private int steadySamples = 0;
+  private double confidenceRatio = -1;
+  // uplink accumulative data. Written by the transfer loop only, and read by
+  // the TransferMonitor.
+  private volatile long totalSendSize = 0;
   // downlink accumulative data
-  private int totalRevSize = 0;
+  private volatile long totalRevSize = 0;
+  // Set by stop(), which also closes the channel of the running transfer
+  private volatile boolean stopped = false;
+  private volatile SocketChannel activeChannel = null;
   
   
 
@@ -94,7 +133,7 @@ public class TCPThroughputTask extends MeasurementTask {
   }
 
   /**
-   * There are seven parameters specifically for this experiment:
+   * There are eight parameters specifically for this experiment:
    * 1. data_limit_mb_up: uplink cellular network data limit
    * 2. data_limit_mb_down: downlink cellular network data limit
    * 3. duration_period_sec : downlink maximum experiment duration period
@@ -102,12 +141,15 @@ public class TCPThroughputTask extends MeasurementTask {
    * 5. sample_period_sec : the small interval to calculate current throughput result
    * 6. slow_start_period_sec : waiting period to avoid TCP slow start
    * 7. tcp_timeout_sec: TCP connection timeout
+   * 8. adaptive: "true" to detect the end of slow start from the samples, and to
+   *    stop as soon as the throughput converges
    */
   
   public static class TCPThroughputDesc extends MeasurementDesc {
     // declared parameters
     public double  data_limit_mb_up = TCPThroughputTask.DATA_LIMIT_MB_UP;
     public double  data_limit_mb_down = TCPThroughputTask.DATA_LIMIT_MB_DOWN;
+    public boolean adaptive = false;
     public boolean dir_up = false;
     public double  duration_period_sec = TCPThroughputTask.DURATION_IN_SEC;
     public int     pkt_size_up_bytes = TCPThroughputTask.THROUGHPUT_UP_PKT_SIZE_MAX;
@@ -201,6 +243,10 @@ public class TCPThroughputTask extends MeasurementTask {
           this.dir_up = true;
         }
       }
+      String adaptive = null;
+      if ((adaptive = params.get("adaptive")) != null && adaptive.compareTo("true") == 0) {
+        this.adaptive = true;
+      }
     }
 
     @Override
@@ -209,7 +255,8 @@ public class TCPThroughputTask extends MeasurementTask {
     }
 
     /**
-       * Find the median value from a TCPThroughput JSON result string (already sorted)
+       * Find the median value from a TCPThroughput JSON result string (already sorted),
+       * as stored by versions that reported every sample in tcp_speed_results
        * Suppose N is the number of results. If N is odd, we pick the result with index
        * (N-1)/2. If N is even, we take the mean value between index N/2 and N/2-1
        * 
@@ -289,8 +336,21 @@ public class TCPThroughputTask extends MeasurementTask {
     return TCPThroughputDesc.class;
   }
 
+  /**
+   * Ends the running transfer by closing its channel, which makes the transfer
+   * loop fail at once, and keeps any later transfer of this task from starting.
+   */
   @Override
   public void stop() {
+    stopped = true;
+    SocketChannel channel = activeChannel;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Logger.e("Error closing the stopped channel");
+      }
+    }
   }
 
   @Override
@@ -316,7 +376,36 @@ public class TCPThroughputTask extends MeasurementTask {
       throw new MeasurementError(e.getMessage());
     }
     Logger.i("Setting target to: " + desc.target);
-    
+
+    measureResolvedTarget();
+    isMeasurementSuccessful = true;
+
+    PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
+    MeasurementResult result = new MeasurementResult(
+                               phoneUtils.getDeviceInfo().deviceId,
+                               phoneUtils.getDeviceProperty(), TCPThroughputTask.TYPE,
+                               System.currentTimeMillis() * 1000, isMeasurementSuccessful,
+                               this.measurementDesc);
+    // TODO (Haokun): add more results if necessary
+    addSpeedResults(result);
+    result.addResult("data_limit_exceeded", this.DATA_LIMIT_EXCEEDED);
+    result.addResult("duration", this.taskDuration);
+    result.addResult("server_version", this.serverVersion);
+    result.addResult("total_data_sent_received",this.totalSendSize+this.totalRevSize );
+    if (desc.adaptive) {
+      addAdaptiveResults(result);
+    }
+    Logger.i(MeasurementJsonConvertor.toJsonString(result));
+    return result;
+  }
+
+  /**
+   * Runs the uplink or downlink test against desc.target, which must already be
+   * resolved to an M-Lab server. LoadedLatencyTask calls this directly so that
+   * it loads the link to the same server it pings.
+   */
+  void measureResolvedTarget() throws MeasurementError {
+    TCPThroughputDesc desc = (TCPThroughputDesc)measurementDesc;
     PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
 
     // reset the data limit if the phone is under Wifi
@@ -332,16 +421,17 @@ public class TCPThroughputTask extends MeasurementTask {
         throw new MeasurementError("Fail to acquire server configuration");
       }
       Logger.i("Server version is " + this.serverVersion);
+      if (stopped) {
+        throw new MeasurementError("TCP throughput test stopped");
+      }
       if (desc.dir_up == true) {
         uplink();
         Logger.i("Uplink measurement result is:");
       }
       else {
-        this.taskStartTime = System.currentTimeMillis();
         downlink();
         Logger.i("Downlink measurement result is:");
       }
-      isMeasurementSuccessful = true;
     } catch (MeasurementError e) {
       throw e;
     } catch (IOException e) {
@@ -351,20 +441,6 @@ public class TCPThroughputTask extends MeasurementTask {
       Logger.e("Interrupted captured");
       throw new MeasurementError("Task gets interrrupted");
     }
-
-    MeasurementResult result = new MeasurementResult(
-                               phoneUtils.getDeviceInfo().deviceId,
-                               phoneUtils.getDeviceProperty(), TCPThroughputTask.TYPE,
-                               System.currentTimeMillis() * 1000, isMeasurementSuccessful,
-                               this.measurementDesc);
-    // TODO (Haokun): add more results if necessary
-    result.addResult("tcp_speed_results", this.samplingResults);
-    result.addResult("data_limit_exceeded", this.DATA_LIMIT_EXCEEDED);
-    result.addResult("duration", this.taskDuration);
-    result.addResult("server_version", this.serverVersion);
-    result.addResult("total_data_sent_received",this.totalSendSize+this.totalRevSize );
-    Logger.i(MeasurementJsonConvertor.toJsonString(result));
-    return result;
   }
   
   /*****************************************************************
@@ -419,91 +495,76 @@ public class TCPThroughputTask extends MeasurementTask {
    * @throws InterruptedException 
    */
   private void uplink() throws MeasurementError, IOException, InterruptedException {
-    Logger.i("Start uplink task on " + ((TCPThroughputDesc)measurementDesc).target);
-    Socket tcpSocket = null;
-    InputStream iStream = null;
-    OutputStream oStream = null;
-
-    try {
-      tcpSocket = new Socket();
-      buildUpSocket(tcpSocket, ((TCPThroughputDesc)measurementDesc).target, 
-                    TCPThroughputTask.PORT_UPLINK);
-      oStream = tcpSocket.getOutputStream();
-      iStream = tcpSocket.getInputStream();
-    } catch (IOException e){
-      e.printStackTrace();
-      throw new MeasurementError("Error open uplink socket at " + 
-                                ((TCPThroughputDesc)measurementDesc).target + 
-                                " with port " +
-                                TCPThroughputTask.PORT_UPLINK);
-    }
+    TCPThroughputDesc desc = (TCPThroughputDesc)measurementDesc;
+    Logger.i("Start uplink task on " + desc.target);
+    SocketChannel channel = openChannel(desc.target, TCPThroughputTask.PORT_UPLINK);
+    TransferMonitor monitor = null;
+    setActiveChannel(channel);
 
-    long startTime = System.currentTimeMillis();
-    long endTime = startTime;
-    int  data_limit_byte_up = (int)(((TCPThroughputDesc)measurementDesc).data_limit_mb_up
-                              *this.KBYTE*this.KBYTE);
-    byte[] uplinkBuffer = new byte[((TCPThroughputDesc)measurementDesc).pkt_size_up_bytes];
-    this.genRandomByteArray(uplinkBuffer);
     try {
-      int progUpdateCount = 0;
-      long totalDuration = (long)(this.KSEC*
-                           ((TCPThroughputDesc)measurementDesc).duration_period_sec +
-                           ((TCPThroughputDesc)measurementDesc).slow_start_period_sec);
+      long dataLimitByteUp = (long)(desc.data_limit_mb_up*this.KBYTE*this.KBYTE);
+      // Whole packets of pkt_size_up_bytes per write. With large writes the
+      // TCP stack, rather than the write size, decides the segment size.
+      int packetsPerWrite = Math.max(1, CHANNEL_BUFFER_SIZE / desc.pkt_size_up_bytes);
+      ByteBuffer uplinkBuffer =
+          ByteBuffer.allocateDirect(packetsPerWrite * desc.pkt_size_up_bytes);
+      this.genRandomBytes(uplinkBuffer);
+      long totalDurationNanos = totalDurationMs() * 1000000;
+
+      this.transferStartNanos = System.nanoTime();
+      monitor = new TransferMonitor(channel, false);
+      long now;
       do {
-        oStream.write(uplinkBuffer, 0, uplinkBuffer.length);
-        oStream.flush();
-        endTime = System.currentTimeMillis();
-
-        this.totalSendSize += ((TCPThroughputDesc)measurementDesc).pkt_size_up_bytes;
-        if (this.DATA_LIMIT_ON &&
-            this.totalSendSize >= data_limit_byte_up) {
-          Logger.i("Detect uplink exceeding limitation " +
-                  (double)((TCPThroughputDesc)measurementDesc).data_limit_mb_up + " MB");
+        uplinkBuffer.clear();
+        while (uplinkBuffer.hasRemaining()) {
+          this.totalSendSize += channel.write(uplinkBuffer);
+        }
+        now = System.nanoTime();
+        if (this.DATA_LIMIT_ON && this.totalSendSize >= dataLimitByteUp) {
+          Logger.i("Detect uplink exceeding limitation " + desc.data_limit_mb_up + " MB");
           this.DATA_LIMIT_EXCEEDED = true;
           break;
         }
-        this.progress = (int)(this.MAXPROGRESS * (endTime - startTime) / totalDuration);
-        this.progress = Math.min(this.progress, this.MAXPROGRESS);
-        // propagate every quarter
-        if (this.progress >= (progUpdateCount+1)*25) {
-          broadcastProgressForUser(this.progress);
-          progUpdateCount++;
-        }
-      } while ((endTime - startTime) < totalDuration);
-      
+      } while (now - this.transferStartNanos < totalDurationNanos && !monitor.hasConverged()
+               && !stopped);
+      this.transferEndNanos = now;
+
       // convert into seconds
-      this.taskDuration = (double)(endTime - startTime) / 1000.0;
+      this.taskDuration = (this.transferEndNanos - this.transferStartNanos) / 1e9;
       Logger.i("Uplink total data comsumption is " + 
               (double)this.totalSendSize/(1024*1024) + " MB");
       // send last message with special content
-      uplinkBuffer = TCPThroughputTask.UPLINK_FINISH_MSG.getBytes();
-      oStream.write(uplinkBuffer, 0, uplinkBuffer.length);
-      oStream.flush();
+      ByteBuffer finishMsg = ByteBuffer.wrap(TCPThroughputTask.UPLINK_FINISH_MSG.getBytes());
+      while (finishMsg.hasRemaining()) {
+        channel.write(finishMsg);
+      }
       // read from server side results
-      byte [] resultMsg = new byte[this.BUFFER_SIZE];
-      int resultMsgLen = iStream.read(resultMsg, 0, resultMsg.length);
+      ByteBuffer resultMsg = ByteBuffer.allocate(this.BUFFER_SIZE);
+      int resultMsgLen = channel.read(resultMsg);
       if (resultMsgLen > 0) {
-        String resultMsgStr = new String(resultMsg).substring(0, resultMsgLen);
+        String resultMsgStr = new String(resultMsg.array(), 0, resultMsgLen);
         // Sample result string is "1111.11#2222.22#3333.33";
         Logger.i("Uplink result from server is " + resultMsgStr);
         String [] tps_result_str = resultMsgStr.split("#");
         double sampleResult;
         for (int i = 0; i < tps_result_str.length; i++) {
           sampleResult = Double.valueOf(tps_result_str[i]);
-          this.samplingResults = this.insertWithOrder(this.samplingResults, sampleResult);
+          this.speedSketch.add(sampleResult);
         }
       }
-      Logger.i("Total number of sampling result is " + this.samplingResults.size());
+      Logger.i("Total number of sampling result is " + this.speedSketch.getCount());
       
     } catch (OutOfMemoryError e) {
       throw new MeasurementError("Detect out of memory during Uplink task.");
     } catch (IOException e) {
-      throw new MeasurementError("Error to send/receive data to " +
-                                ((TCPThroughputDesc)measurementDesc).target);
+      throw new MeasurementError(transferErrorMessage(monitor, "Error to send/receive data to "
+                                 + desc.target));
     } finally {
-      iStream.close();
-      oStream.close();
-      tcpSocket.close();
+      if (monitor != null) {
+        monitor.stop();
+      }
+      activeChannel = null;
+      channel.close();
       Logger.i("Close uplink socket");
     }
   }
@@ -511,124 +572,338 @@ public class TCPThroughputTask extends MeasurementTask {
   /**
    * Downlink measurement task
    */
-  private void downlink() throws MeasurementError, IOException {
-    Logger.i("Start downlink task on " + ((TCPThroughputDesc)measurementDesc).target);
-    Socket tcpSocket = null;
-    InputStream iStream = null;
-    try {
-      tcpSocket = new Socket();
-      buildUpSocket(tcpSocket, ((TCPThroughputDesc)measurementDesc).target,
-                    TCPThroughputTask.PORT_DOWNLINK);
-      iStream = tcpSocket.getInputStream();
-    } catch (IOException i) {
-      Logger.e("Downlink socket opening error" + i.getCause().toString());
-      throw new MeasurementError("Error to open downlink socket at " +
-                                ((TCPThroughputDesc)measurementDesc).target +
-                                " with port " + 
-                                TCPThroughputTask.PORT_DOWNLINK);
-    }
+  private void downlink() throws MeasurementError, IOException, InterruptedException {
+    TCPThroughputDesc desc = (TCPThroughputDesc)measurementDesc;
+    Logger.i("Start downlink task on " + desc.target);
+    SocketChannel channel = openChannel(desc.target, TCPThroughputTask.PORT_DOWNLINK);
+    TransferMonitor monitor = null;
+    setActiveChannel(channel);
+
     try {
-      int read_bytes = 0;
-      int progUpdateCount = 0;
-      int data_limit_byte_down = (int)(this.KBYTE*this.KBYTE*
-                                 ((TCPThroughputDesc)measurementDesc).data_limit_mb_down);
-      byte[] buffer = new byte[this.BUFFER_SIZE];
-      long totalDuration = (long)(this.KSEC*
-                           ((TCPThroughputDesc)measurementDesc).duration_period_sec + 
-                           ((TCPThroughputDesc)measurementDesc).slow_start_period_sec);
-      do {
-        read_bytes = iStream.read(buffer, 0, buffer.length);
-        updateSize(read_bytes);
-
-        this.totalRevSize += read_bytes;
-        if (this.DATA_LIMIT_ON &&
-            this.totalRevSize >= data_limit_byte_down) {
-          Logger.i("Detect downlink data limitation exceed with " +
-                  ((TCPThroughputDesc)measurementDesc).data_limit_mb_down + " MB");
-          this.DATA_LIMIT_EXCEEDED = true;
-          break;
-        }
+      long dataLimitByteDown = (long)(this.KBYTE*this.KBYTE*desc.data_limit_mb_down);
+      // The data is never looked at, so it stays out of the Java heap
+      ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
 
-        this.progress = (int)(this.MAXPROGRESS*(System.currentTimeMillis() - 
-                        this.taskStartTime) / totalDuration);
-        this.progress = Math.min(this.progress, this.MAXPROGRESS);
-        // propagate every quarter
-        if (this.progress >= (progUpdateCount+1)*25) {
-          broadcastProgressForUser(this.progress);
-          progUpdateCount++;
+      this.transferStartNanos = System.nanoTime();
+      monitor = new TransferMonitor(channel, true);
+      int readBytes;
+      try {
+        while ((readBytes = channel.read(buffer)) >= 0) {
+          buffer.clear();
+          this.totalRevSize += readBytes;
+          if (this.DATA_LIMIT_ON && this.totalRevSize >= dataLimitByteDown) {
+            Logger.i("Detect downlink data limitation exceed with " +
+                    desc.data_limit_mb_down + " MB");
+            this.DATA_LIMIT_EXCEEDED = true;
+            break;
+          }
+        }
+      } catch (ClosedChannelException e) {
+        // The monitor closes the channel to end an adaptive test early
+        if (!monitor.hasConverged()) {
+          throw e;
         }
-      } while (read_bytes >= 0);
+      }
+      this.transferEndNanos = System.nanoTime();
+      // Stop sampling before the samples are read
+      monitor.stop();
 
-      // convert milliseconds to seconds
-      this.taskDuration = (System.currentTimeMillis() - 
-                          (double) this.taskStartTime) / 1000.0;
+      // convert nanoseconds to seconds
+      this.taskDuration = (this.transferEndNanos - this.transferStartNanos) / 1e9;
       Logger.i("Total download data is " + (double)this.totalRevSize/(1024*1024) + " MB");
-      Logger.i("Total number of sampling result is " + this.samplingResults.size());
+      Logger.i("Total number of sampling result is " + this.speedSketch.getCount());
       
     } catch (OutOfMemoryError e) {
       throw new MeasurementError("Detect out of memory at Downlink task.");
     } catch  (IOException e) {
-      throw new MeasurementError("Error to receive data from " +
-                                ((TCPThroughputDesc)measurementDesc).target);
+      throw new MeasurementError(transferErrorMessage(monitor, "Error to receive data from "
+                                 + desc.target));
     } finally {
-      iStream.close();
-      tcpSocket.close();
+      if (monitor != null) {
+        monitor.stop();
+      }
+      activeChannel = null;
+      channel.close();
       Logger.i("Close downlink socket");
     }
   }
-  
+
+  /**
+   * Takes the throughput samples, reports the progress and enforces the TCP
+   * timeout every sample period on its own thread, so that the transfer loop
+   * does nothing but move data and count bytes.
+   *
+   * In adaptive mode it samples from the start of the transfer instead. Slow
+   * start ends at the first sample that grows less than SLOW_START_MIN_GROWTH
+   * over the best one before it, or after slow_start_period_sec at the latest.
+   * The test converges once the confidence interval of the mean of the later
+   * samples is narrow enough. The uplink loop checks hasConverged(), and the
+   * downlink channel is closed. On the uplink the samples only decide when to
+   * stop, since the server measures the reported ones.
+   */
+  private class TransferMonitor implements Runnable {
+    private final SocketChannel channel;
+    private final boolean sampleSpeed;
+    private final boolean adaptive;
+    private final ScheduledExecutorService executor;
+    private final long timeoutNanos;
+    private final long slowStartNanos;
+    private final long totalDurationNanos;
+    private int progUpdateCount = 0;
+    // Bytes and time at the start of the current sampling period, which starts
+    // at the first run after the slow start period
+    private long sampleStartBytes = -1;
+    private long sampleStartNanos = 0;
+    // Last time data moved, for the TCP timeout
+    private long lastBytes = 0;
+    private long lastMovedNanos;
+    private volatile boolean timedOut = false;
+    // Adaptive mode: the best slow start sample, and the running mean and sum
+    // of squared deviations of the later samples
+    private double slowStartBest = 0;
+    private double steadyMean = 0;
+    private double steadySquares = 0;
+    private volatile boolean convergedFlag = false;
+
+    TransferMonitor(SocketChannel channel, boolean sampleSpeed) {
+      TCPThroughputDesc desc = (TCPThroughputDesc)measurementDesc;
+      this.channel = channel;
+      this.sampleSpeed = sampleSpeed;
+      this.adaptive = desc.adaptive;
+      this.timeoutNanos = (long)(desc.tcp_timeout_sec * 1e9);
+      this.slowStartNanos = (long)(desc.slow_start_period_sec * 1e9);
+      this.totalDurationNanos = totalDurationMs() * 1000000;
+      this.lastMovedNanos = transferStartNanos;
+      long periodMs = adaptive ? ADAPTIVE_SAMPLE_PERIOD_MS
+                               : (long)(desc.sample_period_sec * KSEC);
+      if (adaptive) {
+        this.sampleStartBytes = 0;
+        this.sampleStartNanos = transferStartNanos;
+      }
+      this.executor = Executors.newSingleThreadScheduledExecutor();
+      this.executor.scheduleAtFixedRate(this, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+      long now = System.nanoTime();
+      long bytes = totalSendSize + totalRevSize;
+      long elapsed = now - transferStartNanos;
+
+      if (bytes != lastBytes) {
+        lastBytes = bytes;
+        lastMovedNanos = now;
+      } else if (now - lastMovedNanos >= timeoutNanos) {
+        // Unblocks the transfer loop with an AsynchronousCloseException
+        timedOut = true;
+        try {
+          channel.close();
+        } catch (IOException e) {
+          Logger.e("Error closing the timed out channel");
+        }
+      }
+
+      if (adaptive) {
+        sampleAdaptive(now, bytes, elapsed);
+      } else if (sampleSpeed && elapsed >= slowStartNanos) {
+        if (sampleStartBytes >= 0) {
+          double periodMs = (now - sampleStartNanos) / 1e6;
+          speedSketch.add((bytes - sampleStartBytes) * 8.0 / periodMs);
+        }
+        sampleStartBytes = bytes;
+        sampleStartNanos = now;
+      }
+
+      progress = (int)(MAXPROGRESS * elapsed / totalDurationNanos);
+      progress = Math.min(progress, MAXPROGRESS);
+      // propagate every quarter
+      if (progress >= (progUpdateCount+1)*25) {
+        broadcastProgressForUser(progress);
+        progUpdateCount = progress / 25;
+      }
+    }
+
+    private void sampleAdaptive(long now, long bytes, long elapsed) {
+      double speed = (bytes - sampleStartBytes) * 8.0 / ((now - sampleStartNanos) / 1e6);
+      sampleStartBytes = bytes;
+      sampleStartNanos = now;
+      if (convergedFlag) {
+        return;
+      }
+      if (slowStartExitSec < 0) {
+        if (speed < slowStartBest * (1 + SLOW_START_MIN_GROWTH) || elapsed >= slowStartNanos) {
+          slowStartExitSec = elapsed / 1e9;
+          Logger.i("Slow start ended after " + slowStartExitSec + " seconds");
+        }
+        slowStartBest = Math.max(slowStartBest, speed);
+        return;
+      }
+
+      if (sampleSpeed) {
+        speedSketch.add(speed);
+      }
+      // Welford's update of the mean and the squared deviations
+      steadySamples++;
+      double delta = speed - steadyMean;
+      steadyMean += delta / steadySamples;
+      steadySquares += delta * (speed - steadyMean);
+      if (steadySamples < 2 || steadyMean <= 0) {
+        return;
+      }
+      double stdDev = Math.sqrt(steadySquares / (steadySamples - 1));
+      int degrees = steadySamples - 1;
+      double t = degrees <= T_95.length ? T_95[degrees - 1] : Z_95;
+      confidenceRatio = t * stdDev / Math.sqrt(steadySamples) / steadyMean;
+      if (steadySamples >= ADAPTIVE_MIN_SAMPLES && confidenceRatio <= ADAPTIVE_TOLERANCE) {
+        Logger.i("Throughput converged after " + elapsed / 1e9 + " seconds");
+        converged = true;
+        convergedFlag = true;
+        if (sampleSpeed) {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            Logger.e("Error closing the converged channel");
+          }
+        }
+      }
+    }
+
+    boolean isTimedOut() {
+      return timedOut;
+    }
+
+    boolean hasConverged() {
+      return convergedFlag;
+    }
+
+    /** Stops the monitor and waits for a running sample to complete */
+    void stop() throws InterruptedException {
+      executor.shutdown();
+      executor.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
   /*****************************************************************
    * Helper functions
    *****************************************************************
-   * update the total received packet size
-   * @param time period increment
+   * Opens a blocking channel to the server, with socket buffers large enough
+   * for the bandwidth-delay product of fast links
    */
-  private void updateSize(int delta) {
-    double gtime = System.currentTimeMillis() - this.taskStartTime;
-    //ignore slow start
-    if (gtime < ((TCPThroughputDesc)measurementDesc).slow_start_period_sec*this.KSEC)
-      return;
-    if (this.startSampleTime == 0) {
-      this.startSampleTime = System.currentTimeMillis();
-      this.accumulativeSize = 0;
+  private SocketChannel openChannel(String hostname, int portNum) throws MeasurementError {
+    TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      Socket socket = channel.socket();
+      // Set before connecting, so that a large enough window scale is negotiated
+      socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+      socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(TargetResolver.resolve(hostname), portNum),
+                     (int)desc.tcp_timeout_sec*this.KSEC);
+      return channel;
+    } catch (IOException e) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // Nothing else to clean up
+        }
+      }
+      throw new MeasurementError("Error open socket at " + hostname + " with port " +
+                                 portNum);
     }
-    this.accumulativeSize += delta;
-    double time = System.currentTimeMillis() - this.startSampleTime;
-    if (time < ((TCPThroughputDesc)measurementDesc).sample_period_sec*this.KSEC) {
-      return;
-    } else {
-      double throughput = (double)this.accumulativeSize * 8.0 / time;
-      this.samplingResults = this.insertWithOrder(this.samplingResults, throughput);
-      this.accumulativeSize = 0;
-      this.startSampleTime = System.currentTimeMillis();
-    }  
   }
-  
+
+  /**
+   * Makes |channel| the one stop() closes, and closes it at once if stop() came
+   * before it was opened
+   */
+  private void setActiveChannel(SocketChannel channel) throws MeasurementError {
+    activeChannel = channel;
+    if (stopped) {
+      activeChannel = null;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Logger.e("Error closing the stopped channel");
+      }
+      throw new MeasurementError("TCP throughput test stopped");
+    }
+  }
+
+  private String transferErrorMessage(TransferMonitor monitor, String message) {
+    if (stopped) {
+      return "TCP throughput test stopped";
+    }
+    if (monitor != null && monitor.isTimedOut()) {
+      return "No data transferred in " +
+             ((TCPThroughputDesc)measurementDesc).tcp_timeout_sec + " seconds";
+    }
+    return message;
+  }
+
+  // Progress reaches its maximum after this long, which is also the uplink duration
+  private long totalDurationMs() {
+    TCPThroughputDesc desc = (TCPThroughputDesc)measurementDesc;
+    return (long)(this.KSEC*desc.duration_period_sec + desc.slow_start_period_sec);
+  }
+
   private void buildUpSocket(Socket tcpSocket, String hostname, int portNum)
           throws IOException {
     TCPThroughputDesc desc = (TCPThroughputDesc) measurementDesc;
-    SocketAddress remoteAddr = new InetSocketAddress(hostname, portNum);
+    SocketAddress remoteAddr = new InetSocketAddress(TargetResolver.resolve(hostname), portNum);
     tcpSocket.connect(remoteAddr, (int)desc.tcp_timeout_sec*this.KSEC);
     tcpSocket.setSoTimeout((int)desc.tcp_timeout_sec*this.KSEC);
     tcpSocket.setTcpNoDelay(true);
   }
   
-  private void genRandomByteArray(byte[] byteArray) {
-    for (int i = 0; i < byteArray.length; i++) {
-      byteArray[i] = (byte)('a' + randStr.nextInt(26));
+  private void genRandomBytes(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      buffer.put((byte)('a' + randStr.nextInt(26)));
     }
   }
-  
-  // insert element with ascending order, i.e. insertion sort
-  private ArrayList<Double> insertWithOrder(ArrayList<Double> array, double item) {
-    int i;
-    for (i = 0; i < array.size(); i++ ) {
-      if (item < array.get(i)) {
-        break;
-      } 
-    }
-    array.add(i,item);
-    return array;
+
+  /** Reports how an adaptive test decided when to stop */
+  private void addAdaptiveResults(MeasurementResult result) {
+    result.addResult("slow_start_exit_sec", this.slowStartExitSec);
+    result.addResult("converged", this.converged);
+    result.addResult("steady_samples", this.steadySamples);
+    result.addResult("confidence_ratio", this.confidenceRatio);
+    result.addResult("convergence_tolerance", ADAPTIVE_TOLERANCE);
+  }
+
+  /**
+   * Adds the summary of the throughput samples, in Kbps, to |result|. The
+   * percentiles are -1 if there is no sample.
+   */
+  void addSpeedResults(MeasurementResult result) {
+    long samples = this.speedSketch.getCount();
+    result.addResult("tcp_speed_samples", samples);
+    result.addResult("tcp_speed_median_kbps",
+                     samples > 0 ? this.speedSketch.getQuantile(0.5) : -1);
+    result.addResult("tcp_speed_p10_kbps",
+                     samples > 0 ? this.speedSketch.getQuantile(0.1) : -1);
+    result.addResult("tcp_speed_p90_kbps",
+                     samples > 0 ? this.speedSketch.getQuantile(0.9) : -1);
+    result.addResult("tcp_speed_max_kbps", samples > 0 ? this.speedSketch.getMax() : -1);
+  }
+
+  boolean isDataLimitExceeded() {
+    return DATA_LIMIT_EXCEEDED;
+  }
+
+  /** Duration of the test in seconds */
+  double getTaskDuration() {
+    return taskDuration;
+  }
+
+  long getTransferStartNanos() {
+    return transferStartNanos;
+  }
+
+  long getTransferEndNanos() {
+    return transferEndNanos;
   }
 
   /**
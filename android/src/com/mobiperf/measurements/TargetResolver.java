@@ -0,0 +1,194 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiperf.measurements;
+
+import com.mobiperf.Logger;
+import com.mobiperf.RRCTrafficControl;
+import com.mobiperf.util.PhoneUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the targets of measurements through a process-wide cache, so that
+ * a measurement does not start with a DNS lookup that it does not measure.
+ *
+ * Names are resolved by the system, which applies the hosts file and the
+ * platform's resolver settings, and picks the address family. The answer is
+ * kept for DEFAULT_TTL_MSEC at first. A direct query to the system resolver
+ * then runs in the background, and if it gives the same address, the answer
+ * is kept for its TTL instead. An answer in the last quarter of its lifetime
+ * is still returned, but refreshed in the background, so a target measured
+ * regularly is almost never looked up in line. Each network has its own
+ * answers. Nothing runs in the background while the RRC task runs.
+ *
+ * DnsLookupTask and the DNS test of RRCTask measure lookups and must not use
+ * this cache.
+ */
+public class TargetResolver {
+  // Used until the direct query gives a TTL, and when it gives none
+  public static final long DEFAULT_TTL_MSEC = 60 * 1000;
+  // Bounds on how long an answer is used, whatever TTL the resolver gave it
+  public static final long MIN_TTL_MSEC = 10 * 1000;
+  public static final long MAX_TTL_MSEC = 60 * 60 * 1000;
+  private static final int QUERY_TIMEOUT_MSEC = 3000;
+  private static final int MAX_ENTRIES = 64;
+
+  private static class Entry {
+    final InetAddress address;
+    final long refreshTime;
+    final long expiryTime;
+    boolean refreshing = false;
+
+    Entry(InetAddress address, long ttlMsec) {
+      long now = System.currentTimeMillis();
+      this.address = address;
+      this.refreshTime = now + ttlMsec * 3 / 4;
+      this.expiryTime = now + ttlMsec;
+    }
+  }
+
+  // Least recently used first
+  private static final LinkedHashMap<String, Entry> cache =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  private TargetResolver() {}
+
+  /**
+   * Returns an address of |host|, which is either a name or a literal address.
+   *
+   * @throws UnknownHostException if the name cannot be resolved
+   */
+  public static InetAddress resolve(String host) throws UnknownHostException {
+    if (isLiteral(host)) {
+      return InetAddress.getByName(host);
+    }
+    // Answers can differ between networks, e.g. Wi-Fi and cellular
+    String key = PhoneUtils.getPhoneUtils().getNetworkIdentity() + "/" + host.toLowerCase();
+    Entry entry;
+    synchronized (cache) {
+      entry = cache.get(key);
+      long now = System.currentTimeMillis();
+      if (entry != null && now >= entry.expiryTime) {
+        cache.remove(key);
+        entry = null;
+      }
+      if (entry != null && now >= entry.refreshTime && !entry.refreshing
+          && !RRCTrafficControl.checkIfPaused()) {
+        entry.refreshing = true;
+        refreshAsync(host, key);
+      }
+    }
+    if (entry != null) {
+      return entry.address;
+    }
+    InetAddress address = lookup(host, key);
+    refineTtlAsync(host, key, address);
+    return address;
+  }
+
+  private static void refreshAsync(final String host, final String key) {
+    Thread refresher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refineTtl(host, key, lookup(host, key));
+        } catch (UnknownHostException e) {
+          // The entry expires, and the next caller sees the error
+          Logger.w("Cannot refresh the address of " + host);
+        }
+      }
+    });
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  /** Resolves |host| and caches the address the system prefers for DEFAULT_TTL_MSEC */
+  private static InetAddress lookup(String host, String key) throws UnknownHostException {
+    // May be IPv6 on a dual-stack host
+    InetAddress address = InetAddress.getAllByName(host)[0];
+    synchronized (cache) {
+      cache.put(key, new Entry(address, DEFAULT_TTL_MSEC));
+    }
+    return address;
+  }
+
+  private static void refineTtlAsync(final String host, final String key,
+      final InetAddress address) {
+    if (RRCTrafficControl.checkIfPaused()) {
+      return;
+    }
+    Thread refiner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        refineTtl(host, key, address);
+      }
+    });
+    refiner.setDaemon(true);
+    refiner.start();
+  }
+
+  /** Keeps |address| for the TTL the resolver gives it, if the resolver agrees */
+  private static void refineTtl(String host, String key, InetAddress address) {
+    long ttlMsec = getDirectTtlMsec(host, address);
+    if (ttlMsec < 0) {
+      return;
+    }
+    ttlMsec = Math.max(MIN_TTL_MSEC, Math.min(MAX_TTL_MSEC, ttlMsec));
+    synchronized (cache) {
+      Entry entry = cache.get(key);
+      // Unless another lookup replaced the answer in the meantime
+      if (entry != null && entry.address.equals(address)) {
+        cache.put(key, new Entry(address, ttlMsec));
+      }
+    }
+  }
+
+  /**
+   * Returns the TTL of |address| from a direct query to the system resolver, or
+   * -1 if the resolver cannot be queried or does not answer with |address|, as
+   * for IPv6 addresses and names from the hosts file.
+   */
+  private static long getDirectTtlMsec(String host, InetAddress address) {
+    InetAddress resolver = DnsClient.getSystemResolver();
+    if (resolver == null) {
+      return -1;
+    }
+    try {
+      DnsClient.Response response =
+          new DnsClient(resolver, DnsClient.DNS_PORT, QUERY_TIMEOUT_MSEC).query(host);
+      if (response.rcode == DnsClient.RCODE_NOERROR && response.addresses.contains(address)) {
+        return response.ttlSec * 1000;
+      }
+    } catch (IOException e) {
+      Logger.w("Direct lookup of " + host + " failed: " + e.getMessage());
+    }
+    return -1;
+  }
+
+  /** Returns whether |host| is a literal IPv4 or IPv6 address rather than a name */
+  static boolean isLiteral(String host) {
+    return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+  }
+}
@@ -28,6 +28,11 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import com.mobiperf.util.MeasurementJsonConvertor;
@@ -57,8 +62,16 @@ public class TracerouteTask extends MeasurementTask {
   public static final int EXPECTED_HOP_CNT = 20;
   public static final int DEFAULT_PINGS_PER_HOP = 3;
   
-  private Process pingProc = null;
-  private boolean stopRequested = false;
+  // Probes beyond this many TTLs at once would mostly wait for their turn
+  public static final int MAX_PARALLEL_HOPS = 16;
+  // How long to wait for the target to answer an in-process probe
+  public static final int TARGET_PROBE_TIMEOUT_MSEC = 2000;
+  
+  // The running ping processes, guarded by themselves
+  private final HashSet<Process> pingProcs = new HashSet<Process>();
+  private volatile boolean stopRequested = false;
+  private volatile UdpProbeEngine probeEngine = null;
+  private InetAddress targetAddr = null;
   
   // Track data consumption for this task to avoid exceeding user's limit
   private long dataConsumed;
@@ -81,6 +94,8 @@ public class TracerouteTask extends MeasurementTask {
     private int maxHopCount;        
     // the location of the ping binary. Only used internally
     private String pingExe;         
+    // the number of TTLs probed at once; 1 probes them one after another
+    private int parallelHops;
     
     public TracerouteDesc(String key, Date startTime,
                           Date endTime, double intervalSec, long count, long priority, 
@@ -140,6 +155,12 @@ public class TracerouteTask extends MeasurementTask {
         } else {
           this.maxHopCount = TracerouteTask.DEFAULT_MAX_HOP_CNT;
         }
+        if ((val = params.get("parallel_hops")) != null && val.length() > 0 && 
+            Integer.parseInt(val) > 0) {
+          this.parallelHops = Math.min(Integer.parseInt(val), TracerouteTask.MAX_PARALLEL_HOPS);
+        } else {
+          this.parallelHops = 1;
+        }
       } catch (NumberFormatException e) {
         throw new InvalidParameterException("PingTask cannot be created due to invalid params");
       }
@@ -172,13 +193,13 @@ public class TracerouteTask extends MeasurementTask {
     int ttl = 1;
     String hostIp = null;
     String target = task.target;
-    boolean success = false;
     ArrayList<HopInfo> hopHosts = new ArrayList<HopInfo>();
     
     Logger.d("Starting traceroute on host " + task.target);
     
     try {
-      InetAddress hostInetAddr = InetAddress.getByName(target);
+      InetAddress hostInetAddr = TargetResolver.resolve(target);
+      targetAddr = hostInetAddr;
       hostIp = hostInetAddr.getHostAddress();
       // add support for ipv6
       int ipByteLen = hostInetAddr.getAddress().length;
@@ -194,125 +215,221 @@ public class TracerouteTask extends MeasurementTask {
       Logger.e("Cannont resolve host " + target);
       throw new MeasurementError("target " + target + " cannot be resolved");
     }
-    MeasurementResult result = null;
+
+    if (task.parallelHops > 1) {
+      return parallelTraceroute(hostIp);
+    }
     
     while (maxHopCount-- >= 0 && !stopRequested) {
-      /* Current traceroute implementation sends out three ICMP probes per TTL.
-       * One ping every 0.2s is the lower bound before some platforms requires
-       * root to run ping. We ping once every time to get a rough rtt as we cannot
-       * get the exact rtt from the output of the ping command with ttl being set
-       * */
-      String command = Util.constructCommand(task.pingExe, "-n", "-t", ttl,
-        "-s", task.packetSizeByte, "-c 1", target);
-      
-      try {
-        double rtt = 0;
-        HashSet<String> hostsAtThisDistance = new HashSet<String>();
-        int effectiveTask = 0;
-        for (int i = 0; i < task.pingsPerHop; i++) {
-          pingProc = Runtime.getRuntime().exec(command);
-          
-          // Actual packet is 28 bytes larger than the size specified.
-          // Three packets are sent in each direction
-          dataConsumed += (task.packetSizeByte + 28) * 2 * 3;
-          
-          // Wait for process to finish
-          // Enforce thread timeout if pingProc doesn't respond
-          ProcWrapper procwrapper = new ProcWrapper(pingProc);
-          procwrapper.start();
-          try {
-            long pingThreadTimeout = 5000;
-            procwrapper.join(pingThreadTimeout);
-            if (procwrapper.exitStatus == null)
-              throw new TimeoutException();
-          } catch(InterruptedException ex) {
-            procwrapper.interrupt();
-            Thread.currentThread().interrupt();
-            Logger.e("Traceroute process gets interrupted");
-            cleanUp(pingProc);
-            continue;
-          } catch (TimeoutException e) {
-            Logger.e("Traceroute process timeout");
-            cleanUp(pingProc);
-            continue;
-          }
-          rtt += procwrapper.duration;
-          effectiveTask++;
-          
-          // Grab the output of the process that runs the ping command
-          InputStream is = pingProc.getInputStream();
-          BufferedReader br = new BufferedReader(new InputStreamReader(is));
-          /* Process each line of the ping output and extracts the intermediate hops into 
-           * hostAtThisDistance */ 
-          processPingOutput(br, hostsAtThisDistance, hostIp);
-          cleanUp(pingProc);
+      HopInfo hopInfo = probeHop(ttl, hostIp);
+      hopHosts.add(hopInfo);
+      if (hopInfo.hosts.contains(hostIp)) {
+        return constructResult(hopHosts);
+      }
+      ttl++;
+      updateProgress(ttl);
+    }
+    
+    Logger.e("cannot perform traceroute to " + task.target);
+    throw new MeasurementError("cannot perform traceroute to " + task.target);
+  }
+
+  /**
+   * Probes up to parallelHops TTLs at once. A TTL is handed out as soon as the
+   * lowest TTL in flight is done, and the hops are merged in TTL order, so the
+   * result is the same as that of the sequential traceroute.
+   */
+  private MeasurementResult parallelTraceroute(final String hostIp) throws MeasurementError {
+    TracerouteDesc task = (TracerouteDesc) this.measurementDesc;
+    int maxTtl = task.maxHopCount + 1;
+    int window = Math.min(task.parallelHops, maxTtl);
+    Logger.i("Probing " + window + " hops at once");
+    ExecutorService executor = Executors.newFixedThreadPool(window);
+    ArrayList<Future<HopInfo>> hops = new ArrayList<Future<HopInfo>>();
+    ArrayList<HopInfo> hopHosts = new ArrayList<HopInfo>();
+    try {
+      for (int ttl = 1; ttl <= maxTtl && !stopRequested; ttl++) {
+        while (hops.size() < Math.min(ttl - 1 + window, maxTtl)) {
+          final int nextTtl = hops.size() + 1;
+          hops.add(executor.submit(new Callable<HopInfo>() {
+            @Override
+            public HopInfo call() {
+              return probeHop(nextTtl, hostIp);
+            }
+          }));
+        }
+        HopInfo hopInfo = hops.get(ttl - 1).get();
+        hopHosts.add(hopInfo);
+        if (hopInfo.hosts.contains(hostIp)) {
+          return constructResult(hopHosts);
+        }
+        updateProgress(ttl + 1);
+      }
+    } catch (InterruptedException e) {
+      Logger.e("Traceroute gets interrupted");
+    } catch (ExecutionException e) {
+      Logger.e("Traceroute probe failed", e.getCause());
+    } finally {
+      // Probes beyond the target are no longer needed
+      executor.shutdownNow();
+      cleanUpAll();
+    }
+
+    Logger.e("cannot perform traceroute to " + task.target);
+    throw new MeasurementError("cannot perform traceroute to " + task.target);
+  }
+
+  /**
+   * Sends pingsPerHop pings with the given TTL and collects the hosts that
+   * answer them. Stops early if the thread is interrupted.
+   */
+  private HopInfo probeHop(int ttl, String hostIp) {
+    TracerouteDesc task = (TracerouteDesc) this.measurementDesc;
+    /* Current traceroute implementation sends out three ICMP probes per TTL.
+     * One ping every 0.2s is the lower bound before some platforms requires
+     * root to run ping. We ping once every time to get a rough rtt as we cannot
+     * get the exact rtt from the output of the ping command with ttl being set
+     * */
+    String command = Util.constructCommand(task.pingExe, "-n", "-t", ttl,
+      "-s", task.packetSizeByte, "-c 1", task.target);
+    
+    double rtt = 0;
+    HashSet<String> hostsAtThisDistance = new HashSet<String>();
+    int effectiveTask = 0;
+    Process pingProc = null;
+    try {
+      for (int i = 0; i < task.pingsPerHop && !stopRequested
+           && !Thread.currentThread().isInterrupted(); i++) {
+        if (i > 0) {
           try {
             Thread.sleep((long) (task.pingIntervalSec * 1000));
           } catch (InterruptedException e) {
             Logger.i("Sleep interrupted between ping intervals");
+            Thread.currentThread().interrupt();
+            break;
           }
         }
-        rtt = (effectiveTask != 0) ? (rtt / effectiveTask) : -1;
-        if (rtt == -1) {
-          String Unreachablehost = "";
-          for (int i = 0; i < task.pingsPerHop; i++) {
-            Unreachablehost += "* ";
-          }
-          hostsAtThisDistance.add(Unreachablehost);
+        pingProc = startPing(command);
+        
+        // Actual packet is 28 bytes larger than the size specified.
+        // Three packets are sent in each direction
+        addDataConsumed((task.packetSizeByte + 28) * 2 * 3);
+        
+        // Wait for process to finish
+        // Enforce thread timeout if pingProc doesn't respond
+        ProcWrapper procwrapper = new ProcWrapper(pingProc);
+        procwrapper.start();
+        try {
+          long pingThreadTimeout = 5000;
+          procwrapper.join(pingThreadTimeout);
+          if (procwrapper.exitStatus == null)
+            throw new TimeoutException();
+        } catch(InterruptedException ex) {
+          procwrapper.interrupt();
+          Thread.currentThread().interrupt();
+          Logger.e("Traceroute process gets interrupted");
+          cleanUp(pingProc);
+          continue;
+        } catch (TimeoutException e) {
+          Logger.e("Traceroute process timeout");
+          cleanUp(pingProc);
+          continue;
         }
+        rtt += procwrapper.duration;
+        effectiveTask++;
         
-        Logger.i("RTT is " + rtt);
-        hopHosts.add(new HopInfo(hostsAtThisDistance, rtt));
+        // Grab the output of the process that runs the ping command
+        InputStream is = pingProc.getInputStream();
+        BufferedReader br = new BufferedReader(new InputStreamReader(is));
+        /* Process each line of the ping output and extracts the intermediate hops into 
+         * hostAtThisDistance */ 
+        processPingOutput(br, hostsAtThisDistance, hostIp);
+        cleanUp(pingProc);
+      }
+    } catch (SecurityException e) {
+      Logger.e("Does not have the permission to run ping on this device");
+    } catch (IOException e) {
+      Logger.e("The ping program cannot be executed");
+      Logger.e(e.getMessage());
+    } finally {
+      cleanUp(pingProc);
+    }
 
-        // Process the extracted IPs of intermediate hops
-        StringBuffer progressStr = new StringBuffer(ttl + ": ");
-        for (String ip : hostsAtThisDistance) {
-          // If we have reached the final destination hostIp, print it out and clean up
-          if (ip.compareTo(hostIp) == 0) {
-            Logger.i(ttl + ": " + hostIp);
-            Logger.i(" Finished! " + target + " reached in " + ttl + " hops");
-            
-            success = true;
-            PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
-            result = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId, 
-                phoneUtils.getDeviceProperty(), TracerouteTask.TYPE, 
-                System.currentTimeMillis() * 1000, success, this.measurementDesc);
-            result.addResult("num_hops", ttl);
-            for (int i = 0; i < hopHosts.size(); i++) {
-              HopInfo hopInfo = hopHosts.get(i);
-              int hostIdx = 1;
-              for (String host : hopInfo.hosts) {
-                result.addResult("hop_" + i + "_addr_" + hostIdx++, host);
-              }
-              result.addResult("hop_" + i + "_rtt_ms", String.format("%.3f", hopInfo.rtt));
-            }
-            Logger.i(MeasurementJsonConvertor.toJsonString(result));
-            return result;
-          } else {
-            // Otherwise, we aggregate various hosts at a given hop distance for printout
-            progressStr.append(ip + " | ");
-          }
-        }
-        // Remove the trailing separators
-        progressStr.delete(progressStr.length() - 3, progressStr.length());
-        Logger.i(progressStr.toString());
+    rtt = (effectiveTask != 0) ? (rtt / effectiveTask) : -1;
+    if (rtt == -1) {
+      String Unreachablehost = "";
+      for (int i = 0; i < task.pingsPerHop; i++) {
+        Unreachablehost += "* ";
+      }
+      hostsAtThisDistance.add(Unreachablehost);
+    }
+    Logger.i(ttl + ": " + hostsAtThisDistance + " RTT is " + rtt);
+    return new HopInfo(hostsAtThisDistance, rtt);
+  }
 
-      } catch (SecurityException e) {
-        Logger.e("Does not have the permission to run ping on this device");
-      } catch (IOException e) {
-        Logger.e("The ping program cannot be executed");
-        Logger.e(e.getMessage());
-      } finally {
-        cleanUp(pingProc);
+  /**
+   * Measures the RTT to the target with in-process probes, which unlike the
+   * ping process do not include its start-up. The hop RTTs all come from the
+   * ping process and stay comparable with each other, so this one is reported
+   * on its own.
+   *
+   * @return the mean RTT in milliseconds, or -1 if the target does not answer
+   */
+  private double measureTargetRtt() {
+    TracerouteDesc task = (TracerouteDesc) this.measurementDesc;
+    UdpProbeEngine engine =
+        new UdpProbeEngine(targetAddr, task.packetSizeByte, TARGET_PROBE_TIMEOUT_MSEC);
+    probeEngine = engine;
+    try {
+      ArrayList<Double> rtts = engine.probe(task.pingsPerHop,
+          (long) (task.pingIntervalSec * 1000), Config.UDP_PROBE_GIVEUP_COUNT,
+          Config.UDP_PROBE_FIRST_TIMEOUT_MSEC);
+      if (!rtts.isEmpty()) {
+        Logger.i("Target RTT from udp probes is " + rtts);
+        return Util.getSum(rtts) / rtts.size();
       }
-      ttl++;
-      this.progress = (int) (100 * ttl / (double) TracerouteTask.EXPECTED_HOP_CNT);
-      this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, progress);
-      broadcastProgressForUser(progress);
+    } catch (IOException e) {
+      Logger.e("udp probes fail: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Logger.i("udp probes interrupted");
+      Thread.currentThread().interrupt();
+    } finally {
+      addDataConsumed(engine.getDataConsumed());
+      probeEngine = null;
     }
+    return -1;
+  }
+
+  private MeasurementResult constructResult(ArrayList<HopInfo> hopHosts) {
+    TracerouteDesc task = (TracerouteDesc) this.measurementDesc;
+    int ttl = hopHosts.size();
+    double targetUdpRtt = stopRequested ? -1 : measureTargetRtt();
+    Logger.i(" Finished! " + task.target + " reached in " + ttl + " hops");
     
-    Logger.e("cannot perform traceroute to " + task.target);
-    throw new MeasurementError("cannot perform traceroute to " + task.target);
+    PhoneUtils phoneUtils = PhoneUtils.getPhoneUtils();
+    MeasurementResult result = new MeasurementResult(phoneUtils.getDeviceInfo().deviceId, 
+        phoneUtils.getDeviceProperty(), TracerouteTask.TYPE, 
+        System.currentTimeMillis() * 1000, true, this.measurementDesc);
+    result.addResult("num_hops", ttl);
+    for (int i = 0; i < hopHosts.size(); i++) {
+      HopInfo hopInfo = hopHosts.get(i);
+      int hostIdx = 1;
+      for (String host : hopInfo.hosts) {
+        result.addResult("hop_" + i + "_addr_" + hostIdx++, host);
+      }
+      result.addResult("hop_" + i + "_rtt_ms", String.format("%.3f", hopInfo.rtt));
+    }
+    if (targetUdpRtt >= 0) {
+      result.addResult("target_udp_rtt_ms", String.format("%.3f", targetUdpRtt));
+    }
+    Logger.i(MeasurementJsonConvertor.toJsonString(result));
+    return result;
+  }
+
+  private void updateProgress(int ttl) {
+    this.progress = (int) (100 * ttl / (double) TracerouteTask.EXPECTED_HOP_CNT);
+    this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, progress);
+    broadcastProgressForUser(progress);
   }
 
   @SuppressWarnings("rawtypes")
@@ -330,13 +447,40 @@ public class TracerouteTask extends MeasurementTask {
     return DESCRIPTOR;
   }
   
+  private Process startPing(String command) throws IOException {
+    synchronized (pingProcs) {
+      if (stopRequested) {
+        throw new IOException("Traceroute stopped");
+      }
+      Process proc = Runtime.getRuntime().exec(command);
+      pingProcs.add(proc);
+      return proc;
+    }
+  }
+
   private void cleanUp(Process proc) {
     if (proc != null) {
       // destroy() closes all open streams
       proc.destroy();
+      synchronized (pingProcs) {
+        pingProcs.remove(proc);
+      }
     }
   }
 
+  private void cleanUpAll() {
+    synchronized (pingProcs) {
+      for (Process proc : pingProcs) {
+        proc.destroy();
+      }
+      pingProcs.clear();
+    }
+  }
+
+  private synchronized void addDataConsumed(long bytes) {
+    dataConsumed += bytes;
+  }
+
   private void processPingOutput(BufferedReader br, HashSet<String> hostsAtThisDistance,
       String hostIp) throws IOException {
     String line = null;
@@ -445,7 +589,11 @@ public class TracerouteTask extends MeasurementTask {
   @Override
   public void stop() {
     stopRequested = true;
-    cleanUp(pingProc);
+    UdpProbeEngine engine = probeEngine;
+    if (engine != null) {
+      engine.stop();
+    }
+    cleanUpAll();
   }
   
   // Measure the actual ping process execution time
@@ -471,7 +619,7 @@ public class TracerouteTask extends MeasurementTask {
    * Based on counting the number of pings sent
    */
   @Override
-  public long getDataConsumed() {
+  public synchronized long getDataConsumed() {
     return dataConsumed;
   }
 }
@@ -31,8 +31,11 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 
@@ -48,6 +51,14 @@ import java.util.Map;
  * 2. UDPBurst Down: the device sends a request to a remote server on a UDP port
  * and the server responds by sending a burst of UDPBurstCount packets. The size
  * of each packet is packetSizeByte
+ * 
+ * 3. UDPBurst Both: Burst Up and Burst Down run at the same time on two
+ * sockets. The server starts the downlink burst when the uplink burst of the
+ * same session arrives, so that the two overlap
+ * 
+ * 4. Capacity estimation: the device sends back-to-back packet pairs and then
+ * trains of growing length, and estimates the uplink bottleneck capacity from
+ * the dispersion of their arrivals at the server
  */
 public class UDPBurstTask extends MeasurementTask {
   public static final String TYPE = "udp_burst";
@@ -62,6 +73,17 @@ public class UDPBurstTask extends MeasurementTask {
    *                  =  36
    */
   private static final int MIN_PACKETSIZE = 36;
+  // Optional nanosecond send timestamp appended to data packets
+  private static final int NANO_TIMESTAMP_SIZE = 8;
+  // Offsets of the data packet fields that change within a burst
+  private static final int PACKET_NUM_OFFSET = 8;
+  private static final int TIMESTAMP_OFFSET = 16;
+  private static final int NANO_TIMESTAMP_OFFSET = MIN_PACKETSIZE;
+  /**
+   * Max response size = MIN_PACKETSIZE + (int delay vector size) +
+   *                     MAX_BURSTCOUNT * (varint packetNum + varint delay)
+   */
+  private static final int MAX_RESPONSE_SIZE = 1500;
   // Leave enough margin for min MTU in the link and IP options
   private static final int MAX_PACKETSIZE = 500;
   private static final int DEFAULT_UDP_PACKET_SIZE = 100;
@@ -82,10 +104,30 @@ public class UDPBurstTask extends MeasurementTask {
   private static final int RCV_UP_TIMEOUT = 2000; // round-trip delay, in msec.
   private static final int RCV_DOWN_TIMEOUT = 1000; // one-way delay, in msec
 
+  // Capacity estimation sends CAPACITY_PAIR_COUNT packet pairs, then trains of
+  // twice the length each time, within CAPACITY_DATA_BUDGET bytes
+  private static final int CAPACITY_PAIR_COUNT = 8;
+  private static final int CAPACITY_MIN_TRAIN = 4;
+  private static final int CAPACITY_DATA_BUDGET = 64 * 1024;
+  // Two trains that agree within this fraction end the estimation early
+  private static final double CAPACITY_CONVERGENCE = 0.1;
+  // Lost responses after which the server is considered unreachable
+  private static final int CAPACITY_MAX_TIMEOUTS = 2;
+  // IP and UDP headers cross the bottleneck along with the payload
+  private static final int UDP_IP_HEADER_SIZE = 28;
+  // The server sets up the burst on its first packet, which would delay the
+  // arrival time of the next one. So a short lead packet goes first and the
+  // measured packets follow after this gap, in msec
+  private static final int CAPACITY_LEAD_GAP = 2;
+  // A train sent over at least this fraction of its arrival dispersion was
+  // paced by the device rather than by the bottleneck
+  private static final double CAPACITY_PACED_RATIO = 0.9;
+
   private static final int PKT_ERROR = 1;
   private static final int PKT_RESPONSE = 2;
   private static final int PKT_DATA = 3;
   private static final int PKT_REQUEST = 4;
+  private static final int PKT_BIDIR_REQUEST = 5;
 
   private String targetIp = null;
   private Context context = null;
@@ -108,6 +150,8 @@ public class UDPBurstTask extends MeasurementTask {
     public int dstPort = UDPBurstTask.DEFAULT_PORT;
     public String target = null;
     public boolean dirUp = false;
+    public boolean bidirectional = false;
+    public boolean estimateCapacity = false;
     public int udpInterval = UDPBurstTask.DEFAULT_UDP_INTERVAL;
     
     public UDPBurstDesc(String key, Date startTime, Date endTime,
@@ -125,9 +169,11 @@ public class UDPBurstTask extends MeasurementTask {
     /**
      * There are three UDP specific parameters:
      * 
-     * 1. "direction": "up" if this is an uplink measurement. or "down"
-     * otherwise 2. "packet_burst": how many packets should a up/down burst
+     * 1. "direction": "up" if this is an uplink measurement, "both" for
+     * uplink and downlink at the same time, or "down" otherwise 2. "packet_burst": how many packets should a up/down burst
      * have 3. "packet_size_byte": the size of each packet in bytes
+     * 4. "estimate_capacity": "true" to estimate the uplink capacity instead
+     * of sending a burst
      */
     @Override
     protected void initializeParams(Map<String, String> params) {
@@ -172,10 +218,17 @@ public class UDPBurstTask extends MeasurementTask {
         throw new InvalidParameterException("UDPTask invalid params");
       }
 
+      String val = null;
+      if ((val = params.get("estimate_capacity")) != null && val.length() > 0) {
+        this.estimateCapacity = Boolean.parseBoolean(val);
+      }
+
       String dir = null;
       if ((dir = params.get("direction")) != null && dir.length() > 0) {
         if (dir.compareToIgnoreCase("Up") == 0) {
           this.dirUp = true;
+        } else if (dir.compareToIgnoreCase("Both") == 0) {
+          this.bidirectional = true;
         }
       }
     }
@@ -238,28 +291,63 @@ public class UDPBurstTask extends MeasurementTask {
     public int packetCount;
     public double outOfOrderRatio;
     public long jitter;
+    // Per-packet metrics, only available when the delay of each packet is
+    // known
+    public boolean hasDelayVector;
+    public double delayVariationMs;
+    public double relativeDelayP50Ms;
+    public double relativeDelayP95Ms;
+    public double relativeDelayMaxMs;
+    public int lossBurstCount;
+    public int maxLossBurst;
     
     public UDPResult () {
       packetCount = 0;
       outOfOrderRatio = 0.0;
       jitter = 0L;
+      hasDelayVector = false;
     }
   }
 
+  /**
+   * The result of the capacity estimation
+   */
+  private class CapacityResult {
+    // Median of the packet pair estimates, or -1 if no pair got through
+    public double pairCapacityMbps = -1;
+    // Estimate of the longest train that got through, or -1
+    public double trainCapacityMbps = -1;
+    public int pairCount = 0;
+    public int trainCount = 0;
+    public long probeBytes = 0;
+    public int timeouts = 0;
+    // Whether the estimates above only bound the capacity from below
+    public boolean pairLowerBound = false;
+    public boolean trainLowerBound = false;
+    // Whether the last probe left slower than the bottleneck
+    public boolean lastProbePaced = false;
+  }
+
   /**
    * @author Hongyi Yao (hyyao@umich.edu)
-   * This class calculates the out-of-order ratio and delay jitter
-   * in the array of received UDP packets
+   * This class calculates the out-of-order ratio, delay jitter, delay
+   * variation and loss pattern in the array of received UDP packets
    */
   private class MetricCalculator {
+    private int burstSize;
     private int maxPacketNum;
     private ArrayList<Long> offsetedDelayList;
+    private long[] delayByPacketNum;
+    private boolean[] received;
     private int packetCount;
     private int outOfOrderCount;
 
     public MetricCalculator(int burstSize) {
+      this.burstSize = burstSize;
       maxPacketNum = -1;
       offsetedDelayList = new ArrayList<Long>();
+      delayByPacketNum = new long[burstSize];
+      received = new boolean[burstSize];
       packetCount = 0;
       outOfOrderCount = 0;
     }
@@ -268,18 +356,24 @@ public class UDPBurstTask extends MeasurementTask {
      * Out-of-order packets is defined as arriving packets with sequence numbers
      * smaller than their predecessors.
      * @param packetNum: packet number in burst sequence
-     * @param timestamp: estimated one-way delay(contains clock offset)
+     * @param offsetedDelayNanos: estimated one-way delay in nanoseconds
+     *                            (contains clock offset)
      */
-    public void addPacket(int packetNum, long timestamp) {
+    public void addPacket(int packetNum, long offsetedDelayNanos) {
       if ( packetNum > maxPacketNum ) {
         maxPacketNum = packetNum;
       }
       else {
         outOfOrderCount++;
       }
-      offsetedDelayList.add(System.currentTimeMillis() - timestamp);
+      offsetedDelayList.add(offsetedDelayNanos);
+      if (packetNum >= 0 && packetNum < burstSize && !received[packetNum]) {
+        received[packetNum] = true;
+        delayByPacketNum[packetNum] = offsetedDelayNanos;
+      }
       packetCount++;
     }
+
     /**
      * Out-of-order ratio is defined as the ratio between the number of 
      * out-of-order packets and the total number of packets. 
@@ -299,7 +393,7 @@ public class UDPBurstTask extends MeasurementTask {
      * a short period(several milliseconds) since typical oscillators have no 
      * more than 100ppm of frequency error , then it will be cancelled out
      * during the calculation process
-     * @return the jitter of UDP burst
+     * @return the jitter of UDP burst in milliseconds
      */
     public long calculateJitter() {
       if ( packetCount > 1 ) {
@@ -315,12 +409,67 @@ public class UDPBurstTask extends MeasurementTask {
         }
         jitter = Math.sqrt(jitter);
         
-        return (long)jitter;
+        return (long)(jitter / 1000000);
       }
       else {
         return 0;
       }
     }
+
+    /**
+     * Fill the per-packet metrics of the result:
+     * 1. delay variation: the mean absolute difference between the one-way
+     * delays of consecutive packets that were both received[RFC3393]
+     * 2. relative delay percentiles: one-way delay above the smallest delay in
+     * the burst, which cancels the clock offset
+     * 3. loss pattern: the number of runs of lost packets and the longest run
+     * @param udpResult result to be filled
+     */
+    public void fillDelayVectorMetrics(UDPResult udpResult) {
+      long[] relativeDelays = new long[burstSize];
+      int receivedCount = 0;
+      long minDelay = Long.MAX_VALUE;
+      double variationSum = 0;
+      int variationCount = 0;
+      int lossRun = 0;
+      for (int i = 0; i < burstSize; i++) {
+        if (received[i]) {
+          relativeDelays[receivedCount++] = delayByPacketNum[i];
+          minDelay = Math.min(minDelay, delayByPacketNum[i]);
+          if (i > 0 && received[i - 1]) {
+            variationSum += Math.abs(delayByPacketNum[i] - delayByPacketNum[i - 1]);
+            variationCount++;
+          }
+          lossRun = 0;
+        } else {
+          if (lossRun == 0) {
+            udpResult.lossBurstCount++;
+          }
+          lossRun++;
+          udpResult.maxLossBurst = Math.max(udpResult.maxLossBurst, lossRun);
+        }
+      }
+      udpResult.hasDelayVector = true;
+      if (receivedCount == 0) {
+        return;
+      }
+
+      for (int i = 0; i < receivedCount; i++) {
+        relativeDelays[i] -= minDelay;
+      }
+      Arrays.sort(relativeDelays, 0, receivedCount);
+      udpResult.delayVariationMs =
+          variationCount == 0 ? 0.0 : variationSum / variationCount / 1e6;
+      udpResult.relativeDelayP50Ms = percentile(relativeDelays, receivedCount, 50) / 1e6;
+      udpResult.relativeDelayP95Ms = percentile(relativeDelays, receivedCount, 95) / 1e6;
+      udpResult.relativeDelayMaxMs = relativeDelays[receivedCount - 1] / 1e6;
+    }
+
+    /** Nearest-rank percentile of the first count values of sorted */
+    private long percentile(long[] sorted, int count, int percent) {
+      int rank = (int) Math.ceil(percent / 100.0 * count);
+      return sorted[Math.max(rank, 1) - 1];
+    }
   }
 
   /**
@@ -338,6 +487,14 @@ public class UDPBurstTask extends MeasurementTask {
     public int packetSize;
     public int seq;
     public int udpInterval;
+    // Optional trailer of data packets: monotonic send time in nanoseconds
+    public boolean hasNanoTimestamp;
+    public long nanoTimestamp;
+    // Optional trailer of response packets: the number and the offseted
+    // one-way delay in nanoseconds of every packet the server received, in
+    // arrival order
+    public int[] arrivalPacketNum;
+    public long[] arrivalDelayNanos;
 
     /**
      * Create an empty structure
@@ -349,11 +506,12 @@ public class UDPBurstTask extends MeasurementTask {
      * Unpack received message and fill the structure
      * @param cliId corresponding client identifier
      * @param rawdata network message
+     * @param length size of the network message in rawdata
      * @throws MeasurementError stream reader failed
      */
-    public UDPPacket(byte[] rawdata)
+    public UDPPacket(byte[] rawdata, int length)
         throws MeasurementError{
-      ByteArrayInputStream byteIn = new ByteArrayInputStream(rawdata);
+      ByteArrayInputStream byteIn = new ByteArrayInputStream(rawdata, 0, length);
       DataInputStream dataIn = new DataInputStream(byteIn);
       
       try {
@@ -365,6 +523,25 @@ public class UDPBurstTask extends MeasurementTask {
         packetSize = dataIn.readInt();
         seq = dataIn.readInt();
         udpInterval = dataIn.readInt();
+
+        if (type == PKT_DATA && length >= MIN_PACKETSIZE + NANO_TIMESTAMP_SIZE) {
+          hasNanoTimestamp = true;
+          nanoTimestamp = dataIn.readLong();
+        } else if (type == PKT_RESPONSE && length > MIN_PACKETSIZE) {
+          int count = dataIn.readInt();
+          if (count < 0 || count > MAX_BURSTCOUNT) {
+            throw new MeasurementError("Invalid delay vector size " + count);
+          }
+          arrivalPacketNum = new int[count];
+          arrivalDelayNanos = new long[count];
+          long delay = 0;
+          for (int i = 0; i < count; i++) {
+            arrivalPacketNum[i] = (int) readVarint(dataIn);
+            long zigzag = readVarint(dataIn);
+            delay += (zigzag >>> 1) ^ -(zigzag & 1);
+            arrivalDelayNanos[i] = delay;
+          }
+        }
       } catch (IOException e) {
         throw new MeasurementError("Fetch payload failed! " + e.getMessage());
       }
@@ -395,6 +572,9 @@ public class UDPBurstTask extends MeasurementTask {
         dataOut.writeInt(packetSize);
         dataOut.writeInt(seq);
         dataOut.writeInt(udpInterval);
+        if (type == PKT_DATA && hasNanoTimestamp) {
+          dataOut.writeLong(nanoTimestamp);
+        }
       } catch (IOException e) {
         throw new MeasurementError("Create rawpacket failed! " + e.getMessage());
       }
@@ -409,71 +589,107 @@ public class UDPBurstTask extends MeasurementTask {
       return rawPacket; 
     }
 
+    private long readVarint(DataInputStream dataIn) throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = dataIn.readUnsignedByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
   }
   
   /**
-   * Opens a Datagram socket to the server included in the UDPDesc and sends a
-   * burst of UDPBurstCount packets, each of size packetSizeByte.
-   * 
-   * @return a Datagram socket that can be used to receive the server's
-   *         response
+   * Resolves the server's name in the UDPDesc
    * 
+   * @return the server's address
    * @throws MeasurementError
-   *             if an error occurred.
+   *             if the name cannot be resolved
    */
-  private DatagramSocket sendUpBurst() throws MeasurementError {
+  private InetAddress resolveTarget() throws MeasurementError {
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
-    InetAddress addr = null;
-    // Resolve the server's name
     try {
-      addr = InetAddress.getByName(desc.target);
+      InetAddress addr = TargetResolver.resolve(desc.target);
       targetIp = addr.getHostAddress();
+      return addr;
     } catch (UnknownHostException e) {
       throw new MeasurementError("Unknown host " + desc.target);
     }
+  }
+
+  /**
+   * Sends a burst of UDPBurstCount packets, each of size packetSizeByte, to
+   * the server included in the UDPDesc.
+   * 
+   * @param sock
+   *            the socket used to send the burst and receive the server's
+   *            response
+   * @param addr
+   *            the server's address
+   * 
+   * @throws MeasurementError
+   *             if an error occurred.
+   */
+  private void sendUpBurst(DatagramSocket sock, InetAddress addr)
+      throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
 
-    DatagramSocket sock = null;
-    sock = openSocket();
-    
     UDPPacket dataPacket = new UDPPacket();
+    dataPacket.type = UDPBurstTask.PKT_DATA;
+    dataPacket.burstCount = desc.udpBurstCount;
+    dataPacket.packetSize = desc.packetSizeByte;
+    dataPacket.seq = seq;
+    // Servers without nano timestamp support ignore the trailer
+    dataPacket.hasNanoTimestamp = true;
+    // Flatten UDP packet once. Only the packet number and the timestamps
+    // change within a burst, so they are patched in place and the same
+    // datagram is sent again, which keeps allocation out of the send loop
+    byte[] data = dataPacket.getByteArray();
+    ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+    DatagramPacket packet = new DatagramPacket(data, data.length, addr,
+        desc.dstPort);
+    long[] sendNanos = new long[desc.udpBurstCount];
+
+    // Packet i is sent at i * udpInterval after the first one, so the time
+    // spent sending does not add up over the burst
+    long intervalNanos = desc.udpInterval * 1000000L;
+    long startNanos = System.nanoTime();
     // Send burst
     for (int i = 0; i < desc.udpBurstCount; i++) {
-      dataPacket.type = UDPBurstTask.PKT_DATA;
-      dataPacket.burstCount = desc.udpBurstCount;
-      dataPacket.packetNum = i;
-      dataPacket.timestamp = System.currentTimeMillis();
-      dataPacket.packetSize = desc.packetSizeByte;
-      dataPacket.seq = seq;
-      // Flatten UDP packet
-      byte[] data = dataPacket.getByteArray();
-
-      DatagramPacket packet = new DatagramPacket(data, data.length, addr,
-          desc.dstPort);
-      
+      long waitNanos = startNanos + i * intervalNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        try {
+          Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+          Logger.e("Error: sleep interrupted!");
+        }
+      }
+
+      dataBuffer.putInt(PACKET_NUM_OFFSET, i);
+      dataBuffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+      sendNanos[i] = System.nanoTime();
+      dataBuffer.putLong(NANO_TIMESTAMP_OFFSET, sendNanos[i]);
       try {
         sock.send(packet);
-        dataConsumed += packet.getLength();
       } catch (IOException e) {
-        sock.close();
         throw new MeasurementError("Error sending " + desc.target);
       }
-      Logger.i("Sent packet pnum:" + i + " to " + desc.target + ": "
-          + targetIp);
-
-      // Update progress bar, leave the last grid for receiving response
-      this.progress = 100 * i / (desc.udpBurstCount + 1);
-      this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, progress);
-      broadcastProgressForUser(this.progress);
-      
-      // Sleep udpInterval millisecond
-      try {
-        Thread.sleep(desc.udpInterval);
-        Logger.i("UDP Burst sleep " + desc.udpInterval + "ms");
-      } catch (InterruptedException e) {
-        Logger.e("Error: sleep interrupted!");
-      }
     } // for()
-    return sock;
+    addDataConsumed((long) data.length * desc.udpBurstCount);
+
+    // Logging and progress updates are left until the burst is over so that
+    // they do not disturb the pacing
+    for (int i = 0; i < desc.udpBurstCount; i++) {
+      Logger.i("Sent packet pnum:" + i + " to " + desc.target + ": "
+          + targetIp + " at +" + (sendNanos[i] - startNanos) / 1000 + "us");
+    }
+    // Update progress bar, leave the last grid for receiving response
+    this.progress = 100 * desc.udpBurstCount / (desc.udpBurstCount + 1);
+    this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, progress);
+    broadcastProgressForUser(this.progress);
   }
 
   /**
@@ -496,21 +712,20 @@ public class UDPBurstTask extends MeasurementTask {
     Logger.i("Waiting for UDP response from " + desc.target + ": "
         + targetIp);
 
-    byte buffer[] = new byte[UDPBurstTask.MIN_PACKETSIZE];
+    byte buffer[] = new byte[UDPBurstTask.MAX_RESPONSE_SIZE];
     DatagramPacket recvPacket = new DatagramPacket(buffer, buffer.length);
 
     try {
       sock.setSoTimeout(RCV_UP_TIMEOUT);
       sock.receive(recvPacket);
     } catch (SocketException e1) {
-      sock.close();
       throw new MeasurementError("Timed out reading from " + desc.target);
     } catch (IOException e) {
-      sock.close();
       throw new MeasurementError("Error reading from " + desc.target);
     }
     // Reconstruct UDP packet from flattened network data
-    UDPPacket responsePacket = new UDPPacket(recvPacket.getData());
+    UDPPacket responsePacket = new UDPPacket(recvPacket.getData(),
+        recvPacket.getLength());
 
     if ( responsePacket.type == PKT_RESPONSE ) {
       // Received seq number must be same with client seq
@@ -532,6 +747,19 @@ public class UDPBurstTask extends MeasurementTask {
       udpResult.outOfOrderRatio = 
           (double)responsePacket.outOfOrderNum / responsePacket.packetNum;
       udpResult.jitter = responsePacket.timestamp;
+
+      // Servers with nano timestamp support send back the delay of each packet
+      if (responsePacket.arrivalPacketNum != null
+          && responsePacket.arrivalPacketNum.length > 0) {
+        MetricCalculator metricCalculator = new MetricCalculator(
+            desc.udpBurstCount);
+        for (int i = 0; i < responsePacket.arrivalPacketNum.length; i++) {
+          metricCalculator.addPacket(responsePacket.arrivalPacketNum[i],
+              responsePacket.arrivalDelayNanos[i]);
+        }
+        udpResult.jitter = metricCalculator.calculateJitter();
+        metricCalculator.fillDelayVectorMetrics(udpResult);
+      }
       return udpResult;
     }
     else {
@@ -540,35 +768,29 @@ public class UDPBurstTask extends MeasurementTask {
   }
 
   /**
-   * Opens a datagram socket to the server in the UDPDesc and requests the
-   * server to send a burst of UDPBurstCount packets, each of packetSizeByte
-   * bytes.
+   * Requests the server in the UDPDesc to send a burst of UDPBurstCount
+   * packets, each of packetSizeByte bytes.
    * 
-   * @return the datagram socket used to receive the server's burst
+   * @param sock
+   *            the datagram socket used to receive the server's burst
+   * @param addr
+   *            the server's address
+   * @param bidirectional
+   *            whether the server should hold the burst until the uplink
+   *            burst of the same session arrives
    * @throws MeasurementError
    *             if an error occurs
    */
-  private DatagramSocket sendDownRequest() throws MeasurementError {
+  private void sendDownRequest(DatagramSocket sock, InetAddress addr,
+      boolean bidirectional) throws MeasurementError {
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
     DatagramPacket packet;
-    InetAddress addr = null;
-
-    // Resolve the server's name
-    try {
-      addr = InetAddress.getByName(desc.target);
-      targetIp = addr.getHostAddress();
-    } catch (UnknownHostException e) {
-      throw new MeasurementError("Unknown host " + desc.target);
-    }
-
-    DatagramSocket sock = null;
-    sock = openSocket();
 
     Logger.i("Requesting UDP burst:" + desc.udpBurstCount + " pktsize: "
         + desc.packetSizeByte + " to " + desc.target + ": " + targetIp);
 
     UDPPacket requestPacket = new UDPPacket();
-    requestPacket.type = PKT_REQUEST;
+    requestPacket.type = bidirectional ? PKT_BIDIR_REQUEST : PKT_REQUEST;
     requestPacket.burstCount = desc.udpBurstCount;
     requestPacket.packetSize = desc.packetSizeByte;
     requestPacket.seq = seq;
@@ -579,9 +801,8 @@ public class UDPBurstTask extends MeasurementTask {
 
     try { 
       sock.send(packet);
-      dataConsumed += packet.getLength();
+      addDataConsumed(packet.getLength());
     } catch (IOException e) {
-      sock.close();
       throw new MeasurementError("Error sending " + desc.target);
     }
     
@@ -589,8 +810,6 @@ public class UDPBurstTask extends MeasurementTask {
     this.progress = 100 * 1 / (desc.udpBurstCount + 1);
     this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, progress);
     broadcastProgressForUser(this.progress);
-    
-    return sock;
   }
 
   /**
@@ -600,32 +819,39 @@ public class UDPBurstTask extends MeasurementTask {
    * @param sock
    *            the datagram socket that can be used to receive the server's
    *            burst
+   * @param firstTimeout
+   *            how long to wait for the first packet, in msec
    * 
    * @return the number of packets received from the server
    * @throws MeasurementError
    *             if an error occurs
    */
-  private UDPResult recvDownResponse(DatagramSocket sock)
+  private UDPResult recvDownResponse(DatagramSocket sock, int firstTimeout)
       throws MeasurementError {    
     int pktRecv = 0;
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
 
     // Reconstruct UDP packet from flattened network data
-    byte buffer[] = new byte[desc.packetSizeByte];
+    byte buffer[] = new byte[Math.max(desc.packetSizeByte,
+        MIN_PACKETSIZE + NANO_TIMESTAMP_SIZE)];
     DatagramPacket recvPacket = new DatagramPacket(buffer, buffer.length);
     MetricCalculator metricCalculator = new MetricCalculator(
       desc.udpBurstCount);
+    boolean allNanoTimestamps = true;
     for (int i = 0; i < desc.udpBurstCount; i++) {
+      long receivedNanos;
       try {
-        sock.setSoTimeout(RCV_DOWN_TIMEOUT);
+        sock.setSoTimeout(i == 0 ? firstTimeout : RCV_DOWN_TIMEOUT);
         sock.receive(recvPacket);
+        receivedNanos = System.nanoTime();
       } catch (IOException e) {
         break;
       }
 
-      dataConsumed += recvPacket.getLength();
+      addDataConsumed(recvPacket.getLength());
 
-      UDPPacket dataPacket = new UDPPacket(recvPacket.getData());
+      UDPPacket dataPacket = new UDPPacket(recvPacket.getData(),
+          recvPacket.getLength());
       if (dataPacket.type == UDPBurstTask.PKT_DATA) {
         // Received seq number must be same with client seq
         if ( dataPacket.seq != seq ) {
@@ -644,7 +870,14 @@ public class UDPBurstTask extends MeasurementTask {
         broadcastProgressForUser(this.progress);
 
         pktRecv++;
-        metricCalculator.addPacket(dataPacket.packetNum, dataPacket.timestamp);
+        if (dataPacket.hasNanoTimestamp) {
+          metricCalculator.addPacket(dataPacket.packetNum,
+              receivedNanos - dataPacket.nanoTimestamp);
+        } else {
+          allNanoTimestamps = false;
+          metricCalculator.addPacket(dataPacket.packetNum,
+              (System.currentTimeMillis() - dataPacket.timestamp) * 1000000L);
+        }
       }
       else {
         throw new MeasurementError("Error: not a data packet! seq: " + seq);
@@ -655,9 +888,305 @@ public class UDPBurstTask extends MeasurementTask {
     udpResult.packetCount = pktRecv;
     udpResult.outOfOrderRatio = metricCalculator.calculateOutOfOrderRatio();
     udpResult.jitter = metricCalculator.calculateJitter();
+    if (allNanoTimestamps) {
+      metricCalculator.fillDelayVectorMetrics(udpResult);
+    }
     return udpResult;
   }
 
+  /**
+   * Receives the server's response to the uplink burst with sequence number
+   * expectedSeq, skipping the late responses to earlier bursts.
+   * 
+   * @param sock
+   *            the socket used to send the burst
+   * @param expectedSeq
+   *            sequence number of the burst
+   * @return the response packet
+   * @throws MeasurementError
+   *             if no response arrives in time
+   */
+  private UDPPacket recvResponse(DatagramSocket sock, int expectedSeq)
+      throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    byte buffer[] = new byte[UDPBurstTask.MAX_RESPONSE_SIZE];
+    DatagramPacket recvPacket = new DatagramPacket(buffer, buffer.length);
+    long deadline = System.currentTimeMillis() + RCV_UP_TIMEOUT;
+    while (true) {
+      int timeout = (int) (deadline - System.currentTimeMillis());
+      if (timeout <= 0) {
+        throw new MeasurementError("Timed out reading from " + desc.target);
+      }
+      try {
+        sock.setSoTimeout(timeout);
+        sock.receive(recvPacket);
+      } catch (IOException e) {
+        throw new MeasurementError("Timed out reading from " + desc.target);
+      }
+      addDataConsumed(recvPacket.getLength());
+
+      UDPPacket responsePacket = new UDPPacket(recvPacket.getData(),
+          recvPacket.getLength());
+      if (responsePacket.type == PKT_RESPONSE
+          && responsePacket.seq == expectedSeq) {
+        return responsePacket;
+      }
+      Logger.i("Ignoring UDP packet type:" + responsePacket.type + " seq:"
+          + responsePacket.seq + " while waiting for seq " + expectedSeq);
+    }
+  }
+
+  /**
+   * Sends a back-to-back train of MAX_PACKETSIZE byte packets, after a lead
+   * packet, and estimates the bottleneck capacity from the dispersion of the
+   * arrivals reported by the server: the bottleneck spaces the packets by the
+   * time it takes to transmit one of them.
+   * 
+   * @param sock
+   *            the socket used to send the train
+   * @param addr
+   *            the server's address
+   * @param trainLength
+   *            the number of packets, 2 for a packet pair
+   * @param capacityResult
+   *            accumulates the bytes sent and the lost responses, and records
+   *            whether the train left slower than the bottleneck
+   * @return the capacity in Mbps, or -1 if the train lost or reordered packets
+   * @throws MeasurementError
+   *             if the server cannot be reached
+   */
+  private double probeCapacity(DatagramSocket sock, InetAddress addr,
+      int trainLength, CapacityResult capacityResult) throws MeasurementError {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    // Every train is a burst of its own for the server
+    seq++;
+
+    UDPPacket dataPacket = new UDPPacket();
+    dataPacket.type = UDPBurstTask.PKT_DATA;
+    dataPacket.burstCount = trainLength + 1;
+    dataPacket.packetSize = MAX_PACKETSIZE;
+    dataPacket.seq = seq;
+    dataPacket.hasNanoTimestamp = true;
+    // Pad the packets, the dispersion grows with the packet size
+    byte[] data = new byte[MAX_PACKETSIZE];
+    byte[] header = dataPacket.getByteArray();
+    System.arraycopy(header, 0, data, 0, header.length);
+    ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+    DatagramPacket packet = new DatagramPacket(data, data.length, addr,
+        desc.dstPort);
+    long[] sendNanos = new long[trainLength + 1];
+
+    for (int i = 0; i <= trainLength; i++) {
+      dataBuffer.putInt(PACKET_NUM_OFFSET, i);
+      dataBuffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+      sendNanos[i] = System.nanoTime();
+      dataBuffer.putLong(NANO_TIMESTAMP_OFFSET, sendNanos[i]);
+      packet.setLength(i == 0 ? header.length : data.length);
+      try {
+        sock.send(packet);
+      } catch (IOException e) {
+        throw new MeasurementError("Error sending " + desc.target);
+      }
+      if (i == 0) {
+        try {
+          Thread.sleep(CAPACITY_LEAD_GAP);
+        } catch (InterruptedException e) {
+          Logger.e("Error: sleep interrupted!");
+        }
+      }
+    }
+    long bytesSent = header.length + (long) data.length * trainLength;
+    addDataConsumed(bytesSent);
+    capacityResult.probeBytes += bytesSent;
+
+    UDPPacket responsePacket;
+    try {
+      responsePacket = recvResponse(sock, seq);
+    } catch (MeasurementError e) {
+      if (++capacityResult.timeouts >= CAPACITY_MAX_TIMEOUTS) {
+        throw e;
+      }
+      return -1;
+    }
+    if (responsePacket.arrivalPacketNum == null) {
+      throw new MeasurementError("Server does not report packet arrivals");
+    }
+    if (responsePacket.arrivalPacketNum.length != trainLength + 1) {
+      return -1;
+    }
+    for (int i = 0; i <= trainLength; i++) {
+      if (responsePacket.arrivalPacketNum[i] != i) {
+        return -1;
+      }
+    }
+
+    // Delays contain the offset between the two clocks, which cancels out
+    long dispersionNanos = sendNanos[trainLength]
+        + responsePacket.arrivalDelayNanos[trainLength]
+        - sendNanos[1] - responsePacket.arrivalDelayNanos[1];
+    if (dispersionNanos <= 0) {
+      return -1;
+    }
+    double bits = (trainLength - 1) * (MAX_PACKETSIZE + UDP_IP_HEADER_SIZE) * 8.0;
+    double capacityMbps = bits / dispersionNanos * 1000;
+    // A train that left slower than the bottleneck arrives as spread as it
+    // left, so its dispersion rate only gives a lower bound
+    long sendSpreadNanos = sendNanos[trainLength] - sendNanos[1];
+    capacityResult.lastProbePaced =
+        sendSpreadNanos >= CAPACITY_PACED_RATIO * dispersionNanos;
+    Logger.i("Capacity probe of " + trainLength + " packets: dispersion "
+        + dispersionNanos / 1000 + "us, sent in " + sendSpreadNanos / 1000
+        + "us, " + capacityMbps + "Mbps"
+        + (capacityResult.lastProbePaced ? " (lower bound)" : ""));
+    return capacityMbps;
+  }
+
+  /**
+   * Estimates the uplink bottleneck capacity within CAPACITY_DATA_BUDGET
+   * bytes. Packet pairs are prone to the cross traffic, so their median is
+   * checked against trains of growing length, whose dispersion rate is a
+   * lower bound of the capacity. The trains stop once two of them agree.
+   * 
+   * @param sock
+   *            the socket used to send the probes
+   * @param addr
+   *            the server's address
+   * @return the capacity estimates
+   * @throws MeasurementError
+   *             if the server cannot be reached
+   */
+  private CapacityResult estimateCapacity(DatagramSocket sock,
+      InetAddress addr) throws MeasurementError {
+    CapacityResult capacityResult = new CapacityResult();
+    ArrayList<Double> pairEstimates = new ArrayList<Double>();
+    // Pairs that left slower than the bottleneck, used only without others
+    ArrayList<Double> pacedPairEstimates = new ArrayList<Double>();
+    for (int i = 0; i < CAPACITY_PAIR_COUNT && capacityResult.probeBytes
+        + 2 * MAX_PACKETSIZE <= CAPACITY_DATA_BUDGET; i++) {
+      double estimate = probeCapacity(sock, addr, 2, capacityResult);
+      if (estimate > 0) {
+        (capacityResult.lastProbePaced ? pacedPairEstimates : pairEstimates)
+            .add(estimate);
+      }
+      updateCapacityProgress(capacityResult);
+    }
+    if (pairEstimates.isEmpty() && !pacedPairEstimates.isEmpty()) {
+      pairEstimates = pacedPairEstimates;
+      capacityResult.pairLowerBound = true;
+    }
+    capacityResult.pairCount = pairEstimates.size();
+    if (!pairEstimates.isEmpty()) {
+      Collections.sort(pairEstimates);
+      capacityResult.pairCapacityMbps =
+          pairEstimates.get(pairEstimates.size() / 2);
+    }
+
+    double previous = -1;
+    for (int length = CAPACITY_MIN_TRAIN; length < MAX_BURSTCOUNT
+        && capacityResult.probeBytes + length * MAX_PACKETSIZE
+        <= CAPACITY_DATA_BUDGET; length *= 2) {
+      double estimate = probeCapacity(sock, addr, length, capacityResult);
+      updateCapacityProgress(capacityResult);
+      if (estimate <= 0) {
+        continue;
+      }
+      capacityResult.trainCapacityMbps = estimate;
+      capacityResult.trainLowerBound = capacityResult.lastProbePaced;
+      capacityResult.trainCount++;
+      if (previous > 0
+          && Math.abs(estimate - previous) <= CAPACITY_CONVERGENCE * previous) {
+        break;
+      }
+      previous = estimate;
+    }
+
+    if (capacityResult.pairCount == 0 && capacityResult.trainCount == 0) {
+      throw new MeasurementError("No capacity probe got through to "
+          + ((UDPBurstDesc) measurementDesc).target);
+    }
+    return capacityResult;
+  }
+
+  private void updateCapacityProgress(CapacityResult capacityResult) {
+    this.progress = (int) (100 * capacityResult.probeBytes / CAPACITY_DATA_BUDGET);
+    this.progress = Math.min(Config.MAX_PROGRESS_BAR_VALUE, progress);
+    broadcastProgressForUser(this.progress);
+  }
+
+  /**
+   * Runs the uplink and downlink bursts at the same time. The downlink burst
+   * is received on its own thread while this thread sends the uplink burst
+   * and waits for the server's response.
+   * 
+   * @param addr
+   *            the server's address
+   * @param downSocket
+   *            the socket receiving the downlink burst
+   * @param upSocket
+   *            the socket sending the uplink burst
+   * @return the uplink and the downlink result, in that order
+   * @throws MeasurementError
+   *             if either direction fails
+   */
+  private UDPResult[] sendBidirectionalBurst(InetAddress addr,
+      final DatagramSocket downSocket, DatagramSocket upSocket)
+      throws MeasurementError {
+    final UDPResult[] downResult = new UDPResult[1];
+    final MeasurementError[] downError = new MeasurementError[1];
+
+    sendDownRequest(downSocket, addr, true);
+    Thread downThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // The server waits up to a one-way delay for the uplink burst
+          // before it starts the downlink burst anyway
+          downResult[0] = recvDownResponse(downSocket, RCV_UP_TIMEOUT);
+        } catch (MeasurementError e) {
+          downError[0] = e;
+        }
+      }
+    });
+    downThread.start();
+
+    // If the uplink fails, closing downSocket ends the downlink thread
+    sendUpBurst(upSocket, addr);
+    UDPResult upResult = recvUpResponse(upSocket);
+    try {
+      downThread.join();
+    } catch (InterruptedException e) {
+      throw new MeasurementError("Interrupted waiting for the downlink burst");
+    }
+    if (downError[0] != null) {
+      throw downError[0];
+    }
+    return new UDPResult[] {upResult, downResult[0]};
+  }
+
+  /**
+   * Adds the values of one direction's result, with names starting with
+   * prefix
+   */
+  private void addUDPResult(MeasurementResult result, String prefix,
+      UDPResult udpResult) {
+    UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
+    result.addResult(prefix + "loss_ratio",
+        1.0 - udpResult.packetCount / (float) desc.udpBurstCount);
+    result.addResult(prefix + "out_of_order_ratio", udpResult.outOfOrderRatio);
+    result.addResult(prefix + "jitter", udpResult.jitter);
+    if (udpResult.hasDelayVector) {
+      result.addResult(prefix + "delay_variation_ms", udpResult.delayVariationMs);
+      result.addResult(prefix + "relative_delay_p50_ms",
+          udpResult.relativeDelayP50Ms);
+      result.addResult(prefix + "relative_delay_p95_ms",
+          udpResult.relativeDelayP95Ms);
+      result.addResult(prefix + "relative_delay_max_ms",
+          udpResult.relativeDelayMaxMs);
+      result.addResult(prefix + "loss_burst_count", udpResult.lossBurstCount);
+      result.addResult(prefix + "max_loss_burst", udpResult.maxLossBurst);
+    }
+  }
+
   /**
    * Depending on the type of measurement, indicated by desc.Up, perform an
    * uplink/downlink measurement
@@ -669,9 +1198,10 @@ public class UDPBurstTask extends MeasurementTask {
   @Override
   public MeasurementResult call() throws MeasurementError {
     DatagramSocket socket = null;
-    float response = 0.0F;
-    UDPResult udpResult;
-    int pktRecv = 0;
+    DatagramSocket upSocket = null;
+    UDPResult udpResult = null;
+    UDPResult[] bidirectionalResult = null;
+    CapacityResult capacityResult = null;
     boolean isMeasurementSuccessful = false;
 
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
@@ -696,19 +1226,21 @@ public class UDPBurstTask extends MeasurementTask {
 
     Logger.i("Running UDPBurstTask on " + desc.target);
     try {
-      if (desc.dirUp == true) {
-        socket = sendUpBurst();
+      InetAddress addr = resolveTarget();
+      socket = openSocket();
+      if (desc.estimateCapacity) {
+        capacityResult = estimateCapacity(socket, addr);
+      } else if (desc.bidirectional) {
+        upSocket = openSocket();
+        bidirectionalResult = sendBidirectionalBurst(addr, socket, upSocket);
+      } else if (desc.dirUp == true) {
+        sendUpBurst(socket, addr);
         udpResult = recvUpResponse(socket);
-        pktRecv = udpResult.packetCount;
-        response = pktRecv / (float) desc.udpBurstCount;
-        isMeasurementSuccessful = true;
       } else {
-        socket = sendDownRequest();
-        udpResult = recvDownResponse(socket);
-        pktRecv = udpResult.packetCount;
-        response = pktRecv / (float) desc.udpBurstCount;
-        isMeasurementSuccessful = true;
+        sendDownRequest(socket, addr, false);
+        udpResult = recvDownResponse(socket, RCV_DOWN_TIMEOUT);
       }
+      isMeasurementSuccessful = true;
     } catch (MeasurementError e) {
       throw e;
     } finally {
@@ -717,7 +1249,12 @@ public class UDPBurstTask extends MeasurementTask {
       //    succeeded or not. It ensures previous last UDP burst's packets
       //    will not affect the current one.
       seq++;
-      socket.close();
+      if (socket != null) {
+        socket.close();
+      }
+      if (upSocket != null) {
+        upSocket.close();
+      }
     }
 
     MeasurementResult result = new MeasurementResult(
@@ -727,9 +1264,25 @@ public class UDPBurstTask extends MeasurementTask {
         this.measurementDesc);
 
     result.addResult("target_ip", targetIp);
-    result.addResult("loss_ratio", 1.0 - response);  
-    result.addResult("out_of_order_ratio", udpResult.outOfOrderRatio);
-    result.addResult("jitter", udpResult.jitter);
+    if (capacityResult != null) {
+      // Capacity is at least the dispersion rate of the trains
+      boolean pairChosen =
+          capacityResult.pairCapacityMbps >= capacityResult.trainCapacityMbps;
+      result.addResult("capacity_mbps", Math.max(
+          capacityResult.pairCapacityMbps, capacityResult.trainCapacityMbps));
+      result.addResult("capacity_lower_bound", pairChosen
+          ? capacityResult.pairLowerBound : capacityResult.trainLowerBound);
+      result.addResult("pair_capacity_mbps", capacityResult.pairCapacityMbps);
+      result.addResult("train_capacity_mbps", capacityResult.trainCapacityMbps);
+      result.addResult("capacity_pairs", capacityResult.pairCount);
+      result.addResult("capacity_trains", capacityResult.trainCount);
+      result.addResult("capacity_probe_bytes", capacityResult.probeBytes);
+    } else if (bidirectionalResult != null) {
+      addUDPResult(result, "up_", bidirectionalResult[0]);
+      addUDPResult(result, "down_", bidirectionalResult[1]);
+    } else {
+      addUDPResult(result, "", udpResult);
+    }
     return result;
   }
 
@@ -769,7 +1322,11 @@ public class UDPBurstTask extends MeasurementTask {
     UDPBurstDesc desc = (UDPBurstDesc) measurementDesc;
     String resp;
 
-    if (desc.dirUp) {
+    if (desc.estimateCapacity) {
+      resp = "[UDPCapacity]\n";
+    } else if (desc.bidirectional) {
+      resp = "[UDPBidirectional]\n";
+    } else if (desc.dirUp) {
       resp = "[UDPUp]\n";
     } else {
       resp = "[UDPDown]\n";
@@ -785,7 +1342,12 @@ public class UDPBurstTask extends MeasurementTask {
    * Based on a direct accounting of UDP packet sizes.
    */
   @Override
-  public long getDataConsumed() {
+  public synchronized long getDataConsumed() {
     return dataConsumed;
   }
+
+  // Both directions of a bidirectional burst account their packets here
+  private synchronized void addDataConsumed(long bytes) {
+    dataConsumed += bytes;
+  }
 }
@@ -0,0 +1,162 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiperf.measurements;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+/**
+ * Measures round trip times in-process, without forking the ping binary.
+ *
+ * Java offers no ICMP sockets, so a probe is a UDP datagram to a port of the
+ * target that is almost certainly closed, as in traceroute. The target answers
+ * with an ICMP port unreachable, which a connected socket reports as a
+ * PortUnreachableException from the next receive. A reply from a service that
+ * happens to listen on the port counts as well. Every probe uses its own socket,
+ * so an answer always belongs to the probe that caused it.
+ *
+ * Many hosts and firewalls drop such probes or do not answer them. The probes
+ * then give up early, and callers should fall back to the ping command.
+ */
+public class UdpProbeEngine {
+  // The first port of the range traceroute uses, which services avoid
+  public static final int BASE_PORT = 33434;
+  private static final int PORT_RANGE = 64;
+  // IP and UDP headers of each probe
+  private static final int UDP_IP_HEADER_SIZE = 28;
+
+  private final InetAddress target;
+  private final int payloadSize;
+  private final int timeoutMs;
+
+  private DatagramSocket socket = null;
+  private boolean stopped = false;
+  private int probesSent = 0;
+
+  /**
+   * @param target the host to probe
+   * @param payloadSize the UDP payload size of each probe in bytes
+   * @param timeoutMs how long to wait for the answer to a probe
+   */
+  public UdpProbeEngine(InetAddress target, int payloadSize, int timeoutMs) {
+    this.target = target;
+    this.payloadSize = payloadSize;
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Sends |count| probes, starting one every |intervalMs|, and returns the RTTs
+   * in milliseconds of the probes that were answered, in the order they were sent.
+   * Until a probe is answered, probes wait at most |firstTimeoutMs|, and after
+   * |giveUpCount| unanswered ones no more are sent, so a target that drops the
+   * probes costs little time.
+   *
+   * @throws IOException if a probe cannot be sent at all, e.g. without a route
+   * @throws InterruptedException if interrupted between probes
+   */
+  public ArrayList<Double> probe(int count, long intervalMs, int giveUpCount,
+      int firstTimeoutMs) throws IOException, InterruptedException {
+    ArrayList<Double> rtts = new ArrayList<Double>();
+    for (int i = 0; i < count && !isStopped(); i++) {
+      if (rtts.isEmpty() && i >= giveUpCount) {
+        break;
+      }
+      long start = System.nanoTime();
+      long rttNanos = probeOnce(rtts.isEmpty() ? Math.min(firstTimeoutMs, timeoutMs) : timeoutMs);
+      if (rttNanos >= 0) {
+        rtts.add(rttNanos / 1000000.0);
+      }
+      if (i < count - 1) {
+        long sleepMs = intervalMs - (System.nanoTime() - start) / 1000000;
+        if (sleepMs > 0) {
+          Thread.sleep(sleepMs);
+        }
+      }
+    }
+    return rtts;
+  }
+
+  /**
+   * Sends one probe and returns its RTT in nanoseconds, or -1 if it was not
+   * answered within |timeoutMs|.
+   */
+  public long probeOnce(int timeoutMs) throws IOException {
+    DatagramSocket probeSocket = new DatagramSocket();
+    synchronized (this) {
+      if (stopped) {
+        probeSocket.close();
+        return -1;
+      }
+      socket = probeSocket;
+    }
+    try {
+      int port = BASE_PORT + probesSent % PORT_RANGE;
+      probeSocket.connect(target, port);
+      probeSocket.setSoTimeout(timeoutMs);
+      DatagramPacket reply = new DatagramPacket(new byte[payloadSize + 1], payloadSize + 1);
+
+      long sendNanos = System.nanoTime();
+      probeSocket.send(new DatagramPacket(new byte[payloadSize], payloadSize));
+      synchronized (this) {
+        probesSent++;
+      }
+      try {
+        probeSocket.receive(reply);
+      } catch (PortUnreachableException e) {
+        // The expected answer
+      } catch (SocketTimeoutException e) {
+        return -1;
+      }
+      return System.nanoTime() - sendNanos;
+    } catch (IOException e) {
+      if (isStopped()) {
+        return -1;
+      }
+      throw e;
+    } finally {
+      probeSocket.close();
+      synchronized (this) {
+        socket = null;
+      }
+    }
+  }
+
+  /** Stops the probes in flight and any further ones */
+  public synchronized void stop() {
+    stopped = true;
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  private synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  public synchronized int getProbesSent() {
+    return probesSent;
+  }
+
+  /** Bytes sent and received, assuming every probe was answered with its own size */
+  public synchronized long getDataConsumed() {
+    return 2L * probesSent * (payloadSize + UDP_IP_HEADER_SIZE);
+  }
+}
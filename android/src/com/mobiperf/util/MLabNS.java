@@ -1,6 +1,8 @@
 package com.mobiperf.util;
 
+import com.mobiperf.Config;
 import com.mobiperf.Logger;
+import com.mobiperf.RRCTrafficControl;
 
 import android.content.Context;
 
@@ -12,6 +14,7 @@ import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
@@ -23,8 +26,13 @@ import org.apache.http.ParseException;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -39,6 +47,31 @@ public class MLabNS {
   /** Used by measurement tests if MLabNS should be used to retrieve the real server target. */
   static public final String TARGET = "mlab";
 
+  // Set the timeout in milliseconds until a connection is established.
+  static private final int TIMEOUT_CONNECTION_MSEC = 5000;
+  // Set the socket timeout in milliseconds.
+  static private final int TIMEOUT_SOCKET_MSEC = 5000;
+
+  static private DefaultHttpClient httpClient = null;
+
+  static private class CachedResult {
+    final ArrayList<String> result;
+    final long refreshTime;
+    final long expiryTime;
+    boolean refreshing = false;
+
+    CachedResult(ArrayList<String> result) {
+      long now = System.currentTimeMillis();
+      this.result = result;
+      this.refreshTime = now + Config.MLABNS_CACHE_LIFETIME_MSEC * 3 / 4;
+      this.expiryTime = now + Config.MLABNS_CACHE_LIFETIME_MSEC;
+    }
+  }
+
+  // Answers by network, tool, address family and field
+  static private final HashMap<String, CachedResult> cache =
+      new HashMap<String, CachedResult>();
+
   /**
    * Query MLab-NS to get an FQDN for the given tool.
    */
@@ -48,29 +81,67 @@ public class MLabNS {
 
   /**
    * Query MLab-NS to get an FQDN/IP for the given tool and address family.
+   * 
+   * Answers are cached for Config.MLABNS_CACHE_LIFETIME_MSEC, so that most
+   * measurements do not wait for MLab-NS. An answer in the last quarter of its
+   * lifetime is returned while a fresh one is fetched in the background. Each
+   * network has its own answers, so moving to another network asks MLab-NS again.
    * @param field: fqdn or ip
    */
-  static public ArrayList<String> Lookup(Context context, String tool, 
-                              String address_family, String field) {
-    final int maxResponseSize = 1024;
-    // Set the timeout in milliseconds until a connection is established.
-    final int timeoutConnection = 5000;
-    // Set the socket timeout in milliseconds.
-    final int timeoutSocket = 5000;
-
-    ByteBuffer body = ByteBuffer.allocate(maxResponseSize);
-    InputStream inputStream = null;
-    
+  static public ArrayList<String> Lookup(final Context context, final String tool, 
+                              final String address_family, final String field) {
     // Sanitize for possible returned field
     if ( field != "fqdn" && field != "ip" ) {
       return null;
     }
+
+    // The closest server differs between networks, e.g. Wi-Fi and cellular
+    final String key = PhoneUtils.getPhoneUtils().getNetworkIdentity() + "/" + tool + "/"
+        + address_family + "/" + field;
+    CachedResult cached;
+    synchronized (cache) {
+      cached = cache.get(key);
+      long now = System.currentTimeMillis();
+      if (cached != null && now >= cached.expiryTime) {
+        cache.remove(key);
+        cached = null;
+      }
+      // No refresh while the RRC task runs, as its timed tests must see no other traffic
+      if (cached != null && now >= cached.refreshTime && !cached.refreshing
+          && !RRCTrafficControl.checkIfPaused()) {
+        cached.refreshing = true;
+        Thread refresher = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              fetch(context, tool, address_family, field, key);
+            } catch (InvalidParameterException e) {
+              // The answer expires, and the next caller sees the error
+              Logger.w("Cannot refresh the m-lab-ns answer for " + key);
+            }
+          }
+        });
+        refresher.setDaemon(true);
+        refresher.start();
+      }
+    }
+    if (cached != null) {
+      Logger.d("Using cached m-lab-ns answer for " + key);
+      return new ArrayList<String>(cached.result);
+    }
+    return fetch(context, tool, address_family, field, key);
+  }
+
+  /** Queries MLab-NS and caches the answer under |key| */
+  static private ArrayList<String> fetch(Context context, String tool,
+                              String address_family, String field, String key) {
+    final int maxResponseSize = 1024;
+
+    ByteBuffer body = ByteBuffer.allocate(maxResponseSize);
+    InputStream inputStream = null;
     
     try {
-      HttpParams httpParameters = new BasicHttpParams();
-      HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-      HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-      DefaultHttpClient httpClient = new DefaultHttpClient(httpParameters);
+      DefaultHttpClient httpClient = getHttpClient();
       
       Logger.d("Creating request GET for mlab-ns");
       String url = "http://mlab-ns.appspot.com/" + tool + "?format=json";
@@ -82,6 +153,10 @@ public class MLabNS {
 
       HttpResponse response = httpClient.execute(request);
       if (response.getStatusLine().getStatusCode() != 200) {
+        // Releases the connection to the shared client
+        if (response.getEntity() != null) {
+          response.getEntity().consumeContent();
+        }
         throw new InvalidParameterException(
             "Received status " + response.getStatusLine().getStatusCode() + " from mlab-ns");
       }
@@ -105,7 +180,10 @@ public class MLabNS {
                                             json.get(field).getClass().toString() + 
                                             " of value " + json.get(field));
       }
-      return mlabNSResult;
+      synchronized (cache) {
+        cache.put(key, new CachedResult(mlabNSResult));
+      }
+      return new ArrayList<String>(mlabNSResult);
     } catch (SocketTimeoutException e) {
       Logger.e("SocketTimeoutException trying to contact m-lab-ns");
       // e.getMessage() is null       
@@ -127,6 +205,21 @@ public class MLabNS {
     }
   }
 
+  /** Returns the client shared by all lookups, which keeps its connections alive */
+  static private synchronized DefaultHttpClient getHttpClient() {
+    if (httpClient == null) {
+      HttpParams httpParameters = new BasicHttpParams();
+      HttpConnectionParams.setConnectionTimeout(httpParameters, TIMEOUT_CONNECTION_MSEC);
+      HttpConnectionParams.setSoTimeout(httpParameters, TIMEOUT_SOCKET_MSEC);
+      ConnManagerParams.setTimeout(httpParameters, TIMEOUT_CONNECTION_MSEC);
+      SchemeRegistry registry = new SchemeRegistry();
+      registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+      httpClient = new DefaultHttpClient(
+          new ThreadSafeClientConnManager(httpParameters, registry), httpParameters);
+    }
+    return httpClient;
+  }
+
   static private String getContentCharSet(final HttpEntity entity) throws ParseException {
     if (entity == null) {
       throw new IllegalArgumentException("entity may not be null");
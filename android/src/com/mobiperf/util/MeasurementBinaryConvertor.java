@@ -0,0 +1,825 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobiperf.util;
+
+import com.google.myjson.stream.JsonReader;
+import com.google.myjson.stream.JsonToken;
+import com.google.myjson.stream.JsonWriter;
+import com.mobiperf.DeviceProperty;
+import com.mobiperf.MeasurementResult;
+import com.mobiperf.measurements.DnsLookupTask.DnsLookupDesc;
+import com.mobiperf.measurements.HttpTask.HttpDesc;
+import com.mobiperf.measurements.LoadedLatencyTask.LoadedLatencyDesc;
+import com.mobiperf.measurements.PageLoadTask.PageLoadDesc;
+import com.mobiperf.measurements.PingTask.PingDesc;
+import com.mobiperf.measurements.RRCTask.RRCDesc;
+import com.mobiperf.measurements.TCPThroughputTask.TCPThroughputDesc;
+import com.mobiperf.measurements.TracerouteTask.TracerouteDesc;
+import com.mobiperf.measurements.UDPBurstTask.UDPBurstDesc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of measurement results, used for the local result spool.
+ *
+ * Every class that can appear in a result has a schema: its serialized fields in a fixed order,
+ * each with a type code, built once by reflection following the same field rules and naming
+ * policy as the gson instance in {@link MeasurementJsonConvertor}. A record only carries the
+ * field values, so neither field names nor JSON punctuation are repeated for every result, and
+ * encoding a result does not build any intermediate JSON tree or string.
+ *
+ * The server still takes JSON. {@link Decoder} turns records back into exactly the JSON that
+ * MeasurementJsonConvertor.encodeToJson() would produce for the same result. Since the spool can
+ * outlive an app upgrade, the schema table is written at the head of every spool file and a
+ * record names the table it was written with.
+ */
+public class MeasurementBinaryConvertor {
+  /** First byte of a result record in the spool. Legacy JSON records start with '{' instead. */
+  public static final int RECORD_MARKER = 0x01;
+  /** First byte of a schema table block in the spool */
+  public static final int SCHEMA_MARKER = 0x02;
+
+  private static final int TYPE_STRING = 1;
+  private static final int TYPE_INT = 2;
+  private static final int TYPE_LONG = 3;
+  private static final int TYPE_DOUBLE = 4;
+  private static final int TYPE_FLOAT = 5;
+  private static final int TYPE_BOOLEAN = 6;
+  private static final int TYPE_DATE = 7;
+  private static final int TYPE_STRING_MAP = 8;
+  private static final int TYPE_INT_ARRAY = 9;
+  private static final int TYPE_INTEGER_ARRAY = 10;
+  private static final int TYPE_OBJECT = 11;
+  // Anything else is stored as its gson JSON string
+  private static final int TYPE_JSON = 12;
+
+  // Class ids written for TYPE_OBJECT values. Schema classes follow from OBJECT_ID_BASE.
+  private static final int OBJECT_ID_NULL = 0;
+  private static final int OBJECT_ID_JSON = 1;
+  private static final int OBJECT_ID_BASE = 2;
+
+  /*
+   * Classes that can appear in a result. Their position is their id in records, so new
+   * measurement types are appended at the end.
+   */
+  private static final Class<?>[] SCHEMA_CLASSES = {
+    MeasurementResult.class,
+    DeviceProperty.class,
+    getNestedClass(DeviceProperty.class, "GeoLocation"),
+    PingDesc.class,
+    HttpDesc.class,
+    TracerouteDesc.class,
+    DnsLookupDesc.class,
+    TCPThroughputDesc.class,
+    RRCDesc.class,
+    UDPBurstDesc.class,
+    LoadedLatencyDesc.class,
+    PageLoadDesc.class
+  };
+
+  private static final Schema[] schemas;
+  private static final HashMap<Class<?>, Schema> schemaByClass;
+  private static final int fingerprint;
+  private static final byte[] schemaBlock;
+
+  static {
+    schemas = new Schema[SCHEMA_CLASSES.length];
+    schemaByClass = new HashMap<Class<?>, Schema>();
+    StringBuilder description = new StringBuilder();
+    for (int i = 0; i < SCHEMA_CLASSES.length; i++) {
+      schemas[i] = Schema.fromClass(i, SCHEMA_CLASSES[i]);
+      schemaByClass.put(SCHEMA_CLASSES[i], schemas[i]);
+      schemas[i].describe(description);
+    }
+    fingerprint = description.toString().hashCode();
+
+    RecordOutput block = new RecordOutput();
+    block.writeSignedVarint(fingerprint);
+    block.writeVarint(schemas.length);
+    for (Schema schema : schemas) {
+      block.writeVarint(schema.names.length);
+      for (int i = 0; i < schema.names.length; i++) {
+        block.writeString(schema.names[i]);
+        block.writeVarint(schema.types[i]);
+      }
+    }
+    schemaBlock = block.toByteArray();
+  }
+
+  /**
+   * Encodes a result as a binary record payload.
+   *
+   * @return the record, or null if |result| is null
+   * @throws IllegalArgumentException if a field of the result cannot be read
+   */
+  public static byte[] encode(MeasurementResult result) throws IllegalArgumentException {
+    if (result == null) {
+      return null;
+    }
+    RecordOutput out = new RecordOutput();
+    out.writeSignedVarint(fingerprint);
+    try {
+      writeObject(out, result);
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /** Appends a result record to a spool */
+  public static void writeRecord(OutputStream out, byte[] record) throws IOException {
+    writeBlock(out, RECORD_MARKER, record);
+  }
+
+  /** Appends the schema table of this build to a spool. Do this before the first record. */
+  public static void writeSchema(OutputStream out) throws IOException {
+    writeBlock(out, SCHEMA_MARKER, schemaBlock);
+  }
+
+  private static void writeBlock(OutputStream out, int marker, byte[] payload)
+      throws IOException {
+    RecordOutput header = new RecordOutput();
+    header.write(marker);
+    header.writeVarint(payload.length);
+    header.writeTo(out);
+    out.write(payload);
+  }
+
+  /**
+   * Reads a spool one block at a time: a schema table, a result record, or a legacy JSON line.
+   * A single buffer is reused for every block.
+   */
+  public static class BlockReader {
+    /** Marker reported for a line of text, which is how results were spooled before */
+    public static final int LINE_MARKER = 0;
+
+    private final InputStream in;
+    private byte[] buf = new byte[1024];
+    private int length;
+    private int marker;
+    private boolean complete;
+
+    public BlockReader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Reads the next block into the buffer. Legacy lines are returned without the line break.
+     *
+     * @return number of bytes consumed from the stream, or 0 at the end of it
+     */
+    public int next() throws IOException {
+      length = 0;
+      complete = false;
+      int b = in.read();
+      if (b == -1) {
+        return 0;
+      } else if (b != RECORD_MARKER && b != SCHEMA_MARKER) {
+        marker = LINE_MARKER;
+        int consumed = 1;
+        while (b != '\n') {
+          append(b);
+          if ((b = in.read()) == -1) {
+            return consumed;
+          }
+          consumed++;
+        }
+        complete = true;
+        return consumed;
+      }
+
+      marker = b;
+      int consumed = 1;
+      int blockLength = 0;
+      int shift = 0;
+      do {
+        if ((b = in.read()) == -1 || shift > 28) {
+          return consumed;
+        }
+        consumed++;
+        blockLength |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      if (buf.length < blockLength) {
+        buf = new byte[Math.max(blockLength, buf.length * 2)];
+      }
+      int n;
+      while (length < blockLength) {
+        if ((n = in.read(buf, length, blockLength - length)) == -1) {
+          return consumed;
+        }
+        length += n;
+        consumed += n;
+      }
+      complete = true;
+      return consumed;
+    }
+
+    private void append(int b) {
+      if (length == buf.length) {
+        byte[] larger = new byte[buf.length * 2];
+        System.arraycopy(buf, 0, larger, 0, length);
+        buf = larger;
+      }
+      buf[length++] = (byte) b;
+    }
+
+    /** One of RECORD_MARKER, SCHEMA_MARKER or LINE_MARKER */
+    public int marker() {
+      return marker;
+    }
+
+    /** Whether the block was read in full rather than cut off by the end of the stream */
+    public boolean isComplete() {
+      return complete;
+    }
+
+    /** The payload of the block, valid until the next call to next() */
+    public byte[] buffer() {
+      return buf;
+    }
+
+    public int length() {
+      return length;
+    }
+
+    /** Writes the current block to |out| in its original framing */
+    public void writeTo(OutputStream out) throws IOException {
+      if (marker == LINE_MARKER) {
+        out.write(buf, 0, length);
+        out.write('\n');
+      } else {
+        RecordOutput header = new RecordOutput();
+        header.write(marker);
+        header.writeVarint(length);
+        header.writeTo(out);
+        out.write(buf, 0, length);
+      }
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static void writeObject(RecordOutput out, Object obj) throws IllegalAccessException {
+    Schema schema = schemaByClass.get(obj.getClass());
+    if (schema == null) {
+      out.writeVarint(OBJECT_ID_JSON);
+      out.writeString(MeasurementJsonConvertor.toJsonString(obj));
+      return;
+    }
+    out.writeVarint(OBJECT_ID_BASE + schema.id);
+    for (int i = 0; i < schema.fields.length; i++) {
+      Field field = schema.fields[i];
+      switch (schema.types[i]) {
+        case TYPE_STRING:
+          out.writeString((String) field.get(obj));
+          break;
+        case TYPE_INT:
+          out.writeSignedVarint(field.getInt(obj));
+          break;
+        case TYPE_LONG:
+          out.writeSignedVarint(field.getLong(obj));
+          break;
+        case TYPE_DOUBLE:
+          out.writeLong(Double.doubleToLongBits(field.getDouble(obj)));
+          break;
+        case TYPE_FLOAT:
+          out.writeInt(Float.floatToIntBits(field.getFloat(obj)));
+          break;
+        case TYPE_BOOLEAN:
+          out.write(field.getBoolean(obj) ? 1 : 0);
+          break;
+        case TYPE_DATE: {
+          Date date = (Date) field.get(obj);
+          out.writeVarint(date == null ? 0 : 1);
+          if (date != null) {
+            out.writeSignedVarint(date.getTime());
+          }
+          break;
+        }
+        case TYPE_STRING_MAP: {
+          @SuppressWarnings("unchecked")
+          Map<String, String> map = (Map<String, String>) field.get(obj);
+          out.writeVarint(map == null ? 0 : map.size() + 1);
+          if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+              out.writeString(entry.getKey());
+              out.writeString(entry.getValue());
+            }
+          }
+          break;
+        }
+        case TYPE_INT_ARRAY: {
+          int[] array = (int[]) field.get(obj);
+          out.writeVarint(array == null ? 0 : array.length + 1);
+          if (array != null) {
+            for (int value : array) {
+              out.writeSignedVarint(value);
+            }
+          }
+          break;
+        }
+        case TYPE_INTEGER_ARRAY: {
+          Integer[] array = (Integer[]) field.get(obj);
+          out.writeVarint(array == null ? 0 : array.length + 1);
+          if (array != null) {
+            for (Integer value : array) {
+              out.writeVarint(value == null ? 0 : 1);
+              if (value != null) {
+                out.writeSignedVarint(value);
+              }
+            }
+          }
+          break;
+        }
+        case TYPE_OBJECT: {
+          Object value = field.get(obj);
+          if (value == null) {
+            out.writeVarint(OBJECT_ID_NULL);
+          } else {
+            writeObject(out, value);
+          }
+          break;
+        }
+        default: {
+          Object value = field.get(obj);
+          out.writeString(value == null ? null : MeasurementJsonConvertor.toJsonString(value));
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts records back to JSON. A decoder keeps the schema tables it has seen, so one decoder
+   * should read a spool from the start, or at least from its last schema block.
+   */
+  public static class Decoder {
+    private final HashMap<Integer, Schema[]> schemaTables = new HashMap<Integer, Schema[]>();
+
+    public Decoder() {
+      schemaTables.put(fingerprint, schemas);
+    }
+
+    /** Reads a schema table block written by {@link MeasurementBinaryConvertor#writeSchema} */
+    public void readSchema(byte[] block, int length) throws IOException {
+      RecordInput in = new RecordInput(block, length);
+      int tableFingerprint = (int) in.readSignedVarint();
+      if (schemaTables.containsKey(tableFingerprint)) {
+        return;
+      }
+      Schema[] table = new Schema[(int) in.readVarint()];
+      for (int i = 0; i < table.length; i++) {
+        int fieldCnt = (int) in.readVarint();
+        String[] names = new String[fieldCnt];
+        int[] types = new int[fieldCnt];
+        for (int j = 0; j < fieldCnt; j++) {
+          names[j] = in.readString();
+          types[j] = (int) in.readVarint();
+        }
+        table[i] = new Schema(i, names, types, null);
+      }
+      schemaTables.put(tableFingerprint, table);
+    }
+
+    /**
+     * Writes a record as the JSON object that gson would produce for the original result.
+     *
+     * @throws IOException if the record is corrupt or was written with an unknown schema table
+     */
+    public void writeJson(byte[] record, int length, Writer out) throws IOException {
+      RecordInput in = new RecordInput(record, length);
+      int recordFingerprint = (int) in.readSignedVarint();
+      Schema[] table = schemaTables.get(recordFingerprint);
+      if (table == null) {
+        throw new IOException("Record written with unknown schema " + recordFingerprint);
+      }
+      JsonWriter writer = new JsonWriter(out);
+      // Same escaping as Gson.toJson()
+      writer.setHtmlSafe(true);
+      writeJsonObject(in, table, writer);
+      writer.flush();
+    }
+
+    private void writeJsonObject(RecordInput in, Schema[] table, JsonWriter writer)
+        throws IOException {
+      int classId = (int) in.readVarint();
+      if (classId == OBJECT_ID_NULL) {
+        writer.nullValue();
+        return;
+      } else if (classId == OBJECT_ID_JSON) {
+        copyJson(in.readString(), writer);
+        return;
+      } else if (classId - OBJECT_ID_BASE >= table.length) {
+        throw new IOException("Unknown class id " + classId);
+      }
+      Schema schema = table[classId - OBJECT_ID_BASE];
+      writer.beginObject();
+      for (int i = 0; i < schema.names.length; i++) {
+        writer.name(schema.names[i]);
+        switch (schema.types[i]) {
+          case TYPE_STRING:
+            writeJsonString(in.readString(), writer);
+            break;
+          case TYPE_INT:
+          case TYPE_LONG:
+            writer.value(in.readSignedVarint());
+            break;
+          case TYPE_DOUBLE:
+            // Gson writes the boxed value, whose toString() matches the original field
+            writer.value(Double.valueOf(Double.longBitsToDouble(in.readLong())));
+            break;
+          case TYPE_FLOAT:
+            writer.value(Float.valueOf(Float.intBitsToFloat(in.readInt())));
+            break;
+          case TYPE_BOOLEAN:
+            writer.value(in.read() != 0);
+            break;
+          case TYPE_DATE:
+            if (in.readVarint() == 0) {
+              writer.nullValue();
+            } else {
+              writer.value(MeasurementJsonConvertor.formatDate(new Date(in.readSignedVarint())));
+            }
+            break;
+          case TYPE_STRING_MAP: {
+            long size = in.readVarint();
+            if (size == 0) {
+              writer.nullValue();
+              break;
+            }
+            writer.beginObject();
+            for (long j = 1; j < size; j++) {
+              writer.name(in.readString());
+              writeJsonString(in.readString(), writer);
+            }
+            writer.endObject();
+            break;
+          }
+          case TYPE_INT_ARRAY: {
+            long length = in.readVarint();
+            if (length == 0) {
+              writer.nullValue();
+              break;
+            }
+            writer.beginArray();
+            for (long j = 1; j < length; j++) {
+              writer.value(in.readSignedVarint());
+            }
+            writer.endArray();
+            break;
+          }
+          case TYPE_INTEGER_ARRAY: {
+            long length = in.readVarint();
+            if (length == 0) {
+              writer.nullValue();
+              break;
+            }
+            writer.beginArray();
+            for (long j = 1; j < length; j++) {
+              if (in.readVarint() == 0) {
+                writer.nullValue();
+              } else {
+                writer.value(in.readSignedVarint());
+              }
+            }
+            writer.endArray();
+            break;
+          }
+          case TYPE_OBJECT:
+            writeJsonObject(in, table, writer);
+            break;
+          case TYPE_JSON: {
+            String json = in.readString();
+            if (json == null) {
+              writer.nullValue();
+            } else {
+              copyJson(json, writer);
+            }
+            break;
+          }
+          default:
+            throw new IOException("Unknown field type " + schema.types[i]);
+        }
+      }
+      writer.endObject();
+    }
+
+    private static void writeJsonString(String value, JsonWriter writer) throws IOException {
+      if (value == null) {
+        writer.nullValue();
+      } else {
+        writer.value(value);
+      }
+    }
+
+    /** Re-emits a JSON value token by token, since JsonWriter cannot take raw JSON */
+    private static void copyJson(String json, JsonWriter writer) throws IOException {
+      JsonReader reader = new JsonReader(new StringReader(json));
+      reader.setLenient(true);
+      int depth = 0;
+      do {
+        JsonToken token = reader.peek();
+        switch (token) {
+          case BEGIN_ARRAY:
+            reader.beginArray();
+            writer.beginArray();
+            depth++;
+            break;
+          case END_ARRAY:
+            reader.endArray();
+            writer.endArray();
+            depth--;
+            break;
+          case BEGIN_OBJECT:
+            reader.beginObject();
+            writer.beginObject();
+            depth++;
+            break;
+          case END_OBJECT:
+            reader.endObject();
+            writer.endObject();
+            depth--;
+            break;
+          case NAME:
+            writer.name(reader.nextName());
+            break;
+          case STRING:
+            writer.value(reader.nextString());
+            break;
+          case NUMBER:
+            writer.value(new JsonNumber(reader.nextString()));
+            break;
+          case BOOLEAN:
+            writer.value(reader.nextBoolean());
+            break;
+          case NULL:
+            reader.nextNull();
+            writer.nullValue();
+            break;
+          default:
+            throw new IOException("Unexpected JSON token " + token);
+        }
+      } while (depth > 0);
+    }
+  }
+
+  /** A number kept as its original JSON text */
+  private static class JsonNumber extends Number {
+    private final String text;
+
+    JsonNumber(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+
+    @Override
+    public int intValue() {
+      return (int) doubleValue();
+    }
+
+    @Override
+    public long longValue() {
+      return (long) doubleValue();
+    }
+
+    @Override
+    public float floatValue() {
+      return (float) doubleValue();
+    }
+
+    @Override
+    public double doubleValue() {
+      return Double.parseDouble(text);
+    }
+  }
+
+  /**
+   * The serialized fields of a class, with their JSON names and type codes. Schemas read back
+   * from a spool have no Field objects and are only used to decode.
+   */
+  private static class Schema {
+    final int id;
+    final String[] names;
+    final int[] types;
+    final Field[] fields;
+
+    Schema(int id, String[] names, int[] types, Field[] fields) {
+      this.id = id;
+      this.names = names;
+      this.types = types;
+      this.fields = fields;
+    }
+
+    static Schema fromClass(int id, Class<?> cls) {
+      Field[] fields = MeasurementJsonConvertor.getSerializedFields(cls);
+      String[] names = new String[fields.length];
+      int[] types = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        names[i] = MeasurementJsonConvertor.toJsonName(fields[i].getName());
+        types[i] = typeOf(fields[i]);
+      }
+      return new Schema(id, names, types, fields);
+    }
+
+    void describe(StringBuilder description) {
+      description.append(id).append('{');
+      for (int i = 0; i < names.length; i++) {
+        description.append(names[i]).append(':').append(types[i]).append(',');
+      }
+      description.append('}');
+    }
+  }
+
+  private static int typeOf(Field field) {
+    Class<?> type = field.getType();
+    if (type == String.class) {
+      return TYPE_STRING;
+    } else if (type == int.class || type == short.class || type == byte.class) {
+      return TYPE_INT;
+    } else if (type == long.class) {
+      return TYPE_LONG;
+    } else if (type == double.class) {
+      return TYPE_DOUBLE;
+    } else if (type == float.class) {
+      return TYPE_FLOAT;
+    } else if (type == boolean.class) {
+      return TYPE_BOOLEAN;
+    } else if (type == Date.class) {
+      return TYPE_DATE;
+    } else if (type == int[].class) {
+      return TYPE_INT_ARRAY;
+    } else if (type == Integer[].class) {
+      return TYPE_INTEGER_ARRAY;
+    } else if (Map.class.isAssignableFrom(type) && isStringMap(field.getGenericType())) {
+      return TYPE_STRING_MAP;
+    }
+    for (Class<?> schemaClass : SCHEMA_CLASSES) {
+      if (type.isAssignableFrom(schemaClass) && type != Object.class) {
+        return TYPE_OBJECT;
+      }
+    }
+    return TYPE_JSON;
+  }
+
+  private static boolean isStringMap(Type type) {
+    if (!(type instanceof ParameterizedType)) {
+      return false;
+    }
+    Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+    return args.length == 2 && args[0] == String.class && args[1] == String.class;
+  }
+
+  private static Class<?> getNestedClass(Class<?> outer, String simpleName) {
+    for (Class<?> nested : outer.getDeclaredClasses()) {
+      if (nested.getSimpleName().equals(simpleName)) {
+        return nested;
+      }
+    }
+    throw new IllegalStateException(outer.getName() + " has no nested class " + simpleName);
+  }
+
+  /** Growable record buffer with varint helpers */
+  private static class RecordOutput extends ByteArrayOutputStream {
+    RecordOutput() {
+      super(256);
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    /** Zigzag encoding, so that small negative values stay short */
+    void writeSignedVarint(long value) {
+      writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        write((int) (value >>> shift));
+      }
+    }
+
+    void writeInt(int value) {
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        write(value >>> shift);
+      }
+    }
+
+    void writeString(String value) {
+      if (value == null) {
+        writeVarint(0);
+        return;
+      }
+      try {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(bytes.length + 1);
+        write(bytes, 0, bytes.length);
+      } catch (UnsupportedEncodingException e) {
+        // UTF-8 is always supported
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /** Cursor over a record that fails with EOFException instead of reading past the end */
+  private static class RecordInput {
+    private final byte[] buf;
+    private final int end;
+    private int pos = 0;
+
+    RecordInput(byte[] buf, int length) {
+      this.buf = buf;
+      this.end = length;
+    }
+
+    int read() throws EOFException {
+      if (pos >= end) {
+        throw new EOFException("Truncated record");
+      }
+      return buf[pos++] & 0xFF;
+    }
+
+    long readVarint() throws EOFException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new EOFException("Malformed varint");
+    }
+
+    long readSignedVarint() throws EOFException {
+      long value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    long readLong() throws EOFException {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | read();
+      }
+      return value;
+    }
+
+    int readInt() throws EOFException {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | read();
+      }
+      return value;
+    }
+
+    String readString() throws IOException {
+      long length = readVarint();
+      if (length == 0) {
+        return null;
+      }
+      int byteCnt = (int) (length - 1);
+      if (byteCnt < 0 || byteCnt > end - pos) {
+        throw new EOFException("Truncated record");
+      }
+      String value = new String(buf, pos, byteCnt, "UTF-8");
+      pos += byteCnt;
+      return value;
+    }
+  }
+}
@@ -22,9 +22,11 @@ import com.google.myjson.JsonDeserializationContext;
 import com.google.myjson.JsonDeserializer;
 import com.google.myjson.JsonElement;
 import com.google.myjson.JsonParseException;
+import com.google.myjson.JsonParser;
 import com.google.myjson.JsonPrimitive;
 import com.google.myjson.JsonSerializationContext;
 import com.google.myjson.JsonSerializer;
+import com.google.myjson.stream.JsonWriter;
 import com.mobiperf.Logger;
 import com.mobiperf.MeasurementDesc;
 import com.mobiperf.MeasurementTask;
@@ -36,15 +38,22 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.TimeZone;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class that use the gson library to provide bidirectional conversion between
@@ -62,27 +71,44 @@ public class MeasurementJsonConvertor {
   public static Gson gson = new GsonBuilder().serializeNulls().
       registerTypeAdapter(Date.class, new DateTypeConverter()).
       setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).create();
-  private static final DateFormat dateFormat = 
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-
-  static {
-    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-  }
+  // Classes in this package tree are written by writeJson(), anything else by gson
+  private static final String MODEL_PACKAGE = "com.mobiperf.";
+  private static final ConcurrentHashMap<Class<?>, Field[]> serializedFields =
+      new ConcurrentHashMap<Class<?>, Field[]>();
   
   public static MeasurementTask makeMeasurementTaskFromJson(JSONObject json, Context context) 
       throws IllegalArgumentException {  
     try {
-      String type = String.valueOf(json.getString("type"));
+      return makeMeasurementTaskFromJson(new JsonParser().parse(json.toString()), context);
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Creates a task from a description already parsed by gson, so that the JSON text does not
+   * have to be parsed a second time to build the description.
+   */
+  public static MeasurementTask makeMeasurementTaskFromJson(JsonElement json, Context context) 
+      throws IllegalArgumentException {  
+    try {
+      if (!json.isJsonObject() || !json.getAsJsonObject().has("type")) {
+        throw new IllegalArgumentException("Measurement description without a type: " + json);
+      }
+      String type = json.getAsJsonObject().get("type").getAsString();
       Class taskClass = MeasurementTask.getTaskClassForMeasurement(type);
+      if (taskClass == null) {
+        throw new IllegalArgumentException("Unknown measurement type " + type);
+      }
       Method getDescMethod = taskClass.getMethod("getDescClass");
       // The getDescClassForMeasurement() is static and takes no arguments
       Class descClass = (Class) getDescMethod.invoke(null, (Object[]) null);
-      MeasurementDesc measurementDesc = (MeasurementDesc) gson.fromJson(json.toString(), descClass);
+      MeasurementDesc measurementDesc = (MeasurementDesc) gson.fromJson(json, descClass);
       Object[] cstParams = {measurementDesc, context};
       Constructor<MeasurementTask> constructor = 
           taskClass.getConstructor(MeasurementDesc.class, Context.class);
       return constructor.newInstance(cstParams);
-    } catch (JSONException e) {
+    } catch (JsonParseException e) {
       throw new IllegalArgumentException(e);
     } catch (SecurityException e) {
       Logger.w(e.getMessage());
@@ -106,12 +132,128 @@ public class MeasurementJsonConvertor {
   }
   
   public static JSONObject encodeToJson(Object obj) throws JSONException {
-    String str = gson.toJson(obj);
-    return new JSONObject(str);
+    return new JSONObject(toJsonString(obj));
   }
   
+  /**
+   * Returns the same JSON as gson.toJson(obj). Measurement objects are written field by field
+   * straight to the output instead of going through gson's intermediate JsonElement tree.
+   */
   public static String toJsonString(Object obj) {
-    return gson.toJson(obj);
+    StringWriter out = new StringWriter(256);
+    try {
+      writeJson(obj, out);
+    } catch (IOException e) {
+      // StringWriter does not throw
+      throw new IllegalStateException(e);
+    }
+    return out.toString();
+  }
+
+  /** Writes the JSON for |obj| to |out| in a single pass */
+  public static void writeJson(Object obj, Writer out) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    // Same escaping as Gson.toJson(), which also accepts a bare value like a number or a string
+    writer.setHtmlSafe(true);
+    writer.setLenient(true);
+    writeJson(obj, writer);
+    writer.flush();
+  }
+
+  /** Writes the JSON for |obj| as the next value of |writer| */
+  public static void writeJson(Object value, JsonWriter writer) throws IOException {
+    if (value == null) {
+      writer.nullValue();
+    } else if (value instanceof String) {
+      writer.value((String) value);
+    } else if (value instanceof Number) {
+      double doubleValue = ((Number) value).doubleValue();
+      if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+        // The lenient writer would accept these, gson does not
+        throw new IllegalArgumentException(value + " is not a valid JSON number");
+      }
+      writer.value((Number) value);
+    } else if (value instanceof Boolean) {
+      writer.value(((Boolean) value).booleanValue());
+    } else if (value instanceof Character) {
+      writer.value(value.toString());
+    } else if (value instanceof Date) {
+      writer.value(formatDate((Date) value));
+    } else if (value instanceof Map) {
+      writer.beginObject();
+      for (Object entryObj : ((Map) value).entrySet()) {
+        Map.Entry entry = (Map.Entry) entryObj;
+        writer.name(String.valueOf(entry.getKey()));
+        writeJson(entry.getValue(), writer);
+      }
+      writer.endObject();
+    } else if (value instanceof Collection) {
+      writer.beginArray();
+      for (Object element : (Collection) value) {
+        writeJson(element, writer);
+      }
+      writer.endArray();
+    } else if (value.getClass().isArray()) {
+      writer.beginArray();
+      int length = Array.getLength(value);
+      for (int i = 0; i < length; i++) {
+        writeJson(Array.get(value, i), writer);
+      }
+      writer.endArray();
+    } else if (value.getClass().getName().startsWith(MODEL_PACKAGE)
+        && !value.getClass().isEnum()) {
+      writer.beginObject();
+      for (Field field : getSerializedFields(value.getClass())) {
+        writer.name(toJsonName(field.getName()));
+        try {
+          writeJson(field.get(value), writer);
+        } catch (IllegalAccessException e) {
+          throw new IllegalArgumentException(e);
+        }
+      }
+      writer.endObject();
+    } else {
+      gson.toJson(value, value.getClass(), writer);
+    }
+  }
+
+  /**
+   * Returns the fields gson serializes for |cls|: every non-static, non-transient and
+   * non-synthetic field, from the class itself up through its superclasses.
+   */
+  static Field[] getSerializedFields(Class<?> cls) {
+    Field[] fields = serializedFields.get(cls);
+    if (fields != null) {
+      return fields;
+    }
+    ArrayList<Field> fieldList = new ArrayList<Field>();
+    for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        int modifiers = field.getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+            || field.isSynthetic()) {
+          continue;
+        }
+        field.setAccessible(true);
+        fieldList.add(field);
+      }
+    }
+    fields = fieldList.toArray(new Field[fieldList.size()]);
+    serializedFields.put(cls, fields);
+    return fields;
+  }
+
+  /** Same translation as FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES */
+  static String toJsonName(String fieldName) {
+    StringBuilder name = new StringBuilder(fieldName.length() + 4);
+    for (int i = 0; i < fieldName.length(); i++) {
+      char c = fieldName.charAt(i);
+      if (Character.isUpperCase(c) && name.length() != 0) {
+        name.append('_');
+      }
+      name.append(c);
+    }
+    return name.toString().toLowerCase();
   }
   
   public static Gson getGsonInstance() {
@@ -142,10 +284,10 @@ public class MeasurementJsonConvertor {
   }
   
   private static Date parseDate(String dateString) throws ParseException {
-    return dateFormat.parse(dateString);
+    return UtcDateCodec.parse(dateString);
   }
 
-  private static String formatDate(Date date) {
-    return dateFormat.format(date);
+  static String formatDate(Date date) {
+    return UtcDateCodec.format(date);
   }
 }
@@ -283,6 +283,17 @@ public class PhoneUtils {
     }
   }
 
+  /**
+   * Returns the network type and the carrier name or Wi-Fi SSID, which tell apart the networks
+   * the phone moves between.
+   */
+  public String getNetworkIdentity() {
+    String network = getNetwork();
+    String carrier = (network == NETWORK_WIFI) ?
+        getWifiCarrierName() : getTelephonyCarrierName();
+    return network + "/" + carrier;
+  }
+
   private static final String[] NETWORK_TYPES = {
     "UNKNOWN",  // 0  - NETWORK_TYPE_UNKNOWN
     "GPRS",     // 1  - NETWORK_TYPE_GPRS
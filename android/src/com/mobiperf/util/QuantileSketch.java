@@ -0,0 +1,109 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.util;
+
+/**
+ * Constant-memory quantile estimates of a stream of positive values.
+ *
+ * Values are counted in buckets whose bounds grow geometrically, so that any
+ * quantile is reported within about |relativeError| of a value of the stream,
+ * as in an HDR histogram. Adding a value is O(1) and a quantile query scans the
+ * buckets once. The count, minimum and maximum are exact. Values below the
+ * range are reported as the minimum, values above it fall into the highest
+ * bucket, and the estimates are always clamped to the exact minimum and maximum.
+ *
+ * Not thread-safe.
+ */
+public class QuantileSketch {
+  private final double lowest;
+  private final double logBase;
+  private final int[] counts;
+  private long underflowCount = 0;
+  private long count = 0;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * @param lowest the smallest value measured with |relativeError|
+   * @param highest the largest value measured with |relativeError|
+   * @param relativeError the relative error of the quantile estimates, such as 0.01
+   */
+  public QuantileSketch(double lowest, double highest, double relativeError) {
+    if (lowest <= 0 || highest <= lowest || relativeError <= 0 || relativeError >= 1) {
+      throw new IllegalArgumentException("Invalid sketch range or error");
+    }
+    this.lowest = lowest;
+    // Each bucket spans [b, b * (1 + e) / (1 - e)), and its geometric center is
+    // within about e of every value in it
+    this.logBase = Math.log((1 + relativeError) / (1 - relativeError));
+    this.counts = new int[(int) Math.ceil(Math.log(highest / lowest) / logBase) + 1];
+  }
+
+  public void add(double value) {
+    if (value < lowest) {
+      underflowCount++;
+    } else {
+      counts[bucketOf(value)]++;
+    }
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /** Returns the smallest value added, or NaN if there is none */
+  public double getMin() {
+    return count == 0 ? Double.NaN : min;
+  }
+
+  /** Returns the largest value added, or NaN if there is none */
+  public double getMax() {
+    return count == 0 ? Double.NaN : max;
+  }
+
+  /**
+   * Returns the nearest-rank estimate of quantile |q|, between 0 and 1, or NaN
+   * if no value was added.
+   */
+  public double getQuantile(double q) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long rank = Math.max(1, (long) Math.ceil(q * count));
+    if (rank >= count) {
+      return max;
+    }
+    long seen = underflowCount;
+    if (seen >= rank) {
+      return min;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        double center = lowest * Math.exp((i + 0.5) * logBase);
+        return Math.max(min, Math.min(max, center));
+      }
+    }
+    return max;
+  }
+
+  private int bucketOf(double value) {
+    int bucket = (int) (Math.log(value / lowest) / logBase);
+    return Math.min(bucket, counts.length - 1);
+  }
+}
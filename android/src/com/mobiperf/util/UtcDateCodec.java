@@ -0,0 +1,189 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.util;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe conversion between dates and ISO-8601 UTC strings such as
+ * "2012-10-12T08:30:00.123Z", the time format used between the phone and the server.
+ *
+ * The common case is handled with integer arithmetic on the proleptic Gregorian calendar.
+ * Dates outside years 1583-9999, where SimpleDateFormat switches to the Julian calendar or
+ * changes the field width, and strings the fast path does not recognize fall back to a
+ * per-thread SimpleDateFormat.
+ */
+public class UtcDateCodec {
+  private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  // 1583-01-01T00:00:00Z and 10000-01-01T00:00:00Z
+  private static final long MIN_FAST_MILLIS = -12212553600000L;
+  private static final long MAX_FAST_MILLIS = 253402300800000L;
+
+  private static final ThreadLocal<DateFormat> fallbackFormat = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      DateFormat format = new SimpleDateFormat(PATTERN);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format;
+    }
+  };
+
+  /** Formats |date| as yyyy-MM-ddTHH:mm:ss.SSSZ in UTC */
+  public static String format(Date date) {
+    long millis = date.getTime();
+    if (millis < MIN_FAST_MILLIS || millis >= MAX_FAST_MILLIS) {
+      return fallbackFormat.get().format(date);
+    }
+    long days = floorDiv(millis, MILLIS_PER_DAY);
+    int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+
+    // Civil date from days since the epoch, with years starting on March 1st
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+    char[] buf = new char[24];
+    writeDigits(buf, 0, year, 4);
+    buf[4] = '-';
+    writeDigits(buf, 5, month, 2);
+    buf[7] = '-';
+    writeDigits(buf, 8, day, 2);
+    buf[10] = 'T';
+    writeDigits(buf, 11, millisOfDay / 3600000, 2);
+    buf[13] = ':';
+    writeDigits(buf, 14, millisOfDay / 60000 % 60, 2);
+    buf[16] = ':';
+    writeDigits(buf, 17, millisOfDay / 1000 % 60, 2);
+    buf[19] = '.';
+    writeDigits(buf, 20, millisOfDay % 1000, 3);
+    buf[23] = 'Z';
+    return new String(buf);
+  }
+
+  /**
+   * Parses yyyy-MM-ddTHH:mm:ss[.fraction]Z as UTC. The fraction may have any number of digits,
+   * so that the microsecond timestamps sent by the server are read correctly; digits beyond
+   * milliseconds are dropped.
+   *
+   * @throws ParseException if the string is not a UTC timestamp
+   */
+  public static Date parse(String str) throws ParseException {
+    long millis = parseFast(str);
+    if (millis != Long.MIN_VALUE) {
+      return new Date(millis);
+    }
+    return fallbackFormat.get().parse(str);
+  }
+
+  /** Returns the time of |str|, or Long.MIN_VALUE if it needs the fallback parser */
+  private static long parseFast(String str) {
+    int length = str.length();
+    if (length < 20 || str.charAt(4) != '-' || str.charAt(7) != '-' || str.charAt(10) != 'T'
+        || str.charAt(13) != ':' || str.charAt(16) != ':' || str.charAt(length - 1) != 'Z') {
+      return Long.MIN_VALUE;
+    }
+    int year = readDigits(str, 0, 4);
+    int month = readDigits(str, 5, 2);
+    int day = readDigits(str, 8, 2);
+    int hour = readDigits(str, 11, 2);
+    int minute = readDigits(str, 14, 2);
+    int second = readDigits(str, 17, 2);
+    if (year < 1583 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      // Also covers the -1 of a non-digit
+      return Long.MIN_VALUE;
+    }
+
+    int millis = 0;
+    if (length > 20) {
+      if (str.charAt(19) != '.' || length == 21) {
+        return Long.MIN_VALUE;
+      }
+      int scale = 100;
+      for (int i = 20; i < length - 1; i++) {
+        int digit = str.charAt(i) - '0';
+        if (digit < 0 || digit > 9) {
+          return Long.MIN_VALUE;
+        }
+        millis += digit * scale;
+        scale /= 10;
+      }
+    }
+
+    long days = daysFromCivil(year, month, day);
+    return days * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+  }
+
+  /** Days since 1970-01-01 of a date in the proleptic Gregorian calendar */
+  private static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    long era = floorDiv(y, 400);
+    int yearOfEra = (int) (y - era * 400);
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        return leap ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+  }
+
+  private static void writeDigits(char[] buf, int offset, int value, int width) {
+    for (int i = offset + width - 1; i >= offset; i--) {
+      buf[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  /** Reads a fixed-width decimal number, or returns -1 if there is a non-digit */
+  private static int readDigits(String str, int offset, int width) {
+    int value = 0;
+    for (int i = offset; i < offset + width; i++) {
+      int digit = str.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,153 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.speedometer.test;
+
+import com.google.myjson.JsonArray;
+import com.google.myjson.JsonElement;
+import com.google.myjson.JsonParser;
+import com.mobiperf.DeviceProperty;
+import com.mobiperf.MeasurementResult;
+import com.mobiperf.SpeedometerApp;
+import com.mobiperf.measurements.PingTask;
+import com.mobiperf.measurements.PingTask.PingDesc;
+import com.mobiperf.util.MeasurementJsonConvertor;
+import com.mobiperf.util.UtcDateCodec;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Microbenchmarks for MeasurementJsonConvertor and UtcDateCodec. Timings and allocations per
+ * operation are written to the log, so run this on a device rather than relying on the
+ * pass/fail result.
+ */
+public class JsonConvertorBenchmark extends AndroidTestCase {
+  private static final int WARMUP_ITERATIONS = 200;
+  private static final int ITERATIONS = 2000;
+  private static final int SCHEDULE_SIZE = 500;
+
+  private MeasurementResult result;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    HashMap<String, String> params = new HashMap<String, String>();
+    params.put("target", "www.dealsea.com");
+    PingDesc pingDesc = new PingDesc("key", Calendar.getInstance().getTime(), null, 0, 0, 0,
+        params);
+    DeviceProperty property = new DeviceProperty("id", "1.0", System.currentTimeMillis(),
+        "os", "IPv4 only", "yes", 1.5, -2.5, "gps", "LTE", "carrier", 80, false, null, -70);
+    result = new MeasurementResult("id", property, PingTask.TYPE,
+        System.currentTimeMillis(), true, pingDesc);
+    result.addResult("target_ip", "74.125.127.105");
+    result.addResult("mean_rtt_ms", 12.5);
+    result.addResult("min_rtt_ms", 10.25);
+    result.addResult("max_rtt_ms", 15.75);
+    result.addResult("stddev_rtt_ms", 2.5);
+    result.addResult("packet_loss", 0.0);
+  }
+
+  /** Compares gson's tree-based serialization with the single-pass writer */
+  public void testResultSerialization() {
+    String expected = MeasurementJsonConvertor.getGsonInstance().toJson(result);
+    assertEquals(expected, MeasurementJsonConvertor.toJsonString(result));
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      MeasurementJsonConvertor.getGsonInstance().toJson(result);
+      MeasurementJsonConvertor.toJsonString(result);
+    }
+
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocSize();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      MeasurementJsonConvertor.getGsonInstance().toJson(result);
+    }
+    report("gson.toJson", start, Debug.getThreadAllocSize());
+
+    Debug.resetThreadAllocSize();
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      MeasurementJsonConvertor.toJsonString(result);
+    }
+    report("toJsonString", start, Debug.getThreadAllocSize());
+    Debug.stopAllocCounting();
+  }
+
+  /** Compares SimpleDateFormat with UtcDateCodec on the dates of a large schedule */
+  public void testScheduleDateParsing() throws ParseException {
+    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    String[] dates = new String[SCHEDULE_SIZE * 2];
+    StringBuilder schedule = new StringBuilder("[");
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < SCHEDULE_SIZE; i++) {
+      dates[2 * i] = dateFormat.format(new Date(now + i * 1000L));
+      dates[2 * i + 1] = dateFormat.format(new Date(now + i * 1000L + 86400000L));
+      schedule.append(i == 0 ? "" : ",").append("{\"type\":\"ping\",\"key\":\"key").append(i)
+          .append("\",\"start_time\":\"").append(dates[2 * i])
+          .append("\",\"end_time\":\"").append(dates[2 * i + 1])
+          .append("\",\"interval_sec\":600,\"count\":-1,\"priority\":10,")
+          .append("\"parameters\":{\"target\":\"www.google.com\"}}");
+    }
+    schedule.append("]");
+    for (String date : dates) {
+      assertEquals(dateFormat.parse(date), UtcDateCodec.parse(date));
+    }
+
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocSize();
+    long start = System.nanoTime();
+    for (String date : dates) {
+      dateFormat.parse(date);
+    }
+    report("SimpleDateFormat.parse", start, Debug.getThreadAllocSize(), dates.length);
+
+    Debug.resetThreadAllocSize();
+    start = System.nanoTime();
+    for (String date : dates) {
+      UtcDateCodec.parse(date);
+    }
+    report("UtcDateCodec.parse", start, Debug.getThreadAllocSize(), dates.length);
+
+    Debug.resetThreadAllocSize();
+    start = System.nanoTime();
+    JsonArray tasks = new JsonParser().parse(schedule.toString()).getAsJsonArray();
+    for (JsonElement task : tasks) {
+      MeasurementJsonConvertor.getGsonInstance().fromJson(task, PingDesc.class);
+    }
+    report("schedule description", start, Debug.getThreadAllocSize(), SCHEDULE_SIZE);
+    Debug.stopAllocCounting();
+  }
+
+  private void report(String name, long startNanos, int allocatedBytes) {
+    report(name, startNanos, allocatedBytes, ITERATIONS);
+  }
+
+  private void report(String name, long startNanos, int allocatedBytes, int iterations) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    Log.i(SpeedometerApp.TAG, name + ": " + (elapsedNanos / iterations) + " ns and "
+        + (allocatedBytes / iterations) + " bytes allocated per operation");
+  }
+}
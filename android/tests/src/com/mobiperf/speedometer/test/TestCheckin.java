@@ -15,12 +15,33 @@
 package com.mobiperf.speedometer.test;
 
 import com.mobiperf.Checkin;
+import com.mobiperf.Config;
+import com.mobiperf.DeviceProperty;
+import com.mobiperf.MeasurementResult;
 import com.mobiperf.MeasurementTask;
+import com.mobiperf.ResourceCapManager;
 import com.mobiperf.SpeedometerApp;
+import com.mobiperf.measurements.PingTask;
+import com.mobiperf.measurements.PingTask.PingDesc;
+import com.mobiperf.util.MeasurementBinaryConvertor;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import org.apache.http.HttpEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -46,4 +67,113 @@ public class TestCheckin extends TestMeasurementTaskBase {
       assertTrue(e.getMessage(), false);
     }
   }
+
+  /**
+   * Uploads a spool of several chunks with the post of the second chunk failing, then uploads
+   * again and checks that it resumes after the first chunk and sends every result once.
+   */
+  public void testResumedUpload() throws IOException {
+    final String spoolName = "test_upload_spool";
+    final int resultCnt = 20;
+    writeSpool(spoolName, resultCnt);
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
+    prefs.edit().remove(Config.PREF_KEY_RESULT_UPLOAD_OFFSET).commit();
+    ResourceCapManager resourceCapManager = new ResourceCapManager(0, activity);
+    RecordingCheckin checkin = new RecordingCheckin(activity);
+
+    checkin.failAt = 1;
+    try {
+      checkin.uploadMeasurementResult(spoolName, resourceCapManager);
+      fail("Expected the second chunk to fail");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertEquals(1, checkin.chunks.size());
+    long spoolLength = activity.getFileStreamPath(spoolName).length();
+    long offset = prefs.getLong(Config.PREF_KEY_RESULT_UPLOAD_OFFSET, 0);
+    assertTrue("offset " + offset, offset > 0 && offset < spoolLength);
+    int firstChunkCnt = checkin.chunks.get(0).size();
+    assertTrue(firstChunkCnt > 0 && firstChunkCnt < resultCnt);
+
+    checkin.failAt = -1;
+    int uploadedCnt = checkin.uploadMeasurementResult(spoolName, resourceCapManager);
+    assertEquals(resultCnt - firstChunkCnt, uploadedCnt);
+    // The rest takes at least two more chunks, the last one holding what is left over
+    assertTrue(checkin.chunks.size() >= 3);
+    List<Integer> uploaded = new ArrayList<Integer>();
+    for (List<Integer> chunk : checkin.chunks) {
+      assertFalse(chunk.isEmpty());
+      uploaded.addAll(chunk);
+    }
+    for (int i = 0; i < resultCnt; i++) {
+      assertEquals(i, (int) uploaded.get(i));
+    }
+    assertEquals(resultCnt, uploaded.size());
+    assertFalse(prefs.contains(Config.PREF_KEY_RESULT_UPLOAD_OFFSET));
+    assertFalse(activity.getFileStreamPath(spoolName).exists());
+  }
+
+  /** Writes |count| results of about 4 KB of JSON each, numbered by their "index" value */
+  private void writeSpool(String spoolName, int count) throws IOException {
+    char[] padding = new char[4000];
+    Arrays.fill(padding, 'x');
+    DeviceProperty property = new DeviceProperty("id", "1.0", System.currentTimeMillis(),
+        "os", null, "yes", 1.5, -2.5, "gps", "LTE", "carrier", 80, false, null, -70);
+    OutputStream out = new BufferedOutputStream(
+        activity.openFileOutput(spoolName, Context.MODE_PRIVATE));
+    try {
+      MeasurementBinaryConvertor.writeSchema(out);
+      for (int i = 0; i < count; i++) {
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put("target", "www.dealsea.com");
+        PingDesc desc = new PingDesc("key", Calendar.getInstance().getTime(), null, 0, 0, 0,
+            params);
+        MeasurementResult result = new MeasurementResult("id", property, PingTask.TYPE,
+            System.currentTimeMillis(), true, desc);
+        result.addResult("index", i);
+        result.addResult("padding", new String(padding));
+        MeasurementBinaryConvertor.writeRecord(out, MeasurementBinaryConvertor.encode(result));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Acknowledges every post without a server and keeps the indexes of the results in each
+   * chunk, or fails the post numbered |failAt|.
+   */
+  private static class RecordingCheckin extends Checkin {
+    final List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+    int failAt = -1;
+    private int posts = 0;
+
+    RecordingCheckin(Context context) {
+      super(context);
+    }
+
+    @Override
+    protected String serviceRequest(String url, HttpEntity entity) throws IOException {
+      if (posts++ == failAt) {
+        throw new IOException("Connection lost");
+      }
+      assertEquals("postmeasurement", url);
+      assertTrue(entity.getContentLength() <= Config.RESULT_UPLOAD_CHUNK_BYTES + 1024);
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      entity.writeTo(body);
+      assertEquals(entity.getContentLength(), body.size());
+      List<Integer> chunk = new ArrayList<Integer>();
+      try {
+        JSONArray results = new JSONArray(body.toString("UTF-8"));
+        for (int i = 0; i < results.length(); i++) {
+          chunk.add(Integer.parseInt(
+              results.getJSONObject(i).getJSONObject("values").getString("index")));
+        }
+      } catch (JSONException e) {
+        throw new IOException(e.getMessage());
+      }
+      chunks.add(chunk);
+      return "{\"success\": true}";
+    }
+  }
 }
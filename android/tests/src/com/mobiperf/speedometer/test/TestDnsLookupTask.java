@@ -0,0 +1,221 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.speedometer.test;
+
+import com.google.myjson.JsonObject;
+import com.mobiperf.MeasurementError;
+import com.mobiperf.measurements.DnsLookupTask;
+import com.mobiperf.measurements.DnsLookupTask.DnsLookupDesc;
+import com.mobiperf.util.PhoneUtils;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks the queries, rcodes and losses that the DNS lookup task reports. The
+ * resolver is a stub on the loopback interface, so the names it sees can be
+ * checked too, and no test depends on the network.
+ */
+public class TestDnsLookupTask extends AndroidTestCase {
+  private StubResolver resolver;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    PhoneUtils.setGlobalContext(getContext());
+    resolver = new StubResolver();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    resolver.close();
+    super.tearDown();
+  }
+
+  public void testLookup() throws MeasurementError {
+    JsonObject values = run("www.example.com", resolver.address(), false, 3, 1, 1000);
+
+    assertEquals("true", values.get("success").getAsString());
+    values = values.getAsJsonObject("values");
+    assertEquals("\"udp\"", values.get("method").getAsString());
+    assertEquals("\"10.1.2.3\"", values.get("address").getAsString());
+    assertEquals(3, values.get("num_queries").getAsInt());
+    assertEquals(0, values.get("lost_queries").getAsInt());
+    assertEquals(0, values.get("query_2_rcode").getAsInt());
+    assertEquals(1, resolver.getNames().size());
+  }
+
+  public void testRandomPrefix() throws MeasurementError {
+    JsonObject values = run("www.example.com", resolver.address(), true, 4, 2, 1000)
+        .getAsJsonObject("values");
+
+    // Every query asks for a different name under the target
+    assertEquals(4, resolver.getNames().size());
+    for (String name : resolver.getNames()) {
+      assertTrue(name, name.endsWith(".www.example.com"));
+    }
+    // String results are JSON encoded
+    String name = values.get("query_3_name").getAsString();
+    assertTrue(resolver.getNames().contains(name.substring(1, name.length() - 1)));
+  }
+
+  public void testRcodeAndLoss() throws MeasurementError {
+    JsonObject values = run("missing.test drop.test www.example.com", resolver.address(),
+        false, 1, 3, 300).getAsJsonObject("values");
+
+    assertEquals(3, values.get("num_queries").getAsInt());
+    assertEquals(1, values.get("lost_queries").getAsInt());
+    assertEquals(3, values.get("query_0_rcode").getAsInt());
+    assertEquals(-1, values.get("query_1_rcode").getAsInt());
+    assertEquals(-1.0, values.get("query_1_time_ms").getAsDouble());
+    assertEquals("\"10.1.2.3\"", values.get("address").getAsString());
+  }
+
+  public void testAllLost() {
+    try {
+      run("drop.test", resolver.address(), false, 2, 2, 300);
+      fail("Expected a MeasurementError");
+    } catch (MeasurementError e) {
+      // Expected
+    }
+  }
+
+  public void testConcurrentQueries() throws MeasurementError {
+    resolver.setDelayMs(300);
+    long start = System.currentTimeMillis();
+    JsonObject values = run("a.example.com b.example.com", resolver.address(), false, 3, 6,
+        2000).getAsJsonObject("values");
+    long elapsedMs = System.currentTimeMillis() - start;
+
+    assertEquals(0, values.get("lost_queries").getAsInt());
+    // Six queries at once take one delay, not six
+    assertTrue("elapsed " + elapsedMs, elapsedMs < 1200);
+    assertTrue(values.get("time_ms").getAsDouble() >= 250);
+  }
+
+  private JsonObject run(String target, String server, boolean randomPrefix, int queryCount,
+      int parallelism, int timeoutMs) throws MeasurementError {
+    HashMap<String, String> params = new HashMap<String, String>();
+    params.put("target", target);
+    params.put("server", server);
+    params.put("random_prefix", String.valueOf(randomPrefix));
+    params.put("query_count", String.valueOf(queryCount));
+    params.put("parallelism", String.valueOf(parallelism));
+    params.put("timeout_ms", String.valueOf(timeoutMs));
+    DnsLookupDesc desc = new DnsLookupDesc(null, null, null, 0, 0, 0, params);
+    return TestMeasurementTaskBase.runToJson(new DnsLookupTask(desc, getContext()));
+  }
+
+  /**
+   * A resolver on the loopback interface. Names under "example.com" resolve to
+   * 10.1.2.3, queries for names starting with "drop" are never answered, and
+   * everything else is NXDOMAIN. Each query is answered from its own thread,
+   * after an optional delay.
+   */
+  private static class StubResolver implements Runnable {
+    private final DatagramSocket socket;
+    private final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+    private volatile int delayMs = 0;
+
+    StubResolver() throws IOException {
+      socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+      new Thread(this).start();
+    }
+
+    String address() {
+      return "127.0.0.1:" + socket.getLocalPort();
+    }
+
+    Set<String> getNames() {
+      return names;
+    }
+
+    void setDelayMs(int delayMs) {
+      this.delayMs = delayMs;
+    }
+
+    void close() {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final DatagramPacket query = new DatagramPacket(new byte[512], 512);
+          socket.receive(query);
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              answer(query);
+            }
+          }).start();
+        }
+      } catch (IOException e) {
+        // Closed by the test
+      }
+    }
+
+    private void answer(DatagramPacket query) {
+      byte[] data = query.getData();
+      // The question starts right after the 12 byte header
+      StringBuilder name = new StringBuilder();
+      int offset = 12;
+      while (data[offset] != 0) {
+        if (name.length() > 0) {
+          name.append('.');
+        }
+        name.append(new String(data, offset + 1, data[offset]));
+        offset += data[offset] + 1;
+      }
+      int questionEnd = offset + 5;
+      names.add(name.toString());
+      if (name.toString().startsWith("drop")) {
+        return;
+      }
+
+      boolean found = name.toString().endsWith("example.com");
+      byte[] answer = {
+          // Pointer to the name in the question, type A, class IN, TTL 60
+          (byte) 0xc0, 12, 0, 1, 0, 1, 0, 0, 0, 60,
+          0, 4, 10, 1, 2, 3 };
+      byte[] reply = new byte[questionEnd + (found ? answer.length : 0)];
+      System.arraycopy(data, 0, reply, 0, questionEnd);
+      // A response with recursion available, and NXDOMAIN if not found
+      reply[2] = (byte) 0x81;
+      reply[3] = (byte) (found ? 0x80 : 0x83);
+      reply[7] = (byte) (found ? 1 : 0);
+      if (found) {
+        System.arraycopy(answer, 0, reply, questionEnd, answer.length);
+      }
+      try {
+        Thread.sleep(delayMs);
+        socket.send(new DatagramPacket(reply, reply.length, query.getSocketAddress()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        // Closed by the test
+      }
+    }
+  }
+}
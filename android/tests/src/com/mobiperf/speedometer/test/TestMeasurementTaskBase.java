@@ -14,12 +14,15 @@
  */
 package com.mobiperf.speedometer.test;
 
+import com.google.myjson.JsonObject;
+import com.google.myjson.JsonParser;
 import com.mobiperf.MeasurementDesc;
 import com.mobiperf.MeasurementError;
 import com.mobiperf.MeasurementResult;
 import com.mobiperf.MeasurementScheduler;
 import com.mobiperf.MeasurementTask;
 import com.mobiperf.SpeedometerApp;
+import com.mobiperf.util.MeasurementJsonConvertor;
 
 import android.app.Instrumentation;
 import android.content.Context;
@@ -65,6 +68,16 @@ public class TestMeasurementTaskBase extends
     //    activity.findViewById(com.mobiperf.speedometer.R.viewId.systemConsole);
   }
   
+  /**
+   * Runs the task on the calling thread and returns its result in the JSON form that is uploaded,
+   * so that tests check the values the server sees. Also used by tests that need no activity.
+   */
+  public static JsonObject runToJson(MeasurementTask task) throws MeasurementError {
+    MeasurementResult result = task.call();
+    return new JsonParser().parse(MeasurementJsonConvertor.toJsonString(result))
+        .getAsJsonObject();
+  }
+
   /**
    * A task created only for testing purpose. It never finishes.
    */
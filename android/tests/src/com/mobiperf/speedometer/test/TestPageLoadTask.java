@@ -0,0 +1,193 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.speedometer.test;
+
+import com.google.myjson.JsonObject;
+import com.mobiperf.MeasurementError;
+import com.mobiperf.measurements.PageLoadTask;
+import com.mobiperf.measurements.PageLoadTask.PageLoadDesc;
+import com.mobiperf.util.PhoneUtils;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the page load measurement against an HTTP server inside the test
+ */
+public class TestPageLoadTask extends AndroidTestCase {
+  private LocalHttpServer server;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    PhoneUtils.setGlobalContext(getContext());
+    server = new LocalHttpServer();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.close();
+    super.tearDown();
+  }
+
+  public void testPageLoad() throws MeasurementError {
+    StringBuilder manifest = new StringBuilder(server.url("/bytes/2000"));
+    for (int i = 1; i <= 8; i++) {
+      manifest.append(",").append(server.url("/bytes/" + (i * 1000)));
+    }
+    JsonObject values = run(manifest.toString(), 4);
+
+    assertEquals("true", values.get("success").getAsString());
+    values = values.getAsJsonObject("values");
+    assertEquals(9, values.get("num_objects").getAsInt());
+    assertEquals(0, values.get("failed_objects").getAsInt());
+    assertEquals(2000 + 36000, values.get("total_bytes").getAsLong());
+    assertEquals(8000, values.get("object_8_bytes").getAsLong());
+    assertTrue(values.get("load_time_ms").getAsDouble()
+        >= values.get("critical_path_ms").getAsDouble());
+    // The objects share keep-alive connections
+    assertTrue("connections: " + server.getConnections(), server.getConnections() <= 4);
+  }
+
+  public void testParallelism() throws MeasurementError {
+    StringBuilder manifest = new StringBuilder(server.url("/bytes/100"));
+    for (int i = 0; i < 6; i++) {
+      manifest.append(" ").append(server.url("/delay/300"));
+    }
+    JsonObject values = run(manifest.toString(), 3).getAsJsonObject("values");
+
+    // Six objects three at a time take two rounds, and the last one waits for a connection
+    double loadTimeMs = values.get("load_time_ms").getAsDouble();
+    assertTrue("load time " + loadTimeMs, loadTimeMs >= 600 && loadTimeMs < 1800);
+    assertTrue(values.get("connection_wait_ms").getAsDouble() >= 250);
+  }
+
+  public void testFailedObject() throws MeasurementError {
+    JsonObject values = run(server.url("/bytes/100") + " " + server.url("/missing"), 2);
+
+    assertEquals("true", values.get("success").getAsString());
+    values = values.getAsJsonObject("values");
+    assertEquals(1, values.get("failed_objects").getAsInt());
+    assertEquals(404, values.get("object_1_code").getAsInt());
+  }
+
+  public void testMainDocumentFailure() throws MeasurementError {
+    JsonObject values = run(server.url("/missing") + " " + server.url("/bytes/100"), 2);
+
+    assertEquals("false", values.get("success").getAsString());
+    values = values.getAsJsonObject("values");
+    assertEquals(1, values.get("num_objects").getAsInt());
+    assertEquals(404, values.get("code").getAsInt());
+  }
+
+  private JsonObject run(String manifest, int parallelism) throws MeasurementError {
+    HashMap<String, String> params = new HashMap<String, String>();
+    params.put("urls", manifest);
+    params.put("parallelism", String.valueOf(parallelism));
+    PageLoadDesc desc = new PageLoadDesc(null, null, null, 0, 0, 0, params);
+    return TestMeasurementTaskBase.runToJson(new PageLoadTask(desc, getContext()));
+  }
+
+  /**
+   * A keep-alive HTTP server on the loopback interface. "/bytes/n" returns n
+   * bytes, "/delay/ms" returns after ms milliseconds, and anything else is a 404.
+   */
+  private static class LocalHttpServer implements Runnable {
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    LocalHttpServer() throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      new Thread(this).start();
+    }
+
+    String url(String path) {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    int getConnections() {
+      return connections.get();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(socket);
+            }
+          }).start();
+        }
+      } catch (IOException e) {
+        // Closed by the test
+      }
+    }
+
+    private void serve(Socket socket) {
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        String requestLine;
+        while ((requestLine = in.readLine()) != null) {
+          String line;
+          while ((line = in.readLine()) != null && line.length() > 0) {
+            // Skips the request headers
+          }
+          String path = requestLine.split(" ")[1];
+          int status = 200;
+          int length = 0;
+          if (path.startsWith("/bytes/")) {
+            length = Integer.parseInt(path.substring("/bytes/".length()));
+          } else if (path.startsWith("/delay/")) {
+            Thread.sleep(Integer.parseInt(path.substring("/delay/".length())));
+          } else {
+            status = 404;
+          }
+          out.write(("HTTP/1.1 " + status + " X\r\nContent-Length: " + length + "\r\n\r\n")
+              .getBytes());
+          out.write(new byte[length]);
+          out.flush();
+        }
+      } catch (IOException e) {
+        // The client closed the connection
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Already closed
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.speedometer.test;
+
+import com.mobiperf.measurements.RRCProbeEngine;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Runs the RRC probe engine against an echo server on the loopback interface
+ */
+public class TestRRCProbeEngine extends AndroidTestCase {
+  private static final int LARGE_PACKET = 1024;
+  // Probes of this size are never echoed
+  private static final int IGNORED_SIZE = 1;
+
+  private Echo echo;
+  private RRCProbeEngine engine;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    echo = new Echo();
+    echo.start();
+    engine = new RRCProbeEngine(InetAddress.getByName("127.0.0.1"), echo.getPort(),
+        LARGE_PACKET);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    engine.close();
+    echo.close();
+    super.tearDown();
+  }
+
+  /**
+   * One test of the RRC timeline: a large packet to promote the radio, a
+   * pause, then a burst of large packets and one of empty packets.
+   */
+  public void testProbeTimeline() throws Exception {
+    long[] promote = engine.probe(LARGE_PACKET, 1);
+    assertEquals(0, promote[1]);
+    assertTrue(promote[0] >= 0);
+
+    long pauseStart = System.nanoTime();
+    engine.await(200);
+    assertTrue(System.nanoTime() - pauseStart >= 190 * 1000000L);
+
+    long[] large = engine.probe(LARGE_PACKET, 10);
+    assertEquals(0, large[1]);
+    assertTrue(large[0] >= 0);
+
+    // The channel is not connected, so empty packets are sent too
+    long[] empty = engine.probe(0, 10);
+    assertEquals(0, empty[1]);
+    assertTrue(empty[0] >= 0);
+  }
+
+  /**
+   * Stopping the engine ends a probe that is waiting for lost echoes, and
+   * every later call returns at once.
+   */
+  public void testStop() throws Exception {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          // Stops early
+        }
+        engine.stop();
+      }
+    }).start();
+
+    long start = System.currentTimeMillis();
+    long[] lost = engine.probe(IGNORED_SIZE, 3);
+    assertEquals(-1, lost[0]);
+    assertEquals(3, lost[1]);
+    assertTrue(System.currentTimeMillis() - start < RRCProbeEngine.TIMEOUT_MSEC);
+
+    start = System.currentTimeMillis();
+    engine.await(RRCProbeEngine.TIMEOUT_MSEC);
+    long[] skipped = engine.probe(0, 5);
+    assertEquals(5, skipped[1]);
+    assertTrue(System.currentTimeMillis() - start < RRCProbeEngine.TIMEOUT_MSEC);
+  }
+
+  /** Echoes every packet but those of IGNORED_SIZE bytes */
+  private static class Echo extends Thread {
+    private final DatagramSocket socket;
+
+    Echo() throws IOException {
+      socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+      setDaemon(true);
+    }
+
+    int getPort() {
+      return socket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+      try {
+        while (true) {
+          packet.setLength(2048);
+          socket.receive(packet);
+          if (packet.getLength() != IGNORED_SIZE) {
+            socket.send(packet);
+          }
+        }
+      } catch (IOException e) {
+        // Closed by the test
+      }
+    }
+
+    void close() {
+      socket.close();
+    }
+  }
+}
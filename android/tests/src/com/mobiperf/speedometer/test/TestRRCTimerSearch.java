@@ -0,0 +1,146 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mobiperf.speedometer.test;
+
+import com.mobiperf.measurements.RRCTimerSearch;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the adaptive RRC timer search against a simulated radio
+ */
+public class TestRRCTimerSearch extends AndroidTestCase {
+  // The full sweep tests intervals 0 to 30
+  private static final int SIZE = 30;
+
+  public void testLocatesTransitions() throws Exception {
+    SimulatedRadio radio = new SimulatedRadio(5, 17);
+    RRCTimerSearch search = run(radio);
+
+    assertEquals(Arrays.asList(5, 17), search.getTransitions());
+    assertTrue("tests " + search.getProbeCount(), search.getProbeCount() <= 20);
+    // The long intervals inside IDLE are mostly skipped
+    assertTrue("waited " + radio.totalWait, radio.totalWait < fullSweepWait() / 2);
+    assertTrue(search.isTested(4));
+    assertTrue(search.isTested(5));
+    assertFalse(search.isTested(25));
+  }
+
+  public void testSlowPacket() throws Exception {
+    SimulatedRadio radio = new SimulatedRadio(5, 17);
+    // The first test inside FACH is delayed as if the radio had demoted
+    radio.delays.put(15, 1000L);
+    RRCTimerSearch search = run(radio);
+
+    assertEquals(Arrays.asList(5, 17), search.getTransitions());
+    assertTrue(search.getProbeCount() <= SIZE + 1);
+  }
+
+  public void testTimeouts() throws Exception {
+    SimulatedRadio radio = new SimulatedRadio(5, 17);
+    radio.idleTimesOut = true;
+    RRCTimerSearch search = run(radio);
+
+    assertEquals(Arrays.asList(5, 17), search.getTransitions());
+  }
+
+  public void testNoTransition() throws Exception {
+    // Always in DCH
+    RRCTimerSearch search = run(new SimulatedRadio(SIZE + 1, SIZE + 1));
+
+    assertTrue(search.getTransitions().isEmpty());
+    assertEquals(2, search.getProbeCount());
+  }
+
+  public void testStop() throws Exception {
+    SimulatedRadio radio = new SimulatedRadio(5, 17);
+    radio.maxTests = 3;
+    RRCTimerSearch search = run(radio);
+
+    assertEquals(3, search.getProbeCount());
+  }
+
+  public void testMedianSample() throws Exception {
+    SimulatedRadio radio = new SimulatedRadio(5, 17);
+    // The first test of 16 is slow, so it is tested again
+    radio.delays.put(16, 1000L);
+    RRCTimerSearch search = run(radio);
+
+    assertEquals(Arrays.asList(5, 17), search.getTransitions());
+    assertEquals(1500, search.getMedian(16)[0]);
+    // The slow test is not the median one
+    assertTrue(search.getMedianSample(16, 0) > 0);
+    assertTrue(search.getMedianSample(16, 1) > 0);
+  }
+
+  private RRCTimerSearch run(SimulatedRadio radio) throws IOException, InterruptedException {
+    RRCTimerSearch search = new RRCTimerSearch(SIZE, RRCTimerSearch.DEFAULT_THRESHOLD_MSEC,
+        RRCTimerSearch.DEFAULT_REPEATS, radio);
+    search.run();
+    return search;
+  }
+
+  /** Each test of the sweep waits twice for its interval */
+  private static int fullSweepWait() {
+    int wait = 0;
+    for (int i = 0; i <= SIZE; i++) {
+      wait += 2 * i;
+    }
+    return wait;
+  }
+
+  /**
+   * A radio in DCH for intervals below |fachStart|, in FACH below |idleStart| and in IDLE after.
+   * Large packets need a promotion from FACH, all packets need one from IDLE.
+   */
+  private static class SimulatedRadio implements RRCTimerSearch.Probe {
+    final int fachStart;
+    final int idleStart;
+    // Extra delay of the first test at an interval
+    final Map<Integer, Long> delays = new HashMap<Integer, Long>();
+    boolean idleTimesOut = false;
+    int maxTests = Integer.MAX_VALUE;
+    int tests = 0;
+    int totalWait = 0;
+
+    SimulatedRadio(int fachStart, int idleStart) {
+      this.fachStart = fachStart;
+      this.idleStart = idleStart;
+    }
+
+    @Override
+    public long[] run(int index) {
+      if (tests++ >= maxTests) {
+        return null;
+      }
+      totalWait += 2 * index;
+      Long delay = delays.remove(index);
+      long extra = delay == null ? 0 : delay;
+      if (index < fachStart) {
+        return new long[] {100 + extra, 80 + extra};
+      } else if (index < idleStart) {
+        return new long[] {1500 + extra, 120 + extra};
+      } else if (idleTimesOut) {
+        return new long[] {-1, -1};
+      }
+      return new long[] {2000 + extra, 1900 + extra};
+    }
+  }
+}
@@ -14,19 +14,33 @@
  */
 package com.mobiperf.speedometer.test;
 
+import com.mobiperf.measurements.PingTask;
 import com.mobiperf.measurements.PingTask.PingDesc;
+import com.mobiperf.DeviceProperty;
+import com.mobiperf.MeasurementResult;
 import com.mobiperf.MeasurementTask;
 import com.mobiperf.SpeedometerApp;
+import com.mobiperf.util.MeasurementBinaryConvertor;
 import com.mobiperf.util.MeasurementJsonConvertor;
+import com.mobiperf.util.QuantileSketch;
+import com.mobiperf.util.UtcDateCodec;
 
 import android.test.AndroidTestCase;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,6 +82,39 @@ public class UtilTest extends AndroidTestCase {
     }
   }
   
+  public void testBinaryResultEncoding() throws IOException {
+    HashMap<String, String> params = new HashMap<String, String>();
+    params.put("target", "www.dealsea.com");
+    PingDesc pingDesc = new PingDesc("key", Calendar.getInstance().getTime(), null, 0, 0, 0,
+        params);
+    DeviceProperty property = new DeviceProperty("id", "1.0", System.currentTimeMillis(),
+        "os", null, "yes", 1.5, -2.5, "gps", "LTE", "carrier", 80, false, null, -70);
+    MeasurementResult result = new MeasurementResult("id", property, PingTask.TYPE,
+        System.currentTimeMillis(), true, pingDesc);
+    result.addResult("mean_rtt_ms", 12.5);
+    result.addResult("target_ip", "74.125.127.105");
+
+    byte[] record = MeasurementBinaryConvertor.encode(result);
+    StringWriter json = new StringWriter();
+    new MeasurementBinaryConvertor.Decoder().writeJson(record, record.length, json);
+    assertEquals(MeasurementJsonConvertor.toJsonString(result), json.toString());
+    assertTrue(record.length < json.toString().length() / 2);
+  }
+
+  public void testUtcDateCodec() throws ParseException {
+    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    long[] times = {0, -1, 951782400000L, 1350030600123L, System.currentTimeMillis()};
+    for (long time : times) {
+      Date date = new Date(time);
+      assertEquals(dateFormat.format(date), UtcDateCodec.format(date));
+      assertEquals(date, UtcDateCodec.parse(UtcDateCodec.format(date)));
+    }
+    // The server sends isoformat() times, with microseconds or without a fraction at all
+    assertEquals(1350030600123L, UtcDateCodec.parse("2012-10-12T08:30:00.123456Z").getTime());
+    assertEquals(1350030600000L, UtcDateCodec.parse("2012-10-12T08:30:00Z").getTime());
+  }
+
   public void testPingOutputPatternMatching() {
     String patternStr = "icmp_seq=([0-9]+)\\s.* time=([0-9]+(\\.[0-9]+)?)";
     Pattern pattern = Pattern.compile(patternStr);
@@ -92,4 +139,32 @@ public class UtilTest extends AndroidTestCase {
     assertEquals(matcher.group(1), "16");
     assertEquals(matcher.group(2), "12");
   }
+
+  public void testQuantileSketch() {
+    QuantileSketch sketch = new QuantileSketch(1, 1e8, 0.01);
+    assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+
+    Random random = new Random(1);
+    double[] values = new double[10000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.exp(random.nextGaussian() * 2 + 8);
+      sketch.add(values[i]);
+    }
+    Arrays.sort(values);
+    assertEquals(values.length, sketch.getCount());
+    assertEquals(values[0], sketch.getMin());
+    assertEquals(values[values.length - 1], sketch.getMax());
+    for (double q : new double[] {0.1, 0.5, 0.9}) {
+      double expected = values[(int) Math.ceil(q * values.length) - 1];
+      assertEquals(expected, sketch.getQuantile(q), expected * 0.011);
+    }
+
+    // Values below the range, such as an idle sampling period, are exact
+    sketch = new QuantileSketch(1, 1e8, 0.01);
+    sketch.add(0);
+    sketch.add(0);
+    sketch.add(5000);
+    assertEquals(0.0, sketch.getQuantile(0.5));
+    assertEquals(5000.0, sketch.getQuantile(0.9));
+  }
 }
@@ -40,6 +40,11 @@ echo "Main-Class: com.udpmeasurement.UDPServer" > manifest
 jar cvfm UDPServer.jar manifest com/udpmeasurement/*.class
 mv UDPServer.jar ../mlab
 
+# generate jar for the echo server of RRC inference
+echo "Main-Class: com.udpmeasurement.EchoServer" > manifest
+jar cvfm EchoServer.jar manifest com/udpmeasurement/*.class
+mv EchoServer.jar ../mlab
+
 rm manifest
 echo "Successful compile the UDP server code."
 cd ..
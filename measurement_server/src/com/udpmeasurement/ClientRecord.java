@@ -33,6 +33,9 @@ public class ClientRecord {
   public int outOfOrderCount;
   private int maxPacketNum;
   public ArrayList<Long> offsetedDelayList;  
+  // Per-packet delays in nanoseconds, for clients sending nano timestamps
+  public ArrayList<Integer> arrivalPacketNumList;
+  public ArrayList<Long> arrivalDelayNanosList;
   
   public Thread timeoutChecker;
   public ClientRecord() {
@@ -40,6 +43,8 @@ public class ClientRecord {
     packetCount = 0;
     outOfOrderCount = 0;
     offsetedDelayList = new ArrayList<Long>();
+    arrivalPacketNumList = new ArrayList<Integer>();
+    arrivalDelayNanosList = new ArrayList<Long>();
   }
 
   public void addPacketInfo(int packetNum, long delay, long lastTimestamp) {
@@ -54,6 +59,17 @@ public class ClientRecord {
     packetCount++;
   }
 
+  /**
+   * Record the nanosecond delay of a packet, in addition to addPacketInfo
+   * @param packetNum packet number in burst sequence
+   * @param delayNanos receive time minus the client's send time. It contains
+   *                   the offset between the two monotonic clocks
+   */
+  public void addPacketDelay(int packetNum, long delayNanos) {
+    arrivalPacketNumList.add(packetNum);
+    arrivalDelayNanosList.add(delayNanos);
+  }
+
   /**
    * Get inversion number as the metric of UDP out-of-order count
    * @return the inversion number of the current UDP burst
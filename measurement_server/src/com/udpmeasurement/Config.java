@@ -24,6 +24,10 @@ import java.text.SimpleDateFormat;
  */
 public class Config {
   public static final int DEFAULT_PORT = 31341;
+  // Port of the echo server for the RRC inference of the client
+  public static final int DEFAULT_ECHO_PORT = 50000;
+  // The client times and counts the echoes, so they carry nothing
+  public static final int DEFAULT_ECHO_RESPONSE_SIZE = 0;
   // Larger then normal Ethernet MTU, leave enough margin
   public static final int BUFSIZE = 1500;
   /**
@@ -33,6 +37,8 @@ public class Config {
    *                  =  36
    */
   public static final int MIN_PACKETSIZE = 36;
+  // Optional nanosecond send timestamp appended to data packets
+  public static final int NANO_TIMESTAMP_SIZE = 8;
   // Leave enough margin for min MTU in the link and IP options
   public static final int MAX_PACKETSIZE = 512;
   public static final int DEFAULT_UDP_PACKET_SIZE = 100;
@@ -51,6 +57,19 @@ public class Config {
   public static final int PKT_RESPONSE = 2;
   public static final int PKT_DATA = 3;
   public static final int PKT_REQUEST = 4;
+  // Downlink request of a bidirectional burst, sent together with an uplink
+  // burst of the same seq from another port of the client
+  public static final int PKT_BIDIR_REQUEST = 5;
+
+  // Logging sits in the receiving loop, whose speed decides how accurately
+  // the arrival of back-to-back packets is timed, so the format is reused
+  private static final ThreadLocal<SimpleDateFormat> dateFormat =
+      new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("yyyy-MM-dd kk:mm:ss");
+    }
+  };
 
   /**
    * print a log message with the current time and extra information 
@@ -59,7 +78,6 @@ public class Config {
   public static void logmsg(String a) {
     long timenow = System.currentTimeMillis();
     Date date = new Date(timenow);
-    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd kk:mm:ss");
-    System.out.println(df.format(date) + " " + a);
+    System.out.println(dateFormat.get().format(date) + " " + a);
   }
 }
@@ -0,0 +1,155 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Echo server for the RRC inference task of the client.
+ * Every packet received is answered at once with a packet of a fixed size,
+ * empty by default, whatever the size of the packet received. The client
+ * times how long the first answer to a burst takes and counts the answers,
+ * so nothing is read from the packets.
+ * The loop runs on a single non-blocking channel and reuses its buffers, so
+ * that answering a burst does not wait for the garbage collector.
+ */
+public class EchoServer implements Runnable {
+  private static final String VERSION = "1.0.0";
+
+  private final DatagramChannel channel;
+  private final Selector selector;
+  private final ByteBuffer receiveBuffer;
+  private final ByteBuffer responseBuffer;
+  private volatile boolean stopped = false;
+  private long packetsEchoed = 0;
+
+  /**
+   * @param port port to listen on, or 0 for any free port
+   * @param responseSize size of every answer in bytes
+   * @throws MeasurementError if the port cannot be bound
+   */
+  public EchoServer(int port, int responseSize) throws MeasurementError {
+    if (responseSize < 0 || responseSize > Config.BUFSIZE) {
+      throw new MeasurementError("Invalid response size " + responseSize);
+    }
+    receiveBuffer = ByteBuffer.allocateDirect(Config.BUFSIZE);
+    responseBuffer = ByteBuffer.allocateDirect(responseSize);
+    try {
+      channel = DatagramChannel.open();
+      channel.socket().bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      throw new MeasurementError("Failed opening and binding socket!");
+    }
+  }
+
+  /** Returns the port the server listens on */
+  public int getPort() {
+    return channel.socket().getLocalPort();
+  }
+
+  /** Returns the number of packets answered, including answers dropped on send */
+  public synchronized long getPacketsEchoed() {
+    return packetsEchoed;
+  }
+
+  /**
+   * Main receiving iteration. Answers every packet that is queued each time
+   * the channel becomes readable.
+   */
+  @Override
+  public void run() {
+    Config.logmsg("Echo server is running on port " + getPort());
+    try {
+      while (!stopped) {
+        selector.select();
+        selector.selectedKeys().clear();
+        SocketAddress client;
+        while ((client = channel.receive(receiveBuffer)) != null) {
+          receiveBuffer.clear();
+          responseBuffer.clear();
+          // A full send buffer drops the answer, as a congested link would.
+          // send() then returns 0, as it does for an empty answer, so drops
+          // cannot be counted apart.
+          channel.send(responseBuffer, client);
+          synchronized (this) {
+            packetsEchoed++;
+          }
+        }
+      }
+    } catch (IOException e) {
+      if (!stopped) {
+        Config.logmsg("Echo server failed: " + e.getMessage());
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /** Stops the receiving iteration and releases the port */
+  public void stop() {
+    stopped = true;
+    selector.wakeup();
+  }
+
+  private void close() {
+    try {
+      selector.close();
+      channel.close();
+    } catch (IOException e) {
+      Config.logmsg("Error when closing echo server: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Main function
+   * Check the port and the response size, then run the echo server
+   * @param args port used by server, and optionally the response size
+   */
+  public static void main(String[] args) {
+    int port = Config.DEFAULT_ECHO_PORT;
+    int responseSize = Config.DEFAULT_ECHO_RESPONSE_SIZE;
+    try {
+      if (args.length >= 1) {
+        port = Integer.parseInt(args[0]);
+      }
+      if (args.length >= 2) {
+        responseSize = Integer.parseInt(args[1]);
+      }
+    } catch (NumberFormatException e) {
+      Config.logmsg("Usage: EchoServer [port [response size]]");
+      return;
+    }
+    if (port < 1 || port > 65535) {
+      Config.logmsg("Invalid port " + port);
+      return;
+    }
+    System.out.println("Echo server(Ver " + VERSION + ") runs on port " + port
+        + " with " + responseSize + " byte responses");
+    try {
+      new Thread(new EchoServer(port, responseSize)).start();
+    } catch (MeasurementError e) {
+      Config.logmsg("Error when creating echo server: " + e.getMessage());
+    }
+  }
+}
@@ -31,6 +31,16 @@ public class MeasurementPacket {
   public int packetSize;
   public int seq;
   public int udpInterval;
+  // Optional trailer of data packets: monotonic send time in nanoseconds.
+  // Old clients and servers neither send nor read it
+  public boolean hasNanoTimestamp;
+  public long nanoTimestamp;
+  // Optional trailer of response packets: the number and the offseted one-way
+  // delay in nanoseconds of every received data packet, in arrival order
+  public int[] arrivalPacketNum;
+  public long[] arrivalDelayNanos;
+  // Local receive time in nanoseconds, not part of the network message
+  public long receivedNanos;
 
   /**
    * Create an empty structure
@@ -48,9 +58,22 @@ public class MeasurementPacket {
    */
   public MeasurementPacket(ClientIdentifier cliId, byte[] rawdata)
       throws MeasurementError{
+    this(cliId, rawdata, rawdata.length);
+  }
+
+  /**
+   * Unpack the first length bytes of a received message, including the
+   * optional trailer of data and response packets
+   * @param cliId corresponding client identifier
+   * @param rawdata network message
+   * @param length size of the network message in rawdata
+   * @throws MeasurementError stream reader failed
+   */
+  public MeasurementPacket(ClientIdentifier cliId, byte[] rawdata, int length)
+      throws MeasurementError{
     this.clientId = cliId;
 
-    ByteArrayInputStream byteIn = new ByteArrayInputStream(rawdata);
+    ByteArrayInputStream byteIn = new ByteArrayInputStream(rawdata, 0, length);
     DataInputStream dataIn = new DataInputStream(byteIn);
     
     try {
@@ -62,6 +85,28 @@ public class MeasurementPacket {
       packetSize = dataIn.readInt();
       seq = dataIn.readInt();
       udpInterval = dataIn.readInt();
+
+      if ( type == Config.PKT_DATA
+          && length >= Config.MIN_PACKETSIZE + Config.NANO_TIMESTAMP_SIZE ) {
+        hasNanoTimestamp = true;
+        nanoTimestamp = dataIn.readLong();
+      }
+      else if ( type == Config.PKT_RESPONSE
+          && length > Config.MIN_PACKETSIZE ) {
+        int count = dataIn.readInt();
+        if ( count < 0 || count > Config.MAX_BURSTCOUNT ) {
+          throw new MeasurementError("Invalid delay vector size " + count);
+        }
+        arrivalPacketNum = new int[count];
+        arrivalDelayNanos = new long[count];
+        long delay = 0;
+        for ( int i = 0; i < count; i++ ) {
+          arrivalPacketNum[i] = (int) readVarint(dataIn);
+          long zigzag = readVarint(dataIn);
+          delay += (zigzag >>> 1) ^ -(zigzag & 1);
+          arrivalDelayNanos[i] = delay;
+        }
+      }
     } catch (IOException e) {
       throw new MeasurementError("Fetch payload failed! " + e.getMessage());
     }
@@ -92,6 +137,22 @@ public class MeasurementPacket {
       dataOut.writeInt(packetSize);
       dataOut.writeInt(seq);
       dataOut.writeInt(udpInterval);
+
+      if ( type == Config.PKT_DATA && hasNanoTimestamp ) {
+        dataOut.writeLong(nanoTimestamp);
+      }
+      else if ( type == Config.PKT_RESPONSE && arrivalPacketNum != null ) {
+        // Delays change little within a burst, so send each one as the
+        // zigzag varint of its difference from the previous one
+        dataOut.writeInt(arrivalPacketNum.length);
+        long delay = 0;
+        for ( int i = 0; i < arrivalPacketNum.length; i++ ) {
+          writeVarint(dataOut, arrivalPacketNum[i]);
+          long diff = arrivalDelayNanos[i] - delay;
+          writeVarint(dataOut, (diff << 1) ^ (diff >> 63));
+          delay = arrivalDelayNanos[i];
+        }
+      }
     } catch (IOException e) {
       throw new MeasurementError("Create rawpacket failed! " + e.getMessage());
     }
@@ -106,4 +167,24 @@ public class MeasurementPacket {
     return rawPacket; 
   }
 
+  private static void writeVarint(DataOutputStream dataOut, long value)
+      throws IOException {
+    while ( (value & ~0x7FL) != 0 ) {
+      dataOut.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dataOut.writeByte((int) value);
+  }
+
+  private static long readVarint(DataInputStream dataIn) throws IOException {
+    long value = 0;
+    for ( int shift = 0; shift < 64; shift += 7 ) {
+      int b = dataIn.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ( (b & 0x80) == 0 ) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
 }
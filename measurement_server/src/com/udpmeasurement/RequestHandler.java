@@ -51,6 +51,8 @@ public class RequestHandler implements Runnable {
       throws MeasurementError {
     packet.packetNum = packetNum;
     packet.timestamp = System.currentTimeMillis();
+    packet.hasNanoTimestamp = true;
+    packet.nanoTimestamp = System.nanoTime();
     
     byte[] sendBuffer = packet.getByteArray();
     DatagramPacket sendPacket = new DatagramPacket(
@@ -71,7 +73,9 @@ public class RequestHandler implements Runnable {
   
   /* (non-Javadoc)
    * @see java.lang.Runnable#run()
-   * send n=burstCount downlink packets with the interval of udpInterval
+   * send n=burstCount downlink packets with the interval of udpInterval.
+   * Packet i is sent at i * udpInterval after the first one, so the time
+   * spent sending and logging does not add up over the burst
    */
   @Override
   public void run() {
@@ -81,19 +85,24 @@ public class RequestHandler implements Runnable {
     dataPacket.packetSize = clientRecord.packetSize;
     dataPacket.seq = clientRecord.seq;
     
+    long intervalNanos = clientRecord.udpInterval * 1000000L;
+    long startNanos = System.nanoTime();
     for ( int i = 0; i < clientRecord.burstCount; i++ ) {
+      long waitNanos = startNanos + i * intervalNanos - System.nanoTime();
+      if ( waitNanos > 0 ) {
+        try {
+          Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+          Config.logmsg("sleep is interrupted: " + e.getMessage());
+        }
+      }
+
       try {
         sendPacket(dataPacket, i);
       } catch (MeasurementError e) {
         Config.logmsg("Error processing message: " + e.getMessage());
         break;
       }
-
-      try {
-        Thread.sleep(clientRecord.udpInterval);
-      } catch (InterruptedException e) {
-        Config.logmsg("sleep is interrupted: " + e.getMessage());
-      }
     }
   }
 
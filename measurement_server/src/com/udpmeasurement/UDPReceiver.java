@@ -20,6 +20,9 @@ import java.net.DatagramPacket;
 import java.net.SocketException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Hongyi Yao (hyyao@umich.edu)
@@ -28,6 +31,8 @@ import java.util.Map;
  * contains uplink data, it records the packet's information and send a
  * response when the uplink is finished. Or if the packet is a downlink
  * request, it generates another handler thread to send downlink burst.
+ * The downlink burst of a bidirectional request waits for the uplink burst of
+ * the same session, so that the two directions overlap.
  * Otherwise it replies with a error message
  */
 public class UDPReceiver implements Runnable {
@@ -37,6 +42,8 @@ public class UDPReceiver implements Runnable {
   private byte[] receivedBuffer;
 
   private HashMap<ClientIdentifier, ClientRecord> clientMap;
+  // Bidirectional downlink bursts waiting for their uplink burst, by session
+  private ConcurrentHashMap<String, CountDownLatch> pendingDownlinks;
 
   public UDPReceiver(int port) throws MeasurementError {
     try {
@@ -49,6 +56,7 @@ public class UDPReceiver implements Runnable {
     receivedPacket = new DatagramPacket(receivedBuffer, receivedBuffer.length);
 
     clientMap = new HashMap<ClientIdentifier, ClientRecord>();
+    pendingDownlinks = new ConcurrentHashMap<String, CountDownLatch>();
   }
 
   /* (non-Javadoc)
@@ -64,14 +72,16 @@ public class UDPReceiver implements Runnable {
         // get client's request
         socket.setSoTimeout(Config.GLOBAL_TIMEOUT);
         socket.receive(receivedPacket);
+        long receivedNanos = System.nanoTime();
         ClientIdentifier clientId = new ClientIdentifier(
           receivedPacket.getAddress(), receivedPacket.getPort()); 
         Config.logmsg("Received message from " + clientId.toString());
 
         // processing message
         try {
-          MeasurementPacket packet = new MeasurementPacket(
-              clientId, receivedPacket.getData());
+          MeasurementPacket packet = new MeasurementPacket(clientId,
+              receivedPacket.getData(), receivedPacket.getLength());
+          packet.receivedNanos = receivedNanos;
           processPacket(packet);
         } catch (MeasurementError e) {
           Config.logmsg("Error processing message: " + e.getMessage());
@@ -100,7 +110,8 @@ public class UDPReceiver implements Runnable {
    */
   private void processPacket(final MeasurementPacket packet)
       throws MeasurementError {
-    if ( packet.type == Config.PKT_REQUEST ) {
+    if ( packet.type == Config.PKT_REQUEST
+        || packet.type == Config.PKT_BIDIR_REQUEST ) {
       // Create a new thread to burst udp packets
       Config.logmsg("Receive packet request");      
 
@@ -142,9 +153,33 @@ public class UDPReceiver implements Runnable {
       
       // Create a new thread for downlink burst. Otherwise the uplink burst
       // at the same time may be blocked and lead to wrong delay estimation 
-      RequestHandler respHandle = new RequestHandler(socket,
+      final RequestHandler respHandle = new RequestHandler(socket,
         packet.clientId, clientRecord);
-      new Thread(respHandle).start();      
+      if ( packet.type == Config.PKT_BIDIR_REQUEST ) {
+        // The client sends the uplink half from another socket, possibly
+        // behind a NAT, so the session is the client's address and seq
+        final String session = sessionKey(packet.clientId, packet.seq);
+        final CountDownLatch uplinkStarted = new CountDownLatch(1);
+        pendingDownlinks.put(session, uplinkStarted);
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if ( !uplinkStarted.await(Config.DEFAULT_TIMEOUT,
+                                        TimeUnit.MILLISECONDS) ) {
+                Config.logmsg("No uplink burst for session " + session);
+              }
+            } catch (InterruptedException e) {
+              Config.logmsg(e.getMessage());
+            }
+            pendingDownlinks.remove(session, uplinkStarted);
+            respHandle.run();
+          }
+        }).start();
+      }
+      else {
+        new Thread(respHandle).start();      
+      }
     }
     else if ( packet.type == Config.PKT_DATA )  { 
       // Look up the client map to find the corresponding recorder
@@ -152,6 +187,15 @@ public class UDPReceiver implements Runnable {
       // After received all the packets in a burst or timeout,
       // send a request back
 
+      // Start the downlink half of a bidirectional burst, if any
+      if ( !pendingDownlinks.isEmpty() ) {
+        CountDownLatch uplinkStarted = pendingDownlinks.remove(
+          sessionKey(packet.clientId, packet.seq));
+        if ( uplinkStarted != null ) {
+          uplinkStarted.countDown();
+        }
+      }
+
       ClientRecord clientRecord;
       if ( clientMap.containsKey(packet.clientId) ) {
         clientRecord = clientMap.get(packet.clientId);
@@ -162,6 +206,7 @@ public class UDPReceiver implements Runnable {
           long timeNow = System.currentTimeMillis();
           clientRecord.addPacketInfo(packet.packetNum, 
             timeNow - packet.timestamp, timeNow);
+          addPacketDelay(clientRecord, packet);
         }
         else {
           Config.logmsg("client sent a different sequence number! old " + 
@@ -181,6 +226,7 @@ public class UDPReceiver implements Runnable {
         clientRecord.seq = packet.seq;
         clientRecord.addPacketInfo(packet.packetNum, 
           timeNow - packet.timestamp, timeNow);
+        addPacketDelay(clientRecord, packet);
         
         clientRecord.timeoutChecker = new Thread(new Runnable() {
           /*
@@ -283,6 +329,18 @@ public class UDPReceiver implements Runnable {
       responsePacket.packetNum = clientRecord.packetCount;
       responsePacket.packetSize = clientRecord.packetSize;
       responsePacket.seq = clientRecord.seq;
+      // Clients that sent nano timestamps get the per-packet delays back
+      int count = clientRecord.arrivalPacketNumList.size();
+      if ( count > 0 ) {
+        responsePacket.arrivalPacketNum = new int[count];
+        responsePacket.arrivalDelayNanos = new long[count];
+        for ( int i = 0; i < count; i++ ) {
+          responsePacket.arrivalPacketNum[i] =
+              clientRecord.arrivalPacketNumList.get(i);
+          responsePacket.arrivalDelayNanos[i] =
+              clientRecord.arrivalDelayNanosList.get(i);
+        }
+      }
     }
 
     byte[] sendBuffer = packet.getByteArray();
@@ -302,6 +360,31 @@ public class UDPReceiver implements Runnable {
       + packet.packetSize);
   }
 
+  /**
+   * Identify the two halves of a bidirectional burst
+   * @param clientId the client identifier of either half
+   * @param seq sequence number of the burst
+   * @return the session of the burst
+   */
+  private static String sessionKey(ClientIdentifier clientId, int seq) {
+    return clientId.addr.getHostAddress() + "#" + seq;
+  }
+
+  /**
+   * Record the nanosecond delay of a data packet carrying a nano timestamp
+   * @param clientRecord the record of the packet's burst
+   * @param packet received data packet
+   */
+  private void addPacketDelay(ClientRecord clientRecord,
+                              MeasurementPacket packet) {
+    if ( packet.hasNanoTimestamp ) {
+      long receivedNanos = packet.receivedNanos != 0 ? packet.receivedNanos
+          : System.nanoTime();
+      clientRecord.addPacketDelay(packet.packetNum,
+          receivedNanos - packet.nanoTimestamp);
+    }
+  }
+
   private void removeOldRecord() throws MeasurementError {
     for(Map.Entry<ClientIdentifier, ClientRecord> entry : clientMap.entrySet()){
       sendPacket(Config.PKT_RESPONSE, entry.getKey(), entry.getValue());
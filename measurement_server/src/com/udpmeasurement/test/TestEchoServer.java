@@ -0,0 +1,218 @@
+/* Copyright 2013 RobustNet Lab, University of Michigan. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.udpmeasurement.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.junit.Test;
+
+import com.udpmeasurement.EchoServer;
+import com.udpmeasurement.MeasurementError;
+
+/**
+ * End-to-end test of the echo server on localhost. The client side sends
+ * probes the way the RRC inference of the client does: a probe is a burst of
+ * packets sent at once over an unconnected channel, and completes when every
+ * packet is echoed or the timeout passes. Pauses start when the previous
+ * probe completed.
+ */
+public class TestEchoServer {
+  private static final int TIMEOUT_MSEC = 2000;
+  private static final int LARGE_PACKET = 1024;
+
+  /**
+   * One test of the RRC timeline: a large packet to promote the radio, a
+   * pause, then a burst of large packets and one of empty packets.
+   */
+  @Test
+  public void testProbeTimeline() throws Exception {
+    EchoServer server = startServer(0);
+    Prober prober = new Prober(server.getPort());
+    try {
+      ProbeResult promote = prober.probe(LARGE_PACKET, 1);
+      assertEquals(0, promote.lost);
+      assertEquals(0, promote.bytesReceived);
+
+      long pauseStart = System.nanoTime();
+      prober.await(200);
+      assertTrue(System.nanoTime() - pauseStart >= 190 * 1000000L);
+
+      ProbeResult large = prober.probe(LARGE_PACKET, 10);
+      assertEquals(0, large.lost);
+      assertTrue(large.firstEchoMs >= 0);
+
+      ProbeResult empty = prober.probe(0, 10);
+      assertEquals(0, empty.lost);
+      assertEquals(21, awaitPacketsEchoed(server, 21));
+    } finally {
+      prober.close();
+      server.stop();
+    }
+  }
+
+  /**
+   * Every echo has the configured size, whatever the size of the probe.
+   */
+  @Test
+  public void testResponseSize() throws Exception {
+    EchoServer server = startServer(100);
+    Prober prober = new Prober(server.getPort());
+    try {
+      ProbeResult small = prober.probe(0, 5);
+      assertEquals(0, small.lost);
+      assertEquals(5 * 100, small.bytesReceived);
+
+      ProbeResult large = prober.probe(LARGE_PACKET, 5);
+      assertEquals(0, large.lost);
+      assertEquals(5 * 100, large.bytesReceived);
+    } finally {
+      prober.close();
+      server.stop();
+    }
+  }
+
+  /**
+   * The server keeps up with bursts far larger than the RRC tests send.
+   */
+  @Test
+  public void testLargeBurst() throws Exception {
+    EchoServer server = startServer(0);
+    Prober prober = new Prober(server.getPort());
+    try {
+      for (int i = 0; i < 20; i++) {
+        ProbeResult result = prober.probe(LARGE_PACKET, 50);
+        assertEquals(0, result.lost);
+      }
+      assertEquals(1000, awaitPacketsEchoed(server, 1000));
+    } finally {
+      prober.close();
+      server.stop();
+    }
+  }
+
+  @Test(expected = MeasurementError.class)
+  public void testInvalidResponseSize() throws MeasurementError {
+    new EchoServer(0, 100000);
+  }
+
+  /**
+   * The server counts an echo after sending it, so the client can have every
+   * echo before the count is updated. Returns the count once it reaches
+   * |expected|, or after TIMEOUT_MSEC.
+   */
+  private long awaitPacketsEchoed(EchoServer server, long expected)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+    while (server.getPacketsEchoed() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return server.getPacketsEchoed();
+  }
+
+  private EchoServer startServer(int responseSize) throws MeasurementError {
+    EchoServer server = new EchoServer(0, responseSize);
+    new Thread(server).start();
+    return server;
+  }
+
+  private static class ProbeResult {
+    long firstEchoMs = -1;
+    int lost;
+    int bytesReceived = 0;
+  }
+
+  /**
+   * The client side of the RRC inference, reduced to what the echo server
+   * has to support.
+   */
+  private static class Prober {
+    private final InetSocketAddress server;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(LARGE_PACKET);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(2048);
+    private long lastProbeDoneNanos = 0;
+
+    Prober(int port) throws IOException {
+      server = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+      channel = DatagramChannel.open();
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    void await(long delayMs) throws IOException {
+      long deadline = lastProbeDoneNanos + delayMs * 1000000L;
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0) {
+        selector.select(Math.max(1, remaining / 1000000L));
+        selector.selectedKeys().clear();
+        while (receive() >= 0) {
+          // Late echoes are not counted
+        }
+      }
+    }
+
+    ProbeResult probe(int size, int count) throws IOException {
+      ProbeResult result = new ProbeResult();
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        sendBuffer.clear();
+        sendBuffer.limit(size);
+        channel.send(sendBuffer, server);
+      }
+      long deadline = start + TIMEOUT_MSEC * 1000000L;
+      int received = 0;
+      long remaining;
+      while (received < count && (remaining = deadline - System.nanoTime()) > 0) {
+        selector.select(Math.max(1, remaining / 1000000L));
+        selector.selectedKeys().clear();
+        int length;
+        while (received < count && (length = receive()) >= 0) {
+          if (received++ == 0) {
+            result.firstEchoMs = (System.nanoTime() - start) / 1000000L;
+          }
+          result.bytesReceived += length;
+        }
+      }
+      result.lost = count - received;
+      lastProbeDoneNanos = System.nanoTime();
+      return result;
+    }
+
+    /** Returns the length of a pending echo, or -1 if there is none */
+    private int receive() throws IOException {
+      receiveBuffer.clear();
+      if (channel.receive(receiveBuffer) == null) {
+        return -1;
+      }
+      return receiveBuffer.position();
+    }
+
+    void close() throws IOException {
+      selector.close();
+      channel.close();
+    }
+  }
+}
@@ -62,4 +62,59 @@ public class TestMeasurementPacket {
     }
   }
 
+  /**
+   * Test that the nano timestamp of data packets survives pack and unpack,
+   * and that a data packet without the trailer has none
+   * @throws UnknownHostException
+   * @throws MeasurementError
+   */
+  @Test
+  public void TestDataPacketNanoTimestamp()
+      throws UnknownHostException, MeasurementError {
+    ClientIdentifier id1 = new ClientIdentifier(
+      InetAddress.getByName("192.168.1.1"), 1234);
+    MeasurementPacket packet = new MeasurementPacket(id1);
+    packet.type = Config.PKT_DATA;
+    packet.packetNum = 3;
+    packet.hasNanoTimestamp = true;
+    packet.nanoTimestamp = 123456789012345L;
+    byte[] rawData = packet.getByteArray();
+    assertEquals(Config.MIN_PACKETSIZE + Config.NANO_TIMESTAMP_SIZE,
+      rawData.length);
+
+    MeasurementPacket newPacket = new MeasurementPacket(id1, rawData);
+    assertTrue(newPacket.hasNanoTimestamp);
+    assertEquals(123456789012345L, newPacket.nanoTimestamp);
+
+    // Old clients send the header only, the rest of the buffer is garbage
+    byte[] buffer = new byte[Config.BUFSIZE];
+    System.arraycopy(rawData, 0, buffer, 0, rawData.length);
+    MeasurementPacket oldPacket =
+        new MeasurementPacket(id1, buffer, Config.MIN_PACKETSIZE);
+    assertFalse(oldPacket.hasNanoTimestamp);
+    assertEquals(3, oldPacket.packetNum);
+  }
+
+  /**
+   * Test that the delay vector of response packets survives pack and unpack
+   * @throws UnknownHostException
+   * @throws MeasurementError
+   */
+  @Test
+  public void TestResponsePacketDelayVector()
+      throws UnknownHostException, MeasurementError {
+    ClientIdentifier id1 = new ClientIdentifier(
+      InetAddress.getByName("192.168.1.1"), 1234);
+    MeasurementPacket packet = new MeasurementPacket(id1);
+    packet.type = Config.PKT_RESPONSE;
+    packet.arrivalPacketNum = new int[] {0, 2, 1, 99};
+    packet.arrivalDelayNanos = new long[] {
+      -8000000000000L, -7999999000000L, -8000000500123L, Long.MAX_VALUE / 2};
+    byte[] rawData = packet.getByteArray();
+
+    MeasurementPacket newPacket = new MeasurementPacket(id1, rawData);
+    assertArrayEquals(packet.arrivalPacketNum, newPacket.arrivalPacketNum);
+    assertArrayEquals(packet.arrivalDelayNanos, newPacket.arrivalDelayNanos);
+  }
+
 }
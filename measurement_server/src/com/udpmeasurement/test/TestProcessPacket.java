@@ -107,6 +107,25 @@ public class TestProcessPacket {
     }
   }
 
+  @Test(expected = MeasurementError.class)
+  public void TestProcessPacketBidirRequestShortPacket() 
+      throws Throwable {
+    init();
+    
+    packet.type = Config.PKT_BIDIR_REQUEST;
+    packet.burstCount = 2;  // 1 <= burstCount <= MAX_BURSTCOUNT
+    packet.packetSize = Config.MIN_PACKETSIZE - 1; // short packet!
+    
+    try {
+      processPacket.invoke(tmpReceiver, packet);
+    } catch (InvocationTargetException e) {
+      // InvocationTargetException wrapped the real cause, just unwrap it
+      throw e.getCause();
+    } finally {
+      tmpReceiver.socket.close();
+    }
+  }
+
   @Test(expected = MeasurementError.class)
   public void TestProcessPacketRequestNegBurst() 
       throws Throwable {
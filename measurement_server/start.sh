@@ -5,7 +5,7 @@ echo "####### Running /home/michigan_1/init/start.sh at `date` ########"
 
 cd /home/michigan_1/mobiperf
 
-services="Downlink:6001:tcp Uplink:6002:tcp ServerConfig:6003:tcp UDPServer:31341:udp"
+services="Downlink:6001:tcp Uplink:6002:tcp ServerConfig:6003:tcp UDPServer:31341:udp EchoServer:50000:udp"
 
 start() {
         echo "Attempting to start $1 ..."
@@ -18,6 +18,7 @@
 
 __author__ = 'mdw@google.com (Matt Welsh)'
 
+import hashlib
 import logging
 
 from django.utils import simplejson as json
@@ -51,9 +52,11 @@ class Checkin(webapp.RequestHandler):
       device_info = model.DeviceInfo.get_or_insert(device_id)
 
       device_info.user = users.get_current_user()
-      # Don't want the embedded properties in the device_info structure.
+      # Don't want the embedded properties or the schedule version in the
+      # device_info structure.
       device_info_dict = dict(checkin)
       del device_info_dict['properties']
+      device_info_dict.pop('schedule_version', None)
       util.ConvertFromDict(device_info, device_info_dict)
       device_info.put()
 
@@ -64,7 +67,12 @@ class Checkin(webapp.RequestHandler):
       device_properties.put()
 
       device_schedule = GetDeviceSchedule(device_properties)
-      device_schedule_json = EncodeScheduleAsJson(device_schedule)
+      if 'schedule_version' in checkin:
+        device_schedule_json = EncodeScheduleUpdateAsJson(
+            device_info, device_schedule, checkin['schedule_version'])
+      else:
+        # Older clients expect the whole schedule as a list
+        device_schedule_json = EncodeScheduleAsJson(device_schedule)
       logging.info('Sending checkin response: %s', device_schedule_json)
       self.response.headers['Content-Type'] = 'application/json'
       self.response.out.write(device_schedule_json)
@@ -129,9 +137,9 @@ def GetDeviceSchedule(device_properties):
   return matched
 
 
-def EncodeScheduleAsJson(schedule):
-  """Given a list of Tasks, return a JSON string encoding the schedule."""
-  output = []
+def EncodeScheduleTasks(schedule):
+  """Given a list of Tasks, return a dict of task keys to the encoded tasks."""
+  output = {}
   for task in schedule:
     # Don't send the user, tag, or filter fields with the schedule
     output_task = util.ConvertToDict(
@@ -139,6 +147,60 @@ def EncodeScheduleAsJson(schedule):
     # Need to add the parameters and key fields
     output_task['parameters'] = task.Params()
     output_task['key'] = str(task.key().id_or_name())
-    output.append(output_task)
+    output[output_task['key']] = output_task
+
+  return output
 
-  return json.dumps(output)
+
+def EncodeScheduleAsJson(schedule):
+  """Given a list of Tasks, return a JSON string encoding the schedule."""
+  return json.dumps(EncodeScheduleTasks(schedule).values())
+
+
+def EncodeScheduleUpdateAsJson(device_info, schedule, client_version):
+  """Return a JSON string with the changes to bring a device up to date.
+
+  Each schedule sent to a device gets a version, a digest of its tasks, which
+  is stored in its DeviceSchedule along with the digest of every task. If the
+  device reports the version it was sent last, only the tasks added or
+  changed since and the keys of the removed tasks are sent. Otherwise, for
+  instance when a previous response was lost, the whole schedule is sent.
+  """
+  tasks = EncodeScheduleTasks(schedule)
+  digests = dict((key, TaskDigest(task)) for key, task in tasks.iteritems())
+  version = ScheduleVersion(digests)
+
+  sent_schedule = model.DeviceSchedule.get_or_insert(device_info.id)
+  previous_digests = None
+  if (client_version and client_version == sent_schedule.version
+      and sent_schedule.task_digests):
+    previous_digests = json.loads(sent_schedule.task_digests)
+
+  if previous_digests is None:
+    update = {'version': version, 'full': True, 'tasks': tasks.values(),
+              'removed': []}
+  else:
+    update = {'version': version, 'full': False,
+              'tasks': [task for key, task in tasks.iteritems()
+                        if previous_digests.get(key) != digests[key]],
+              'removed': [key for key in previous_digests
+                          if key not in digests]}
+  logging.info('Schedule %s for device %s: %d tasks, %d removed',
+               update['full'] and 'snapshot' or 'delta', device_info.id,
+               len(update['tasks']), len(update['removed']))
+
+  if sent_schedule.version != version:
+    sent_schedule.version = version
+    sent_schedule.task_digests = json.dumps(digests)
+    sent_schedule.put()
+  return json.dumps(update)
+
+
+def TaskDigest(encoded_task):
+  """Return a digest of everything sent to the device about a task."""
+  return hashlib.sha1(json.dumps(encoded_task, sort_keys=True)).hexdigest()
+
+
+def ScheduleVersion(digests):
+  """Return the version of a schedule, given the digests of its tasks."""
+  return hashlib.sha1(json.dumps(sorted(digests.items()))).hexdigest()
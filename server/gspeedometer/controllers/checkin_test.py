@@ -0,0 +1,75 @@
+# Copyright 2012 Google Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+
+"""Tests for controllers/checkin.py."""
+
+import datetime
+from django.utils import simplejson as json
+from gspeedometer import model
+from gspeedometer.controllers import checkin
+from gspeedometer.helpers import test
+
+
+class CheckinTest(test.MobiperfTest):
+  """Tests for controllers/checkin.py."""
+
+  def _CreateTask(self, target):
+    task = model.Task()
+    task.type = 'ping'
+    task.start_time = datetime.datetime(2012, 3, 21)
+    task.end_time = datetime.datetime(2012, 3, 22)
+    task.interval_sec = 600.0
+    task.count = -1
+    task.priority = 10
+    task.mparam_target = target
+    task.put()
+    return task
+
+  def _Update(self, device, schedule, version):
+    return json.loads(
+        checkin.EncodeScheduleUpdateAsJson(device, schedule, version))
+
+  def testScheduleUpdate(self):
+    """Test that only the changes since the device's version are sent."""
+    device = self._CreateFakeDevices(n=1)[0]
+    ping_a = self._CreateTask('www.google.com')
+    ping_b = self._CreateTask('www.example.com')
+
+    # An unknown version gets the whole schedule
+    update = self._Update(device, [ping_a, ping_b], None)
+    self.assertTrue(update['full'])
+    self.assertEqual(2, len(update['tasks']))
+    version = update['version']
+
+    # Nothing changed
+    update = self._Update(device, [ping_a, ping_b], version)
+    self.assertFalse(update['full'])
+    self.assertEqual(version, update['version'])
+    self.assertEqual([], update['tasks'])
+    self.assertEqual([], update['removed'])
+
+    # One task changed and one removed
+    ping_a.mparam_target = 'www.google.co.uk'
+    ping_a.put()
+    update = self._Update(device, [ping_a], version)
+    self.assertFalse(update['full'])
+    self.assertEqual([str(ping_a.key().id())],
+                     [task['key'] for task in update['tasks']])
+    self.assertEqual([str(ping_b.key().id())], update['removed'])
+
+    # A device that missed the last response starts over
+    update = self._Update(device, [ping_a], version)
+    self.assertTrue(update['full'])
+    self.assertEqual(1, len(update['tasks']))
@@ -21,6 +21,7 @@ __author__ = ('mdw@google.com (Matt Welsh), '
               'hyyao@umich.edu (Hongyi Yao)')
 
 import logging
+import zlib
 
 from django.utils import simplejson as json
 from django.utils.datastructures import SortedDict
@@ -40,7 +41,9 @@ MEASUREMENT_TYPES = [('ping', 'ping'),
                      ('http', 'HTTP get'),
                      ('tcpthroughput', 'TCP throughput'),
                      ('rrc', 'RRC inference'),
-                     ('udp_burst', 'UDP burst')]
+                     ('udp_burst', 'UDP burst'),
+                     ('loaded_latency', 'Latency under load'),
+                     ('page_load', 'Page load')]
 
 class Measurement(webapp.RequestHandler):
   """Measurement request handler."""
@@ -51,7 +54,11 @@ class Measurement(webapp.RequestHandler):
       raise error.BadRequest('Not a POST request.')
 
     try:
-      measurement_list = json.loads(self.request.body)
+      body = self.request.body
+      if self.request.headers.get('Content-Encoding', '').lower() == 'gzip':
+        # Devices may gzip large result uploads
+        body = zlib.decompress(body, 16 + zlib.MAX_WBITS)
+      measurement_list = json.loads(body)
       logging.info('PostMeasurement: Got %d measurements to write',
                    len(measurement_list))
       for measurement_dict in measurement_list:
@@ -208,7 +215,11 @@ class MeasurementType:
           ('profile_3_freq', 'Profile 3 frequency (float)'),
           ('profile_4_freq', 'Profile 4 frequency (float)'),
           ('profile_unlimited', 'Unlimited profile frequency (float)'),
-           ('server', 'DNS server')]))
+           ('server', 'DNS servers (IP[:port], space separated)'),
+           ('random_prefix', 'Query random subdomains of the target (true/false)'),
+           ('query_count', 'Queries per target and server'),
+           ('parallelism', 'Queries in flight at once'),
+           ('timeout_ms', 'Query timeout (ms)')]))
     elif measurement_type == 'traceroute':
       return MeasurementType(
           'traceroute', 'traceroute',
@@ -221,7 +232,8 @@ class MeasurementType:
           ('profile_3_freq', 'Profile 3 frequency (float)'),
           ('profile_4_freq', 'Profile 4 frequency (float)'),
           ('profile_unlimited', 'Unlimited profile frequency (float)'),
-          ('pings_per_hop', 'Traceroute pings per hop')]))
+          ('pings_per_hop', 'Traceroute pings per hop'),
+          ('parallel_hops', 'Number of hops probed at once')]))
     elif measurement_type == 'http':
       return MeasurementType(
           'http', 'HTTP get', SortedDict([('url', 'HTTP URL'),
@@ -232,7 +244,10 @@ class MeasurementType:
           ('profile_3_freq', 'Profile 3 frequency (float)'),
           ('profile_4_freq', 'Profile 4 frequency (float)'),
           ('profile_unlimited', 'Unlimited profile frequency (float)'),
-          ('headers', 'HTTP headers'), ('method', 'HTTP method')]))
+          ('headers', 'HTTP headers'), ('method', 'HTTP method'),
+          ('reuse_connection', 'Keep connections between runs (true/false)'),
+          ('capture_content', 'Report the headers and start of the body \
+          (true/false)')]))
     elif measurement_type == 'tcpthroughput':
       return MeasurementType(
           'tcpthroughput', 'TCP throughput',
@@ -245,6 +260,8 @@ class MeasurementType:
           ('sample_period_sec', 'Interval to sample throughput (seconds)'),
           ('slow_start_period_sec', 'Waiting period for slow start (seconds)'),
           ('tcp_timeout_sec', 'TCP connection timeout (seconds)'),
+          ('adaptive', 'Detect slow start and stop once the speed \
+          converges (true/false)'),
           ('profile_1_freq', 'Profile 1 frequency (float)'),
           ('profile_2_freq', 'Profile 2 frequency (float)'),
           ('profile_3_freq', 'Profile 3 frequency (float)'),
@@ -264,6 +281,12 @@ class MeasurementType:
           ('http', 'Run Extra HTTP download test (true/false)'),
           ('tcp', 'Run Extra TCP handshake test (true/false)'),
           ('measure_sizes', 'Run tests on parameter sizes (true/false)'),
+          ('adaptive', 'Locate the RRC timers by bisection instead of \
+          testing every interval (true/false)'),
+          ('adaptive_threshold', 'For adaptive inference, the smallest RTT \
+          difference in ms between two RRC states'),
+          ('adaptive_repeats', 'For adaptive inference, the number of tests \
+          on either side of a transition'),
           ('profile_1_freq', 'Profile 1 frequency (float)'),
           ('profile_2_freq', 'Profile 2 frequency (float)'),
           ('profile_3_freq', 'Profile 3 frequency (float)'),
@@ -278,11 +301,41 @@ class MeasurementType:
     elif measurement_type == 'udp_burst':
       return MeasurementType(
           'udp_burst', 'UDP burst',
-          SortedDict([('direction', 'Set Up for upload, otherwise download'),
+          SortedDict([('direction', 'Set Up for upload, Both for upload and \
+          download at the same time, otherwise download'),
           ('target', 'Target (IP or hostname)'),
           ('packet_size_byte', 'packet size (bytes)'),
           ('packet_burst', 'the number of UDP packets'),
           ('udp_interval', 'the interval between two packets (ms)'),
+          ('estimate_capacity', 'Whether to estimate the uplink capacity \
+          instead of sending a burst (true/false)'),
+          ('profile_1_freq', 'Profile 1 frequency (float)'),
+          ('profile_2_freq', 'Profile 2 frequency (float)'),
+          ('profile_3_freq', 'Profile 3 frequency (float)'),
+          ('profile_4_freq', 'Profile 4 frequency (float)'),
+          ('profile_unlimited', 'Unlimited profile frequency (float)') ]))
+    elif measurement_type == 'loaded_latency':
+      return MeasurementType(
+          'loaded_latency', 'Latency under load',
+          SortedDict([('dir_up', 'True: load the uplink; False: the downlink'),
+          ('target', 'Target (m-lab)'),
+          ('idle_ping_count', 'Pings before loading the link'),
+          ('packet_size_byte', 'Ping packet size (bytes)'),
+          ('duration_period_sec', 'Load duration (seconds)'),
+          ('slow_start_period_sec', 'Waiting period for slow start (seconds)'),
+          ('sample_period_sec', 'Interval to sample throughput (seconds)'),
+          ('profile_1_freq', 'Profile 1 frequency (float)'),
+          ('profile_2_freq', 'Profile 2 frequency (float)'),
+          ('profile_3_freq', 'Profile 3 frequency (float)'),
+          ('profile_4_freq', 'Profile 4 frequency (float)'),
+          ('profile_unlimited', 'Unlimited profile frequency (float)') ]))
+    elif measurement_type == 'page_load':
+      return MeasurementType(
+          'page_load', 'Page load',
+          SortedDict([('urls', 'URLs of the main document and its objects, \
+          separated by spaces or commas'),
+          ('parallelism', 'Number of objects fetched at once'),
+          ('headers', 'HTTP headers'),
           ('profile_1_freq', 'Profile 1 frequency (float)'),
           ('profile_2_freq', 'Profile 2 frequency (float)'),
           ('profile_3_freq', 'Profile 3 frequency (float)'),
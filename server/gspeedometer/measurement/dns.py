@@ -49,18 +49,23 @@ class DNSLookup(MeasurementWrapper):
 
     # Validation rules: 
     # 0) Proper fields exist
+    # Queries sent straight to a resolver may all come back without an
+    # address, e.g. for random subdomains, so only the time is required then.
     fields = ['address', 'real_hostname', 'time_ms']
+    if self.vals.has_key('num_queries'):
+      fields = ['time_ms', 'lost_queries']
     for field in fields:
       if not self.vals.has_key(field):
         results["valid"] = False
         results["error_types"].append("missing_field_" + field)
     try:
     # 1) Target is an IP 
-      try:
-        not_used = ipaddr.IPAddress(self.vals['address'].strip('"'))
-      except:
-        results["valid"] = False
-        results["error_types"].append("address_not_valid")
+      if self.vals.has_key('address'):
+        try:
+          not_used = ipaddr.IPAddress(self.vals['address'].strip('"'))
+        except:
+          results["valid"] = False
+          results["error_types"].append("address_not_valid")
 
       # 2) lookup time is valid
       # TODO(drc)  what is the default DNS timeout?
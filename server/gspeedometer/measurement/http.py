@@ -53,7 +53,10 @@ class HTTP(MeasurementWrapper):
     # Validation rules: 
     # 0) Proper fields exist
     fields = ['code', 'url']
-    optional_fields = ['body', 'body_len', 'headers', 'headers_len', 'time_ms']
+    optional_fields = ['body_len', 'headers_len', 'time_ms']
+    # Devices send the content only when asked to, and a digest of the body otherwise
+    if not self.vals.has_key('body_sha1'):
+      optional_fields.extend(['body', 'headers'])
     for field in fields:
       if not self.vals.has_key(field):
         results["valid"] = False
@@ -80,7 +83,7 @@ class HTTP(MeasurementWrapper):
       # 3) if code was between 200 and 300, success, so look at other fields
       if int(self.vals['code']) == 200:
         # 3a) body is non empty
-        if len(self.vals['body']) == 0:
+        if self.vals.has_key('body') and len(self.vals['body']) == 0:
           results["valid"] = False
           results["error_types"].append("zero_length_body")
 
@@ -301,6 +301,17 @@ class DeviceTask(db.Model):
   task = db.ReferenceProperty(Task)
   device_info = db.ReferenceProperty(DeviceInfo)
 
+class DeviceSchedule(db.Model):
+  """Represents the schedule last sent to a given device, keyed by device ID.
+
+  Kept apart from DeviceInfo so that it does not show up in exported
+  measurements.
+  """
+  # Digest of the whole schedule, echoed back by the device on checkin
+  version = db.StringProperty()
+  # JSON dict of task keys to the digest of each task as it was sent
+  task_digests = db.TextProperty()
+
 class ValidationSummary(db.Model):
   """Represents the summary of validation results for a specific 
   measurement type during a specific time interval."""